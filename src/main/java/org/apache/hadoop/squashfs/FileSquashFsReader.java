@@ -27,6 +27,8 @@ import org.apache.hadoop.squashfs.inode.DirectoryINode;
 import org.apache.hadoop.squashfs.inode.FileINode;
 import org.apache.hadoop.squashfs.inode.INode;
 import org.apache.hadoop.squashfs.inode.INodeRef;
+import org.apache.hadoop.squashfs.io.ByteBufferDataInput;
+import org.apache.hadoop.squashfs.io.PositionalReader;
 import org.apache.hadoop.squashfs.metadata.FileMetadataBlockReader;
 import org.apache.hadoop.squashfs.metadata.MetadataBlockCache;
 import org.apache.hadoop.squashfs.metadata.MetadataBlockReader;
@@ -42,7 +44,7 @@ import org.apache.hadoop.squashfs.table.TableReader;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -50,7 +52,7 @@ import java.util.List;
 public class FileSquashFsReader extends AbstractSquashFsReader {
 
   private final int tag;
-  private final RandomAccessFile raf;
+  private final PositionalReader in;
   private final SuperBlock superBlock;
   private final MetadataBlockCache metaReader;
   private final DataBlockCache dataCache;
@@ -77,57 +79,62 @@ public class FileSquashFsReader extends AbstractSquashFsReader {
     this.tag = tag;
     this.dataCache = dataCache;
     this.fragmentCache = fragmentCache;
-    raf = new RandomAccessFile(inputFile, "r");
-    superBlock = readSuperBlock(raf);
+    // every read is positional, so the channel has no shared position and
+    // the reader may be used from many threads at once
+    in = PositionalReader.open(inputFile.toPath());
+    superBlock = readSuperBlock(in);
     sparseBlock = createSparseBlock(superBlock);
 
     this.metaReader = metadataCache;
     metaReader
-        .add(tag, new FileMetadataBlockReader(tag, raf, superBlock, false));
-    idTable = readIdTable(tag, raf, metaReader);
-    fragmentTable = readFragmentTable(tag, raf, metaReader);
-    exportTable = readExportTable(tag, raf, metaReader);
+        .add(tag, new FileMetadataBlockReader(tag, in, superBlock, false));
+    idTable = readIdTable(tag, in, metaReader);
+    fragmentTable = readFragmentTable(tag, in, metaReader);
+    exportTable = readExportTable(tag, in, metaReader);
   }
 
-  static SuperBlock readSuperBlock(RandomAccessFile raf)
+  static SuperBlock readSuperBlock(PositionalReader in)
       throws IOException, SquashFsException {
-    raf.seek(0L);
-    return SuperBlock.read(raf);
+    // compressor options, if any, follow the superblock
+    int maxSize = SuperBlock.SIZE + 2 + SuperBlock.MAX_COMPRESSOR_OPTIONS_SIZE;
+    byte[] buf = new byte[(int) Math.min(in.size(), maxSize)];
+    in.readFully(0L, buf);
+    return SuperBlock.read(new ByteBufferDataInput(ByteBuffer.wrap(buf)));
   }
 
   static IdTable readIdTable(
       int tag,
-      RandomAccessFile raf,
+      PositionalReader in,
       MetadataBlockReader metaReader) throws IOException, SquashFsException {
 
     TableReader tr =
-        new FileTableReader(raf, metaReader.getSuperBlock(tag), false);
+        new FileTableReader(in, metaReader.getSuperBlock(tag), false);
     return IdTable.read(tag, tr, metaReader);
   }
 
   static FragmentTable readFragmentTable(
       int tag,
-      RandomAccessFile raf,
+      PositionalReader in,
       MetadataBlockReader metaReader) throws IOException, SquashFsException {
 
     TableReader tr =
-        new FileTableReader(raf, metaReader.getSuperBlock(tag), false);
+        new FileTableReader(in, metaReader.getSuperBlock(tag), false);
     return FragmentTable.read(tag, tr, metaReader);
   }
 
   static ExportTable readExportTable(
       int tag,
-      RandomAccessFile raf,
+      PositionalReader in,
       MetadataBlockReader metaReader) throws IOException, SquashFsException {
 
     TableReader tr =
-        new FileTableReader(raf, metaReader.getSuperBlock(tag), false);
+        new FileTableReader(in, metaReader.getSuperBlock(tag), false);
     return ExportTable.read(tag, tr, metaReader);
   }
 
   @Override
   public void close() throws IOException {
-    raf.close();
+    in.close();
   }
 
   @Override
@@ -275,7 +282,7 @@ public class FileSquashFsReader extends AbstractSquashFsReader {
       throws IOException, SquashFsException {
 
     return DataBlockReader
-        .readBlock(tag, raf, superBlock, fileInode, blockNumber,
+        .readBlock(tag, in, superBlock, fileInode, blockNumber,
             cache ? dataCache : DataBlockCache.NO_CACHE);
   }
 
@@ -284,7 +291,7 @@ public class FileSquashFsReader extends AbstractSquashFsReader {
       throws IOException, SquashFsException {
 
     return DataBlockReader.readFragment(
-        tag, raf, superBlock, fileInode, fragmentTable, fragmentSize,
+        tag, in, superBlock, fileInode, fragmentTable, fragmentSize,
         cache ? fragmentCache : DataBlockCache.NO_CACHE);
   }
 
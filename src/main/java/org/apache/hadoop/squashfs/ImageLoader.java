@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs;
+
+import org.apache.hadoop.squashfs.data.DataBlockRef;
+import org.apache.hadoop.squashfs.data.FragmentRef;
+import org.apache.hadoop.squashfs.directory.DirectoryEntry;
+import org.apache.hadoop.squashfs.inode.DeviceINode;
+import org.apache.hadoop.squashfs.inode.FileINode;
+import org.apache.hadoop.squashfs.inode.INode;
+import org.apache.hadoop.squashfs.inode.INodeType;
+import org.apache.hadoop.squashfs.inode.SymlinkINode;
+import org.apache.hadoop.squashfs.table.FragmentTable;
+import org.apache.hadoop.squashfs.table.FragmentTableEntry;
+import org.apache.hadoop.squashfs.table.IdTable;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Reads the entries of an existing image back into a writer, pointing at
+// the data blocks and fragments already on disk. Entries are added as
+// synthetic, so the writer replaces any of them that are added again.
+class ImageLoader {
+
+  private final SquashFsReader reader;
+  private final SquashFsWriter writer;
+  private final IdTable idTable;
+  private final int blockSize;
+
+  // first path seen for each inode number, which other paths link to
+  private final Map<Integer, String> paths = new HashMap<>();
+
+  ImageLoader(SquashFsReader reader, SquashFsWriter writer) {
+    this.reader = reader;
+    this.writer = writer;
+    this.idTable = reader.getIdTable();
+    this.blockSize = reader.getSuperBlock().getBlockSize();
+  }
+
+  void load() throws SquashFsException, IOException {
+    FragmentTable fragmentTable = reader.getFragmentTable();
+    List<FragmentTableEntry> fragments = new ArrayList<>();
+    for (int i = 0; i < fragmentTable.getFragmentCount(); i++) {
+      fragments.add(fragmentTable.getEntry(i));
+    }
+    writer.getFragmentWriter().addExistingEntries(fragments);
+
+    INode root = reader.getRootInode();
+    writer.setRootAttributes(idTable.idFromIndex(root.getUidIdx()),
+        idTable.idFromIndex(root.getGidIdx()), root.getPermissions(),
+        root.getModifiedTime());
+    loadChildren(root, "");
+  }
+
+  private void loadChildren(INode dir, String path)
+      throws SquashFsException, IOException {
+    for (DirectoryEntry child : reader.getChildren(dir)) {
+      String name = path + "/" + child.getNameAsString();
+      INode inode = reader.findInodeByDirectoryEntry(child);
+      load(inode, name);
+      if (inode.getInodeType().directory()) {
+        loadChildren(inode, name);
+      }
+    }
+  }
+
+  private void load(INode inode, String name)
+      throws SquashFsException, IOException {
+    INodeType type = inode.getInodeType();
+    SquashFsEntryBuilder tb = writer.entry(name)
+        .uid(idTable.idFromIndex(inode.getUidIdx()))
+        .gid(idTable.idFromIndex(inode.getGidIdx()))
+        .permissions(inode.getPermissions())
+        .lastModified(inode.getModifiedTime() * 1000L)
+        .synthetic();
+
+    String linkTarget = type.directory() ? null
+        : paths.putIfAbsent(inode.getInodeNumber(), name);
+
+    if (type.directory()) {
+      tb.directory();
+    } else if (type.file()) {
+      FileINode file = (FileINode) inode;
+      tb.file().fileSize(file.getFileSize());
+      if (linkTarget == null) {
+        addContent(tb, file);
+      }
+    } else if (type.symlink()) {
+      tb.symlink(new String(((SymlinkINode) inode).getTargetPath(),
+          StandardCharsets.ISO_8859_1));
+    } else if (type.blockDevice()) {
+      int device = ((DeviceINode) inode).getDevice();
+      tb.blockDev(major(device), minor(device));
+    } else if (type.charDevice()) {
+      int device = ((DeviceINode) inode).getDevice();
+      tb.charDev(major(device), minor(device));
+    } else if (type.fifo()) {
+      tb.fifo();
+    } else {
+      throw new SquashFsException(
+          String.format("Cannot carry over %s '%s' when appending", type,
+              name));
+    }
+
+    if (linkTarget != null) {
+      tb.hardlink(linkTarget);
+    }
+    tb.build();
+  }
+
+  private void addContent(SquashFsEntryBuilder tb, FileINode file) {
+    long location = file.getBlocksStart();
+    long remaining = file.getFileSize();
+    for (int size : file.getBlockSizes()) {
+      int logicalSize = (int) Math.min(blockSize, remaining);
+      int physicalSize = size & 0xfffff;
+      boolean compressed = (size & 0x1000000) == 0;
+      tb.dataBlock(new DataBlockRef(location, logicalSize, physicalSize,
+          compressed && physicalSize > 0, physicalSize == 0));
+      location += physicalSize;
+      remaining -= logicalSize;
+    }
+    if (file.isFragmentPresent()) {
+      tb.fragment(new FragmentRef(file.getFragmentBlockIndex(),
+          file.getFragmentOffset()));
+    }
+  }
+
+  // the inverse of the encoding in SquashFsTree
+  static int major(int device) {
+    return (device >>> 8) & 0xfff;
+  }
+
+  static int minor(int device) {
+    return (device & 0xff) | ((device >>> 12) & 0xfff00);
+  }
+
+}
@@ -0,0 +1,206 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Interns file name components. Names are kept back to back in one shared
+// array, so each distinct name costs its length plus a few bytes of index.
+// Names that fit ISO-8859-1, the encoding directory entries are written in,
+// take a byte per character; any other name keeps all of its characters as
+// UTF-16 so that names only mangled on output stay distinct.
+final class NamePool {
+
+  private byte[] data = new byte[4096];
+  private int dataLength = 0;
+
+  // name i is data[offsets[i]..offsets[i + 1])
+  private int[] offsets = new int[257];
+  // bit i is set if name i is stored as UTF-16
+  private long[] wide = new long[4];
+  private int count = 0;
+
+  // open addressing, holding name id + 1 (0 marks a free slot)
+  private int[] slots = new int[512];
+
+  int size() {
+    return count;
+  }
+
+  // -1 if the name was never interned
+  int find(String s, int from, int to) {
+    return slots[probe(s, from, to)] - 1;
+  }
+
+  int intern(String s, int from, int to) {
+    int slot = probe(s, from, to);
+    int id = slots[slot] - 1;
+    if (id >= 0) {
+      return id;
+    }
+
+    boolean utf16 = false;
+    for (int i = from; i < to && !utf16; i++) {
+      utf16 = s.charAt(i) > 0xff;
+    }
+    int length = utf16 ? 2 * (to - from) : to - from;
+    if (dataLength + length > data.length) {
+      data = Arrays.copyOf(data,
+          Math.max(dataLength + length, data.length + (data.length >> 1)));
+    }
+    for (int i = from; i < to; i++) {
+      char c = s.charAt(i);
+      if (utf16) {
+        data[dataLength++] = (byte) (c >>> 8);
+      }
+      data[dataLength++] = (byte) c;
+    }
+    if (count + 2 > offsets.length) {
+      offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    }
+    if ((count >> 6) >= wide.length) {
+      wide = Arrays.copyOf(wide, wide.length * 2);
+    }
+    id = count++;
+    offsets[count] = dataLength;
+    if (utf16) {
+      wide[id >> 6] |= 1L << id;
+    }
+    slots[slot] = id + 1;
+    if (count * 2 > slots.length) {
+      rehash();
+    }
+    return id;
+  }
+
+  // orders names by the bytes they are written as
+  int compare(int left, int right) {
+    int leftLength = length(left);
+    int rightLength = length(right);
+    for (int k = 0; k < leftLength && k < rightLength; k++) {
+      int a = encode(charAt(left, k)) & 0xff;
+      int b = encode(charAt(right, k)) & 0xff;
+      if (a != b) {
+        return a - b;
+      }
+    }
+    return leftLength - rightLength;
+  }
+
+  byte[] getBytes(int id) {
+    if (!isWide(id)) {
+      return Arrays.copyOfRange(data, offsets[id], offsets[id + 1]);
+    }
+    byte[] bytes = new byte[length(id)];
+    for (int k = 0; k < bytes.length; k++) {
+      bytes[k] = encode(charAt(id, k));
+    }
+    return bytes;
+  }
+
+  String getName(int id) {
+    if (!isWide(id)) {
+      return new String(data, offsets[id], offsets[id + 1] - offsets[id],
+          StandardCharsets.ISO_8859_1);
+    }
+    char[] chars = new char[length(id)];
+    for (int k = 0; k < chars.length; k++) {
+      chars[k] = charAt(id, k);
+    }
+    return new String(chars);
+  }
+
+  private boolean isWide(int id) {
+    return (wide[id >> 6] & (1L << id)) != 0;
+  }
+
+  private int length(int id) {
+    int bytes = offsets[id + 1] - offsets[id];
+    return isWide(id) ? bytes >> 1 : bytes;
+  }
+
+  private char charAt(int id, int k) {
+    int off = offsets[id];
+    if (isWide(id)) {
+      off += 2 * k;
+      return (char) (((data[off] & 0xff) << 8) | (data[off + 1] & 0xff));
+    }
+    return (char) (data[off + k] & 0xff);
+  }
+
+  // slot holding the name, or the free slot where it belongs
+  private int probe(String s, int from, int to) {
+    int mask = slots.length - 1;
+    int slot = hash(s, from, to) & mask;
+    int id;
+    while ((id = slots[slot] - 1) >= 0 && !matches(id, s, from, to)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean matches(int id, String s, int from, int to) {
+    int length = length(id);
+    if (length != to - from) {
+      return false;
+    }
+    for (int k = 0; k < length; k++) {
+      if (charAt(id, k) != s.charAt(from + k)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void rehash() {
+    int[] resized = new int[slots.length * 2];
+    int mask = resized.length - 1;
+    for (int id = 0; id < count; id++) {
+      int h = 0;
+      for (int k = 0, length = length(id); k < length; k++) {
+        h = 31 * h + charAt(id, k);
+      }
+      int slot = mix(h) & mask;
+      while (resized[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      resized[slot] = id + 1;
+    }
+    slots = resized;
+  }
+
+  private static int hash(String s, int from, int to) {
+    int h = 0;
+    for (int i = from; i < to; i++) {
+      h = 31 * h + s.charAt(i);
+    }
+    return mix(h);
+  }
+
+  static int mix(int h) {
+    h *= 0x9e3779b9;
+    return h ^ (h >>> 16);
+  }
+
+  // characters outside ISO-8859-1 cannot be written and become '?'
+  private static byte encode(char c) {
+    return (byte) (c < 256 ? c : '?');
+  }
+
+}
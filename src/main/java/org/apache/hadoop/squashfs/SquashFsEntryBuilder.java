@@ -19,6 +19,8 @@
 package org.apache.hadoop.squashfs;
 
 import org.apache.hadoop.squashfs.data.DataBlockRef;
+import org.apache.hadoop.squashfs.data.FileBlockWriter;
+import org.apache.hadoop.squashfs.data.FileContentIndex;
 import org.apache.hadoop.squashfs.data.FragmentRef;
 import org.apache.hadoop.squashfs.inode.INodeType;
 import org.slf4j.Logger;
@@ -27,11 +29,13 @@ import org.slf4j.LoggerFactory;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.Future;
 import java.util.function.LongConsumer;
 
 public class SquashFsEntryBuilder {
@@ -53,6 +57,7 @@ public class SquashFsEntryBuilder {
   private String symlinkTarget;
   private String hardlinkTarget;
   private List<DataBlockRef> dataBlocks;
+  private List<Future<DataBlockRef>> pendingDataBlocks;
   private FragmentRef fragment;
   private boolean synthetic = false;
 
@@ -188,6 +193,10 @@ public class SquashFsEntryBuilder {
     int off = 0;
 
     byte[] blockBuffer = writer.getBlockBuffer();
+    FileBlockWriter fileBlocks = null;
+    FileContentIndex fileIndex = writer.getFileIndex();
+    MessageDigest digest = fileIndex == null ? null : fileIndex.digest();
+    MessageDigest keyDigest = fileIndex == null ? null : fileIndex.keyDigest();
 
     // determine how many bytes to read
     int bytesToRead =
@@ -202,9 +211,16 @@ public class SquashFsEntryBuilder {
         if (off == blockBuffer.length) {
           // write the block
           LOG.trace("Writing block of size {}", blockBuffer.length);
-          DataBlockRef dataBlock =
-              writer.getDataWriter().write(blockBuffer, 0, blockBuffer.length);
-          dataBlock(dataBlock);
+          byte[] blockHash = null;
+          if (digest != null) {
+            blockHash = digest.digest(blockBuffer);
+            keyDigest.update(blockHash);
+          }
+          if (fileBlocks == null) {
+            fileBlocks = writer.getDataWriter()
+                .newFile(writer.isDeduplicatingBlocks());
+          }
+          fileBlocks.write(blockBuffer, 0, blockBuffer.length, blockHash);
           progress.accept(written);
           off = 0;
           c = 0;
@@ -215,14 +231,59 @@ public class SquashFsEntryBuilder {
       }
     }
 
-    if (off > 0) {
-      // write final block
-      LOG.trace("Writing fragment of size {}", off);
-      FragmentRef fragment =
-          writer.getFragmentWriter().write(blockBuffer, 0, off);
-      fragment(fragment);
+    FileContentIndex.Entry duplicate = null;
+    byte[] hash = null;
+    byte[] tailHash = null;
+    if (digest != null && written > 0L) {
+      digest.update(blockBuffer, 0, off);
+      tailHash = digest.digest();
+      keyDigest.update(tailHash);
+      hash = keyDigest.digest();
+      duplicate = fileIndex.find(hash, written);
+    }
+
+    if (duplicate != null && (fileBlocks == null || fileBlocks.discard())) {
+      // identical to an earlier file, so share its blocks and fragment
+      LOG.debug("Content of {} duplicates an earlier file", name);
+      fileIndex.countDuplicate(written);
+      if (!duplicate.getDataBlocks().isEmpty()) {
+        if (pendingDataBlocks == null) {
+          pendingDataBlocks = new ArrayList<>();
+        }
+        pendingDataBlocks.addAll(duplicate.getDataBlocks());
+      }
+      if (duplicate.getFragment() != null) {
+        fragment(duplicate.getFragment());
+      }
       progress.accept(written);
-      off = 0;
+    } else {
+      List<Future<DataBlockRef>> fileDataBlocks = null;
+      if (fileBlocks != null) {
+        // locations are only known once blocks are written, so defer until
+        // build
+        fileDataBlocks = fileBlocks.finish();
+        if (pendingDataBlocks == null) {
+          pendingDataBlocks = new ArrayList<>();
+        }
+        pendingDataBlocks.addAll(fileDataBlocks);
+      }
+
+      if (duplicate != null && duplicate.getFragment() != null) {
+        fragment(duplicate.getFragment());
+      } else if (off > 0) {
+        // write final block
+        LOG.trace("Writing fragment of size {}", off);
+        FragmentRef fragment = writer.getFragmentWriter()
+            .write(blockBuffer, 0, off, name, tailHash);
+        fragment(fragment);
+      }
+      if (off > 0) {
+        progress.accept(written);
+      }
+
+      if (hash != null && duplicate == null) {
+        fileIndex.add(hash, written, fileDataBlocks, fragment);
+      }
     }
 
     LOG.debug("Wrote {} bytes to {}", written, name);
@@ -260,7 +321,7 @@ public class SquashFsEntryBuilder {
       lastModified = (int) (System.currentTimeMillis() / 1000L);
     }
 
-    SquashFsEntry entry = new SquashFsEntry(
+    return writer.getFsTree().add(
         type,
         name,
         Optional.ofNullable(uid).orElse((short) 0),
@@ -273,12 +334,9 @@ public class SquashFsEntryBuilder {
         symlinkTarget,
         hardlinkTarget,
         dataBlocks,
+        pendingDataBlocks,
         fragment,
         synthetic);
-
-    writer.getFsTree().add(entry);
-
-    return entry;
   }
 
 }
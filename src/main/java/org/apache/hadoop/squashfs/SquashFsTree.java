@@ -15,125 +15,312 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.hadoop.squashfs;
 
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.data.DataBlockRef;
+import org.apache.hadoop.squashfs.data.FragmentRef;
+import org.apache.hadoop.squashfs.directory.DirectoryBuilder;
+import org.apache.hadoop.squashfs.inode.DeviceINode;
+import org.apache.hadoop.squashfs.inode.DirectoryINode;
+import org.apache.hadoop.squashfs.inode.ExtendedBlockDeviceINode;
+import org.apache.hadoop.squashfs.inode.ExtendedCharDeviceINode;
+import org.apache.hadoop.squashfs.inode.ExtendedDirectoryINode;
+import org.apache.hadoop.squashfs.inode.ExtendedFifoINode;
+import org.apache.hadoop.squashfs.inode.ExtendedFileINode;
+import org.apache.hadoop.squashfs.inode.ExtendedSymlinkINode;
+import org.apache.hadoop.squashfs.inode.FifoINode;
+import org.apache.hadoop.squashfs.inode.FileINode;
+import org.apache.hadoop.squashfs.inode.INode;
 import org.apache.hadoop.squashfs.inode.INodeType;
+import org.apache.hadoop.squashfs.inode.SymlinkINode;
 import org.apache.hadoop.squashfs.metadata.MetadataBlockRef;
 import org.apache.hadoop.squashfs.metadata.MetadataWriter;
 import org.apache.hadoop.squashfs.table.ExportTable;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.Collectors;
-
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+// Entries are kept in parallel primitive arrays, indexed by the order in
+// which each path was first seen, with the root as entry 0. Name components
+// are interned and block sizes packed into one shared array, so an entry
+// costs around a hundred bytes however deep it is. Symlink and hardlink
+// targets are interned in a pool of their own, and device numbers share the
+// slot files use for their first block, so no attribute needs an object per
+// entry. Parents which have not been added yet get a placeholder slot,
+// filled in when they arrive.
 public class SquashFsTree {
 
-  private final SortedMap<String, SquashFsEntry> map = new TreeMap<>();
+  static final int ROOT = 0;
+
+  private static final INodeType[] TYPES = INodeType.values();
+  private static final byte DIRECTORY =
+      (byte) (INodeType.BASIC_DIRECTORY.ordinal() + 1);
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  // entry flags
+  private static final byte PRESENT = 1;
+  private static final byte SYNTHETIC = 2;
+  private static final byte HARDLINK = 4;
+  // synthetic hardlinks point at this entry
+  private static final byte LINK_TARGET = 8;
+
+  private final int blockSize;
+  private final NamePool names = new NamePool();
+  private final NamePool targets = new NamePool();
+  private final MetadataWriter inodeWriter;
+  private final MetadataWriter dirWriter;
+
+  private int count = 0;
+  int[] parent;
+  int[] nameId;
+  byte[] flags;
+  // INodeType ordinal + 1, or 0 for a hardlink without a type of its own
+  byte[] type;
+  short[] uid;
+  short[] gid;
+  short[] permissions;
+  int[] lastModified;
+  long[] fileSize;
+  int[] nlink;
+  int[] inodeNumber;
+  // files: location of the first data block and the position and count of
+  // their sizes in blockSizes; directories: packed reference and size of
+  // their listing once written; devices: major and minor number
+  long[] start;
+  int[] blockOffset;
+  int[] blockCount;
+  int[] fragmentIndex;
+  int[] fragmentOffset;
+  // symlinks and hardlinks: id of the target path in targets, otherwise -1
+  int[] target;
+
+  // open addressing on (parent, name), holding entry + 1
+  private int[] slots = new int[INITIAL_CAPACITY * 2];
+
+  private int[] blockSizes = new int[INITIAL_CAPACITY];
+  private int blockSizesLength = 0;
+
+  // content whose blocks or fragment are still being written, oldest first
+  private final Deque<PendingContent> pending = new ArrayDeque<>();
+
+  // filled in by build()
+  private boolean built = false;
+  // entry each hardlink resolves to, -1 for other entries; null if the
+  // tree has no hardlinks
+  private int[] hardlinks;
+  // children of entry i are children[childStart[i]..childStart[i + 1])
+  private int[] childStart;
+  private int[] children;
+  private int inodeCount = 0;
+  // packed inode references by inode number, -1 until written
+  private long[] inodeRefs;
+  private int visitedCount = 0;
+  private MetadataBlockRef rootInodeRef;
 
-  private final AtomicInteger inodeAssignments = new AtomicInteger(0);
-  private final SortedMap<Integer, Set<SquashFsEntry>> inodeToEntry =
-      new TreeMap<>();
-  private final MetadataWriter inodeWriter = new MetadataWriter();
-  private final MetadataWriter dirWriter = new MetadataWriter();
-  private final SortedMap<Integer, MetadataBlockRef> visitedInodes =
-      new TreeMap<>();
+  SquashFsTree(int blockSize, Compressor compressor,
+      ExecutorService compressionPool, long maxMetadataMemory,
+      File spillDirectory) {
+    this.blockSize = blockSize;
+    allocate(INITIAL_CAPACITY);
+
+    inodeWriter = new MetadataWriter(compressor, compressionPool,
+        maxMetadataMemory, spillDirectory);
+    dirWriter = new MetadataWriter(compressor, compressionPool,
+        maxMetadataMemory, spillDirectory);
+
+    // directory inodes point into the directory table and directory headers
+    // point back into the inode table
+    inodeWriter.setReferenceTarget(dirWriter);
+    dirWriter.setReferenceTarget(inodeWriter);
+
+    int root = newEntry(-1, names.intern("", 0, 0));
+    flags[root] = PRESENT;
+    type[root] = DIRECTORY;
+    permissions[root] = 0700;
+    lastModified[root] = (int) (System.currentTimeMillis() / 1000);
+  }
 
-  private final SquashFsEntry root = new SquashFsEntry();
-  private MetadataBlockRef rootInodeRef;
+  SquashFsEntry add(
+      INodeType type,
+      String name,
+      short uid,
+      short gid,
+      short permissions,
+      int major,
+      int minor,
+      long fileSize,
+      int lastModified,
+      String symlinkTarget,
+      String hardlinkTarget,
+      List<DataBlockRef> dataBlocks,
+      List<Future<DataBlockRef>> pendingDataBlocks,
+      FragmentRef fragment,
+      boolean synthetic) {
+
+    int i = ROOT;
+    int from = 1;
+    for (int slash; (slash = name.indexOf('/', from)) >= 0; from = slash + 1) {
+      i = findOrCreate(i, names.intern(name, from, slash));
+    }
+    i = findOrCreate(i, names.intern(name, from, name.length()));
 
-  SquashFsTree() {
+    if ((flags[i] & PRESENT) != 0) {
+      if ((flags[i] & SYNTHETIC) == 0) {
+        if (synthetic) {
+          return handle(i);
+        }
+        throw new IllegalArgumentException(
+            String.format("Entry '%s' already exists", name));
+      }
+      if (synthetic) {
+        return handle(i);
+      }
+      if ((flags[i] & LINK_TARGET) != 0) {
+        rehomeLinks(i);
+      }
+      clear(i);
+    }
 
+    flags[i] = (byte) (PRESENT | (synthetic ? SYNTHETIC : 0) |
+        (hardlinkTarget != null ? HARDLINK : 0));
+    this.type[i] = (byte) (type == null ? 0 : type.ordinal() + 1);
+    this.uid[i] = uid;
+    this.gid[i] = gid;
+    this.permissions[i] = permissions;
+    this.fileSize[i] = fileSize;
+    this.lastModified[i] = lastModified;
+    if (symlinkTarget != null) {
+      this.target[i] = targets.intern(symlinkTarget, 0, symlinkTarget.length());
+    }
+    if (hardlinkTarget != null) {
+      this.target[i] =
+          targets.intern(hardlinkTarget, 0, hardlinkTarget.length());
+      int t = synthetic ? find(hardlinkTarget) : -1;
+      if (t >= 0) {
+        flags[t] |= LINK_TARGET;
+      }
+    }
+    if (isDevice(i)) {
+      start[i] = ((long) major << 32) | (minor & 0xffffffffL);
+    }
+    if (dataBlocks != null || pendingDataBlocks != null || fragment != null) {
+      pending.addLast(
+          new PendingContent(i, dataBlocks, pendingDataBlocks, fragment));
+    }
+    packCompleted();
+    return handle(i);
   }
 
-  void add(SquashFsEntry squashFsEntry) {
-    SquashFsEntry prev = map.get(squashFsEntry.name);
-    if (prev == null || (prev.synthetic && !squashFsEntry.synthetic)) {
-      map.put(squashFsEntry.name, squashFsEntry);
-    }
+  void setRootAttributes(short uid, short gid, short permissions,
+      int lastModified) {
+    this.uid[ROOT] = uid;
+    this.gid[ROOT] = gid;
+    this.permissions[ROOT] = permissions;
+    this.lastModified[ROOT] = lastModified;
   }
 
   public SquashFsEntry getRoot() {
-    return root;
+    return handle(ROOT);
+  }
+
+  // the entry added at the given path, synthetic or not; null if none
+  public SquashFsEntry get(String path) {
+    int i = (path.isEmpty() || "/".equals(path)) ? ROOT : find(path);
+    return (i >= 0 && (flags[i] & PRESENT) != 0) ? handle(i) : null;
+  }
+
+  int size() {
+    return count;
   }
 
   void build() throws SquashFsException, IOException {
-    for (Map.Entry<String, SquashFsEntry> squashFsEntry : map.entrySet()) {
-      String name = squashFsEntry.getKey();
-      String parent = name;
-      while ((parent = parentName(parent)) != null) {
-        SquashFsEntry p = map.get(parent);
-        if (p == null || p.type != INodeType.BASIC_DIRECTORY) {
-          throw new IllegalArgumentException(
-              String.format("Parent '%s' not found for entry '%s'", parent,
-                  name));
-        }
-      }
+    while (!pending.isEmpty()) {
+      pack(pending.removeFirst());
+    }
 
-      String hardLinkTarget = squashFsEntry.getValue().hardlinkTarget;
-      if (hardLinkTarget != null && !map.containsKey(hardLinkTarget)) {
+    for (int i = 1; i < count; i++) {
+      if ((flags[i] & PRESENT) == 0) {
+        continue;
+      }
+      int p = parent[i];
+      if ((flags[p] & PRESENT) == 0 || type[p] != DIRECTORY) {
         throw new IllegalArgumentException(
-            String.format("Hardlink target '%s' not found for entry '%s'",
-                hardLinkTarget, name));
+            String.format("Parent '%s' not found for entry '%s'", getPath(p),
+                getPath(i)));
       }
-
-      // assign parent
-      parent = parentName(name);
-      if (parent == null) {
-        root.children.add(squashFsEntry.getValue());
-        squashFsEntry.getValue().parent = root;
-      } else {
-        SquashFsEntry parentEntry = map.get(parent);
-        parentEntry.children.add(squashFsEntry.getValue());
-        squashFsEntry.getValue().parent = parentEntry;
+      if ((flags[i] & HARDLINK) != 0) {
+        String path = getHardlinkTarget(i);
+        int t = find(path);
+        if (t < 0 || (flags[t] & PRESENT) == 0) {
+          throw new IllegalArgumentException(
+              String.format("Hardlink target '%s' not found for entry '%s'",
+                  path, getPath(i)));
+        }
+        if (hardlinks == null) {
+          hardlinks = new int[count];
+          Arrays.fill(hardlinks, -1);
+        }
+        hardlinks[i] = t;
       }
     }
+    // every placeholder has a child which failed the check above, so all
+    // entries are present from here on
 
-    // walk tree, sort entries and assign inodes
-    root.sortChildren();
+    linkChildren();
 
-    root.assignInodes(map, inodeAssignments);
-    root.assignHardlinkInodes(map, inodeToEntry);
+    // walk tree and assign inodes
+    assignInodes(ROOT);
+    inodeNumber[ROOT] = ++inodeCount;
 
-    root.updateDirectoryLinkCounts();
-    root.updateHardlinkInodeCounts(inodeToEntry);
+    if (hardlinks != null) {
+      assignHardlinkInodes(ROOT);
+    }
 
-    root.createInodes();
-    root.createHardlinkInodes();
+    for (int i = 0; i < count; i++) {
+      if (isDirectory(i)) {
+        nlink[i]++;
+      }
+      nlink[i] += childStart[i + 1] - childStart[i];
+    }
+    if (hardlinks != null) {
+      shareLinkCounts();
+    }
 
-    rootInodeRef = root.writeMetadata(inodeWriter, dirWriter, visitedInodes);
+    inodeRefs = new long[inodeCount + 1];
+    Arrays.fill(inodeRefs, -1L);
+    rootInodeRef = writeMetadata(ROOT);
+    built = true;
 
     // make sure all inodes were visited
-    if (visitedInodes.size() != root.inode.getInodeNumber()) {
+    if (visitedCount != inodeNumber[ROOT]) {
       throw new SquashFsException(
           String.format("BUG: Visited inode count %d != actual inode count %d",
-              visitedInodes.size(), root.inode.getInodeNumber()));
+              visitedCount, inodeNumber[ROOT]));
     }
 
     // make sure all inode numbers exist, from 1 to n
-    List<Integer> allInodes =
-        visitedInodes.keySet().stream().collect(Collectors.toList());
-    if (allInodes.get(0).intValue() != 1) {
-      throw new SquashFsException(
-          String.format("BUG: First inode number %d != 1",
-              allInodes.get(0).intValue()));
-    }
-    if (allInodes.get(allInodes.size() - 1).intValue() != allInodes.size()) {
-      throw new SquashFsException(
-          String.format("BUG: Last inode number %d != %d",
-              allInodes.get(allInodes.size() - 1).intValue(),
-              allInodes.size()));
+    for (int n = 1; n <= inodeCount; n++) {
+      if (inodeRefs[n] < 0L) {
+        throw new SquashFsException(
+            String.format("BUG: Inode number %d was never written", n));
+      }
     }
   }
 
   int getInodeCount() {
-    return visitedInodes.size();
+    return visitedCount;
   }
 
   List<MetadataBlockRef> saveExportTable(MetadataWriter writer)
@@ -141,26 +328,23 @@ public class SquashFsTree {
 
     List<MetadataBlockRef> exportRefs = new ArrayList<>();
 
-    int index = 0;
-    for (Map.Entry<Integer, MetadataBlockRef> entry : visitedInodes
-        .entrySet()) {
-      if (index % ExportTable.ENTRIES_PER_BLOCK == 0) {
+    for (int n = 1; n <= inodeCount; n++) {
+      if ((n - 1) % ExportTable.ENTRIES_PER_BLOCK == 0) {
         exportRefs.add(writer.getCurrentReference());
       }
-      MetadataBlockRef metaRef = entry.getValue();
+      MetadataBlockRef metaRef = inodeWriter.resolve(unpack(inodeRefs[n]));
 
       long inodeRef = (((long) (metaRef.getLocation() & 0xffffffffL)) << 16) |
           (((long) metaRef.getOffset()) & 0xffffL);
 
       writer.writeLong(inodeRef);
-      index++;
     }
 
     return exportRefs;
   }
 
   MetadataBlockRef getRootInodeRef() {
-    return rootInodeRef;
+    return inodeWriter.resolve(rootInodeRef);
   }
 
   MetadataWriter getINodeWriter() {
@@ -171,12 +355,639 @@ public class SquashFsTree {
     return dirWriter;
   }
 
-  private String parentName(String name) {
-    int slash = name.lastIndexOf('/');
-    if (slash == 0) {
+  // removes any spilled metadata left behind by an unfinished image
+  void close() throws IOException {
+    try {
+      inodeWriter.close();
+    } finally {
+      dirWriter.close();
+    }
+  }
+
+  // views are not kept, so the tree holds no object per entry
+  SquashFsEntry handle(int i) {
+    return new SquashFsEntry(this, i);
+  }
+
+  INodeType getType(int i) {
+    return type[i] == 0 ? null : TYPES[type[i] - 1];
+  }
+
+  String getPath(int i) {
+    if (i == ROOT) {
+      return "";
+    }
+    List<String> parts = new ArrayList<>();
+    for (; i != ROOT; i = parent[i]) {
+      parts.add(names.getName(nameId[i]));
+    }
+    StringBuilder sb = new StringBuilder();
+    for (int j = parts.size() - 1; j >= 0; j--) {
+      sb.append('/').append(parts.get(j));
+    }
+    return sb.toString();
+  }
+
+  String getShortName(int i) {
+    return names.getName(nameId[i]);
+  }
+
+  boolean isSynthetic(int i) {
+    return (flags[i] & SYNTHETIC) != 0;
+  }
+
+  int getMajor(int i) {
+    return isDevice(i) ? (int) (start[i] >> 32) : 0;
+  }
+
+  int getMinor(int i) {
+    return isDevice(i) ? (int) start[i] : 0;
+  }
+
+  String getSymlinkTarget(int i) {
+    return getType(i) == INodeType.BASIC_SYMLINK && target[i] >= 0
+        ? targets.getName(target[i]) : null;
+  }
+
+  String getHardlinkTarget(int i) {
+    return (flags[i] & HARDLINK) != 0 ? targets.getName(target[i]) : null;
+  }
+
+  SquashFsEntry getHardlinkEntry(int i) {
+    return (hardlinks == null || hardlinks[i] < 0)
+        ? null : handle(hardlinks[i]);
+  }
+
+  // null until the tree is built
+  INode getINode(int i) {
+    return built ? createINode(i).simplify() : null;
+  }
+
+  List<SquashFsEntry> getChildren(int i) {
+    if (!built) {
+      return Collections.emptyList();
+    }
+    List<SquashFsEntry> result =
+        new ArrayList<>(childStart[i + 1] - childStart[i]);
+    for (int c = childStart[i]; c < childStart[i + 1]; c++) {
+      result.add(handle(children[c]));
+    }
+    return result;
+  }
+
+  // empty until the blocks have been written
+  List<DataBlockRef> getDataBlocks(int i) {
+    if (isDirectory(i)) {
+      return Collections.emptyList();
+    }
+    List<DataBlockRef> result = new ArrayList<>(blockCount[i]);
+    long location = start[i];
+    long remaining = fileSize[i];
+    for (int b = 0; b < blockCount[i]; b++) {
+      int size = blockSizes[blockOffset[i] + b];
+      int logicalSize = (int) Math.min(blockSize, remaining);
+      int physicalSize = size & 0xfffff;
+      result.add(new DataBlockRef(location, logicalSize, physicalSize,
+          (size & 0x1_000_000) == 0, size == 0));
+      location += physicalSize;
+      remaining -= logicalSize;
+    }
+    return result;
+  }
+
+  FragmentRef getFragment(int i) {
+    if (fragmentIndex[i] == FileINode.FRAGMENT_BLOCK_INDEX_NONE) {
+      return null;
+    }
+    return new FragmentRef(fragmentIndex[i], fragmentOffset[i]);
+  }
+
+  private void allocate(int capacity) {
+    parent = new int[capacity];
+    nameId = new int[capacity];
+    flags = new byte[capacity];
+    type = new byte[capacity];
+    uid = new short[capacity];
+    gid = new short[capacity];
+    permissions = new short[capacity];
+    lastModified = new int[capacity];
+    fileSize = new long[capacity];
+    nlink = new int[capacity];
+    inodeNumber = new int[capacity];
+    start = new long[capacity];
+    blockOffset = new int[capacity];
+    blockCount = new int[capacity];
+    fragmentIndex = new int[capacity];
+    fragmentOffset = new int[capacity];
+    target = new int[capacity];
+  }
+
+  private void grow() {
+    int capacity = parent.length * 2;
+    parent = Arrays.copyOf(parent, capacity);
+    nameId = Arrays.copyOf(nameId, capacity);
+    flags = Arrays.copyOf(flags, capacity);
+    type = Arrays.copyOf(type, capacity);
+    uid = Arrays.copyOf(uid, capacity);
+    gid = Arrays.copyOf(gid, capacity);
+    permissions = Arrays.copyOf(permissions, capacity);
+    lastModified = Arrays.copyOf(lastModified, capacity);
+    fileSize = Arrays.copyOf(fileSize, capacity);
+    nlink = Arrays.copyOf(nlink, capacity);
+    inodeNumber = Arrays.copyOf(inodeNumber, capacity);
+    start = Arrays.copyOf(start, capacity);
+    blockOffset = Arrays.copyOf(blockOffset, capacity);
+    blockCount = Arrays.copyOf(blockCount, capacity);
+    fragmentIndex = Arrays.copyOf(fragmentIndex, capacity);
+    fragmentOffset = Arrays.copyOf(fragmentOffset, capacity);
+    target = Arrays.copyOf(target, capacity);
+  }
+
+  private int newEntry(int p, int id) {
+    if (count == parent.length) {
+      grow();
+    }
+    int i = count++;
+    parent[i] = p;
+    nameId[i] = id;
+    nlink[i] = 1;
+    fragmentIndex[i] = FileINode.FRAGMENT_BLOCK_INDEX_NONE;
+    target[i] = -1;
+
+    if (count * 2 > slots.length) {
+      rehash();
+    } else {
+      slots[probe(p, id)] = i + 1;
+    }
+    return i;
+  }
+
+  private void clear(int i) {
+    target[i] = -1;
+    pending.removeIf(c -> c.entry == i);
+    start[i] = 0L;
+    blockCount[i] = 0;
+    fragmentIndex[i] = FileINode.FRAGMENT_BLOCK_INDEX_NONE;
+    fragmentOffset[i] = 0;
+  }
+
+  // a synthetic entry which other synthetic paths link to is being
+  // replaced, so the first of those takes over its content and the rest
+  // link to that one instead
+  private void rehomeLinks(int i) {
+    String path = getPath(i);
+    int id = targets.find(path, 0, path.length());
+    int heir = -1;
+    int heirId = -1;
+    for (int j = 0; j < count && id >= 0; j++) {
+      if ((flags[j] & (PRESENT | SYNTHETIC | HARDLINK)) !=
+          (PRESENT | SYNTHETIC | HARDLINK) || target[j] != id) {
+        continue;
+      }
+      if (heir >= 0) {
+        target[j] = heirId;
+        continue;
+      }
+      heir = j;
+      String heirPath = getPath(heir);
+      heirId = targets.intern(heirPath, 0, heirPath.length());
+      flags[heir] = (byte) ((flags[heir] & ~HARDLINK) | LINK_TARGET);
+      type[heir] = type[i];
+      uid[heir] = uid[i];
+      gid[heir] = gid[i];
+      permissions[heir] = permissions[i];
+      lastModified[heir] = lastModified[i];
+      fileSize[heir] = fileSize[i];
+      start[heir] = start[i];
+      blockOffset[heir] = blockOffset[i];
+      blockCount[heir] = blockCount[i];
+      fragmentIndex[heir] = fragmentIndex[i];
+      fragmentOffset[heir] = fragmentOffset[i];
+      target[heir] = target[i];
+      for (PendingContent content : pending) {
+        if (content.entry == i) {
+          content.entry = heir;
+        }
+      }
+    }
+  }
+
+  private int findOrCreate(int p, int id) {
+    int i = slots[probe(p, id)] - 1;
+    return i >= 0 ? i : newEntry(p, id);
+  }
+
+  // -1 if no entry has the given path
+  private int find(String path) {
+    int i = ROOT;
+    int from = 1;
+    while (i >= 0) {
+      int slash = path.indexOf('/', from);
+      int to = slash < 0 ? path.length() : slash;
+      int id = names.find(path, from, to);
+      i = id < 0 ? -1 : slots[probe(i, id)] - 1;
+      if (slash < 0) {
+        break;
+      }
+      from = slash + 1;
+    }
+    return i;
+  }
+
+  private int probe(int p, int id) {
+    int mask = slots.length - 1;
+    int slot = NamePool.mix(p * 31 + id) & mask;
+    int i;
+    while ((i = slots[slot] - 1) >= 0 && (parent[i] != p || nameId[i] != id)) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash() {
+    slots = new int[slots.length * 2];
+    for (int i = 0; i < count; i++) {
+      slots[probe(parent[i], nameId[i])] = i + 1;
+    }
+  }
+
+  private void packCompleted() {
+    while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+      try {
+        pack(pending.peekFirst());
+      } catch (SquashFsException e) {
+        // left in place, so build() reports it
+        return;
+      }
+      pending.removeFirst();
+    }
+  }
+
+  private void pack(PendingContent content) throws SquashFsException {
+    int i = content.entry;
+    List<DataBlockRef> blocks = new ArrayList<>();
+    if (content.dataBlocks != null) {
+      blocks.addAll(content.dataBlocks);
+    }
+    if (content.pendingDataBlocks != null) {
+      for (Future<DataBlockRef> block : content.pendingDataBlocks) {
+        if (!block.isDone()) {
+          throw new SquashFsException(
+              String.format("BUG: Data block for '%s' was never written",
+                  getPath(i)));
+        }
+        try {
+          blocks.add(block.get());
+        } catch (InterruptedException | ExecutionException e) {
+          throw new SquashFsException(
+              String.format("Unable to write data block for '%s'",
+                  getPath(i)), e);
+        }
+      }
+    }
+
+    if (!blocks.isEmpty()) {
+      if (blockSizesLength + blocks.size() > blockSizes.length) {
+        blockSizes = Arrays.copyOf(blockSizes,
+            Math.max(blockSizesLength + blocks.size(), blockSizes.length * 2));
+      }
+      start[i] = blocks.get(0).getLocation();
+      blockOffset[i] = blockSizesLength;
+      blockCount[i] = blocks.size();
+      for (DataBlockRef dbr : blocks) {
+        int size;
+        if (dbr.isSparse()) {
+          size = 0;
+        } else {
+          size = dbr.getPhysicalSize();
+          if (!dbr.isCompressed()) {
+            size |= 0x1_000_000; // uncompressed bit
+          }
+        }
+        blockSizes[blockSizesLength++] = size;
+      }
+    }
+
+    if (content.fragment != null) {
+      fragmentIndex[i] = content.fragment.getFragmentIndex();
+      fragmentOffset[i] = content.fragment.getOffset();
+    }
+  }
+
+  private void linkChildren() {
+    childStart = new int[count + 1];
+    for (int i = 1; i < count; i++) {
+      childStart[parent[i] + 1]++;
+    }
+    for (int i = 0; i < count; i++) {
+      childStart[i + 1] += childStart[i];
+    }
+    children = new int[count - 1];
+    int[] next = Arrays.copyOf(childStart, count);
+    for (int i = 1; i < count; i++) {
+      children[next[parent[i]]++] = i;
+    }
+
+    int[] scratch = next;
+    for (int i = 0; i < count; i++) {
+      sortByName(children, childStart[i], childStart[i + 1], scratch);
+    }
+  }
+
+  private void sortByName(int[] a, int from, int to, int[] scratch) {
+    if (to - from < INSERTION_SORT_THRESHOLD) {
+      for (int i = from + 1; i < to; i++) {
+        int e = a[i];
+        int j = i - 1;
+        for (; j >= from && compareNames(a[j], e) > 0; j--) {
+          a[j + 1] = a[j];
+        }
+        a[j + 1] = e;
+      }
+      return;
+    }
+    int mid = (from + to) >>> 1;
+    sortByName(a, from, mid, scratch);
+    sortByName(a, mid, to, scratch);
+    if (compareNames(a[mid - 1], a[mid]) <= 0) {
+      return;
+    }
+    System.arraycopy(a, from, scratch, from, to - from);
+    int l = from;
+    int r = mid;
+    for (int k = from; k < to; k++) {
+      if (r >= to || (l < mid && compareNames(scratch[l], scratch[r]) <= 0)) {
+        a[k] = scratch[l++];
+      } else {
+        a[k] = scratch[r++];
+      }
+    }
+  }
+
+  private int compareNames(int left, int right) {
+    return names.compare(nameId[left], nameId[right]);
+  }
+
+  private void assignInodes(int dir) {
+    for (int c = childStart[dir]; c < childStart[dir + 1]; c++) {
+      if ((flags[children[c]] & HARDLINK) == 0) {
+        inodeNumber[children[c]] = ++inodeCount;
+      }
+    }
+    for (int c = childStart[dir]; c < childStart[dir + 1]; c++) {
+      assignInodes(children[c]);
+    }
+  }
+
+  private void assignHardlinkInodes(int i) {
+    if (hardlinks[i] >= 0) {
+      inodeNumber[i] = inodeNumber[hardlinks[i]];
+    }
+    for (int c = childStart[i]; c < childStart[i + 1]; c++) {
+      assignHardlinkInodes(children[c]);
+    }
+  }
+
+  // every entry sharing an inode reports the links of the whole group
+  private void shareLinkCounts() {
+    boolean[] linked = new boolean[count];
+    for (int i = 0; i < count; i++) {
+      if (hardlinks[i] >= 0) {
+        linked[i] = true;
+        linked[hardlinks[i]] = true;
+      }
+    }
+    int[] sums = new int[inodeCount + 1];
+    for (int i = 0; i < count; i++) {
+      if (linked[i]) {
+        sums[inodeNumber[i]] += nlink[i];
+      }
+    }
+    for (int i = 0; i < count; i++) {
+      if (linked[i]) {
+        nlink[i] = sums[inodeNumber[i]];
+      }
+    }
+  }
+
+  private MetadataBlockRef writeMetadata(int dir) throws IOException {
+    int from = childStart[dir];
+    int to = childStart[dir + 1];
+    if (from == to) {
+      start[dir] = 0L;
+      blockCount[dir] = 3;
+    } else {
+      for (int c = from; c < to; c++) {
+        if (isDirectory(children[c])) {
+          writeMetadata(children[c]);
+        }
+      }
+
+      DirectoryBuilder db = new DirectoryBuilder();
+
+      for (int c = from; c < to; c++) {
+        int child = children[c];
+        int source = (hardlinks == null || hardlinks[child] < 0)
+            ? child : hardlinks[child];
+        int number = inodeNumber[child];
+
+        long ref = inodeRefs[number];
+        if (ref < 0L) {
+          ref = pack(inodeWriter.getCurrentReference());
+          createINode(source).simplify().writeData(inodeWriter);
+          inodeRefs[number] = ref;
+          visitedCount++;
+        }
+
+        db.add(
+            names.getBytes(nameId[child]),
+            unpack(ref).getLocation(),
+            number,
+            unpack(ref).getOffset(),
+            getType(source));
+      }
+
+      MetadataBlockRef dirRef = dirWriter.getCurrentReference();
+      db.write(dirWriter);
+
+      start[dir] = pack(dirRef);
+      blockCount[dir] = db.getStructureSize() + 3;
+    }
+
+    if (dir != ROOT) {
       return null;
     }
-    return name.substring(0, slash);
+
+    MetadataBlockRef ref = inodeWriter.getCurrentReference();
+    inodeRefs[inodeNumber[ROOT]] = pack(ref);
+    visitedCount++;
+    createINode(ROOT).simplify().writeData(inodeWriter);
+    return ref;
+  }
+
+  private boolean isDirectory(int i) {
+    return type[i] != 0 && TYPES[type[i] - 1].directory();
+  }
+
+  private boolean isDevice(int i) {
+    INodeType t = getType(i);
+    return t == INodeType.BASIC_BLOCK_DEVICE ||
+        t == INodeType.BASIC_CHAR_DEVICE;
+  }
+
+  private static long pack(MetadataBlockRef ref) {
+    return ((ref.getLocation() & 0xffffffffL) << 16) |
+        (ref.getOffset() & 0xffffL);
+  }
+
+  private static MetadataBlockRef unpack(long ref) {
+    return new MetadataBlockRef((int) (ref >>> 16), (short) ref);
+  }
+
+  private INode createINode(int i) {
+    INodeType t = getType(i);
+    if (t == null) {
+      throw new IllegalArgumentException(
+          String.format("No inode type for '%s'", getPath(i)));
+    }
+    switch (t) {
+    case BASIC_DIRECTORY:
+      return createDirectoryINode(i);
+    case BASIC_FILE:
+      return createFileINode(i);
+    case BASIC_BLOCK_DEVICE:
+      return createDevice(i, new ExtendedBlockDeviceINode());
+    case BASIC_CHAR_DEVICE:
+      return createDevice(i, new ExtendedCharDeviceINode());
+    case BASIC_FIFO:
+      return createFifo(i);
+    case BASIC_SYMLINK:
+      return createSymlink(i);
+    default:
+      throw new IllegalArgumentException(
+          String.format("Invalid inode type %s", t));
+    }
+  }
+
+  private <T extends INode> T fill(int i, T inode) {
+    inode.setInodeNumber(inodeNumber[i]);
+    inode.setUidIdx(uid[i]);
+    inode.setGidIdx(gid[i]);
+    inode.setPermissions(permissions[i]);
+    inode.setModifiedTime(lastModified[i]);
+    return inode;
+  }
+
+  private DirectoryINode createDirectoryINode(int i) {
+    ExtendedDirectoryINode dir = new ExtendedDirectoryINode();
+
+    // the root points one past the last inode
+    dir.setParentInodeNumber(
+        i == ROOT ? inodeNumber[ROOT] + 1 : inodeNumber[parent[i]]);
+    dir.setNlink(nlink[i]);
+    dir.setFileSize(blockCount[i]);
+    dir.setStartBlock((int) (start[i] >>> 16));
+    dir.setOffset((short) start[i]);
+    return fill(i, dir);
+  }
+
+  private FileINode createFileINode(int i) {
+    ExtendedFileINode file = new ExtendedFileINode();
+    file.setFileSize(fileSize[i]);
+    file.setNlink(nlink[i]);
+
+    if (blockCount[i] == 0) {
+      file.setBlocksStart(0L);
+      file.setBlockSizes(new int[0]);
+      file.setSparse(0L);
+    } else {
+      long sparse = getSparseBytes(i);
+      if (sparse >= fileSize[i]) {
+        sparse = fileSize[i] - 1L;
+      }
+      file.setBlocksStart(start[i]);
+      file.setBlockSizes(Arrays.copyOfRange(blockSizes, blockOffset[i],
+          blockOffset[i] + blockCount[i]));
+      file.setSparse(sparse);
+    }
+
+    file.setFragmentBlockIndex(fragmentIndex[i]);
+    file.setFragmentOffset(fragmentOffset[i]);
+
+    return fill(i, file);
+  }
+
+  // sparse blocks are stored with a size of 0
+  private long getSparseBytes(int i) {
+    long sparse = 0L;
+    long remaining = fileSize[i];
+    for (int b = 0; b < blockCount[i]; b++) {
+      long logicalSize = Math.min(blockSize, remaining);
+      if (blockSizes[blockOffset[i] + b] == 0) {
+        sparse += logicalSize;
+      }
+      remaining -= logicalSize;
+    }
+    return sparse;
+  }
+
+  private DeviceINode createDevice(int i, DeviceINode dev) {
+    dev.setNlink(nlink[i]);
+    dev.setDevice(deviceNum(getMajor(i), getMinor(i)));
+    return fill(i, dev);
+  }
+
+  private FifoINode createFifo(int i) {
+    ExtendedFifoINode fifo = new ExtendedFifoINode();
+    fifo.setNlink(nlink[i]);
+    return fill(i, fifo);
+  }
+
+  private SymlinkINode createSymlink(int i) {
+    ExtendedSymlinkINode symlink = new ExtendedSymlinkINode();
+    symlink.setNlink(nlink[i]);
+    symlink.setTargetPath(
+        getSymlinkTarget(i).getBytes(StandardCharsets.ISO_8859_1));
+    return fill(i, symlink);
+  }
+
+  private static int deviceNum(int major, int minor) {
+    long deviceNum = 0L;
+    deviceNum |= ((major & 0xfff) << 8);
+    deviceNum |= (minor & 0xff);
+    deviceNum |= ((minor & 0xfff00) << 12);
+
+    return (int) (deviceNum & 0xffffffff);
+  }
+
+  private static final class PendingContent {
+    private int entry;
+    private final List<DataBlockRef> dataBlocks;
+    private final List<Future<DataBlockRef>> pendingDataBlocks;
+    private final FragmentRef fragment;
+
+    PendingContent(int entry, List<DataBlockRef> dataBlocks,
+        List<Future<DataBlockRef>> pendingDataBlocks, FragmentRef fragment) {
+      this.entry = entry;
+      this.dataBlocks = dataBlocks;
+      this.pendingDataBlocks = pendingDataBlocks;
+      this.fragment = fragment;
+    }
+
+    // buffered fragments are only placed when their block is flushed
+    boolean isDone() {
+      if (fragment != null && !fragment.isValid()) {
+        return false;
+      }
+      if (pendingDataBlocks != null) {
+        for (Future<DataBlockRef> block : pendingDataBlocks) {
+          if (!block.isDone()) {
+            return false;
+          }
+        }
+      }
+      return true;
+    }
   }
 
 }
@@ -18,12 +18,19 @@
 
 package org.apache.hadoop.squashfs;
 
+import org.apache.hadoop.squashfs.compression.CompressionCodecs;
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.CompressorOptions;
+import org.apache.hadoop.squashfs.compression.EntropyCheckingCompressor;
 import org.apache.hadoop.squashfs.data.DataBlockWriter;
+import org.apache.hadoop.squashfs.data.FileContentIndex;
 import org.apache.hadoop.squashfs.data.FragmentWriter;
 import org.apache.hadoop.squashfs.metadata.MetadataBlockRef;
 import org.apache.hadoop.squashfs.metadata.MetadataWriter;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
+import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
 import org.apache.hadoop.squashfs.table.IdTableGenerator;
+import org.apache.hadoop.squashfs.util.StageStats;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -34,6 +41,7 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public class SquashFsWriter implements Closeable {
 
@@ -46,19 +54,97 @@ public class SquashFsWriter implements Closeable {
   private final SquashFsTree fsTree;
   private final DataBlockWriter dataWriter;
   private final FragmentWriter fragmentWriter;
+  private final FileContentIndex fileIndex;
   private final byte[] blockBuffer;
+  private final SquashFsWriterOptions options;
+  private final Compressor metadataCompressor;
+  private final EntropyCheckingCompressor dataCompressor;
 
   private Integer modificationTime = null;
 
+  // when appending, the metadata tables new data is written over; put back
+  // by close() unless finish() completed
+  private final long existingTablesStart;
+  private final byte[] existingTables;
+  private boolean finished = false;
+
   public SquashFsWriter(File outputFile) throws SquashFsException, IOException {
+    this(outputFile, new SquashFsWriterOptions());
+  }
+
+  public SquashFsWriter(File outputFile, ExecutorService compressionPool)
+      throws SquashFsException, IOException {
+    this(outputFile,
+        new SquashFsWriterOptions().compressionPool(compressionPool));
+  }
+
+  public SquashFsWriter(File outputFile, SquashFsWriterOptions options)
+      throws SquashFsException, IOException {
+    this(outputFile, options, null);
+  }
+
+  private SquashFsWriter(File outputFile, SquashFsWriterOptions options,
+      SuperBlock existing) throws SquashFsException, IOException {
+    this.options = options;
     raf = new RandomAccessFile(outputFile, "rw");
-    writeDummySuperblock(raf);
-    superBlock = createSuperBlock();
+    if (existing == null) {
+      superBlock = createSuperBlock(options);
+      writeDummySuperblock(raf);
+      writeCompressorOptions(raf, superBlock, options);
+      existingTablesStart = -1L;
+      existingTables = null;
+    } else {
+      // new data goes where the old metadata tables started
+      superBlock = createAppendSuperBlock(existing, options);
+      existingTablesStart = existing.getInodeTableStart();
+      existingTables = readExistingTables(raf, existingTablesStart);
+      raf.seek(existingTablesStart);
+    }
     blockBuffer = createBlockBuffer(superBlock);
     idGenerator = createIdTableGenerator();
-    fsTree = createSquashFsTree();
-    dataWriter = createDataWriter(superBlock, raf);
-    fragmentWriter = createFragmentWriter(superBlock, raf);
+    metadataCompressor =
+        CompressionCodecs.compressor(options.getCompressorOptions(),
+            options.getMetadataCompressionLevel());
+    dataCompressor = createDataCompressor(options);
+    fsTree = createSquashFsTree(superBlock, metadataCompressor, options);
+    dataWriter = createDataWriter(superBlock, raf, dataCompressor, options);
+    fragmentWriter =
+        createFragmentWriter(superBlock, raf, dataWriter, options);
+    fileIndex = options.isDeduplicateFiles() ? new FileContentIndex() : null;
+  }
+
+  // opens an existing image to add entries to it. Its data blocks and
+  // fragments stay in place and its entries are read back into the tree;
+  // anything added with the same path replaces them. New data overwrites the
+  // old metadata tables, so the image is unreadable until finish() is done;
+  // closing without finishing puts the old tables back.
+  public static SquashFsWriter append(File imageFile,
+      SquashFsWriterOptions options) throws SquashFsException, IOException {
+    try (SquashFsReader reader = SquashFsReader.fromFile(0, imageFile)) {
+      SquashFsWriter writer =
+          new SquashFsWriter(imageFile, options, reader.getSuperBlock());
+      try {
+        new ImageLoader(reader, writer).load();
+        return writer;
+      } catch (IOException | RuntimeException e) {
+        writer.close();
+        throw e;
+      }
+    }
+  }
+
+  private static byte[] readExistingTables(RandomAccessFile raf, long start)
+      throws SquashFsException, IOException {
+    long length = raf.length() - start;
+    if (length < 0L || length > Integer.MAX_VALUE) {
+      throw new SquashFsException(
+          String.format("Corrupt archive, got %d bytes of metadata tables",
+              length));
+    }
+    byte[] tables = new byte[(int) length];
+    raf.seek(start);
+    raf.readFully(tables);
+    return tables;
   }
 
   public void setModificationTime(int modificationTime) {
@@ -70,8 +156,50 @@ public class SquashFsWriter implements Closeable {
     raf.write(new byte[SuperBlock.SIZE]);
   }
 
-  static SuperBlock createSuperBlock() {
-    return new SuperBlock();
+  static void writeCompressorOptions(RandomAccessFile raf, SuperBlock sb,
+      SquashFsWriterOptions options) throws IOException {
+    CompressorOptions compressorOptions = options.getCompressorOptions();
+    if (compressorOptions.isImplied()) {
+      return;
+    }
+    byte[] payload = compressorOptions.encode();
+    byte[] buf = new byte[2 + payload.length];
+    ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    bb.putShort((short) (0x8000 | payload.length)); // uncompressed metadata
+    bb.put(payload);
+    raf.write(buf);
+
+    sb.setCompressorOptions(payload);
+    sb.setFlags(
+        (short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
+  }
+
+  static SuperBlock createSuperBlock(SquashFsWriterOptions options) {
+    SuperBlock sb = new SuperBlock();
+    sb.setCompressionId(options.getCompression());
+    return sb;
+  }
+
+  static SuperBlock createAppendSuperBlock(SuperBlock existing,
+      SquashFsWriterOptions options) throws SquashFsException {
+    if (existing.getCompressionId() != options.getCompression()) {
+      throw new SquashFsException(
+          String.format("Cannot append %s data to an image compressed with %s",
+              options.getCompression(), existing.getCompressionId()));
+    }
+    if (existing.getXattrIdTableStart() != SuperBlock.TABLE_NOT_PRESENT) {
+      throw new SquashFsException(
+          "Cannot append to an image with extended attributes");
+    }
+    SuperBlock sb = createSuperBlock(options);
+    sb.setBlockSize(existing.getBlockSize());
+    // the old compressor options stay in front of the data
+    if (existing.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
+      sb.setCompressorOptions(existing.getCompressorOptions());
+      sb.setFlags(
+          (short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
+    }
+    return sb;
   }
 
   static byte[] createBlockBuffer(SuperBlock sb) {
@@ -84,17 +212,51 @@ public class SquashFsWriter implements Closeable {
     return idGenerator;
   }
 
-  static SquashFsTree createSquashFsTree() {
-    return new SquashFsTree();
+  static SquashFsTree createSquashFsTree(SuperBlock sb,
+      Compressor metadataCompressor, SquashFsWriterOptions options) {
+    return new SquashFsTree(sb.getBlockSize(), metadataCompressor,
+        options.getCompressionPool(), options.getMaxMetadataMemory(),
+        options.getMetadataSpillDirectory());
+  }
+
+  static EntropyCheckingCompressor createDataCompressor(
+      SquashFsWriterOptions options) {
+    if (!options.isSkipIncompressibleBlocks()) {
+      return null;
+    }
+    return new EntropyCheckingCompressor(
+        CompressionCodecs.compressor(options.getCompressorOptions(),
+            options.getDataCompressionLevel()));
   }
 
-  static DataBlockWriter createDataWriter(SuperBlock sb, RandomAccessFile raf) {
-    return new DataBlockWriter(raf, sb.getBlockSize());
+  static DataBlockWriter createDataWriter(SuperBlock sb, RandomAccessFile raf,
+      EntropyCheckingCompressor dataCompressor,
+      SquashFsWriterOptions options) {
+    Compressor compressor = dataCompressor != null
+        ? dataCompressor
+        : CompressionCodecs.compressor(options.getCompressorOptions(),
+            options.getDataCompressionLevel());
+    // whole-file duplicates are caught by matching blocks against the
+    // index before any are written, so file deduplication needs it too
+    return new DataBlockWriter(raf, sb.getBlockSize(), compressor,
+        options.getCompressionPool(), options.getMaxPendingBlocks(),
+        options.isDeduplicateBlocks() || options.isDeduplicateFiles(),
+        options.isWriterThread());
   }
 
   static FragmentWriter createFragmentWriter(SuperBlock sb,
-      RandomAccessFile raf) {
-    return new FragmentWriter(raf, sb.getBlockSize());
+      RandomAccessFile raf, DataBlockWriter dataWriter,
+      SquashFsWriterOptions options) {
+    return new FragmentWriter(raf, sb.getBlockSize(), dataWriter,
+        CompressionCodecs.compressor(options.getCompressorOptions(),
+            options.getFragmentCompressionLevel()),
+        options.isDeduplicateFragments(), options.getFragmentPacking(),
+        options.getMaxBufferedFragmentBytes());
+  }
+
+  private MetadataWriter createMetadataWriter() {
+    return new MetadataWriter(
+        metadataCompressor, options.getCompressionPool());
   }
 
   SuperBlock getSuperBlock() {
@@ -113,21 +275,73 @@ public class SquashFsWriter implements Closeable {
     return fragmentWriter;
   }
 
+  FileContentIndex getFileIndex() {
+    return fileIndex;
+  }
+
+  boolean isDeduplicatingBlocks() {
+    return options.isDeduplicateBlocks();
+  }
+
   byte[] getBlockBuffer() {
     return blockBuffer;
   }
 
+  public long getSkippedBlockCount() {
+    return dataCompressor == null ? 0L : dataCompressor.getSkippedBlockCount();
+  }
+
+  public long getEstimatedNanosSaved() {
+    return dataCompressor == null ? 0L
+        : dataCompressor.getEstimatedNanosSaved();
+  }
+
+  public long getDeduplicatedBlockCount() {
+    return dataWriter.getDeduplicatedBlockCount();
+  }
+
+  public long getDeduplicatedFileCount() {
+    return fileIndex == null ? 0L : fileIndex.getDuplicateFileCount();
+  }
+
+  public long getDeduplicatedFragmentCount() {
+    return fragmentWriter.getDeduplicatedFragmentCount();
+  }
+
+  public StageStats getCompressStats() {
+    return dataWriter.getCompressStats();
+  }
+
+  public StageStats getWriteStats() {
+    return dataWriter.getWriteStats();
+  }
+
+  // time entry builders were blocked waiting for data blocks to be
+  // compressed and written
+  public long getStalledNanos() {
+    return dataWriter.getStalledNanos();
+  }
+
   public SquashFsTree getFsTree() {
     return fsTree;
   }
 
+  // owner, permissions and timestamp of the root directory, which otherwise
+  // is owned by root, mode 0700 and stamped with the current time
+  public void setRootAttributes(int uid, int gid, short permissions,
+      int lastModified) {
+    fsTree.setRootAttributes(idGenerator.addUidGid(uid),
+        idGenerator.addUidGid(gid), permissions, lastModified);
+  }
+
   public SquashFsEntryBuilder entry(String name) {
     return new SquashFsEntryBuilder(this, name);
   }
 
   public void finish() throws SquashFsException, IOException {
-    // flush any remaining fragments
+    // flush any remaining fragments and data blocks
     fragmentWriter.flush();
+    dataWriter.flush();
 
     // build the directory tree
     fsTree.build();
@@ -144,7 +358,7 @@ public class SquashFsWriter implements Closeable {
 
     // build fragment table
     long fragMetaStart = raf.getFilePointer();
-    MetadataWriter fragMetaWriter = new MetadataWriter();
+    MetadataWriter fragMetaWriter = createMetadataWriter();
     List<MetadataBlockRef> fragRefs = fragmentWriter.save(fragMetaWriter);
     fragMetaWriter.save(raf);
 
@@ -152,7 +366,8 @@ public class SquashFsWriter implements Closeable {
     long fragTableStart = raf.getFilePointer();
     LOG.debug("Fragment table start: {}", fragTableStart);
     for (MetadataBlockRef fragRef : fragRefs) {
-      long fragTableFileOffset = fragMetaStart + fragRef.getLocation();
+      long fragTableFileOffset = fragMetaStart +
+          fragMetaWriter.resolve(fragRef).getLocation();
       byte[] buf = new byte[8];
       ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
       bb.putLong(fragTableFileOffset);
@@ -161,7 +376,7 @@ public class SquashFsWriter implements Closeable {
 
     // build export table
     long exportMetaStart = raf.getFilePointer();
-    MetadataWriter exportMetaWriter = new MetadataWriter();
+    MetadataWriter exportMetaWriter = createMetadataWriter();
     List<MetadataBlockRef> exportRefs =
         fsTree.saveExportTable(exportMetaWriter);
     exportMetaWriter.save(raf);
@@ -170,7 +385,8 @@ public class SquashFsWriter implements Closeable {
     long exportTableStart = raf.getFilePointer();
     LOG.debug("Export table start: {}", exportTableStart);
     for (MetadataBlockRef exportRef : exportRefs) {
-      long exportFileOffset = exportMetaStart + exportRef.getLocation();
+      long exportFileOffset = exportMetaStart +
+          exportMetaWriter.resolve(exportRef).getLocation();
       byte[] buf = new byte[8];
       ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
       bb.putLong(exportFileOffset);
@@ -179,7 +395,7 @@ public class SquashFsWriter implements Closeable {
 
     // build ID table
     long idMetaStart = raf.getFilePointer();
-    MetadataWriter idMetaWriter = new MetadataWriter();
+    MetadataWriter idMetaWriter = createMetadataWriter();
     List<MetadataBlockRef> idRefs = idGenerator.save(idMetaWriter);
     idMetaWriter.save(raf);
 
@@ -191,7 +407,8 @@ public class SquashFsWriter implements Closeable {
     LOG.debug("ID table start: {}", idTableStart);
 
     for (MetadataBlockRef idRef : idRefs) {
-      long idFileOffset = idMetaStart + idRef.getLocation();
+      long idFileOffset = idMetaStart +
+          idMetaWriter.resolve(idRef).getLocation();
       byte[] buf = new byte[8];
       ByteBuffer bb = ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
       bb.putLong(idFileOffset);
@@ -209,6 +426,8 @@ public class SquashFsWriter implements Closeable {
 
     long fileSize = raf.getFilePointer();
     LOG.debug("File size: {}", fileSize);
+    // drop whatever an earlier, longer image left behind
+    raf.setLength(fileSize);
 
     if (modificationTime == null) {
       modificationTime = (int) (System.currentTimeMillis() / 1000L);
@@ -233,11 +452,33 @@ public class SquashFsWriter implements Closeable {
     raf.seek(0L);
     superBlock.writeData(raf);
     raf.seek(fileSize);
+    finished = true;
   }
 
   @Override
   public void close() throws IOException {
-    raf.close();
+    try {
+      dataWriter.close();
+    } finally {
+      try {
+        fsTree.close();
+      } finally {
+        try {
+          if (existingTables != null && !finished) {
+            restoreExistingTables();
+          }
+        } finally {
+          raf.close();
+        }
+      }
+    }
+  }
+
+  // leaves an unfinished append as the image it started from
+  private void restoreExistingTables() throws IOException {
+    raf.seek(existingTablesStart);
+    raf.write(existingTables);
+    raf.setLength(existingTablesStart + existingTables.length);
   }
 
 }
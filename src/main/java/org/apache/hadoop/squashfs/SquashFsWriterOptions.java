@@ -0,0 +1,388 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs;
+
+import org.apache.hadoop.squashfs.compression.CompressionCodecs;
+import org.apache.hadoop.squashfs.compression.CompressionCodecs.Effort;
+import org.apache.hadoop.squashfs.compression.CompressorOptions;
+import org.apache.hadoop.squashfs.compression.Lz4CompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
+import org.apache.hadoop.squashfs.compression.ZlibCompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZstdCompressorOptions;
+import org.apache.hadoop.squashfs.data.DataBlockWriter;
+import org.apache.hadoop.squashfs.data.FragmentPackingStrategy;
+import org.apache.hadoop.squashfs.data.FragmentWriter;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+
+import java.io.File;
+import java.util.concurrent.ExecutorService;
+import java.util.zip.Deflater;
+
+public class SquashFsWriterOptions {
+
+  public static final String PROFILE_DEFAULT = "default";
+  public static final String PROFILE_FAST_LAUNCH = "fast-launch";
+  public static final String PROFILE_ARCHIVAL = "archival";
+
+  static final long ARCHIVAL_MAX_BUFFERED_FRAGMENT_BYTES =
+      4L * FragmentWriter.DEFAULT_MAX_BUFFERED_BYTES;
+
+  public static final int DEFAULT_COMPRESSION_LEVEL =
+      Deflater.BEST_COMPRESSION;
+
+  private ExecutorService compressionPool = null;
+  private int maxPendingBlocks = DataBlockWriter.DEFAULT_MAX_PENDING;
+  private boolean writerThread = false;
+  private CompressionId compression = CompressionId.ZLIB;
+  // null means the level the effort maps to for the selected compression
+  private Integer dataCompressionLevel = null;
+  private Integer fragmentCompressionLevel = null;
+  private Integer metadataCompressionLevel = null;
+  private Effort dataCompressionEffort = Effort.DEFAULT;
+  private Effort fragmentCompressionEffort = Effort.DEFAULT;
+  private Effort metadataCompressionEffort = Effort.DEFAULT;
+  private int zlibStrategies = 0;
+  private boolean skipIncompressibleBlocks = false;
+  private boolean deduplicateBlocks = true;
+  private boolean deduplicateFiles = true;
+  private boolean deduplicateFragments = true;
+  private FragmentPackingStrategy fragmentPacking =
+      FragmentPackingStrategy.ARRIVAL_ORDER;
+  private long maxBufferedFragmentBytes =
+      FragmentWriter.DEFAULT_MAX_BUFFERED_BYTES;
+  // per metadata table; by default nothing is spilled
+  private long maxMetadataMemory = Long.MAX_VALUE;
+  private File metadataSpillDirectory = null;
+
+  public static SquashFsWriterOptions forProfile(String profile) {
+    switch (profile) {
+    case PROFILE_DEFAULT:
+      return new SquashFsWriterOptions();
+    case PROFILE_FAST_LAUNCH:
+      // images built on the launch path are read a handful of times, so
+      // trade a few percent of size for much cheaper data compression;
+      // metadata is small enough that a denser table costs little; a
+      // directory's small files are usually read together at startup.
+      // Efforts rather than levels, so a later compression() still picks
+      // that codec's fastest level
+      return new SquashFsWriterOptions()
+          .dataCompressionEffort(Effort.FASTEST)
+          .fragmentCompressionEffort(Effort.FASTEST)
+          .metadataCompressionEffort(Effort.DEFAULT)
+          .skipIncompressibleBlocks(true)
+          .fragmentPacking(FragmentPackingStrategy.BY_DIRECTORY);
+    case PROFILE_ARCHIVAL:
+      // written once and kept: the codec's strongest level for every
+      // table, and tails of similar files packed into the same fragments
+      // from a larger buffer, so each fragment compresses better
+      return new SquashFsWriterOptions()
+          .compressionEffort(Effort.MAX)
+          .fragmentPacking(FragmentPackingStrategy.BY_EXTENSION)
+          .maxBufferedFragmentBytes(ARCHIVAL_MAX_BUFFERED_FRAGMENT_BYTES);
+    default:
+      throw new IllegalArgumentException(
+          String.format("Unknown writer profile '%s'", profile));
+    }
+  }
+
+  public SquashFsWriterOptions compressionPool(
+      ExecutorService compressionPool) {
+    this.compressionPool = compressionPool;
+    return this;
+  }
+
+  public SquashFsWriterOptions maxPendingBlocks(int maxPendingBlocks) {
+    if (maxPendingBlocks < 1) {
+      throw new IllegalArgumentException(
+          String.format("Invalid max pending block count %d (min 1)",
+              maxPendingBlocks));
+    }
+    this.maxPendingBlocks = maxPendingBlocks;
+    return this;
+  }
+
+  // writes compressed data blocks from a dedicated thread, so the caller
+  // only waits once maxPendingBlocks are queued; needs a compression pool
+  public SquashFsWriterOptions writerThread(boolean writerThread) {
+    this.writerThread = writerThread;
+    return this;
+  }
+
+  public SquashFsWriterOptions compression(CompressionId compression) {
+    if (!CompressionCodecs.canWrite(compression)) {
+      throw new IllegalArgumentException(
+          String.format("Writing %s compressed images is not supported",
+              compression));
+    }
+    if (zlibStrategies != 0 && compression != CompressionId.ZLIB) {
+      throw new IllegalArgumentException(
+          "Compression strategies are only supported by zlib");
+    }
+    this.compression = compression;
+
+    // levels set earlier must still make sense for the new compression
+    checkLevel(dataCompressionLevel);
+    checkLevel(fragmentCompressionLevel);
+    checkLevel(metadataCompressionLevel);
+    return this;
+  }
+
+  public SquashFsWriterOptions compressionLevel(int level) {
+    return dataCompressionLevel(level)
+        .fragmentCompressionLevel(level)
+        .metadataCompressionLevel(level);
+  }
+
+  // a level relative to the selected compression, resolved when read, so
+  // it follows later changes of compression; clears explicit levels
+  public SquashFsWriterOptions compressionEffort(Effort effort) {
+    return dataCompressionEffort(effort)
+        .fragmentCompressionEffort(effort)
+        .metadataCompressionEffort(effort);
+  }
+
+  public SquashFsWriterOptions dataCompressionEffort(Effort effort) {
+    this.dataCompressionEffort = checkEffort(effort);
+    this.dataCompressionLevel = null;
+    return this;
+  }
+
+  public SquashFsWriterOptions fragmentCompressionEffort(Effort effort) {
+    this.fragmentCompressionEffort = checkEffort(effort);
+    this.fragmentCompressionLevel = null;
+    return this;
+  }
+
+  public SquashFsWriterOptions metadataCompressionEffort(Effort effort) {
+    this.metadataCompressionEffort = checkEffort(effort);
+    this.metadataCompressionLevel = null;
+    return this;
+  }
+
+  public SquashFsWriterOptions dataCompressionLevel(int level) {
+    this.dataCompressionLevel = checkLevel(level);
+    return this;
+  }
+
+  public SquashFsWriterOptions fragmentCompressionLevel(int level) {
+    this.fragmentCompressionLevel = checkLevel(level);
+    return this;
+  }
+
+  public SquashFsWriterOptions metadataCompressionLevel(int level) {
+    this.metadataCompressionLevel = checkLevel(level);
+    return this;
+  }
+
+  // ZlibCompressorOptions.STRATEGY_* bits; each block is compressed with
+  // every selected strategy and the smallest result kept
+  public SquashFsWriterOptions zlibStrategies(int zlibStrategies) {
+    if (compression != CompressionId.ZLIB) {
+      throw new IllegalArgumentException(
+          "Compression strategies are only supported by zlib");
+    }
+    if ((zlibStrategies & ~ZlibCompressor.SUPPORTED_STRATEGIES) != 0) {
+      throw new IllegalArgumentException(
+          String.format("Unsupported compression strategies 0x%x",
+              zlibStrategies));
+    }
+    this.zlibStrategies = zlibStrategies;
+    return this;
+  }
+
+  // stores blocks which look incompressible without compressing them; a
+  // misjudged block costs space, so this is off unless asked for
+  public SquashFsWriterOptions skipIncompressibleBlocks(
+      boolean skipIncompressibleBlocks) {
+    this.skipIncompressibleBlocks = skipIncompressibleBlocks;
+    return this;
+  }
+
+  public SquashFsWriterOptions deduplicateBlocks(boolean deduplicateBlocks) {
+    this.deduplicateBlocks = deduplicateBlocks;
+    return this;
+  }
+
+  public SquashFsWriterOptions deduplicateFiles(boolean deduplicateFiles) {
+    this.deduplicateFiles = deduplicateFiles;
+    return this;
+  }
+
+  public SquashFsWriterOptions deduplicateFragments(
+      boolean deduplicateFragments) {
+    this.deduplicateFragments = deduplicateFragments;
+    return this;
+  }
+
+  public SquashFsWriterOptions fragmentPacking(
+      FragmentPackingStrategy fragmentPacking) {
+    if (fragmentPacking == null) {
+      throw new IllegalArgumentException("fragment packing is required");
+    }
+    this.fragmentPacking = fragmentPacking;
+    return this;
+  }
+
+  public SquashFsWriterOptions maxBufferedFragmentBytes(
+      long maxBufferedFragmentBytes) {
+    if (maxBufferedFragmentBytes < SuperBlock.DEFAULT_BLOCK_SIZE) {
+      throw new IllegalArgumentException(
+          String.format("Invalid max buffered fragment bytes %d (min %d)",
+              maxBufferedFragmentBytes, SuperBlock.DEFAULT_BLOCK_SIZE));
+    }
+    this.maxBufferedFragmentBytes = maxBufferedFragmentBytes;
+    return this;
+  }
+
+  // finished inode and directory blocks beyond this many bytes are
+  // spilled to a temporary file until the tables are written out
+  public SquashFsWriterOptions maxMetadataMemory(long maxMetadataMemory) {
+    if (maxMetadataMemory < 1L) {
+      throw new IllegalArgumentException(
+          String.format("Invalid max metadata memory %d (min 1)",
+              maxMetadataMemory));
+    }
+    this.maxMetadataMemory = maxMetadataMemory;
+    return this;
+  }
+
+  // null uses the default temporary directory
+  public SquashFsWriterOptions metadataSpillDirectory(
+      File metadataSpillDirectory) {
+    this.metadataSpillDirectory = metadataSpillDirectory;
+    return this;
+  }
+
+  public ExecutorService getCompressionPool() {
+    return compressionPool;
+  }
+
+  public int getMaxPendingBlocks() {
+    return maxPendingBlocks;
+  }
+
+  public boolean isWriterThread() {
+    return writerThread;
+  }
+
+  public CompressionId getCompression() {
+    return compression;
+  }
+
+  public int getDataCompressionLevel() {
+    return levelOrDefault(dataCompressionLevel, dataCompressionEffort);
+  }
+
+  public int getFragmentCompressionLevel() {
+    return levelOrDefault(fragmentCompressionLevel, fragmentCompressionEffort);
+  }
+
+  public int getMetadataCompressionLevel() {
+    return levelOrDefault(metadataCompressionLevel, metadataCompressionEffort);
+  }
+
+  public int getZlibStrategies() {
+    return zlibStrategies;
+  }
+
+  // what the image's compressor options block describes; a single level
+  // fits in it, so the data level is used
+  public CompressorOptions getCompressorOptions() {
+    int level = getDataCompressionLevel();
+    switch (compression) {
+    case LZ4:
+      return Lz4CompressorOptions.forLevel(level);
+    case ZSTD:
+      return new ZstdCompressorOptions(level);
+    default:
+      return new ZlibCompressorOptions(level,
+          ZlibCompressorOptions.DEFAULT_WINDOW_SIZE, zlibStrategies);
+    }
+  }
+
+  public boolean isSkipIncompressibleBlocks() {
+    return skipIncompressibleBlocks;
+  }
+
+  public boolean isDeduplicateBlocks() {
+    return deduplicateBlocks;
+  }
+
+  public boolean isDeduplicateFiles() {
+    return deduplicateFiles;
+  }
+
+  public boolean isDeduplicateFragments() {
+    return deduplicateFragments;
+  }
+
+  public FragmentPackingStrategy getFragmentPacking() {
+    return fragmentPacking;
+  }
+
+  public long getMaxBufferedFragmentBytes() {
+    return maxBufferedFragmentBytes;
+  }
+
+  public long getMaxMetadataMemory() {
+    return maxMetadataMemory;
+  }
+
+  public File getMetadataSpillDirectory() {
+    return metadataSpillDirectory;
+  }
+
+  private Integer checkLevel(Integer level) {
+    if (level == null) {
+      return null;
+    }
+    int min = CompressionCodecs.minLevel(compression);
+    int max = CompressionCodecs.maxLevel(compression);
+    if (level < min || level > max) {
+      throw new IllegalArgumentException(
+          String.format("Invalid compression level %d (min %d, max %d)",
+              level, min, max));
+    }
+    return level;
+  }
+
+  private static Effort checkEffort(Effort effort) {
+    if (effort == null) {
+      throw new IllegalArgumentException("compression effort is required");
+    }
+    return effort;
+  }
+
+  private int levelOrDefault(Integer level, Effort effort) {
+    return level == null ? CompressionCodecs.level(compression, effort) : level;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "squashfs-writer-options { compressionPool=%s, maxPendingBlocks=%d, writerThread=%s, compression=%s, dataCompressionLevel=%d, fragmentCompressionLevel=%d, metadataCompressionLevel=%d, zlibStrategies=0x%x, skipIncompressibleBlocks=%s, deduplicateBlocks=%s, deduplicateFiles=%s, deduplicateFragments=%s, fragmentPacking=%s, maxBufferedFragmentBytes=%d, maxMetadataMemory=%d, metadataSpillDirectory=%s }",
+        compressionPool, maxPendingBlocks, writerThread, compression,
+        getDataCompressionLevel(), getFragmentCompressionLevel(),
+        getMetadataCompressionLevel(), zlibStrategies,
+        skipIncompressibleBlocks, deduplicateBlocks, deduplicateFiles,
+        deduplicateFragments, fragmentPacking, maxBufferedFragmentBytes,
+        maxMetadataMemory, metadataSpillDirectory);
+  }
+
+}
@@ -0,0 +1,197 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.metadata.MetadataBlock;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+
+import java.util.zip.Deflater;
+
+// Maps a superblock compression id to the codecs which handle it.
+public final class CompressionCodecs {
+
+  // how hard to compress, independent of each codec's level numbering
+  public enum Effort {
+    FASTEST,
+    DEFAULT,
+    MAX
+  }
+
+  private CompressionCodecs() {
+  }
+
+  public static boolean canWrite(CompressionId id) {
+    switch (id) {
+    case ZLIB:
+    case LZ4:
+    case ZSTD:
+      return true;
+    default:
+      return false;
+    }
+  }
+
+  public static Compressor compressor(CompressionId id, int level) {
+    switch (id) {
+    case ZLIB:
+      return ZlibCompressor.forLevel(level);
+    case LZ4:
+      return Lz4Compressor.forLevel(level);
+    case ZSTD:
+      return ZstdCompressor.forLevel(level);
+    default:
+      throw new UnsupportedOperationException(
+          String.format("Writing compressed data of type %s not yet supported",
+              id));
+    }
+  }
+
+  // compressor for the given level, honoring settings like zlib strategies
+  // which only the options carry
+  public static Compressor compressor(CompressorOptions options, int level) {
+    if (options instanceof ZlibCompressorOptions) {
+      return ZlibCompressor.forLevel(level,
+          ((ZlibCompressorOptions) options).getStrategies());
+    }
+    return compressor(options.getCompressionId(), level);
+  }
+
+  // options are validated even where they only describe how the data was
+  // compressed, so a corrupt block is not mistaken for tuned settings
+  public static Decompressor decompressor(SuperBlock sb)
+      throws SquashFsException {
+    CompressorOptions options = readOptions(sb);
+    switch (sb.getCompressionId()) {
+    case XZ:
+      // bounded by the dictionary size the image declares
+      return XzDecompressor.forOptions((XzCompressorOptions) options);
+    case LZMA:
+      return LzmaDecompressor.forDictionarySize(
+          Math.max(sb.getBlockSize(), MetadataBlock.MAX_SIZE));
+    default:
+      return decompressor(sb.getCompressionId());
+    }
+  }
+
+  public static Decompressor decompressor(CompressionId id)
+      throws SquashFsException {
+    switch (id) {
+    case NONE:
+      throw new SquashFsException(
+          "Archive claims no compression, but found compressed data");
+    case ZLIB:
+      return ZlibDecompressor.INSTANCE;
+    case LZ4:
+      return Lz4Decompressor.INSTANCE;
+    case ZSTD:
+      return ZstdDecompressor.INSTANCE;
+    case XZ:
+      return XzDecompressor.INSTANCE;
+    case LZMA:
+      return LzmaDecompressor.INSTANCE;
+    default:
+      throw new UnsupportedOperationException(
+          String.format("Reading compressed data of type %s not yet supported",
+              id));
+    }
+  }
+
+  // null for compressions which define no options
+  public static CompressorOptions readOptions(SuperBlock sb)
+      throws SquashFsException {
+    byte[] raw = sb.getCompressorOptions();
+    switch (sb.getCompressionId()) {
+    case ZLIB:
+      return raw == null
+          ? ZlibCompressorOptions.DEFAULT : ZlibCompressorOptions.decode(raw);
+    case LZ4:
+      // tolerated without options, though the kernel insists on them
+      return raw == null
+          ? Lz4CompressorOptions.DEFAULT : Lz4CompressorOptions.decode(raw);
+    case XZ:
+      return raw == null
+          ? XzCompressorOptions.forBlockSize(sb.getBlockSize())
+          : XzCompressorOptions.decode(raw);
+    case ZSTD:
+      return raw == null
+          ? ZstdCompressorOptions.DEFAULT : ZstdCompressorOptions.decode(raw);
+    default:
+      return null;
+    }
+  }
+
+  public static int minLevel(CompressionId id) {
+    switch (id) {
+    case LZ4:
+      return Lz4Compressor.FAST_LEVEL;
+    case ZSTD:
+      return ZstdCompressor.MIN_LEVEL;
+    default:
+      return Deflater.NO_COMPRESSION;
+    }
+  }
+
+  public static int maxLevel(CompressionId id) {
+    switch (id) {
+    case LZ4:
+      return Lz4Compressor.MAX_LEVEL;
+    case ZSTD:
+      return ZstdCompressor.MAX_LEVEL;
+    default:
+      return Deflater.BEST_COMPRESSION;
+    }
+  }
+
+  public static int level(CompressionId id, Effort effort) {
+    switch (effort) {
+    case FASTEST:
+      return fastestLevel(id);
+    case MAX:
+      return maxLevel(id);
+    default:
+      return defaultLevel(id);
+    }
+  }
+
+  // the cheapest level which still compresses; zlib level 0 only stores
+  public static int fastestLevel(CompressionId id) {
+    switch (id) {
+    case LZ4:
+      return Lz4Compressor.FAST_LEVEL;
+    case ZSTD:
+      return ZstdCompressor.MIN_LEVEL;
+    default:
+      return Deflater.BEST_SPEED;
+    }
+  }
+
+  // matches the mksquashfs defaults
+  public static int defaultLevel(CompressionId id) {
+    switch (id) {
+    case LZ4:
+      return Lz4Compressor.FAST_LEVEL;
+    case ZSTD:
+      return ZstdCompressor.DEFAULT_LEVEL;
+    default:
+      return Deflater.BEST_COMPRESSION;
+    }
+  }
+
+}
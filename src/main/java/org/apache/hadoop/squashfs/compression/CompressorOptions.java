@@ -0,0 +1,35 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+// Typed form of the compressor options block which may follow the
+// superblock. Layouts match the ones mksquashfs writes for each compressor.
+public interface CompressorOptions {
+
+  public CompressionId getCompressionId();
+
+  // true if an image without an options block means the same thing; like
+  // mksquashfs, the writer only stores options which are not implied
+  public boolean isImplied();
+
+  // payload of the options block, without its metadata header
+  public byte[] encode();
+
+}
@@ -0,0 +1,208 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+// Stores blocks raw without compressing them when they look incompressible.
+// Byte entropy is a cheap first screen, but it cannot see repeated runs, so
+// a block which passes it is confirmed by deflating a prefix at the fastest
+// level.
+public class EntropyCheckingCompressor implements Compressor {
+
+  // bits per byte; already-compressed content (jars, gzip, images) sits
+  // very close to 8, while anything deflate can usefully shrink is lower
+  public static final double DEFAULT_THRESHOLD = 7.9;
+
+  static final int SAMPLE_COUNT = 32;
+  static final int SAMPLE_LENGTH = 256;
+
+  // bytes deflated to confirm a block is incompressible, and the saving
+  // below which it counts as such
+  static final int TRIAL_LENGTH = 32 * 1024;
+  static final int TRIAL_MIN_SAVING = TRIAL_LENGTH / 32;
+
+  // about one in this many skipped blocks is compressed anyway, to measure
+  // what skipping saves. Blocks are picked by content rather than by order,
+  // so the choice does not depend on how pool threads interleave and the
+  // output stays deterministic.
+  static final int CALIBRATION_INTERVAL = 64;
+  static final int CALIBRATION_HASH_BYTES = 64;
+
+  private static final Compressor TRIAL =
+      ZlibCompressor.forLevel(Deflater.BEST_SPEED);
+
+  private final Compressor delegate;
+  private final double threshold;
+
+  private final LongAdder checkNanos = new LongAdder();
+  private final LongAdder compressedBlocks = new LongAdder();
+  private final LongAdder compressedBytes = new LongAdder();
+  private final LongAdder compressNanos = new LongAdder();
+  private final LongAdder skippedBlocks = new LongAdder();
+  private final LongAdder skippedBytes = new LongAdder();
+  private final LongAdder calibrationBytes = new LongAdder();
+  private final LongAdder calibrationNanos = new LongAdder();
+  private final LongAdder mispredictedBlocks = new LongAdder();
+
+  public EntropyCheckingCompressor(Compressor delegate) {
+    this(delegate, DEFAULT_THRESHOLD);
+  }
+
+  public EntropyCheckingCompressor(Compressor delegate, double threshold) {
+    this.delegate = delegate;
+    this.threshold = threshold;
+  }
+
+  @Override
+  public byte[] compress(byte[] data, int offset, int length, int maxLength)
+      throws IOException {
+    long start = System.nanoTime();
+    boolean incompressible = estimateEntropy(data, offset, length) >= threshold
+        && !trialShrinks(data, offset, length);
+    long checked = System.nanoTime();
+    checkNanos.add(checked - start);
+
+    if (incompressible) {
+      if (isCalibrationSample(data, offset, length)) {
+        byte[] result = delegate.compress(data, offset, length, maxLength);
+        long nanos = System.nanoTime() - checked;
+        calibrationBytes.add(length);
+        calibrationNanos.add(nanos);
+        if (result != null) {
+          // the check was wrong about this block; keep what it saved
+          mispredictedBlocks.increment();
+          compressedBlocks.increment();
+          compressedBytes.add(length);
+          compressNanos.add(nanos);
+          return result;
+        }
+      }
+      skippedBlocks.increment();
+      skippedBytes.add(length);
+      return null;
+    }
+
+    byte[] result = delegate.compress(data, offset, length, maxLength);
+    compressedBlocks.increment();
+    compressedBytes.add(length);
+    compressNanos.add(System.nanoTime() - checked);
+    return result;
+  }
+
+  static boolean trialShrinks(byte[] data, int offset, int length)
+      throws IOException {
+    int trial = Math.min(length, TRIAL_LENGTH);
+    int saving = Math.max(1, trial / (TRIAL_LENGTH / TRIAL_MIN_SAVING));
+    return TRIAL.compress(data, offset, trial, trial - saving) != null;
+  }
+
+  static boolean isCalibrationSample(byte[] data, int offset, int length) {
+    int h = length;
+    int end = offset + Math.min(length, CALIBRATION_HASH_BYTES);
+    for (int i = offset; i < end; i++) {
+      h = 31 * h + data[i];
+    }
+    h *= 0x9e3779b9;
+    return ((h >>> 8) % CALIBRATION_INTERVAL) == 0;
+  }
+
+  public long getSkippedBlockCount() {
+    return skippedBlocks.sum();
+  }
+
+  public long getSkippedBytes() {
+    return skippedBytes.sum();
+  }
+
+  public long getCompressedBlockCount() {
+    return compressedBlocks.sum();
+  }
+
+  // blocks which looked incompressible but compressed when calibrated
+  public long getMispredictedBlockCount() {
+    return mispredictedBlocks.sum();
+  }
+
+  public long getCheckNanos() {
+    return checkNanos.sum();
+  }
+
+  public long getEstimatedNanosSaved() {
+    long bytes = calibrationBytes.sum();
+    long nanos = calibrationNanos.sum();
+    if (bytes == 0L) {
+      // no skipped block measured yet, fall back to the average cost
+      bytes = compressedBytes.sum();
+      nanos = compressNanos.sum();
+    }
+    if (bytes == 0L) {
+      return 0L;
+    }
+
+    double nanosPerByte = (double) nanos / bytes;
+    long saved = (long) (skippedBytes.sum() * nanosPerByte) -
+        calibrationNanos.sum() - checkNanos.sum();
+    return Math.max(0L, saved);
+  }
+
+  // order-0 entropy of evenly spaced samples, in bits per byte
+  static double estimateEntropy(byte[] data, int offset, int length) {
+    if (length <= 0) {
+      return 0.0;
+    }
+
+    int[] counts = new int[256];
+    int total = 0;
+    if (length <= SAMPLE_COUNT * SAMPLE_LENGTH) {
+      for (int i = offset; i < offset + length; i++) {
+        counts[data[i] & 0xff]++;
+      }
+      total = length;
+    } else {
+      long stride = (length - SAMPLE_LENGTH) / (SAMPLE_COUNT - 1);
+      for (int s = 0; s < SAMPLE_COUNT; s++) {
+        int start = offset + (int) (s * stride);
+        for (int i = start; i < start + SAMPLE_LENGTH; i++) {
+          counts[data[i] & 0xff]++;
+        }
+      }
+      total = SAMPLE_COUNT * SAMPLE_LENGTH;
+    }
+
+    double entropy = 0.0;
+    for (int count : counts) {
+      if (count > 0) {
+        double p = (double) count / total;
+        entropy -= p * Math.log(p);
+      }
+    }
+    return entropy / Math.log(2.0);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "entropy-checking-compressor { threshold=%.2f, compressedBlocks=%d, skippedBlocks=%d, skippedBytes=%d, estimatedNanosSaved=%d }",
+        threshold, getCompressedBlockCount(), getSkippedBlockCount(),
+        getSkippedBytes(), getEstimatedNanosSaved());
+  }
+
+}
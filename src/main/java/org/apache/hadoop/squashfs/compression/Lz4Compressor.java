@@ -0,0 +1,91 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import net.jpountz.lz4.LZ4Factory;
+
+import java.util.Arrays;
+
+public class Lz4Compressor implements Compressor {
+
+  // level 0 is the fast compressor; anything higher selects LZ4HC at that
+  // level, which only changes how hard the writer works, not the format
+  public static final int FAST_LEVEL = 0;
+  public static final int MAX_LEVEL = 17;
+
+  private static final Lz4Compressor[] INSTANCES =
+      new Lz4Compressor[MAX_LEVEL + 1];
+
+  static {
+    LZ4Factory factory = LZ4Factory.fastestInstance();
+    for (int i = 0; i < INSTANCES.length; i++) {
+      INSTANCES[i] = new Lz4Compressor(i, i == FAST_LEVEL
+          ? factory.fastCompressor()
+          : factory.highCompressor(i));
+    }
+  }
+
+  private final int level;
+  private final net.jpountz.lz4.LZ4Compressor compressor;
+  private static final ThreadLocal<byte[]> SCRATCH =
+      ThreadLocal.withInitial(() -> new byte[0]);
+
+  private Lz4Compressor(int level,
+      net.jpountz.lz4.LZ4Compressor compressor) {
+    this.level = level;
+    this.compressor = compressor;
+  }
+
+  public static Lz4Compressor forLevel(int level) {
+    if (level < 0 || level >= INSTANCES.length) {
+      throw new IllegalArgumentException(
+          String.format("Invalid compression level %d (min 0, max %d)",
+              level, INSTANCES.length - 1));
+    }
+    return INSTANCES[level];
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public boolean isHighCompression() {
+    return level != FAST_LEVEL;
+  }
+
+  @Override
+  public byte[] compress(byte[] data, int offset, int length, int maxLength) {
+    byte[] out = scratch(compressor.maxCompressedLength(length));
+    int size = compressor.compress(data, offset, length, out, 0, out.length);
+    if (size > maxLength) {
+      // too large; caller will store it uncompressed
+      return null;
+    }
+    return Arrays.copyOf(out, size);
+  }
+
+  private static byte[] scratch(int size) {
+    byte[] buf = SCRATCH.get();
+    if (buf.length < size) {
+      buf = new byte[size];
+      SCRATCH.set(buf);
+    }
+    return buf;
+  }
+
+}
@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Layout of the lz4 compressor options block written by mksquashfs.
+public final class Lz4CompressorOptions implements CompressorOptions {
+
+  public static final int SIZE = 8;
+
+  // raw blocks without frame headers; the only version the kernel reads
+  public static final int VERSION_LEGACY = 1;
+
+  public static final int FLAG_HC = 0x01;
+
+  public static final Lz4CompressorOptions DEFAULT =
+      new Lz4CompressorOptions(VERSION_LEGACY, 0);
+
+  private final int version;
+  private final int flags;
+
+  public Lz4CompressorOptions(int version, int flags) {
+    this.version = version;
+    this.flags = flags;
+  }
+
+  public static Lz4CompressorOptions forLevel(int level) {
+    return new Lz4CompressorOptions(VERSION_LEGACY,
+        level == Lz4Compressor.FAST_LEVEL ? 0 : FLAG_HC);
+  }
+
+  public static Lz4CompressorOptions decode(byte[] raw)
+      throws SquashFsException {
+    if (raw.length < SIZE) {
+      throw new SquashFsException(String.format(
+          "Corrupt lz4 compressor options: Got %d bytes, expected %d",
+          raw.length, SIZE));
+    }
+    ByteBuffer bb = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+    int version = bb.getInt();
+    int flags = bb.getInt();
+    if (version != VERSION_LEGACY) {
+      throw new SquashFsException(String.format(
+          "Unsupported lz4 compressor options: Unknown version %d", version));
+    }
+    if ((flags & ~FLAG_HC) != 0) {
+      throw new SquashFsException(String.format(
+          "Unsupported lz4 compressor options: Unknown flags 0x%x", flags));
+    }
+    return new Lz4CompressorOptions(version, flags);
+  }
+
+  @Override
+  public CompressionId getCompressionId() {
+    return CompressionId.LZ4;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  public boolean isHighCompression() {
+    return (flags & FLAG_HC) != 0;
+  }
+
+  // the kernel refuses lz4 images without options
+  @Override
+  public boolean isImplied() {
+    return false;
+  }
+
+  @Override
+  public byte[] encode() {
+    return ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(version)
+        .putInt(flags)
+        .array();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof Lz4CompressorOptions)) {
+      return false;
+    }
+    Lz4CompressorOptions other = (Lz4CompressorOptions) o;
+    return version == other.version && flags == other.flags;
+  }
+
+  @Override
+  public int hashCode() {
+    return version * 31 + flags;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("lz4-options { version=%d, flags=0x%x }", version,
+        flags);
+  }
+
+}
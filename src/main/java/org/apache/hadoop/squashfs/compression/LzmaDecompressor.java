@@ -0,0 +1,55 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.tukaani.xz.LZMAInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Legacy LZMA images hold each block as a .lzma stream: properties,
+// dictionary size and uncompressed size, followed by the raw LZMA data.
+public class LzmaDecompressor extends StreamDecompressor {
+
+  // for callers which only know the compression id
+  public static final LzmaDecompressor INSTANCE = new LzmaDecompressor(-1);
+
+  // in KiB, or -1 for none
+  private final int memoryLimit;
+
+  private LzmaDecompressor(int memoryLimit) {
+    this.memoryLimit = memoryLimit;
+  }
+
+  // mksquashfs uses the block size as dictionary size and stores no
+  // options; only the dictionary is bounded here, not the literal coder
+  public static LzmaDecompressor forDictionarySize(int dictionarySize) {
+    return new LzmaDecompressor(
+        LZMAInputStream.getMemoryUsage(dictionarySize, 8, 4));
+  }
+
+  int getMemoryLimit() {
+    return memoryLimit;
+  }
+
+  @Override
+  InputStream open(InputStream in) throws IOException {
+    return new LZMAInputStream(in, memoryLimit, ARRAYS);
+  }
+
+}
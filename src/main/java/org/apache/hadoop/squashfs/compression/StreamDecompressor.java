@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.tukaani.xz.ArrayCache;
+import org.tukaani.xz.BasicArrayCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+// Base for codecs only available as streams. Every block is a complete
+// stream, so a decoder cannot be reset between blocks; instead, the
+// dictionary and probability arrays it allocates are handed back to a shared
+// cache on close and picked up again by the next block's decoder.
+abstract class StreamDecompressor implements Decompressor {
+
+  static final ArrayCache ARRAYS = BasicArrayCache.getInstance();
+
+  abstract InputStream open(InputStream in) throws IOException;
+
+  @Override
+  public byte[] decompress(byte[] data, int offset, int length,
+      int expectedLength, int maxLength) throws SquashFsException {
+    byte[] out = new byte[(expectedLength > 0 && expectedLength < maxLength)
+        ? expectedLength : maxLength];
+    int size = 0;
+    try (InputStream in =
+        open(new ByteArrayInputStream(data, offset, length))) {
+      while (true) {
+        if (size == out.length) {
+          if (out.length == maxLength) {
+            // read to the end regardless, so integrity checks are run
+            if (in.read() >= 0) {
+              throw new SquashFsException(String.format(
+                  "Corrupt compressed block: Got more than %d bytes",
+                  maxLength));
+            }
+            break;
+          }
+          out = Arrays.copyOf(out, maxLength);
+        }
+        int c = in.read(out, size, out.length - size);
+        if (c < 0) {
+          break;
+        }
+        size += c;
+      }
+    } catch (SquashFsException e) {
+      throw e;
+    } catch (IOException e) {
+      throw new SquashFsException("Corrupt compressed block", e);
+    }
+
+    return size == out.length ? out : Arrays.copyOf(out, size);
+  }
+
+}
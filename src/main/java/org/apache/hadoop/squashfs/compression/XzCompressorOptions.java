@@ -0,0 +1,124 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.metadata.MetadataBlock;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Layout of the xz compressor options block written by mksquashfs.
+public final class XzCompressorOptions implements CompressorOptions {
+
+  public static final int SIZE = 8;
+
+  // BCJ filters mksquashfs was allowed to try; each block's stream header
+  // names the one actually used
+  public static final int FILTER_X86 = 0x01;
+  public static final int FILTER_POWERPC = 0x02;
+  public static final int FILTER_IA64 = 0x04;
+  public static final int FILTER_ARM = 0x08;
+  public static final int FILTER_ARMTHUMB = 0x10;
+  public static final int FILTER_SPARC = 0x20;
+
+  private final int dictionarySize;
+  private final int filters;
+
+  public XzCompressorOptions(int dictionarySize, int filters) {
+    this.dictionarySize = dictionarySize;
+    this.filters = filters;
+  }
+
+  // same default as the kernel
+  public static XzCompressorOptions forBlockSize(int blockSize) {
+    return new XzCompressorOptions(
+        Math.max(blockSize, MetadataBlock.MAX_SIZE), 0);
+  }
+
+  public static XzCompressorOptions decode(byte[] raw)
+      throws SquashFsException {
+    if (raw.length < SIZE) {
+      throw new SquashFsException(String.format(
+          "Corrupt xz compressor options: Got %d bytes, expected %d",
+          raw.length, SIZE));
+    }
+    ByteBuffer bb = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+    int dictionarySize = bb.getInt();
+    int filters = bb.getInt();
+
+    // the kernel only accepts 2^n and 2^n + 2^(n+1)
+    int n = Integer.numberOfTrailingZeros(dictionarySize);
+    if (dictionarySize <= 0 || (dictionarySize != (1 << n)
+        && dictionarySize != (1 << n) + (1 << (n + 1)))) {
+      throw new SquashFsException(String.format(
+          "Corrupt xz compressor options: Invalid dictionary size %d",
+          dictionarySize));
+    }
+    return new XzCompressorOptions(dictionarySize, filters);
+  }
+
+  @Override
+  public CompressionId getCompressionId() {
+    return CompressionId.XZ;
+  }
+
+  public int getDictionarySize() {
+    return dictionarySize;
+  }
+
+  public int getFilters() {
+    return filters;
+  }
+
+  // the implied dictionary depends on the block size, so always store them
+  @Override
+  public boolean isImplied() {
+    return false;
+  }
+
+  @Override
+  public byte[] encode() {
+    return ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(dictionarySize)
+        .putInt(filters)
+        .array();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof XzCompressorOptions)) {
+      return false;
+    }
+    XzCompressorOptions other = (XzCompressorOptions) o;
+    return dictionarySize == other.dictionarySize && filters == other.filters;
+  }
+
+  @Override
+  public int hashCode() {
+    return dictionarySize * 31 + filters;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("xz-options { dictionarySize=%d, filters=0x%x }",
+        dictionarySize, filters);
+  }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.tukaani.xz.LZMA2InputStream;
+import org.tukaani.xz.XZInputStream;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class XzDecompressor extends StreamDecompressor {
+
+  // for callers which only know the compression id
+  public static final XzDecompressor INSTANCE = new XzDecompressor(-1);
+
+  // BCJ filters need a few KiB on top of the LZMA2 decoder
+  private static final int FILTER_MEMORY_KIB = 64;
+
+  // in KiB, or -1 for none
+  private final int memoryLimit;
+
+  private XzDecompressor(int memoryLimit) {
+    this.memoryLimit = memoryLimit;
+  }
+
+  // rejects streams needing a larger dictionary than the image declares,
+  // rather than allocating whatever a corrupt header asks for
+  public static XzDecompressor forOptions(XzCompressorOptions options) {
+    return new XzDecompressor(
+        LZMA2InputStream.getMemoryUsage(options.getDictionarySize())
+            + FILTER_MEMORY_KIB);
+  }
+
+  int getMemoryLimit() {
+    return memoryLimit;
+  }
+
+  @Override
+  InputStream open(InputStream in) throws IOException {
+    return new XZInputStream(in, memoryLimit, true, ARRAYS);
+  }
+
+}
@@ -0,0 +1,157 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+public class ZlibCompressor implements Compressor {
+
+  // strategies java.util.zip can apply; run length and fixed are zlib only
+  public static final int SUPPORTED_STRATEGIES =
+      ZlibCompressorOptions.STRATEGY_DEFAULT
+          | ZlibCompressorOptions.STRATEGY_FILTERED
+          | ZlibCompressorOptions.STRATEGY_HUFFMAN_ONLY;
+
+  // indexed by strategies, then level
+  private static final ZlibCompressor[][] INSTANCES =
+      new ZlibCompressor[SUPPORTED_STRATEGIES + 1][Deflater.BEST_COMPRESSION
+          + 1];
+
+  static {
+    for (int s = 0; s < INSTANCES.length; s++) {
+      for (int i = 0; i < INSTANCES[s].length; i++) {
+        INSTANCES[s][i] = new ZlibCompressor(i, s);
+      }
+    }
+  }
+
+  private final int level;
+  private final int strategies;
+
+  // one deflater per thread, level and strategy, so neither ever changes
+  // mid-stream
+  private final ThreadLocal<Deflater[]> deflaters;
+  private static final ThreadLocal<byte[]> SCRATCH =
+      ThreadLocal.withInitial(() -> new byte[0]);
+
+  private ZlibCompressor(int level, int strategies) {
+    this.level = level;
+    this.strategies = strategies;
+    int[] deflaterStrategies = deflaterStrategies(strategies);
+    this.deflaters = ThreadLocal.withInitial(() -> {
+      Deflater[] result = new Deflater[deflaterStrategies.length];
+      for (int i = 0; i < result.length; i++) {
+        result[i] = new Deflater(level);
+        result[i].setStrategy(deflaterStrategies[i]);
+      }
+      return result;
+    });
+  }
+
+  public static ZlibCompressor forLevel(int level) {
+    return forLevel(level, 0);
+  }
+
+  // like mksquashfs -Xstrategy, every selected strategy is tried on each
+  // block and the smallest result kept
+  public static ZlibCompressor forLevel(int level, int strategies) {
+    if (level < 0 || level >= INSTANCES[0].length) {
+      throw new IllegalArgumentException(
+          String.format("Invalid compression level %d (min 0, max %d)",
+              level, INSTANCES[0].length - 1));
+    }
+    if ((strategies & ~SUPPORTED_STRATEGIES) != 0) {
+      throw new IllegalArgumentException(
+          String.format("Unsupported compression strategies 0x%x",
+              strategies));
+    }
+    return INSTANCES[strategies][level];
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getStrategies() {
+    return strategies;
+  }
+
+  @Override
+  public byte[] compress(byte[] data, int offset, int length, int maxLength) {
+    byte[] best = null;
+    for (Deflater def : deflaters.get()) {
+      byte[] out = deflate(def, data, offset, length,
+          best == null ? maxLength : best.length - 1);
+      if (out != null) {
+        best = out;
+      }
+    }
+    return best;
+  }
+
+  private static byte[] deflate(Deflater def, byte[] data, int offset,
+      int length, int maxLength) {
+    byte[] out = scratch(maxLength + 1);
+
+    def.reset();
+    def.setInput(data, offset, length);
+    def.finish();
+
+    int size = 0;
+    while (!def.finished()) {
+      if (size == out.length) {
+        // too large; caller will store it uncompressed
+        return null;
+      }
+      size += def.deflate(out, size, out.length - size);
+    }
+    if (size > maxLength) {
+      return null;
+    }
+    return Arrays.copyOf(out, size);
+  }
+
+  private static int[] deflaterStrategies(int strategies) {
+    if (strategies == 0) {
+      return new int[] { Deflater.DEFAULT_STRATEGY };
+    }
+    int[] result = new int[Integer.bitCount(strategies)];
+    int i = 0;
+    if ((strategies & ZlibCompressorOptions.STRATEGY_DEFAULT) != 0) {
+      result[i++] = Deflater.DEFAULT_STRATEGY;
+    }
+    if ((strategies & ZlibCompressorOptions.STRATEGY_FILTERED) != 0) {
+      result[i++] = Deflater.FILTERED;
+    }
+    if ((strategies & ZlibCompressorOptions.STRATEGY_HUFFMAN_ONLY) != 0) {
+      result[i++] = Deflater.HUFFMAN_ONLY;
+    }
+    return result;
+  }
+
+  private static byte[] scratch(int size) {
+    byte[] buf = SCRATCH.get();
+    if (buf.length < size) {
+      buf = new byte[size];
+      SCRATCH.set(buf);
+    }
+    return buf;
+  }
+
+}
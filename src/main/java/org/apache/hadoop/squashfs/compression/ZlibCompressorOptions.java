@@ -0,0 +1,141 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.Deflater;
+
+// Layout of the gzip compressor options block written by mksquashfs.
+public final class ZlibCompressorOptions implements CompressorOptions {
+
+  public static final int SIZE = 8;
+
+  public static final int DEFAULT_LEVEL = Deflater.BEST_COMPRESSION;
+  public static final int MIN_WINDOW_SIZE = 8;
+  public static final int DEFAULT_WINDOW_SIZE = 15;
+
+  // strategies mksquashfs tried on each block, keeping the smallest result;
+  // none selected means the default strategy only
+  public static final int STRATEGY_DEFAULT = 0x01;
+  public static final int STRATEGY_FILTERED = 0x02;
+  public static final int STRATEGY_HUFFMAN_ONLY = 0x04;
+  public static final int STRATEGY_RUN_LENGTH_ENCODED = 0x08;
+  public static final int STRATEGY_FIXED = 0x10;
+  public static final int STRATEGY_ALL = 0x1f;
+
+  public static final ZlibCompressorOptions DEFAULT =
+      new ZlibCompressorOptions(DEFAULT_LEVEL, DEFAULT_WINDOW_SIZE, 0);
+
+  private final int level;
+  private final int windowSize;
+  private final int strategies;
+
+  public ZlibCompressorOptions(int level, int windowSize, int strategies) {
+    this.level = level;
+    this.windowSize = windowSize;
+    this.strategies = strategies;
+  }
+
+  public static ZlibCompressorOptions decode(byte[] raw)
+      throws SquashFsException {
+    if (raw.length < SIZE) {
+      throw new SquashFsException(String.format(
+          "Corrupt gzip compressor options: Got %d bytes, expected %d",
+          raw.length, SIZE));
+    }
+    ByteBuffer bb = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN);
+    int level = bb.getInt();
+    int windowSize = bb.getShort();
+    int strategies = bb.getShort() & 0xffff;
+    if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+      throw new SquashFsException(String.format(
+          "Corrupt gzip compressor options: Invalid level %d", level));
+    }
+    // inflate copes with any window size, but anything else is not gzip
+    if (windowSize < MIN_WINDOW_SIZE || windowSize > DEFAULT_WINDOW_SIZE) {
+      throw new SquashFsException(String.format(
+          "Corrupt gzip compressor options: Invalid window size %d",
+          windowSize));
+    }
+    if ((strategies & ~STRATEGY_ALL) != 0) {
+      throw new SquashFsException(String.format(
+          "Corrupt gzip compressor options: Invalid strategies 0x%x",
+          strategies));
+    }
+    return new ZlibCompressorOptions(level, windowSize, strategies);
+  }
+
+  @Override
+  public CompressionId getCompressionId() {
+    return CompressionId.ZLIB;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  public int getWindowSize() {
+    return windowSize;
+  }
+
+  public int getStrategies() {
+    return strategies;
+  }
+
+  @Override
+  public boolean isImplied() {
+    return level == DEFAULT_LEVEL && windowSize == DEFAULT_WINDOW_SIZE
+        && strategies == 0;
+  }
+
+  @Override
+  public byte[] encode() {
+    return ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(level)
+        .putShort((short) windowSize)
+        .putShort((short) strategies)
+        .array();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (!(o instanceof ZlibCompressorOptions)) {
+      return false;
+    }
+    ZlibCompressorOptions other = (ZlibCompressorOptions) o;
+    return level == other.level && windowSize == other.windowSize
+        && strategies == other.strategies;
+  }
+
+  @Override
+  public int hashCode() {
+    return (level * 31 + windowSize) * 31 + strategies;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "gzip-options { level=%d, windowSize=%d, strategies=0x%x }",
+        level, windowSize, strategies);
+  }
+
+}
@@ -0,0 +1,75 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+public class ZlibDecompressor implements Decompressor {
+
+  public static final ZlibDecompressor INSTANCE = new ZlibDecompressor();
+
+  private final ThreadLocal<Inflater> inflater =
+      ThreadLocal.withInitial(Inflater::new);
+
+  private ZlibDecompressor() {
+  }
+
+  @Override
+  public byte[] decompress(byte[] data, int offset, int length,
+      int expectedLength, int maxLength) throws SquashFsException {
+    Inflater inf = inflater.get();
+    inf.reset();
+    inf.setInput(data, offset, length);
+
+    // inflate straight into the destination, growing it only if the
+    // expected length turns out to be too small
+    byte[] out = new byte[(expectedLength > 0 && expectedLength < maxLength)
+        ? expectedLength : maxLength];
+    int size = 0;
+    try {
+      while (!inf.finished()) {
+        if (size == out.length) {
+          if (out.length == maxLength) {
+            if (inf.inflate(new byte[1]) > 0 || !inf.finished()) {
+              throw new SquashFsException(String.format(
+                  "Corrupt compressed block: Got more than %d bytes",
+                  maxLength));
+            }
+            break;
+          }
+          out = Arrays.copyOf(out, maxLength);
+        }
+        int c = inf.inflate(out, size, out.length - size);
+        if (c == 0 && (inf.needsInput() || inf.needsDictionary())) {
+          throw new SquashFsException(
+              "Corrupt compressed block: Unexpected end of data");
+        }
+        size += c;
+      }
+    } catch (DataFormatException e) {
+      throw new SquashFsException("Corrupt compressed block", e);
+    }
+
+    return size == out.length ? out : Arrays.copyOf(out, size);
+  }
+
+}
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import com.github.luben.zstd.Zstd;
+import com.github.luben.zstd.ZstdCompressCtx;
+import com.github.luben.zstd.ZstdException;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+public class ZstdCompressor implements Compressor {
+
+  public static final int MIN_LEVEL = 1;
+  public static final int MAX_LEVEL = 22;
+  // mksquashfs default, and the level assumed when no options are stored
+  public static final int DEFAULT_LEVEL = 15;
+
+  private static final ZstdCompressor[] INSTANCES =
+      new ZstdCompressor[MAX_LEVEL + 1];
+
+  static {
+    for (int i = MIN_LEVEL; i < INSTANCES.length; i++) {
+      INSTANCES[i] = new ZstdCompressor(i);
+    }
+  }
+
+  private final int level;
+
+  // contexts hold sizeable native state, so keep one per thread and level
+  private final ThreadLocal<ZstdCompressCtx> context;
+  private static final ThreadLocal<byte[]> SCRATCH =
+      ThreadLocal.withInitial(() -> new byte[0]);
+
+  private ZstdCompressor(int level) {
+    this.level = level;
+    this.context =
+        ThreadLocal.withInitial(() -> new ZstdCompressCtx().setLevel(level));
+  }
+
+  public static ZstdCompressor forLevel(int level) {
+    if (level < MIN_LEVEL || level >= INSTANCES.length) {
+      throw new IllegalArgumentException(
+          String.format("Invalid compression level %d (min %d, max %d)",
+              level, MIN_LEVEL, INSTANCES.length - 1));
+    }
+    return INSTANCES[level];
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public byte[] compress(byte[] data, int offset, int length, int maxLength)
+      throws IOException {
+    byte[] out = scratch((int) Zstd.compressBound(length));
+    int size;
+    try {
+      size = context.get()
+          .compressByteArray(out, 0, out.length, data, offset, length);
+    } catch (ZstdException e) {
+      throw new IOException("Unable to compress block", e);
+    }
+    if (size > maxLength) {
+      // too large; caller will store it uncompressed
+      return null;
+    }
+    return Arrays.copyOf(out, size);
+  }
+
+  private static byte[] scratch(int size) {
+    byte[] buf = SCRATCH.get();
+    if (buf.length < size) {
+      buf = new byte[size];
+      SCRATCH.set(buf);
+    }
+    return buf;
+  }
+
+}
@@ -0,0 +1,92 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Layout of the zstd compressor options block written by mksquashfs.
+public final class ZstdCompressorOptions implements CompressorOptions {
+
+  public static final int SIZE = 4;
+
+  public static final ZstdCompressorOptions DEFAULT =
+      new ZstdCompressorOptions(ZstdCompressor.DEFAULT_LEVEL);
+
+  private final int level;
+
+  public ZstdCompressorOptions(int level) {
+    this.level = level;
+  }
+
+  public static ZstdCompressorOptions decode(byte[] raw)
+      throws SquashFsException {
+    if (raw.length < SIZE) {
+      throw new SquashFsException(String.format(
+          "Corrupt zstd compressor options: Got %d bytes, expected %d",
+          raw.length, SIZE));
+    }
+    int level = ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    if (level < ZstdCompressor.MIN_LEVEL || level > ZstdCompressor.MAX_LEVEL) {
+      throw new SquashFsException(String.format(
+          "Corrupt zstd compressor options: Invalid level %d", level));
+    }
+    return new ZstdCompressorOptions(level);
+  }
+
+  @Override
+  public CompressionId getCompressionId() {
+    return CompressionId.ZSTD;
+  }
+
+  public int getLevel() {
+    return level;
+  }
+
+  @Override
+  public boolean isImplied() {
+    return level == ZstdCompressor.DEFAULT_LEVEL;
+  }
+
+  @Override
+  public byte[] encode() {
+    return ByteBuffer.allocate(SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        .putInt(level)
+        .array();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof ZstdCompressorOptions
+        && level == ((ZstdCompressorOptions) o).level;
+  }
+
+  @Override
+  public int hashCode() {
+    return level;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("zstd-options { level=%d }", level);
+  }
+
+}
@@ -0,0 +1,50 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.compression;
+
+import com.github.luben.zstd.ZstdDecompressCtx;
+import com.github.luben.zstd.ZstdException;
+import org.apache.hadoop.squashfs.SquashFsException;
+
+import java.util.Arrays;
+
+public class ZstdDecompressor implements Decompressor {
+
+  public static final ZstdDecompressor INSTANCE = new ZstdDecompressor();
+
+  private final ThreadLocal<ZstdDecompressCtx> context =
+      ThreadLocal.withInitial(ZstdDecompressCtx::new);
+
+  private ZstdDecompressor() {
+  }
+
+  @Override
+  public byte[] decompress(byte[] data, int offset, int length,
+      int expectedLength, int maxLength) throws SquashFsException {
+    byte[] out = new byte[maxLength];
+    int size;
+    try {
+      size = context.get()
+          .decompressByteArray(out, 0, maxLength, data, offset, length);
+    } catch (ZstdException e) {
+      throw new SquashFsException("Corrupt compressed block", e);
+    }
+    return size == out.length ? out : Arrays.copyOf(out, size);
+  }
+
+}
@@ -0,0 +1,47 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.data;
+
+import java.util.Arrays;
+
+// digest plus length, so a collision would also need an equal length
+final class ContentKey {
+
+  private final byte[] hash;
+  private final long length;
+
+  ContentKey(byte[] hash, long length) {
+    this.hash = hash;
+    this.length = length;
+  }
+
+  @Override
+  public int hashCode() {
+    return Arrays.hashCode(hash) ^ Long.hashCode(length);
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (!(obj instanceof ContentKey)) {
+      return false;
+    }
+    ContentKey other = (ContentKey) obj;
+    return length == other.length && Arrays.equals(hash, other.hash);
+  }
+
+}
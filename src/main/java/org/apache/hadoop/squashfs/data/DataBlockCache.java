@@ -15,72 +15,326 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.hadoop.squashfs.data;
 
+import org.apache.hadoop.squashfs.util.SingleFlight;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
 
+// A block cache bounded by the bytes it holds. Keys are spread over
+// independently locked LRU stripes, so concurrent readers only contend when
+// they hit the same stripe. Each stripe gets an equal share of the capacity
+// and evicts on its own, so eviction order is only exact with one stripe.
+// Concurrent misses on the same key are coalesced by getOrLoad(), so a block
+// is read and decompressed once however many threads want it.
+//
+// Under Policy.LRU every block read is cached and the least recently used
+// blocks make room. Under Policy.TINY_LFU a block only displaces others if
+// it has been asked for more often recently than each block it would
+// evict, so a single sequential sweep through a large file passes through
+// without flushing the small, frequently read blocks.
+//
+// A cache may have a second, larger tier holding the raw bytes of
+// compressed blocks as read from the image. A block missing from the
+// decompressed tier but present there is promoted by decompressing it,
+// without any I/O. Blocks evicted from the decompressed tier whose raw
+// bytes are still held are counted as demoted.
 public class DataBlockCache {
 
-  public static final DataBlockCache NO_CACHE = new DataBlockCache(0);
+  public static final DataBlockCache NO_CACHE = new DataBlockCache(0L);
+
+  public static final int DEFAULT_MAX_STRIPES = 64;
+
+  public enum Policy {
+    // admit everything, evict the least recently used
+    LRU,
+    // admit by access frequency, evict the least recently used
+    TINY_LFU
+  }
+
+  // turns the raw bytes of a block, as stored in the image, into a block
+  @FunctionalInterface
+  public interface Decoder {
+    DataBlock decode(byte[] raw) throws IOException;
+  }
+
+  // sizes the frequency sketch; blocks are rarely smaller than this
+  static final long TYPICAL_BLOCK_BYTES = 4096L;
+
+  // stripes are not made smaller than this, so a small cache still holds
+  // whole blocks
+  static final long MIN_STRIPE_BYTES = 1024L * 1024L;
+
+  private final Stripe[] stripes;
+  private final long maxBytes;
+  private final Policy policy;
+  // misses of a disabled cache, which has no stripes to count them in
+  private final LongAdder uncachedMisses = new LongAdder();
+  private final SingleFlight<Key, DataBlock> loads = new SingleFlight<>();
+  // raw bytes of compressed blocks, or null for a single tier
+  private final DataBlockCache compressedTier;
+  private final LongAdder promotions = new LongAdder();
+  private final LongAdder demotions = new LongAdder();
+
+  public DataBlockCache(long maxBytes) {
+    this(maxBytes, defaultStripes(maxBytes));
+  }
+
+  public DataBlockCache(long maxBytes, Policy policy) {
+    this(maxBytes, defaultStripes(maxBytes), policy);
+  }
+
+  public DataBlockCache(long maxBytes, int stripeCount) {
+    this(maxBytes, stripeCount, Policy.LRU);
+  }
+
+  public DataBlockCache(long maxBytes, int stripeCount, Policy policy) {
+    this(maxBytes, 0L, stripeCount, policy);
+  }
+
+  // a decompressed tier of maxBytes backed by a tier of compressedBytes
+  // holding raw compressed blocks
+  public DataBlockCache(long maxBytes, long compressedBytes) {
+    this(maxBytes, compressedBytes, defaultStripes(maxBytes), Policy.LRU);
+  }
+
+  public DataBlockCache(long maxBytes, long compressedBytes, int stripeCount,
+      Policy policy) {
+    if (stripeCount < 1) {
+      throw new IllegalArgumentException(
+          String.format("Invalid stripe count %d (min 1)", stripeCount));
+    }
+    this.maxBytes = Math.max(0L, maxBytes);
+    this.policy = Objects.requireNonNull(policy, "policy");
+    this.compressedTier = compressedBytes > 0L
+        ? new DataBlockCache(compressedBytes, stripeCount, policy)
+        : null;
+    if (this.maxBytes == 0L) {
+      this.stripes = new Stripe[0];
+      return;
+    }
+    // a power of two, so a stripe is picked by masking the hash
+    int count = Integer.highestOneBit(stripeCount);
+    this.stripes = new Stripe[count];
+    for (int i = 0; i < count; i++) {
+      stripes[i] = new Stripe(Math.max(1L, this.maxBytes / count), policy);
+    }
+  }
 
-  private final LruBlockCache cache;
-  private final int cacheSize;
-  private volatile long cacheHits = 0L;
-  private volatile long cacheMisses = 0L;
+  static int defaultStripes(long maxBytes) {
+    long wanted = Math.max(1L, maxBytes / MIN_STRIPE_BYTES);
+    int cpus = Runtime.getRuntime().availableProcessors();
+    return (int) Math.min(wanted,
+        Math.min(DEFAULT_MAX_STRIPES, Integer.highestOneBit(cpus * 4 - 1) << 1));
+  }
 
-  public DataBlockCache(int cacheSize) {
-    this.cache = cacheSize < 1 ? null : new LruBlockCache(cacheSize);
-    this.cacheSize = cacheSize;
+  private Stripe stripeFor(Key key) {
+    int h = key.hashCode();
+    h ^= (h >>> 16);
+    return stripes[h & (stripes.length - 1)];
   }
 
-  public synchronized void put(Key key, DataBlock block) {
-    if (cache != null) {
-      cache.put(key, block);
+  public void put(Key key, DataBlock block) {
+    if (stripes.length == 0) {
+      return;
+    }
+    List<Key> evicted = stripeFor(key).put(key, block);
+    if (evicted != null && compressedTier != null) {
+      for (Key victim : evicted) {
+        if (victim.compressed && compressedTier.contains(victim)) {
+          demotions.increment();
+        }
+      }
     }
   }
 
-  public synchronized DataBlock get(Key key) {
-    if (cache == null) {
-      cacheMisses++;
+  public DataBlock get(Key key) {
+    if (stripes.length == 0) {
+      uncachedMisses.increment();
       return null;
     }
+    return stripeFor(key).get(key);
+  }
 
-    DataBlock block = cache.get(key);
+  // returns the cached block, or loads and caches it; a caller missing on a
+  // key that is already being loaded waits for that load instead
+  public DataBlock getOrLoad(Key key, SingleFlight.Loader<DataBlock> loader)
+      throws IOException {
+    DataBlock block = get(key);
     if (block != null) {
-      cacheHits++;
-    } else {
-      cacheMisses++;
+      return block;
     }
-    return block;
+    if (stripes.length == 0) {
+      // NO_CACHE is shared by unrelated readers whose keys may collide, so
+      // loads are never coalesced through it
+      return loader.load();
+    }
+    return loads.load(key, () -> {
+      // a load may have completed between our miss and taking the flight
+      DataBlock loaded = peek(key);
+      if (loaded == null) {
+        loaded = loader.load();
+        put(key, loaded);
+      }
+      return loaded;
+    });
+  }
+
+  // as getOrLoad(), but a compressed block is read raw and decoded
+  // separately, so its raw bytes can be kept in the compressed tier and a
+  // later miss served from them
+  public DataBlock getOrLoad(Key key, SingleFlight.Loader<byte[]> reader,
+      Decoder decoder) throws IOException {
+    if (compressedTier == null || !key.compressed) {
+      // the raw bytes of an uncompressed block are the block itself
+      return getOrLoad(key, () -> decoder.decode(reader.load()));
+    }
+    return getOrLoad(key, () -> {
+      DataBlock raw = compressedTier.get(key);
+      if (raw != null) {
+        promotions.increment();
+        return decoder.decode(raw.getData());
+      }
+      byte[] data = reader.load();
+      compressedTier.put(key, new DataBlock(data, key.expectedSize, data.length));
+      return decoder.decode(data);
+    });
+  }
+
+  // refreshes the block if present, without counting a hit or miss
+  boolean contains(Key key) {
+    return stripes.length > 0 && peek(key) != null;
+  }
+
+  private DataBlock peek(Key key) {
+    return stripeFor(key).peek(key);
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  public DataBlockCache getCompressedTier() {
+    return compressedTier;
+  }
+
+  // blocks decompressed from the compressed tier instead of read from disk
+  public long getPromotionCount() {
+    return promotions.sum();
+  }
+
+  // compressed blocks evicted from this tier while still held raw in the
+  // compressed tier
+  public long getDemotionCount() {
+    return demotions.sum();
+  }
+
+  public Policy getPolicy() {
+    return policy;
+  }
+
+  public int getStripeCount() {
+    return stripes.length;
   }
 
   public long getCacheHits() {
-    return cacheHits;
+    long hits = 0L;
+    for (Stripe stripe : stripes) {
+      hits += stripe.hits;
+    }
+    return hits;
+  }
+
+  // loads run on behalf of callers that missed
+  public long getLoadCount() {
+    return loads.getLoadCount();
+  }
+
+  // misses which waited on a load already in flight rather than reading and
+  // decompressing the block again
+  public long getCoalescedLoads() {
+    return loads.getCoalescedCount();
   }
 
   public long getCacheMisses() {
-    return cacheMisses;
+    long misses = uncachedMisses.sum();
+    for (Stripe stripe : stripes) {
+      misses += stripe.misses;
+    }
+    return misses;
   }
 
-  public synchronized int getCacheLoad() {
-    return cache == null ? 0 : cache.size();
+  // blocks which were not cached because they were less popular than the
+  // blocks they would have evicted
+  public long getRejectedCount() {
+    long rejected = 0L;
+    for (Stripe stripe : stripes) {
+      rejected += stripe.rejected;
+    }
+    return rejected;
+  }
+
+  public long getEvictionCount() {
+    long evictions = 0L;
+    for (Stripe stripe : stripes) {
+      evictions += stripe.evictions;
+    }
+    return evictions;
+  }
+
+  // number of cached blocks
+  public int getCacheLoad() {
+    int load = 0;
+    for (Stripe stripe : stripes) {
+      load += stripe.size();
+    }
+    return load;
+  }
+
+  // bytes held by cached blocks
+  public long getCacheBytes() {
+    long bytes = 0L;
+    for (Stripe stripe : stripes) {
+      bytes += stripe.bytes;
+    }
+    return bytes;
   }
 
   public void resetStatistics() {
-    cacheHits = 0L;
-    cacheMisses = 0L;
+    uncachedMisses.reset();
+    loads.resetStatistics();
+    promotions.reset();
+    demotions.reset();
+    if (compressedTier != null) {
+      compressedTier.resetStatistics();
+    }
+    for (Stripe stripe : stripes) {
+      stripe.resetStatistics();
+    }
   }
 
-  public synchronized void clearCache() {
-    if (cache != null) {
-      cache.clear();
+  public void clearCache() {
+    for (Stripe stripe : stripes) {
+      stripe.clear();
+    }
+    if (compressedTier != null) {
+      compressedTier.clearCache();
     }
     resetStatistics();
   }
 
+  // blocks are weighted by the bytes they keep in memory
+  static long weigh(DataBlock block) {
+    return Math.max(1L, block.getPhysicalSize());
+  }
+
   public static final class Key {
 
     private final int tag;
@@ -129,29 +383,125 @@ public class DataBlockCache {
     }
   }
 
-  private static class LruBlockCache extends LinkedHashMap<Key, DataBlock> {
+  // an access-ordered map with its own lock, byte count and statistics;
+  // counters are only written under the lock
+  private static final class Stripe {
 
-    private static final long serialVersionUID = -156607843124781789L;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, DataBlock> blocks =
+        new LinkedHashMap<>(16, 0.75f, true);
+    // only kept under TINY_LFU
+    private final FrequencySketch sketch;
+    private volatile long bytes = 0L;
+    private volatile long hits = 0L;
+    private volatile long misses = 0L;
+    private volatile long rejected = 0L;
+    private volatile long evictions = 0L;
 
-    private final int cacheSize;
+    Stripe(long maxBytes, Policy policy) {
+      this.maxBytes = maxBytes;
+      this.sketch = policy == Policy.TINY_LFU
+          ? new FrequencySketch(maxBytes / TYPICAL_BLOCK_BYTES)
+          : null;
+    }
 
-    public LruBlockCache(int cacheSize) {
-      super(16, 0.75f, true);
-      this.cacheSize = cacheSize;
+    synchronized DataBlock get(Key key) {
+      if (sketch != null) {
+        sketch.increment(key.hashCode());
+      }
+      DataBlock block = blocks.get(key);
+      if (block != null) {
+        hits++;
+      } else {
+        misses++;
+      }
+      return block;
     }
 
-    @Override
-    protected boolean removeEldestEntry(Map.Entry<Key, DataBlock> eldest) {
-      return size() > cacheSize;
+    // a lookup which is not counted as a hit or miss
+    synchronized DataBlock peek(Key key) {
+      return blocks.get(key);
+    }
+
+    // returns the keys evicted to make room, if any
+    synchronized List<Key> put(Key key, DataBlock block) {
+      long weight = weigh(block);
+      if (weight > maxBytes) {
+        // would evict everything else and still not fit
+        return null;
+      }
+      if (sketch != null && !blocks.containsKey(key) && !admit(key, weight)) {
+        rejected++;
+        return null;
+      }
+      DataBlock previous = blocks.put(key, block);
+      long total = bytes + weight;
+      if (previous != null) {
+        total -= weigh(previous);
+      }
+      List<Key> evicted = null;
+      Iterator<Map.Entry<Key, DataBlock>> eldest =
+          blocks.entrySet().iterator();
+      while (total > maxBytes) {
+        Map.Entry<Key, DataBlock> entry = eldest.next();
+        if (evicted == null) {
+          evicted = new ArrayList<>();
+        }
+        evicted.add(entry.getKey());
+        total -= weigh(entry.getValue());
+        eldest.remove();
+      }
+      bytes = total;
+      evictions += evicted == null ? 0 : evicted.size();
+      return evicted;
+    }
+
+    // a new block is admitted if it is more popular than every block which
+    // would be evicted to make room for it
+    private boolean admit(Key key, long weight) {
+      long excess = bytes + weight - maxBytes;
+      if (excess <= 0L) {
+        return true;
+      }
+      int frequency = sketch.frequency(key.hashCode());
+      for (Map.Entry<Key, DataBlock> victim : blocks.entrySet()) {
+        if (sketch.frequency(victim.getKey().hashCode()) >= frequency) {
+          return false;
+        }
+        excess -= weigh(victim.getValue());
+        if (excess <= 0L) {
+          break;
+        }
+      }
+      return true;
     }
 
+    synchronized int size() {
+      return blocks.size();
+    }
+
+    synchronized void resetStatistics() {
+      hits = 0L;
+      misses = 0L;
+      rejected = 0L;
+      evictions = 0L;
+    }
+
+    synchronized void clear() {
+      blocks.clear();
+      bytes = 0L;
+    }
   }
 
   @Override
   public String toString() {
     return String
-        .format("data-block-cache { capacity=%d, size=%d, hits=%d, misses=%d }",
-            cacheSize, getCacheLoad(), getCacheHits(), getCacheMisses());
+        .format(
+            "data-block-cache { policy=%s, maxBytes=%d, stripes=%d, bytes=%d, size=%d, hits=%d, misses=%d, coalesced=%d, rejected=%d, evictions=%d, promotions=%d, demotions=%d, compressed=%s }",
+            policy, maxBytes, stripes.length, getCacheBytes(), getCacheLoad(),
+            getCacheHits(), getCacheMisses(), getCoalescedLoads(),
+            getRejectedCount(), getEvictionCount(), getPromotionCount(),
+            getDemotionCount(), compressedTier);
   }
 
 }
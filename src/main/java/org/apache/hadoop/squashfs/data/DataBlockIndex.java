@@ -0,0 +1,181 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.data;
+
+import java.util.Arrays;
+
+// Content-addressed index of written data blocks. Records are numbered in the
+// order blocks are handed to the writer, so consecutive records are
+// candidates for contiguous on-disk runs. Each record also keeps its
+// sequence among the non-empty blocks handed to the writer, so runs can be
+// checked for contiguity before their blocks have been written. Everything
+// is held in primitive arrays: a record costs 4 longs of digest, a
+// location, a sequence and an inode size.
+public class DataBlockIndex {
+
+  static final int DIGEST_LENGTH = 32;
+  private static final int DIGEST_LONGS = DIGEST_LENGTH / 8;
+
+  private long[] digests = new long[16 * DIGEST_LONGS];
+  private long[] locations = new long[16];
+  private long[] sequences = new long[16];
+  private int[] inodeSizes = new int[16];
+  private int count = 0;
+
+  // open addressing, holds record + 1 for the first record with a digest
+  private int[] table = new int[64];
+
+  public int size() {
+    return count;
+  }
+
+  public int add(byte[] digest, long sequence) {
+    checkDigest(digest);
+    if (count == locations.length) {
+      int capacity = count * 2;
+      digests = Arrays.copyOf(digests, capacity * DIGEST_LONGS);
+      locations = Arrays.copyOf(locations, capacity);
+      sequences = Arrays.copyOf(sequences, capacity);
+      inodeSizes = Arrays.copyOf(inodeSizes, capacity);
+    }
+
+    int record = count++;
+    for (int i = 0; i < DIGEST_LONGS; i++) {
+      digests[(record * DIGEST_LONGS) + i] = longAt(digest, i * 8);
+    }
+    locations[record] = -1L;
+    sequences[record] = sequence;
+    inodeSizes[record] = 0;
+
+    if (count * 2 > table.length) {
+      rehash(table.length * 2);
+    }
+    int slot = findSlot(record);
+    if (table[slot] == 0) {
+      table[slot] = record + 1;
+    }
+    return record;
+  }
+
+  public int find(byte[] digest) {
+    checkDigest(digest);
+    int mask = table.length - 1;
+    int slot = (int) mix(longAt(digest, 0)) & mask;
+    while (table[slot] != 0) {
+      int record = table[slot] - 1;
+      if (matches(record, digest)) {
+        return record;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return -1;
+  }
+
+  public boolean matches(int record, byte[] digest) {
+    if (record < 0 || record >= count) {
+      return false;
+    }
+    for (int i = 0; i < DIGEST_LONGS; i++) {
+      if (digests[(record * DIGEST_LONGS) + i] != longAt(digest, i * 8)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public void setLocation(int record, long location, int inodeSize) {
+    locations[record] = location;
+    inodeSizes[record] = inodeSize;
+  }
+
+  public boolean isWritten(int record) {
+    return locations[record] >= 0L;
+  }
+
+  public long getLocation(int record) {
+    return locations[record];
+  }
+
+  public long getSequence(int record) {
+    return sequences[record];
+  }
+
+  public int getInodeSize(int record) {
+    return inodeSizes[record];
+  }
+
+  public int getPhysicalSize(int record) {
+    return inodeSizes[record] & 0xffffff;
+  }
+
+  public boolean isCompressed(int record) {
+    return (inodeSizes[record] & 0x1000000) == 0;
+  }
+
+  private int findSlot(int record) {
+    int mask = table.length - 1;
+    int base = record * DIGEST_LONGS;
+    int slot = (int) mix(digests[base]) & mask;
+    while (table[slot] != 0) {
+      int other = (table[slot] - 1) * DIGEST_LONGS;
+      if (digests[other] == digests[base] &&
+          digests[other + 1] == digests[base + 1] &&
+          digests[other + 2] == digests[base + 2] &&
+          digests[other + 3] == digests[base + 3]) {
+        return slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private void rehash(int capacity) {
+    table = new int[capacity];
+    for (int record = 0; record < count - 1; record++) {
+      int slot = findSlot(record);
+      if (table[slot] == 0) {
+        table[slot] = record + 1;
+      }
+    }
+  }
+
+  private static void checkDigest(byte[] digest) {
+    if (digest.length != DIGEST_LENGTH) {
+      throw new IllegalArgumentException(
+          String.format("Invalid digest length %d (expected %d)",
+              digest.length, DIGEST_LENGTH));
+    }
+  }
+
+  private static long longAt(byte[] buf, int off) {
+    long value = 0L;
+    for (int i = 0; i < 8; i++) {
+      value = (value << 8) | (buf[off + i] & 0xffL);
+    }
+    return value;
+  }
+
+  private static long mix(long value) {
+    // digests are already uniform, but keep low bits well distributed
+    value ^= (value >>> 33);
+    value *= 0xff51afd7ed558ccdL;
+    value ^= (value >>> 33);
+    return value;
+  }
+
+}
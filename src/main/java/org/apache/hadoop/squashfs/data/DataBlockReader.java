@@ -19,19 +19,16 @@
 package org.apache.hadoop.squashfs.data;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.compression.Decompressor;
 import org.apache.hadoop.squashfs.data.DataBlockCache.Key;
 import org.apache.hadoop.squashfs.inode.FileINode;
+import org.apache.hadoop.squashfs.io.PositionalReader;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
-import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
 import org.apache.hadoop.squashfs.table.FragmentTable;
 import org.apache.hadoop.squashfs.table.FragmentTableEntry;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 public class DataBlockReader {
 
@@ -55,6 +52,19 @@ public class DataBlockReader {
       int blockNum,
       DataBlockCache cache) throws IOException, SquashFsException {
 
+    return readBlock(tag, PositionalReader.wrap(raf.getChannel()), sb, inode,
+        blockNum, cache);
+  }
+
+  // reads at absolute offsets, so the reader may be shared between threads
+  public static DataBlock readBlock(
+      int tag,
+      PositionalReader in,
+      SuperBlock sb,
+      FileINode inode,
+      int blockNum,
+      DataBlockCache cache) throws IOException, SquashFsException {
+
     int blockCount = inode.getBlockSizes().length;
     if (blockNum >= blockCount) {
       throw new SquashFsException(
@@ -86,13 +96,10 @@ public class DataBlockReader {
 
     DataBlockCache.Key key =
         new Key(tag, compressed, fileOffset, actualSize, (int) expectedSize);
-    DataBlock block = cache.get(key);
-    if (block == null) {
-      block = readData(sb, raf, compressed, fileOffset, actualSize,
-          (int) expectedSize);
-      cache.put(key, block);
-    }
-    return block;
+    int size = (int) expectedSize;
+    return cache.getOrLoad(key,
+        () -> readRaw(in, fileOffset, actualSize),
+        raw -> decode(sb, compressed, raw, size));
   }
 
   public static DataBlock readFragment(
@@ -116,6 +123,19 @@ public class DataBlockReader {
       int length,
       DataBlockCache cache) throws IOException, SquashFsException {
 
+    return readFragment(tag, PositionalReader.wrap(raf.getChannel()), sb,
+        inode, fragTable, length, cache);
+  }
+
+  public static DataBlock readFragment(
+      int tag,
+      PositionalReader in,
+      SuperBlock sb,
+      FileINode inode,
+      FragmentTable fragTable,
+      int length,
+      DataBlockCache cache) throws IOException, SquashFsException {
+
     FragmentTableEntry fragEntry =
         fragTable.getEntry(inode.getFragmentBlockIndex());
 
@@ -126,11 +146,9 @@ public class DataBlockReader {
 
     DataBlockCache.Key key =
         new Key(tag, compressed, fileOffset, dataSize, dataSize);
-    DataBlock fragment = cache.get(key);
-    if (fragment == null) {
-      fragment = readData(sb, raf, compressed, fileOffset, dataSize, dataSize);
-      cache.put(key, fragment);
-    }
+    DataBlock fragment = cache.getOrLoad(key,
+        () -> readRaw(in, fileOffset, dataSize),
+        raw -> decode(sb, compressed, raw, dataSize));
 
     int offset = inode.getFragmentOffset();
     if (offset + length > fragment.getPhysicalSize()) {
@@ -145,85 +163,31 @@ public class DataBlockReader {
     return new DataBlock(data, data.length, data.length);
   }
 
-  private static DataBlock readData(
-      SuperBlock sb,
-      RandomAccessFile raf,
-      boolean compressed,
+  private static byte[] readRaw(
+      PositionalReader in,
       long fileOffset,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
+      int dataSize) throws IOException {
 
-    raf.seek(fileOffset);
-
-    DataBlock data = compressed
-        ? readCompressed(sb, raf, dataSize, expectedSize)
-        : readUncompressed(sb, raf, dataSize, expectedSize);
-
-    return data;
-  }
-
-  private static DataBlock readUncompressed(
-      SuperBlock sb,
-      RandomAccessFile raf,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
-    byte[] data = new byte[dataSize];
-    raf.readFully(data);
-    return new DataBlock(data, expectedSize, data.length);
+    byte[] buf = new byte[dataSize];
+    in.readFully(fileOffset, buf);
+    return buf;
   }
 
-  private static DataBlock readCompressed(
+  // turns the bytes of a block as stored in the image into a block
+  static DataBlock decode(
       SuperBlock sb,
-      RandomAccessFile raf, int dataSize,
+      boolean compressed,
+      byte[] raw,
       int expectedSize) throws IOException, SquashFsException {
-    switch (sb.getCompressionId()) {
-    case NONE:
-      throw new SquashFsException(
-          "Archive claims no compression, but found compressed data");
-    case ZLIB:
-      return readCompressedZlib(sb, raf, dataSize, expectedSize);
-    default:
-      throw new UnsupportedOperationException(
-          String.format("Reading compressed data of type %s not yet supported",
-              sb.getCompressionId()));
-    }
-  }
 
-  private static DataBlock readCompressedZlib(
-      SuperBlock sb,
-      RandomAccessFile raf,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
-    // see if there are compression flags
-    if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-      throw new UnsupportedOperationException(
-          "Reading ZLIB compressed data with non-standard options not yet supported");
+    if (!compressed) {
+      return new DataBlock(raw, expectedSize, raw.length);
     }
 
-    byte[] buf = new byte[dataSize];
-    raf.readFully(buf);
-    byte[] data;
-
-    byte[] xfer = new byte[4096];
-    try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-      try (InflaterInputStream iis =
-          new InflaterInputStream(bis, new Inflater(), 4096)) {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(4096)) {
-          int c = 0;
-          while ((c = iis.read(xfer, 0, 4096)) >= 0) {
-            if (c > 0) {
-              bos.write(xfer, 0, c);
-            }
-          }
-          data = bos.toByteArray();
-          if (data.length > sb.getBlockSize()) {
-            throw new SquashFsException(String.format(
-                "Corrupt metadata block: Got size %d (max = %d)", data.length,
-                sb.getBlockSize()));
-          }
-        }
-      }
-    }
+    // codecs which need the compressor options take them from the superblock
+    Decompressor decompressor = sb.getDecompressor();
+    byte[] data = decompressor.decompress(
+        raw, 0, raw.length, expectedSize, sb.getBlockSize());
 
     return new DataBlock(data, expectedSize, data.length);
   }
@@ -15,32 +15,174 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.hadoop.squashfs.data;
 
-import java.io.ByteArrayOutputStream;
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
+import org.apache.hadoop.squashfs.util.Futures;
+import org.apache.hadoop.squashfs.util.StageStats;
+
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
-public class DataBlockWriter {
+public class DataBlockWriter implements Closeable {
+
+  public static final int DEFAULT_MAX_PENDING = 64;
 
   private final RandomAccessFile raf;
   private final int blockSize;
+  private final ExecutorService executor;
+  private final int maxPending;
+  private final Compressor compressor;
+  private final Deque<PendingBlock> pending = new ArrayDeque<>();
+  private final DataBlockIndex index;
+  private final LongAdder deduplicatedBlocks = new LongAdder();
+  private final LongAdder copiedBlocks = new LongAdder();
+  private final StageStats compressStats = new StageStats("compress");
+  private final StageStats writeStats = new StageStats("write");
+  private final LongAdder stalledNanos = new LongAdder();
+
+  // non-empty blocks handed to the writer so far; they land on disk back
+  // to back in this order
+  private long sequence = 0L;
+
+  // with a writer thread, blocks are handed over in order through a
+  // bounded queue instead of being written by the submitting thread;
+  // index locations are still only touched by the submitting thread
+  private final BlockingQueue<PendingBlock> queue;
+  private final Deque<PendingBlock> unindexed = new ArrayDeque<>();
+  private final Object fileLock = new Object();
+  private Thread writerThread = null;
+  private int unwritten = 0;
+  private IOException failure = null;
 
   public DataBlockWriter(RandomAccessFile raf, int blockSize) {
+    this(raf, blockSize, null, DEFAULT_MAX_PENDING);
+  }
+
+  public DataBlockWriter(RandomAccessFile raf, int blockSize,
+      ExecutorService executor, int maxPending) {
+    this(raf, blockSize, ZlibCompressor.forLevel(Deflater.BEST_COMPRESSION),
+        executor, maxPending);
+  }
+
+  public DataBlockWriter(RandomAccessFile raf, int blockSize,
+      Compressor compressor, ExecutorService executor, int maxPending) {
+    this(raf, blockSize, compressor, executor, maxPending, false);
+  }
+
+  public DataBlockWriter(RandomAccessFile raf, int blockSize,
+      Compressor compressor, ExecutorService executor, int maxPending,
+      boolean deduplicate) {
+    this(raf, blockSize, compressor, executor, maxPending, deduplicate,
+        false);
+  }
+
+  public DataBlockWriter(RandomAccessFile raf, int blockSize,
+      Compressor compressor, ExecutorService executor, int maxPending,
+      boolean deduplicate, boolean writerThread) {
+    if (maxPending < 1) {
+      throw new IllegalArgumentException(
+          String.format("Invalid max pending block count %d (min 1)",
+              maxPending));
+    }
     this.raf = raf;
     this.blockSize = blockSize;
+    this.compressor = compressor;
+    this.executor = executor;
+    this.maxPending = maxPending;
+    this.index = deduplicate ? new DataBlockIndex() : null;
+    // only parallel writers queue blocks for later
+    this.queue = (writerThread && executor != null)
+        ? new ArrayBlockingQueue<>(maxPending)
+        : null;
+  }
+
+  public boolean isParallel() {
+    return executor != null;
+  }
+
+  public boolean hasWriterThread() {
+    return queue != null;
+  }
+
+  public int getPendingCount() {
+    if (queue != null) {
+      synchronized (this) {
+        return unwritten;
+      }
+    }
+    return pending.size();
+  }
+
+  public boolean isDeduplicating() {
+    return index != null;
+  }
+
+  // blocks which were referenced from an earlier file instead of written
+  public long getDeduplicatedBlockCount() {
+    return deduplicatedBlocks.sum();
+  }
+
+  // matched blocks which had to be rewritten because their run broke
+  public long getCopiedBlockCount() {
+    return copiedBlocks.sum();
+  }
+
+  // time spent compressing blocks, summed over all pool threads
+  public StageStats getCompressStats() {
+    return compressStats;
+  }
+
+  // time spent writing blocks (busy) and waiting for their compression
+  // to finish (waiting)
+  public StageStats getWriteStats() {
+    return writeStats;
+  }
+
+  // time submitting threads were blocked because too many blocks were
+  // still pending
+  public long getStalledNanos() {
+    return stalledNanos.sum();
+  }
+
+  int getBlockSize() {
+    return blockSize;
+  }
+
+  DataBlockIndex getIndex() {
+    return index;
+  }
+
+  public FileBlockWriter newFile() {
+    return newFile(true);
+  }
+
+  // without sharing, a matched run is only dropped when the whole file
+  // turns out to be a duplicate; otherwise it is copied
+  public FileBlockWriter newFile(boolean shareBlocks) {
+    return new FileBlockWriter(this, shareBlocks);
   }
 
   public DataBlockRef write(
       byte[] data, int offset, int length) throws IOException {
-    if (length != blockSize) {
-      throw new IllegalArgumentException(
-          String.format("Invalid block length %d (expected %d)",
-              length, blockSize));
-    }
+    checkLength(length);
+
+    // earlier submissions must land on disk first
+    flush();
 
     long fileOffset = raf.getFilePointer();
 
@@ -48,7 +190,311 @@ public class DataBlockWriter {
       return new DataBlockRef(fileOffset, length, 0, false, true);
     }
 
+    sequence++;
     byte[] compressed = compress(data, offset, length);
+    return writeBlock(fileOffset, data, offset, length, compressed);
+  }
+
+  public Future<DataBlockRef> submit(
+      byte[] data, int offset, int length) throws IOException {
+    if (executor == null) {
+      return CompletableFuture.completedFuture(write(data, offset, length));
+    }
+    checkLength(length);
+
+    PendingBlock block;
+    if (isSparse(data, offset, length)) {
+      block = new PendingBlock(null, length, null);
+    } else {
+      byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+      block = new PendingBlock(copy, length,
+          executor.submit(() -> compress(copy, 0, length)));
+    }
+
+    // write out whatever has completed, blocking only if too far behind
+    enqueue(block, maxPending);
+    return block.result;
+  }
+
+  // queues an already-copied block behind any pending data blocks, so
+  // fragments land in the same position they would if written serially
+  Future<DataBlockRef> submit(byte[] data, Callable<byte[]> compressor)
+      throws IOException {
+    PendingBlock block = new PendingBlock(data, data.length,
+        executor.submit(() -> {
+          long start = System.nanoTime();
+          try {
+            return compressor.call();
+          } finally {
+            compressStats.busy(System.nanoTime() - start);
+          }
+        }));
+    enqueue(block, maxPending);
+    return block.result;
+  }
+
+  // submits a non-sparse block and records its location in the index
+  // once written
+  Future<DataBlockRef> submitIndexed(byte[] data, int offset, int length,
+      byte[] digest) throws IOException {
+    int record = index.add(digest, sequence);
+    if (executor == null) {
+      sequence++;
+      flush();
+      long fileOffset = raf.getFilePointer();
+      DataBlockRef ref = writeBlock(fileOffset, data, offset, length,
+          compress(data, offset, length));
+      index.setLocation(record, ref.getLocation(), ref.getInodeSize());
+      return CompletableFuture.completedFuture(ref);
+    }
+
+    byte[] copy = Arrays.copyOfRange(data, offset, offset + length);
+    PendingBlock block = new PendingBlock(copy, length,
+        executor.submit(() -> compress(copy, 0, length)));
+    block.record = record;
+    enqueue(block, maxPending);
+    return block.result;
+  }
+
+  Future<DataBlockRef> submitSparse(int length) throws IOException {
+    PendingBlock block = new PendingBlock(null, length, null);
+    enqueue(block, executor == null ? 0 : maxPending);
+    return block.result;
+  }
+
+  // rewrites a block exactly as it was stored by an earlier file
+  Future<DataBlockRef> submitCopy(int record, int length) throws IOException {
+    byte[] stored = readStored(record);
+    copiedBlocks.increment();
+    PendingBlock block = new PendingBlock(stored, length,
+        CompletableFuture.completedFuture(
+            index.isCompressed(record) ? stored : null));
+    enqueue(block, executor == null ? 0 : maxPending);
+    return block.result;
+  }
+
+  // the location of an indexed block, available once it has been written
+  CompletableFuture<DataBlockRef> locate(int record) throws IOException {
+    if (!index.isWritten(record)) {
+      for (PendingBlock block : (queue == null) ? pending : unindexed) {
+        if (block.record == record) {
+          return block.result;
+        }
+      }
+      flush();
+    }
+    return CompletableFuture.completedFuture(new DataBlockRef(
+        index.getLocation(record), blockSize, index.getPhysicalSize(record),
+        index.isCompressed(record), false));
+  }
+
+  void deduplicated(int count) {
+    deduplicatedBlocks.add(count);
+  }
+
+  private byte[] readStored(int record) throws IOException {
+    if (!index.isWritten(record)) {
+      flush();
+    }
+    byte[] stored = new byte[index.getPhysicalSize(record)];
+    synchronized (fileLock) {
+      long end = raf.getFilePointer();
+      raf.seek(index.getLocation(record));
+      raf.readFully(stored);
+      raf.seek(end);
+    }
+    return stored;
+  }
+
+  public void flush() throws IOException {
+    if (queue == null) {
+      drain(0);
+      return;
+    }
+
+    long start = System.nanoTime();
+    try {
+      synchronized (this) {
+        while (unwritten > 0) {
+          wait();
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for writer");
+    } finally {
+      stalledNanos.add(System.nanoTime() - start);
+    }
+    applyLocations();
+    checkFailure();
+  }
+
+  // stops the writer thread; blocks not yet flushed are dropped
+  @Override
+  public void close() throws IOException {
+    Thread thread;
+    synchronized (this) {
+      thread = writerThread;
+      writerThread = null;
+    }
+    if (thread == null) {
+      return;
+    }
+    thread.interrupt();
+    try {
+      thread.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted stopping writer");
+    }
+  }
+
+  private void enqueue(PendingBlock block, int limit) throws IOException {
+    if (block.data != null) {
+      sequence++;
+    }
+    if (queue == null) {
+      pending.add(block);
+      drain(limit);
+      return;
+    }
+
+    checkFailure();
+    startWriterThread();
+    if (block.record >= 0) {
+      unindexed.add(block);
+    }
+    synchronized (this) {
+      unwritten++;
+    }
+    long start = System.nanoTime();
+    try {
+      queue.put(block);
+    } catch (InterruptedException e) {
+      synchronized (this) {
+        unwritten--;
+        notifyAll();
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for writer");
+    } finally {
+      stalledNanos.add(System.nanoTime() - start);
+    }
+    applyLocations();
+  }
+
+  private synchronized void startWriterThread() {
+    if (writerThread == null) {
+      writerThread = new Thread(this::writeQueued, "squashfs-data-writer");
+      writerThread.setDaemon(true);
+      writerThread.start();
+    }
+  }
+
+  private synchronized void checkFailure() throws IOException {
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  // records the locations of indexed blocks the writer thread has
+  // finished with, in submission order
+  private void applyLocations() {
+    while (!unindexed.isEmpty() && unindexed.peek().result.isDone()) {
+      PendingBlock block = unindexed.poll();
+      if (!block.result.isCompletedExceptionally()) {
+        DataBlockRef ref = block.result.join();
+        index.setLocation(block.record, ref.getLocation(),
+            ref.getInodeSize());
+      }
+    }
+  }
+
+  private void writeQueued() {
+    while (true) {
+      PendingBlock block;
+      long start = System.nanoTime();
+      try {
+        block = queue.take();
+      } catch (InterruptedException e) {
+        return;
+      } finally {
+        writeStats.waited(System.nanoTime() - start);
+      }
+
+      try {
+        IOException earlier;
+        synchronized (this) {
+          earlier = failure;
+        }
+        if (earlier != null) {
+          // keep draining so submitters are never left blocked
+          block.result.completeExceptionally(earlier);
+        } else {
+          block.result.complete(writePending(block));
+        }
+      } catch (IOException | RuntimeException e) {
+        synchronized (this) {
+          if (failure == null) {
+            failure = (e instanceof IOException)
+                ? (IOException) e
+                : new IOException(e);
+          }
+        }
+        block.result.completeExceptionally(e);
+      } finally {
+        synchronized (this) {
+          unwritten--;
+          notifyAll();
+        }
+      }
+    }
+  }
+
+  private void drain(int limit) throws IOException {
+    while (!pending.isEmpty()) {
+      PendingBlock block = pending.peek();
+      if (pending.size() <= limit && !block.isReady()) {
+        return;
+      }
+      pending.poll();
+
+      long start = System.nanoTime();
+      DataBlockRef ref = writePending(block);
+      if (block.data != null) {
+        stalledNanos.add(System.nanoTime() - start);
+      }
+      if (block.record >= 0) {
+        index.setLocation(block.record, ref.getLocation(),
+            ref.getInodeSize());
+      }
+      block.result.complete(ref);
+    }
+  }
+
+  private DataBlockRef writePending(PendingBlock block) throws IOException {
+    if (block.data == null) {
+      synchronized (fileLock) {
+        return new DataBlockRef(raf.getFilePointer(), block.length, 0, false,
+            true);
+      }
+    }
+
+    long start = System.nanoTime();
+    byte[] compressed = Futures.await(block.compressed);
+    writeStats.waited(System.nanoTime() - start);
+
+    synchronized (fileLock) {
+      start = System.nanoTime();
+      DataBlockRef ref = writeBlock(raf.getFilePointer(), block.data, 0,
+          block.length, compressed);
+      writeStats.busy(System.nanoTime() - start);
+      return ref;
+    }
+  }
+
+  private DataBlockRef writeBlock(long fileOffset, byte[] data, int offset,
+      int length, byte[] compressed) throws IOException {
     if (compressed != null) {
       raf.write(compressed);
       return new DataBlockRef(fileOffset, length, compressed.length, true,
@@ -59,6 +505,14 @@ public class DataBlockWriter {
     return new DataBlockRef(fileOffset, length, length, false, false);
   }
 
+  private void checkLength(int length) {
+    if (length != blockSize) {
+      throw new IllegalArgumentException(
+          String.format("Invalid block length %d (expected %d)",
+              length, blockSize));
+    }
+  }
+
   private boolean isSparse(byte[] data, int offset, int length) {
     int end = offset + length;
     for (int i = offset; i < end; i++) {
@@ -71,19 +525,30 @@ public class DataBlockWriter {
 
   private byte[] compress(
       byte[] data, int offset, int length) throws IOException {
-    Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
-    try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-      try (DeflaterOutputStream dos = new DeflaterOutputStream(
-          bos, def, 4096)) {
-        dos.write(data, offset, length);
-      }
-      byte[] result = bos.toByteArray();
-      if (result.length > blockSize) {
-        return null;
-      }
-      return result;
+    long start = System.nanoTime();
+    try {
+      return compressor.compress(data, offset, length, blockSize);
     } finally {
-      def.end();
+      compressStats.busy(System.nanoTime() - start);
+    }
+  }
+
+  private static class PendingBlock {
+    private final byte[] data;
+    private final int length;
+    private final Future<byte[]> compressed;
+    private final CompletableFuture<DataBlockRef> result =
+        new CompletableFuture<>();
+    private int record = -1;
+
+    PendingBlock(byte[] data, int length, Future<byte[]> compressed) {
+      this.data = data;
+      this.length = length;
+      this.compressed = compressed;
+    }
+
+    boolean isReady() {
+      return compressed == null || compressed.isDone();
     }
   }
 
@@ -0,0 +1,209 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.data;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+// Collects the full data blocks of a single file. When the data writer
+// deduplicates, a file whose blocks all match a contiguous run of blocks
+// already on disk is pointed at that run instead of being written again.
+// An inode can only describe one contiguous run, so matches are tentative
+// until the file either diverges (matched blocks are then copied forward)
+// or finishes with a run that is contiguous on disk.
+public class FileBlockWriter {
+
+  private static final int SPARSE = -1;
+
+  private final DataBlockWriter writer;
+  private final DataBlockIndex index;
+  private final MessageDigest digest;
+  private final boolean shareBlocks;
+  private final List<Future<DataBlockRef>> blocks = new ArrayList<>();
+
+  private boolean matching;
+  private int[] run = new int[16];
+  private int runLength = 0;
+  private int lastRecord = -1;
+
+  FileBlockWriter(DataBlockWriter writer, boolean shareBlocks) {
+    this.writer = writer;
+    this.shareBlocks = shareBlocks;
+    this.index = writer.getIndex();
+    this.matching = index != null;
+    this.digest = matching ? FileContentIndex.newDigest() : null;
+  }
+
+  public void write(byte[] data, int offset, int length) throws IOException {
+    write(data, offset, length, null);
+  }
+
+  // hash, if already known, is the SHA-256 digest of the block
+  public void write(byte[] data, int offset, int length, byte[] hash)
+      throws IOException {
+    if (index == null) {
+      blocks.add(writer.submit(data, offset, length));
+      return;
+    }
+
+    if (isSparse(data, offset, length)) {
+      if (matching) {
+        append(SPARSE);
+      } else {
+        blocks.add(writer.submitSparse(length));
+      }
+      return;
+    }
+
+    if (hash == null) {
+      digest.update(data, offset, length);
+      hash = digest.digest();
+    }
+
+    if (matching) {
+      int record = (lastRecord < 0)
+          ? index.find(hash)
+          : (index.matches(lastRecord + 1, hash) ? lastRecord + 1 : -1);
+      if (record >= 0) {
+        append(record);
+        lastRecord = record;
+        return;
+      }
+      copyRun();
+    }
+
+    blocks.add(writer.submitIndexed(data, offset, length, hash));
+  }
+
+  public List<Future<DataBlockRef>> finish() throws IOException {
+    if (matching && runLength > 0) {
+      if (shareBlocks && lastRecord >= 0 && isContiguous()) {
+        referenceRun();
+      } else {
+        copyRun();
+      }
+    }
+    matching = false;
+    return blocks;
+  }
+
+  // drops the file if none of its blocks have been written yet, as when
+  // its whole content turns out to be a duplicate
+  public boolean discard() {
+    if (index == null || !matching || !blocks.isEmpty()) {
+      return false;
+    }
+    runLength = 0;
+    lastRecord = -1;
+    matching = false;
+    return true;
+  }
+
+  private void append(int record) {
+    if (runLength == run.length) {
+      run = Arrays.copyOf(run, runLength * 2);
+    }
+    run[runLength++] = record;
+  }
+
+  // checked against the write order rather than the locations, so blocks
+  // still in flight need not be waited for
+  private boolean isContiguous() {
+    int previous = -1;
+    for (int i = 0; i < runLength; i++) {
+      int record = run[i];
+      if (record == SPARSE) {
+        continue;
+      }
+      if (previous >= 0 && !follows(previous, record)) {
+        return false;
+      }
+      previous = record;
+    }
+    return true;
+  }
+
+  private boolean follows(int previous, int record) {
+    if (index.isWritten(previous) && index.isWritten(record)) {
+      return index.getLocation(record) ==
+          index.getLocation(previous) + index.getPhysicalSize(previous);
+    }
+    return index.getSequence(record) == index.getSequence(previous) + 1L;
+  }
+
+  private void referenceRun() throws IOException {
+    int blockSize = writer.getBlockSize();
+    CompletableFuture<DataBlockRef> first = null;
+    for (int i = 0; first == null; i++) {
+      if (run[i] != SPARSE) {
+        first = writer.locate(run[i]);
+      }
+    }
+
+    // a sparse block sits where the next block starts, as when written
+    CompletableFuture<DataBlockRef> previous = null;
+    int matched = 0;
+    for (int i = 0; i < runLength; i++) {
+      int record = run[i];
+      if (record != SPARSE) {
+        previous = writer.locate(record);
+        blocks.add(previous);
+        matched++;
+      } else if (previous == null) {
+        blocks.add(first.thenApply(ref -> new DataBlockRef(
+            ref.getLocation(), blockSize, 0, false, true)));
+      } else {
+        blocks.add(previous.thenApply(ref -> new DataBlockRef(
+            ref.getLocation() + ref.getPhysicalSize(), blockSize, 0, false,
+            true)));
+      }
+    }
+    writer.deduplicated(matched);
+    runLength = 0;
+  }
+
+  private void copyRun() throws IOException {
+    int blockSize = writer.getBlockSize();
+    for (int i = 0; i < runLength; i++) {
+      int record = run[i];
+      if (record == SPARSE) {
+        blocks.add(writer.submitSparse(blockSize));
+      } else {
+        blocks.add(writer.submitCopy(record, blockSize));
+      }
+    }
+    runLength = 0;
+    matching = false;
+  }
+
+  private static boolean isSparse(byte[] data, int offset, int length) {
+    int end = offset + length;
+    for (int i = offset; i < end; i++) {
+      if (data[i] != 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+}
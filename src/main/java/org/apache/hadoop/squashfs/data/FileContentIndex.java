@@ -0,0 +1,109 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.data;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+// Remembers where the content of each written file ended up, so
+// byte-identical files can share blocks and fragment without being written
+// again. Files are keyed by a digest over the digests of their blocks and
+// tail, which block and fragment deduplication reuse, so content is only
+// hashed once.
+public class FileContentIndex {
+
+  private final Map<ContentKey, Entry> entries = new HashMap<>();
+  private final MessageDigest digest = newDigest();
+  private final MessageDigest keyDigest = newDigest();
+  private long duplicateFiles = 0L;
+  private long duplicateBytes = 0L;
+
+  // shared digest, only valid until the next call
+  public MessageDigest digest() {
+    digest.reset();
+    return digest;
+  }
+
+  // shared digest for the file key, fed with block and tail digests
+  public MessageDigest keyDigest() {
+    keyDigest.reset();
+    return keyDigest;
+  }
+
+  public Entry find(byte[] hash, long size) {
+    return entries.get(new ContentKey(hash, size));
+  }
+
+  // counts a file whose stored content was actually shared
+  public void countDuplicate(long size) {
+    duplicateFiles++;
+    duplicateBytes += size;
+  }
+
+  public void add(byte[] hash, long size, List<Future<DataBlockRef>> dataBlocks,
+      FragmentRef fragment) {
+    entries.putIfAbsent(new ContentKey(hash, size), new Entry(dataBlocks, fragment));
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public long getDuplicateFileCount() {
+    return duplicateFiles;
+  }
+
+  public long getDuplicateBytes() {
+    return duplicateBytes;
+  }
+
+  static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 not available", e);
+    }
+  }
+
+  public static class Entry {
+    private final List<Future<DataBlockRef>> dataBlocks;
+    private final FragmentRef fragment;
+
+    Entry(List<Future<DataBlockRef>> dataBlocks, FragmentRef fragment) {
+      this.dataBlocks = dataBlocks == null
+          ? Collections.emptyList()
+          : new ArrayList<>(dataBlocks);
+      this.fragment = fragment;
+    }
+
+    public List<Future<DataBlockRef>> getDataBlocks() {
+      return dataBlocks;
+    }
+
+    public FragmentRef getFragment() {
+      return fragment;
+    }
+  }
+
+}
@@ -0,0 +1,138 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.data;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Decides which tail-ends share a fragment block. Buffered tails are
+// packed in order of their packing key, keeping arrival order among equal
+// keys, so files read together can be served from one fragment.
+public interface FragmentPackingStrategy {
+
+  String ARRIVAL = "arrival";
+  String DIRECTORY = "directory";
+  String EXTENSION = "extension";
+
+  // pack tails as they arrive, without buffering
+  FragmentPackingStrategy ARRIVAL_ORDER = new FragmentPackingStrategy() {
+    @Override
+    public boolean isBuffered() {
+      return false;
+    }
+
+    @Override
+    public String packingKey(String path) {
+      return "";
+    }
+
+    @Override
+    public String toString() {
+      return ARRIVAL;
+    }
+  };
+
+  // group tails of the same directory, for listings followed by reads
+  FragmentPackingStrategy BY_DIRECTORY = new FragmentPackingStrategy() {
+    @Override
+    public String packingKey(String path) {
+      return parent(path);
+    }
+
+    @Override
+    public String toString() {
+      return DIRECTORY;
+    }
+  };
+
+  // group similar content for better compression, then by directory
+  FragmentPackingStrategy BY_EXTENSION = new FragmentPackingStrategy() {
+    @Override
+    public String packingKey(String path) {
+      return extension(path) + "\0" + parent(path);
+    }
+
+    @Override
+    public String toString() {
+      return EXTENSION;
+    }
+  };
+
+  default boolean isBuffered() {
+    return true;
+  }
+
+  String packingKey(String path);
+
+  // packs tails in the order files are expected to be read; files not in
+  // the hint follow, grouped by directory
+  static FragmentPackingStrategy accessOrder(List<String> paths) {
+    Map<String, Integer> ranks = new HashMap<>();
+    for (String path : paths) {
+      ranks.putIfAbsent(path, ranks.size());
+    }
+    return new FragmentPackingStrategy() {
+      @Override
+      public String packingKey(String path) {
+        Integer rank = path == null ? null : ranks.get(path);
+        if (rank == null) {
+          return "~" + parent(path);
+        }
+        return String.format("%010d", rank);
+      }
+
+      @Override
+      public String toString() {
+        return String.format("access-order (%d paths)", ranks.size());
+      }
+    };
+  }
+
+  static FragmentPackingStrategy forName(String name) {
+    switch (name) {
+    case ARRIVAL:
+      return ARRIVAL_ORDER;
+    case DIRECTORY:
+      return BY_DIRECTORY;
+    case EXTENSION:
+      return BY_EXTENSION;
+    default:
+      throw new IllegalArgumentException(
+          String.format("Unknown fragment packing strategy '%s'", name));
+    }
+  }
+
+  static String parent(String path) {
+    if (path == null) {
+      return "";
+    }
+    int slash = path.lastIndexOf('/');
+    return slash <= 0 ? "/" : path.substring(0, slash);
+  }
+
+  static String extension(String path) {
+    if (path == null) {
+      return "";
+    }
+    int slash = path.lastIndexOf('/');
+    int dot = path.lastIndexOf('.');
+    return (dot <= slash + 1) ? "" : path.substring(dot + 1);
+  }
+
+}
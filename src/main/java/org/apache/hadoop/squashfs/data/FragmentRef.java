@@ -21,12 +21,22 @@ package org.apache.hadoop.squashfs.data;
 public class FragmentRef {
 
   private int fragmentIndex = -1;
-  private final int offset;
+  private int offset;
 
   public FragmentRef(int offset) {
     this.offset = offset;
   }
 
+  public FragmentRef(int fragmentIndex, int offset) {
+    this.fragmentIndex = fragmentIndex;
+    this.offset = offset;
+  }
+
+  // for buffered tails, placed once packed
+  FragmentRef() {
+    this(-1);
+  }
+
   public int getFragmentIndex() {
     return fragmentIndex;
   }
@@ -39,6 +49,10 @@ public class FragmentRef {
     return fragmentIndex >= 0;
   }
 
+  void place(int offset) {
+    this.offset = offset;
+  }
+
   void commit(int fragmentIndex) {
     this.fragmentIndex = fragmentIndex;
   }
@@ -18,59 +18,207 @@
 
 package org.apache.hadoop.squashfs.data;
 
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
 import org.apache.hadoop.squashfs.metadata.MetadataBlockRef;
 import org.apache.hadoop.squashfs.metadata.MetadataWriter;
 import org.apache.hadoop.squashfs.table.FragmentTable;
 import org.apache.hadoop.squashfs.table.FragmentTableEntry;
+import org.apache.hadoop.squashfs.util.Futures;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
 public class FragmentWriter {
 
+  public static final long DEFAULT_MAX_BUFFERED_BYTES = 64L * 1024L * 1024L;
+
   private final RandomAccessFile raf;
   private final int blockSize;
+  private final DataBlockWriter dataWriter;
+  private final Compressor compressor;
   private final byte[] currentBlock;
   private final List<FragmentRef> currentFragments = new ArrayList<>();
   private int currentOffset = 0;
   private final List<FragmentTableEntry> fragmentEntries = new ArrayList<>();
+  private final List<Future<DataBlockRef>> pendingEntries = new ArrayList<>();
+  private final Map<ContentKey, FragmentRef> tails;
+  private final MessageDigest digest;
+  private long deduplicatedFragments = 0L;
+  private long deduplicatedBytes = 0L;
+  private final FragmentPackingStrategy packing;
+  private final long maxBufferedBytes;
+  private final List<BufferedTail> buffered = new ArrayList<>();
+  private long bufferedBytes = 0L;
 
   public FragmentWriter(RandomAccessFile raf, int blockSize) {
+    this(raf, blockSize, null);
+  }
+
+  public FragmentWriter(RandomAccessFile raf, int blockSize,
+      DataBlockWriter dataWriter) {
+    this(raf, blockSize, dataWriter,
+        ZlibCompressor.forLevel(Deflater.BEST_COMPRESSION));
+  }
+
+  public FragmentWriter(RandomAccessFile raf, int blockSize,
+      DataBlockWriter dataWriter, Compressor compressor) {
+    this(raf, blockSize, dataWriter, compressor, false);
+  }
+
+  public FragmentWriter(RandomAccessFile raf, int blockSize,
+      DataBlockWriter dataWriter, Compressor compressor, boolean deduplicate) {
+    this(raf, blockSize, dataWriter, compressor, deduplicate,
+        FragmentPackingStrategy.ARRIVAL_ORDER, DEFAULT_MAX_BUFFERED_BYTES);
+  }
+
+  public FragmentWriter(RandomAccessFile raf, int blockSize,
+      DataBlockWriter dataWriter, Compressor compressor, boolean deduplicate,
+      FragmentPackingStrategy packing, long maxBufferedBytes) {
+    if (maxBufferedBytes < blockSize) {
+      throw new IllegalArgumentException(
+          String.format("Invalid max buffered bytes %d (min %d)",
+              maxBufferedBytes, blockSize));
+    }
     this.raf = raf;
     this.blockSize = blockSize;
+    this.dataWriter = dataWriter;
+    this.compressor = compressor;
     this.currentBlock = new byte[blockSize];
+    this.tails = deduplicate ? new HashMap<>() : null;
+    this.digest = deduplicate ? FileContentIndex.newDigest() : null;
+    this.packing = packing;
+    this.maxBufferedBytes = maxBufferedBytes;
+  }
+
+  public FragmentPackingStrategy getPackingStrategy() {
+    return packing;
   }
 
   public FragmentRef write(
       byte[] data, int offset, int length) throws IOException {
+    return write(data, offset, length, null);
+  }
+
+  public FragmentRef write(byte[] data, int offset, int length, String path)
+      throws IOException {
+    return write(data, offset, length, path, null);
+  }
+
+  // hash, if already known, is the SHA-256 digest of the tail
+  public FragmentRef write(byte[] data, int offset, int length, String path,
+      byte[] hash) throws IOException {
     if (length > blockSize || length <= 0) {
       throw new IllegalArgumentException(
           String.format("Invalid fragment length %d (min 1, max %d)",
               length, blockSize));
     }
 
+    ContentKey key = null;
+    if (tails != null) {
+      // the ref may still be uncommitted; it is shared, so it will be
+      // committed along with the original
+      if (hash == null) {
+        digest.update(data, offset, length);
+        hash = digest.digest();
+      }
+      key = new ContentKey(hash, length);
+      FragmentRef existing = tails.get(key);
+      if (existing != null) {
+        deduplicatedFragments++;
+        deduplicatedBytes += length;
+        return existing;
+      }
+    }
+
+    FragmentRef frag;
+    if (packing.isBuffered()) {
+      frag = new FragmentRef();
+      buffered.add(new BufferedTail(packing.packingKey(path),
+          Arrays.copyOfRange(data, offset, offset + length), frag));
+      bufferedBytes += length;
+    } else {
+      frag = append(data, offset, length);
+    }
+
+    if (key != null) {
+      tails.put(key, frag);
+    }
+    if (bufferedBytes >= maxBufferedBytes) {
+      pack();
+    }
+    return frag;
+  }
+
+  private FragmentRef append(byte[] data, int offset, int length)
+      throws IOException {
+    FragmentRef frag = new FragmentRef(currentOffset);
+    place(frag, data, offset, length);
+    return frag;
+  }
+
+  private void place(FragmentRef frag, byte[] data, int offset, int length)
+      throws IOException {
     if (currentOffset + length > currentBlock.length) {
-      flush();
+      writeCurrentBlock();
     }
 
     System.arraycopy(data, offset, currentBlock, currentOffset, length);
 
-    FragmentRef frag = new FragmentRef(currentOffset);
+    frag.place(currentOffset);
     currentFragments.add(frag);
     currentOffset += length;
-    return frag;
   }
 
-  public List<FragmentTableEntry> getFragmentEntries() {
+  // packs buffered tails in key order; the sort is stable, so arrival
+  // order is kept within a group and output stays deterministic
+  private void pack() throws IOException {
+    if (buffered.isEmpty()) {
+      return;
+    }
+    buffered.sort(Comparator.comparing(t -> t.key));
+    for (BufferedTail tail : buffered) {
+      place(tail.ref, tail.data, 0, tail.data.length);
+    }
+    buffered.clear();
+    bufferedBytes = 0L;
+  }
+
+  // carries over the fragment blocks of an image being appended to; new
+  // fragments are numbered after them
+  public void addExistingEntries(List<FragmentTableEntry> entries) {
+    if (getFragmentEntryCount() > 0 || currentOffset > 0
+        || !buffered.isEmpty()) {
+      throw new IllegalStateException(
+          "Existing fragments must be added before any new ones");
+    }
+    fragmentEntries.addAll(entries);
+  }
+
+  public long getDeduplicatedFragmentCount() {
+    return deduplicatedFragments;
+  }
+
+  public long getDeduplicatedBytes() {
+    return deduplicatedBytes;
+  }
+
+  public List<FragmentTableEntry> getFragmentEntries() throws IOException {
+    resolveEntries();
     return fragmentEntries;
   }
 
   public List<MetadataBlockRef> save(MetadataWriter writer) throws IOException {
+    resolveEntries();
 
     List<MetadataBlockRef> fragmentRefs = new ArrayList<>();
 
@@ -90,25 +238,46 @@ public class FragmentWriter {
   }
 
   public int getFragmentEntryCount() {
-    return fragmentEntries.size();
+    return fragmentEntries.size() + pendingEntries.size();
   }
 
   public int getFragmentTableRefSize() {
-    int entryCount = fragmentEntries.size();
+    int entryCount = getFragmentEntryCount();
     return (entryCount / FragmentTable.ENTRIES_PER_BLOCK) +
         ((entryCount % FragmentTable.ENTRIES_PER_BLOCK == 0) ? 0 : 1);
   }
 
   public void flush() throws IOException {
-    long fileOffset = raf.getFilePointer();
+    pack();
+    writeCurrentBlock();
+  }
 
-    byte[] compressed = null;
-    int size = 0;
+  private void writeCurrentBlock() throws IOException {
     if (currentOffset <= 0) {
       return;
     }
 
-    compressed = compressData();
+    if (dataWriter != null && dataWriter.isParallel()) {
+      // compressed and written in order behind any pending data blocks;
+      // the fragment index is already known, only its location is not
+      byte[] data = Arrays.copyOf(currentBlock, currentOffset);
+      pendingEntries.add(
+          dataWriter.submit(data, () -> compressData(data, data.length)));
+      commitFragments();
+      return;
+    }
+
+    // data blocks still in flight share the file and must be written first
+    if (dataWriter != null) {
+      dataWriter.flush();
+    }
+
+    long fileOffset = raf.getFilePointer();
+
+    byte[] compressed = null;
+    int size = 0;
+
+    compressed = compressData(currentBlock, currentOffset);
     if (compressed == null) {
       raf.write(currentBlock, 0, currentOffset);
       size = currentOffset;
@@ -120,29 +289,44 @@ public class FragmentWriter {
     FragmentTableEntry fragEntry =
         new FragmentTableEntry(fileOffset, size, compressed != null);
     fragmentEntries.add(fragEntry);
+    commitFragments();
+  }
 
+  private void commitFragments() {
     for (FragmentRef frag : currentFragments) {
-      frag.commit(fragmentEntries.size() - 1);
+      frag.commit(getFragmentEntryCount() - 1);
     }
 
     currentFragments.clear();
     currentOffset = 0;
   }
 
-  private byte[] compressData() throws IOException {
-    Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
-    try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-      try (DeflaterOutputStream dos = new DeflaterOutputStream(
-          bos, def, 4096)) {
-        dos.write(currentBlock, 0, currentOffset);
-      }
-      byte[] result = bos.toByteArray();
-      if (result.length > currentOffset) {
-        return null;
-      }
-      return result;
-    } finally {
-      def.end();
+  private void resolveEntries() throws IOException {
+    if (pendingEntries.isEmpty()) {
+      return;
+    }
+    dataWriter.flush();
+    for (Future<DataBlockRef> entry : pendingEntries) {
+      DataBlockRef ref = Futures.await(entry);
+      fragmentEntries.add(new FragmentTableEntry(
+          ref.getLocation(), ref.getPhysicalSize(), ref.isCompressed()));
+    }
+    pendingEntries.clear();
+  }
+
+  private byte[] compressData(byte[] data, int length) throws IOException {
+    return compressor.compress(data, 0, length, length);
+  }
+
+  private static class BufferedTail {
+    private final String key;
+    private final byte[] data;
+    private final FragmentRef ref;
+
+    BufferedTail(String key, byte[] data, FragmentRef ref) {
+      this.key = key;
+      this.data = data;
+      this.ref = ref;
     }
   }
 
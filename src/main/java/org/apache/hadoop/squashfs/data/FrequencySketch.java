@@ -0,0 +1,95 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.data;
+
+// An approximate count of recent accesses per key: a count-min sketch of
+// 4-bit counters, sixteen to a long. Every counter is halved once the
+// sample fills, so the counts favour recent history and old popularity
+// fades. Not thread-safe; callers hold their own lock.
+final class FrequencySketch {
+
+  private static final int[] SEEDS =
+      { 0x97cb3127, 0x2f4b1e5d, 0x7ed55d16, 0x165667b1 };
+  private static final long ONE_MASK = 0x1111111111111111L;
+  private static final long HALF_MASK = 0x7777777777777777L;
+
+  // bounds the table between 512 bytes and 512 KiB
+  static final int MIN_TABLE_SIZE = 1 << 6;
+  static final int MAX_TABLE_SIZE = 1 << 16;
+
+  private final long[] table;
+  private final int mask;
+  private final int sampleSize;
+  private int additions;
+
+  FrequencySketch(long expectedEntries) {
+    long wanted = Math.max(MIN_TABLE_SIZE, Math.min(expectedEntries, MAX_TABLE_SIZE));
+    int size = Integer.highestOneBit((int) wanted - 1) << 1;
+    this.table = new long[size];
+    this.mask = size - 1;
+    this.sampleSize = 10 * size;
+  }
+
+  int frequency(int hash) {
+    int frequency = 15;
+    for (int depth = 0; depth < SEEDS.length; depth++) {
+      int h = mix(hash ^ SEEDS[depth]);
+      int shift = ((h >>> 24) & 15) << 2;
+      frequency = Math.min(frequency, (int) ((table[h & mask] >>> shift) & 15L));
+    }
+    return frequency;
+  }
+
+  void increment(int hash) {
+    boolean added = false;
+    for (int depth = 0; depth < SEEDS.length; depth++) {
+      int h = mix(hash ^ SEEDS[depth]);
+      int index = h & mask;
+      int shift = ((h >>> 24) & 15) << 2;
+      if (((table[index] >>> shift) & 15L) != 15L) {
+        table[index] += 1L << shift;
+        added = true;
+      }
+    }
+    if (added && ++additions >= sampleSize) {
+      halve();
+    }
+  }
+
+  private void halve() {
+    int odd = 0;
+    for (int i = 0; i < table.length; i++) {
+      odd += Long.bitCount(table[i] & ONE_MASK);
+      table[i] = (table[i] >>> 1) & HALF_MASK;
+    }
+    // truncated halves still count a little towards the next sample
+    additions = (additions - (odd >>> 2)) >>> 1;
+  }
+
+  // murmur3 finalizer; keys in one stripe share their low hash bits, so
+  // all bits must take part in the index
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+}
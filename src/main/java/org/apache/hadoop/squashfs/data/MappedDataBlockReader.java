@@ -24,16 +24,11 @@ import org.apache.hadoop.squashfs.inode.FileINode;
 import org.apache.hadoop.squashfs.io.ByteBufferDataInput;
 import org.apache.hadoop.squashfs.io.MappedFile;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
-import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
 import org.apache.hadoop.squashfs.table.FragmentTable;
 import org.apache.hadoop.squashfs.table.FragmentTableEntry;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.IOException;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 public class MappedDataBlockReader {
 
@@ -88,13 +83,10 @@ public class MappedDataBlockReader {
 
     DataBlockCache.Key key =
         new Key(tag, compressed, fileOffset, actualSize, (int) expectedSize);
-    DataBlock block = cache.get(key);
-    if (block == null) {
-      block = readData(sb, mmap, compressed, fileOffset, actualSize,
-          (int) expectedSize);
-      cache.put(key, block);
-    }
-    return block;
+    int size = (int) expectedSize;
+    return cache.getOrLoad(key,
+        () -> readRaw(mmap, fileOffset, actualSize),
+        raw -> DataBlockReader.decode(sb, compressed, raw, size));
   }
 
   public static DataBlock readFragment(
@@ -128,11 +120,9 @@ public class MappedDataBlockReader {
 
     DataBlockCache.Key key =
         new Key(tag, compressed, fileOffset, dataSize, dataSize);
-    DataBlock fragment = cache.get(key);
-    if (fragment == null) {
-      fragment = readData(sb, mmap, compressed, fileOffset, dataSize, dataSize);
-      cache.put(key, fragment);
-    }
+    DataBlock fragment = cache.getOrLoad(key,
+        () -> readRaw(mmap, fileOffset, dataSize),
+        raw -> DataBlockReader.decode(sb, compressed, raw, dataSize));
 
     int offset = inode.getFragmentOffset();
     if (offset + length > fragment.getPhysicalSize()) {
@@ -147,88 +137,15 @@ public class MappedDataBlockReader {
     return new DataBlock(data, data.length, data.length);
   }
 
-  private static DataBlock readData(
-      SuperBlock sb,
+  private static byte[] readRaw(
       MappedFile mmap,
-      boolean compressed,
       long fileOffset,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
+      int dataSize) throws IOException {
 
     DataInput in = new ByteBufferDataInput(mmap.from(fileOffset));
-
-    DataBlock data = compressed
-        ? readCompressed(sb, in, dataSize, expectedSize)
-        : readUncompressed(sb, in, dataSize, expectedSize);
-
-    return data;
-  }
-
-  private static DataBlock readUncompressed(
-      SuperBlock sb,
-      DataInput in,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
-    byte[] data = new byte[dataSize];
-    in.readFully(data);
-    return new DataBlock(data, expectedSize, data.length);
-  }
-
-  private static DataBlock readCompressed(
-      SuperBlock sb,
-      DataInput in,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
-    switch (sb.getCompressionId()) {
-    case NONE:
-      throw new SquashFsException(
-          "Archive claims no compression, but found compressed data");
-    case ZLIB:
-      return readCompressedZlib(sb, in, dataSize, expectedSize);
-    default:
-      throw new UnsupportedOperationException(
-          String.format("Reading compressed data of type %s not yet supported",
-              sb.getCompressionId()));
-    }
-  }
-
-  private static DataBlock readCompressedZlib(
-      SuperBlock sb,
-      DataInput in,
-      int dataSize,
-      int expectedSize) throws IOException, SquashFsException {
-    // see if there are compression flags
-    if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-      throw new UnsupportedOperationException(
-          "Reading ZLIB compressed data with non-standard options not yet supported");
-    }
-
     byte[] buf = new byte[dataSize];
     in.readFully(buf);
-    byte[] data;
-
-    byte[] xfer = new byte[4096];
-    try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-      try (InflaterInputStream iis =
-          new InflaterInputStream(bis, new Inflater(), 4096)) {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(4096)) {
-          int c = 0;
-          while ((c = iis.read(xfer, 0, 4096)) >= 0) {
-            if (c > 0) {
-              bos.write(xfer, 0, c);
-            }
-          }
-          data = bos.toByteArray();
-          if (data.length > sb.getBlockSize()) {
-            throw new SquashFsException(String.format(
-                "Corrupt metadata block: Got size %d (max = %d)", data.length,
-                sb.getBlockSize()));
-          }
-        }
-      }
-    }
-
-    return new DataBlock(data, expectedSize, data.length);
+    return buf;
   }
 
   static long getFileOffset(long blockStart, int blockNum, int[] blockSizes) {
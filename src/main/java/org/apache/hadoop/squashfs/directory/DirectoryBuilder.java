@@ -38,15 +38,25 @@ public class DirectoryBuilder {
       int inodeNumber,
       short offset,
       INodeType type) {
+    add(name.getBytes(StandardCharsets.ISO_8859_1), startBlock, inodeNumber,
+        offset, type);
+  }
+
+  public void add(
+      byte[] nameBytes,
+      int startBlock,
+      int inodeNumber,
+      short offset,
+      INodeType type) {
     dirty = true;
-    byte[] nameBytes = name.getBytes(StandardCharsets.ISO_8859_1);
     if (nameBytes.length < 1) {
       throw new IllegalArgumentException("Filename is empty");
     }
     if (nameBytes.length > ((int) DirectoryEntry.MAX_FILENAME_LENGTH)) {
       throw new IllegalArgumentException(String.format(
           "Filename '%s' too long (%d bytes, max %d)",
-          name, nameBytes.length, DirectoryEntry.MAX_FILENAME_LENGTH));
+          new String(nameBytes, StandardCharsets.ISO_8859_1),
+          nameBytes.length, DirectoryEntry.MAX_FILENAME_LENGTH));
     }
     entries.add(new Entry(
         startBlock, inodeNumber, offset, type.dirValue(), nameBytes));
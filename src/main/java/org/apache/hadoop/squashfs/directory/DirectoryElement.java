@@ -18,6 +18,8 @@
 
 package org.apache.hadoop.squashfs.directory;
 
+import org.apache.hadoop.squashfs.metadata.MetadataWriter;
+
 import java.io.DataOutput;
 import java.io.IOException;
 
@@ -27,4 +29,10 @@ public interface DirectoryElement {
 
   public void writeData(DataOutput out) throws IOException;
 
+  // elements holding locations in another table write them through the
+  // metadata writer, which tracks them until those locations are final
+  public default void writeData(MetadataWriter out) throws IOException {
+    writeData((DataOutput) out);
+  }
+
 }
@@ -19,6 +19,7 @@
 package org.apache.hadoop.squashfs.directory;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.metadata.MetadataWriter;
 
 import java.io.DataInput;
 import java.io.DataOutput;
@@ -77,6 +78,13 @@ public class DirectoryHeader implements DirectoryElement {
     out.writeInt(inodeNumber);
   }
 
+  @Override
+  public void writeData(MetadataWriter out) throws IOException {
+    out.writeInt(count);
+    out.writeBlockLocation(startBlock);
+    out.writeInt(inodeNumber);
+  }
+
   @Override
   public String toString() {
     StringBuilder buf = new StringBuilder();
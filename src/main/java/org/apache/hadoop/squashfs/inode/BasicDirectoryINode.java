@@ -184,7 +184,7 @@ public class BasicDirectoryINode extends AbstractINode
 
   @Override
   protected void writeExtraData(MetadataWriter out) throws IOException {
-    out.writeInt(startBlock);
+    out.writeBlockLocation(startBlock);
     out.writeInt(nlink);
     out.writeShort(fileSize);
     out.writeShort(offset);
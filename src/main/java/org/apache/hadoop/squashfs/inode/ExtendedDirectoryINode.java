@@ -149,7 +149,7 @@ public class ExtendedDirectoryINode extends AbstractINode
   protected void writeExtraData(MetadataWriter out) throws IOException {
     out.writeInt(nlink);
     out.writeInt(fileSize);
-    out.writeInt(startBlock);
+    out.writeBlockLocation(startBlock);
     out.writeInt(parentInodeNumber);
     out.writeShort(indexCount);
     out.writeShort(offset);
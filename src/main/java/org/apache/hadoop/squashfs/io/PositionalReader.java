@@ -0,0 +1,118 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.io;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+// Reads at absolute positions. The channel's own position is never used,
+// so any number of threads may read through one channel at once.
+//
+// Interrupting a thread blocked in a channel read closes the channel for
+// every thread. When the reader knows its path, the other threads reopen
+// the channel and retry; only the interrupted thread sees the failure.
+public class PositionalReader implements Closeable {
+
+  private final Path path;
+  private volatile FileChannel channel;
+  private volatile boolean closed;
+
+  private PositionalReader(Path path, FileChannel channel) {
+    this.path = path;
+    this.channel = channel;
+  }
+
+  public static PositionalReader open(Path path) throws IOException {
+    return new PositionalReader(path,
+        FileChannel.open(path, StandardOpenOption.READ));
+  }
+
+  // the caller owns the channel, so it cannot be reopened
+  public static PositionalReader wrap(FileChannel channel) {
+    return new PositionalReader(null, channel);
+  }
+
+  public long size() throws IOException {
+    while (true) {
+      FileChannel current = channel;
+      try {
+        return current.size();
+      } catch (ClosedChannelException e) {
+        reopen(current, e);
+      }
+    }
+  }
+
+  public void readFully(long position, byte[] b) throws IOException {
+    readFully(position, b, 0, b.length);
+  }
+
+  public void readFully(long position, byte[] b, int off, int len)
+      throws IOException {
+    while (true) {
+      FileChannel current = channel;
+      try {
+        readFully(current, position, b, off, len);
+        return;
+      } catch (ClosedChannelException e) {
+        reopen(current, e);
+      }
+    }
+  }
+
+  private synchronized void reopen(FileChannel failed,
+      ClosedChannelException e) throws ClosedChannelException {
+    if (closed || path == null || Thread.currentThread().isInterrupted()) {
+      throw e;
+    }
+    if (channel == failed) {
+      try {
+        channel = FileChannel.open(path, StandardOpenOption.READ);
+      } catch (IOException reopenFailure) {
+        e.addSuppressed(reopenFailure);
+        throw e;
+      }
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    closed = true;
+    channel.close();
+  }
+
+  private static void readFully(FileChannel channel, long position, byte[] b,
+      int off, int len) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+    while (buffer.hasRemaining()) {
+      int c = channel.read(buffer, position + (buffer.position() - off));
+      if (c < 0) {
+        throw new EOFException(String.format(
+            "Unexpected end of file reading %d bytes at offset %d", len,
+            position));
+      }
+    }
+  }
+
+}
@@ -19,23 +19,30 @@
 package org.apache.hadoop.squashfs.metadata;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.io.ByteBufferDataInput;
+import org.apache.hadoop.squashfs.io.PositionalReader;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 
 public class FileMetadataBlockReader implements MetadataBlockReader {
 
   private final int tag;
-  private final RandomAccessFile raf;
+  private final Closeable file;
+  private final PositionalReader in;
   private final SuperBlock sb;
   private final boolean shouldClose;
 
   public FileMetadataBlockReader(int tag, File file)
       throws IOException, SquashFsException {
     this.tag = tag;
-    this.raf = new RandomAccessFile(file, "r");
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    this.file = raf;
+    this.in = PositionalReader.wrap(raf.getChannel());
     this.sb = SuperBlock.read(raf);
     this.shouldClose = true;
   }
@@ -46,7 +53,20 @@ public class FileMetadataBlockReader implements MetadataBlockReader {
       SuperBlock sb,
       boolean shouldClose) throws SquashFsException, IOException {
     this.tag = tag;
-    this.raf = raf;
+    this.file = raf;
+    this.in = PositionalReader.wrap(raf.getChannel());
+    this.sb = sb;
+    this.shouldClose = shouldClose;
+  }
+
+  public FileMetadataBlockReader(
+      int tag,
+      PositionalReader in,
+      SuperBlock sb,
+      boolean shouldClose) {
+    this.tag = tag;
+    this.file = in;
+    this.in = in;
     this.sb = sb;
     this.shouldClose = shouldClose;
   }
@@ -65,20 +85,23 @@ public class FileMetadataBlockReader implements MetadataBlockReader {
     if (this.tag != tag) {
       throw new IllegalArgumentException(String.format("Invalid tag: %d", tag));
     }
-    long prevOffset = raf.getFilePointer();
-    try {
-      raf.seek(fileOffset);
-      MetadataBlock block = MetadataBlock.read(raf, sb);
-      return block;
-    } finally {
-      raf.seek(prevOffset);
-    }
+    // positional reads leave the file pointer alone, so concurrent readers
+    // do not disturb each other
+    byte[] header = new byte[MetadataBlock.HEADER_SIZE];
+    in.readFully(fileOffset, header);
+    int size = ((header[0] & 0xff) | ((header[1] & 0xff) << 8)) & 0x7fff;
+
+    byte[] buf = new byte[MetadataBlock.HEADER_SIZE + size];
+    System.arraycopy(header, 0, buf, 0, header.length);
+    in.readFully(fileOffset + header.length, buf, header.length, size);
+    return MetadataBlock.read(new ByteBufferDataInput(ByteBuffer.wrap(buf)),
+        sb);
   }
 
   @Override
   public void close() throws IOException {
     if (shouldClose) {
-      raf.close();
+      file.close();
     }
   }
 
@@ -19,17 +19,13 @@
 package org.apache.hadoop.squashfs.metadata;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.compression.Decompressor;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
-import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInput;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 import static org.apache.hadoop.squashfs.util.BinUtils.DumpOptions.BINARY;
 import static org.apache.hadoop.squashfs.util.BinUtils.DumpOptions.DECIMAL;
@@ -111,52 +107,14 @@ public class MetadataBlock {
 
   private int readCompressed(DataInput in, SuperBlock sb)
       throws IOException, SquashFsException {
-    switch (sb.getCompressionId()) {
-    case NONE:
-      throw new SquashFsException(
-          "Archive claims no compression, but found compressed data");
-    case ZLIB:
-      return readCompressedZlib(in, sb);
-    default:
-      throw new UnsupportedOperationException(
-          String.format("Reading compressed data of type %s not yet supported",
-              sb.getCompressionId()));
-    }
-  }
-
-  private int readCompressedZlib(DataInput in, SuperBlock sb)
-      throws IOException, SquashFsException {
-    // see if there are compression flags
-    if (sb.hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)) {
-      throw new UnsupportedOperationException(
-          "Reading ZLIB compressed data with non-standard options not yet supported");
-    }
+    // codecs which need the compressor options take them from the superblock
+    Decompressor decompressor = sb.getDecompressor();
 
     int dataSize = getDataSize();
     byte[] buf = new byte[dataSize];
     in.readFully(buf);
 
-    byte[] xfer = new byte[MAX_SIZE];
-    try (ByteArrayInputStream bis = new ByteArrayInputStream(buf)) {
-      try (
-          InflaterInputStream iis = new InflaterInputStream(bis, new Inflater(),
-              MAX_SIZE)) {
-        try (ByteArrayOutputStream bos = new ByteArrayOutputStream(MAX_SIZE)) {
-          int c = 0;
-          while ((c = iis.read(xfer, 0, MAX_SIZE)) >= 0) {
-            if (c > 0) {
-              bos.write(xfer, 0, c);
-            }
-          }
-          data = bos.toByteArray();
-          if (data.length > MAX_SIZE) {
-            throw new SquashFsException(String.format(
-                "Corrupt metadata block: Got size %d (max = %d)", data.length,
-                MAX_SIZE));
-          }
-        }
-      }
-    }
+    data = decompressor.decompress(buf, 0, dataSize, MAX_SIZE, MAX_SIZE);
 
     return dataSize;
   }
@@ -20,6 +20,7 @@ package org.apache.hadoop.squashfs.metadata;
 
 import org.apache.hadoop.squashfs.SquashFsException;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
+import org.apache.hadoop.squashfs.util.SingleFlight;
 
 import java.io.IOException;
 import java.util.LinkedHashMap;
@@ -37,6 +38,8 @@ public class MetadataBlockCache implements MetadataBlockReader {
   private final LruBlockCache cache;
   private final AtomicLong cacheHits = new AtomicLong(0L);
   private final AtomicLong cacheMisses = new AtomicLong(0L);
+  // concurrent misses on one block share a single read
+  private final SingleFlight<Key, MetadataBlock> loads = new SingleFlight<>();
 
   public MetadataBlockCache(TaggedMetadataBlockReader reader) {
     this(reader, DEFAULT_CACHE_SIZE);
@@ -83,12 +86,24 @@ public class MetadataBlockCache implements MetadataBlockReader {
       cacheHits.incrementAndGet();
     } else {
       cacheMisses.incrementAndGet();
-      block = reader.read(tag, fileOffset);
+      block = loads.load(key, () -> load(key));
+    }
+
+    return block;
+  }
+
+  private MetadataBlock load(Key key) throws IOException {
+    MetadataBlock block;
+    synchronized (this) {
+      // a load may have completed between our miss and taking the flight
+      block = cache.get(key);
+    }
+    if (block == null) {
+      block = reader.read(key.tag, key.fileOffset);
       synchronized (this) {
         cache.put(key, block);
       }
     }
-
     return block;
   }
 
@@ -107,6 +122,16 @@ public class MetadataBlockCache implements MetadataBlockReader {
     return cacheMisses.get();
   }
 
+  // reads run on behalf of callers that missed
+  public long getLoadCount() {
+    return loads.getLoadCount();
+  }
+
+  // misses which waited on a read already in flight
+  public long getCoalescedLoads() {
+    return loads.getCoalescedCount();
+  }
+
   public synchronized int getCacheLoad() {
     return cache.size();
   }
@@ -114,6 +139,7 @@ public class MetadataBlockCache implements MetadataBlockReader {
   public void resetStatistics() {
     cacheHits.set(0L);
     cacheMisses.set(0L);
+    loads.resetStatistics();
   }
 
   public synchronized void clearCache() {
@@ -124,8 +150,9 @@ public class MetadataBlockCache implements MetadataBlockReader {
   @Override
   public String toString() {
     return String.format(
-        "metadata-block-cache { capacity=%d, size=%d, hits=%d, misses=%d }",
-        cacheSize, getCacheLoad(), getCacheHits(), getCacheMisses());
+        "metadata-block-cache { capacity=%d, size=%d, hits=%d, misses=%d, coalesced=%d }",
+        cacheSize, getCacheLoad(), getCacheHits(), getCacheMisses(),
+        getCoalescedLoads());
   }
 
   public static final class Key {
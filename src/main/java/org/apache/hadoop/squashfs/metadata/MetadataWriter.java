@@ -15,39 +15,153 @@
  * See the License for the specific language governing permissions and
  * limitations under the License.
  */
-
 package org.apache.hadoop.squashfs.metadata;
 
-import java.io.ByteArrayOutputStream;
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
+import org.apache.hadoop.squashfs.util.Futures;
+
+import java.io.Closeable;
 import java.io.DataOutput;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
-public class MetadataWriter implements DataOutput {
+public class MetadataWriter implements DataOutput, Closeable {
+
+  // blocks compressing at once when deferred, before any memory limit
+  static final int MAX_PENDING = 64;
 
   private final byte[] xfer = new byte[1];
   private final byte[] currentBlock = new byte[8192];
-  private final List<byte[]> blocks = new ArrayList<>();
+  private final SpillableBlockList blocks;
+  private final ExecutorService executor;
+  private final Compressor compressor;
+  private final SpillableBlockList rawBlocks;
+  private final int maxPending;
+  private final List<Fixup> fixups = new ArrayList<>();
+  private MetadataWriter referenceTarget;
   private long location = 0L;
   private int offset = 0;
 
+  // deferred compression state
+  private boolean compressed = false;
+  private long[] locations;
+  private int resolvedCount;
+  private Future<byte[]>[] pending;
+  private int submittedCount;
+  private int fixupIndex;
+
+  public MetadataWriter() {
+    this(null);
+  }
+
+  public MetadataWriter(ExecutorService executor) {
+    this(ZlibCompressor.forLevel(Deflater.BEST_COMPRESSION), executor);
+  }
+
+  public MetadataWriter(Compressor compressor, ExecutorService executor) {
+    this(compressor, executor, Long.MAX_VALUE, null);
+  }
+
+  // finished blocks beyond maxMemory bytes are spilled to a temporary file
+  // in spillDirectory (or the default temporary directory if null)
+  public MetadataWriter(
+      Compressor compressor,
+      ExecutorService executor,
+      long maxMemory,
+      File spillDirectory) {
+    if (maxMemory <= 0L) {
+      throw new IllegalArgumentException(
+          String.format("Invalid metadata memory limit: %d", maxMemory));
+    }
+    this.compressor = compressor;
+    this.executor = executor;
+
+    // deferred writers hold raw and encoded blocks at the same time
+    long limit = executor == null ? maxMemory : Math.max(1L, maxMemory / 2L);
+    this.blocks = new SpillableBlockList(limit, spillDirectory);
+    this.rawBlocks = new SpillableBlockList(limit, spillDirectory);
+    this.maxPending =
+        (int) Math.max(1L, Math.min(MAX_PENDING, limit / currentBlock.length));
+  }
+
+  public boolean isDeferred() {
+    return executor != null;
+  }
+
+  // both writers must be complete by the time either one is saved
+  public void setReferenceTarget(MetadataWriter referenceTarget) {
+    this.referenceTarget = referenceTarget;
+  }
+
   public void save(DataOutput out) throws IOException {
     flush();
-    for (byte[] block : blocks) {
-      out.write(block);
+    if (isDeferred()) {
+      compressDeferred();
     }
+    blocks.writeTo(out);
     location = 0L;
     offset = 0;
     blocks.clear();
   }
 
+  // bytes of finished blocks currently held on the heap
+  public long getBufferedBytes() {
+    return blocks.getMemoryBytes() + rawBlocks.getMemoryBytes();
+  }
+
+  public long getSpilledBytes() {
+    return blocks.getSpilledBytes() + rawBlocks.getSpilledBytes();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      blocks.close();
+    } finally {
+      rawBlocks.close();
+    }
+  }
+
   public MetadataBlockRef getCurrentReference() {
+    if (isDeferred()) {
+      return new MetadataBlockRef(rawBlocks.size(), (short) offset);
+    }
     return new MetadataBlockRef((int) (location & 0xffffffff), (short) offset);
   }
 
+  // references hold block indexes until a deferred writer has been saved
+  public MetadataBlockRef resolve(MetadataBlockRef ref) {
+    if (!isDeferred()) {
+      return ref;
+    }
+    if (!compressed) {
+      throw new IllegalStateException(
+          "Metadata block references cannot be resolved before save");
+    }
+    return new MetadataBlockRef(
+        (int) locations[ref.getLocation()], ref.getOffset());
+  }
+
+  public void writeBlockLocation(int blockLocation) throws IOException {
+    if (isDeferred() && referenceTarget != null &&
+        referenceTarget.isDeferred()) {
+      // patched with the real location once it is known
+      fixups.add(new Fixup(
+          ((long) rawBlocks.size() * currentBlock.length) + offset,
+          blockLocation));
+    }
+    writeInt(blockLocation);
+  }
+
   @Override
   public void write(byte[] b) throws IOException {
     write(b, 0, b.length);
@@ -58,7 +172,21 @@ public class MetadataWriter implements DataOutput {
       return;
     }
 
-    byte[] compressed = compress(currentBlock, 0, offset);
+    if (isDeferred()) {
+      rawBlocks.add(Arrays.copyOf(currentBlock, offset));
+      compressed = false;
+      offset = 0;
+      return;
+    }
+
+    byte[] encoded = encode(currentBlock, offset);
+    blocks.add(encoded);
+    location += encoded.length;
+    offset = 0;
+  }
+
+  private byte[] encode(byte[] data, int length) throws IOException {
+    byte[] compressed = compress(data, 0, length);
     byte[] encoded;
     int size;
 
@@ -67,39 +195,169 @@ public class MetadataWriter implements DataOutput {
       encoded = new byte[compressed.length + 2];
       System.arraycopy(compressed, 0, encoded, 2, compressed.length);
     } else {
-      size = (offset & 0x7fff) | 0x8000;
-      encoded = new byte[offset + 2];
-      System.arraycopy(currentBlock, 0, encoded, 2, offset);
+      size = (length & 0x7fff) | 0x8000;
+      encoded = new byte[length + 2];
+      System.arraycopy(data, 0, encoded, 2, length);
     }
 
     encoded[0] = (byte) (size & 0xff);
     encoded[1] = (byte) ((size >> 8) & 0xff);
+    return encoded;
+  }
 
-    blocks.add(encoded);
-    location += encoded.length;
-    offset = 0;
+  private void compressDeferred() throws IOException {
+    if (compressed) {
+      return;
+    }
+
+    // linked writers must be compressed together, as each may need
+    // locations from the other before its own blocks can be finalized
+    Set<MetadataWriter> group = new LinkedHashSet<>();
+    for (MetadataWriter w = this;
+        w != null && w.isDeferred() && !w.compressed && group.add(w);
+        w = w.referenceTarget) {
+      w.flush();
+      w.startCompression();
+    }
+
+    try {
+      while (true) {
+        boolean progress = false;
+        boolean done = true;
+        for (MetadataWriter w : group) {
+          progress |= w.submitReady();
+          progress |= w.collectCompleted();
+          done &= w.resolvedCount == w.rawBlocks.size();
+        }
+        if (done) {
+          break;
+        }
+        if (!progress) {
+          awaitNext(group);
+        }
+      }
+    } finally {
+      for (MetadataWriter w : group) {
+        if (w.resolvedCount < w.rawBlocks.size()) {
+          for (int i = w.resolvedCount; i < w.submittedCount; i++) {
+            w.pending[i].cancel(false);
+          }
+          w.blocks.clear();
+        }
+      }
+    }
+
+    for (MetadataWriter w : group) {
+      w.finishCompression();
+    }
   }
 
-  private byte[] compress(byte[] data, int offset, int length)
+  private static void awaitNext(Set<MetadataWriter> group)
       throws IOException {
-    Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
-    try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
-      try (DeflaterOutputStream dos = new DeflaterOutputStream(
-          bos, def, 4096)) {
-        dos.write(data, offset, length);
+    for (MetadataWriter w : group) {
+      if (w.resolvedCount < w.submittedCount) {
+        Futures.await(w.pending[w.resolvedCount]);
+        return;
       }
-      byte[] result = bos.toByteArray();
-      if (result.length > length) {
-        return null;
+    }
+    throw new IOException(
+        "BUG: Circular reference between metadata blocks");
+  }
+
+  @SuppressWarnings("unchecked")
+  private void startCompression() throws IOException {
+    int count = rawBlocks.size();
+    blocks.clear();
+    locations = new long[count + 1];
+    resolvedCount = 0;
+    pending = (Future<byte[]>[]) new Future<?>[count];
+    submittedCount = 0;
+    fixupIndex = 0;
+  }
+
+  private void finishCompression() throws IOException {
+    location = locations[resolvedCount];
+    rawBlocks.clear();
+    fixups.clear();
+    pending = null;
+    compressed = true;
+  }
+
+  private boolean submitReady() throws IOException {
+    boolean progress = false;
+    int blockLength = currentBlock.length;
+    // only a window of blocks is held for compression at a time, so
+    // spilled blocks stay spilled
+    while (submittedCount < rawBlocks.size() &&
+        submittedCount - resolvedCount < maxPending) {
+      int index = submittedCount;
+
+      // all locations starting in this block must be known
+      int end = fixupIndex;
+      while (end < fixups.size() &&
+          fixups.get(end).position / blockLength == index) {
+        if (fixups.get(end).target > referenceTarget.resolvedCount) {
+          return progress;
+        }
+        end++;
       }
-      return result;
-    } finally {
-      def.end();
+      for (; fixupIndex < end; fixupIndex++) {
+        Fixup fixup = fixups.get(fixupIndex);
+        patch(fixup.position,
+            (int) referenceTarget.locations[fixup.target]);
+      }
+
+      byte[] raw = rawBlocks.get(index);
+      pending[index] = executor.submit(() -> encode(raw, raw.length));
+      submittedCount++;
+      progress = true;
     }
+    return progress;
+  }
+
+  private boolean collectCompleted() throws IOException {
+    boolean progress = false;
+    while (resolvedCount < submittedCount &&
+        pending[resolvedCount].isDone()) {
+      byte[] encoded = Futures.await(pending[resolvedCount]);
+      pending[resolvedCount] = null;
+      blocks.add(encoded);
+      locations[resolvedCount + 1] = locations[resolvedCount] + encoded.length;
+      resolvedCount++;
+      progress = true;
+    }
+    return progress;
+  }
+
+  private void patch(long position, int value) throws IOException {
+    int blockLength = currentBlock.length;
+    int index = -1;
+    byte[] block = null;
+    for (int i = 0; i < 4; i++) {
+      long p = position + i;
+      if (index != (int) (p / blockLength)) {
+        // a location may straddle two blocks
+        if (block != null) {
+          rawBlocks.set(index, block);
+        }
+        index = (int) (p / blockLength);
+        block = rawBlocks.get(index);
+      }
+      block[(int) (p % blockLength)] = (byte) ((value >>> (i * 8)) & 0xff);
+    }
+    rawBlocks.set(index, block);
+  }
+
+  private byte[] compress(byte[] data, int offset, int length)
+      throws IOException {
+    return compressor.compress(data, offset, length, length);
   }
 
   @Override
   public void write(byte[] b, int off, int len) throws IOException {
+    if (len > 0 && isDeferred()) {
+      compressed = false;
+    }
     while (len > 0) {
       int capacity = currentBlock.length - offset;
       int bytesToWrite = Math.min(len, capacity);
@@ -199,4 +457,14 @@ public class MetadataWriter implements DataOutput {
     throw new UnsupportedOperationException();
   }
 
+  private static class Fixup {
+    private final long position;
+    private final int target;
+
+    Fixup(long position, int target) {
+      this.position = position;
+      this.target = target;
+    }
+  }
+
 }
@@ -0,0 +1,163 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.metadata;
+
+import java.io.Closeable;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Ordered list of metadata blocks which keeps at most maxMemory bytes on
+// the heap. Once that is exceeded, every block held in memory is appended
+// to a temporary file, so the spilled blocks are always a prefix of the
+// list. Blocks keep their length when rewritten, so offsets never move.
+final class SpillableBlockList implements Closeable {
+
+  private static final int COPY_BUFFER_SIZE = 65536;
+
+  private final long maxMemory;
+  private final File spillDirectory;
+
+  // blocks [spilledCount, size())
+  private final List<byte[]> memory = new ArrayList<>();
+  private long memoryBytes = 0L;
+
+  // spillOffsets[i] is the file offset of block i, spillOffsets[spilledCount]
+  // the end of the file
+  private long[] spillOffsets = new long[16];
+  private int spilledCount = 0;
+  private File spillFile;
+  private RandomAccessFile spill;
+
+  SpillableBlockList(long maxMemory, File spillDirectory) {
+    this.maxMemory = maxMemory;
+    this.spillDirectory = spillDirectory;
+  }
+
+  int size() {
+    return spilledCount + memory.size();
+  }
+
+  long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  long getSpilledBytes() {
+    return spillOffsets[spilledCount];
+  }
+
+  void add(byte[] block) throws IOException {
+    memory.add(block);
+    memoryBytes += block.length;
+    if (memoryBytes > maxMemory) {
+      spill();
+    }
+  }
+
+  // spilled blocks are returned as copies; use set() to change them
+  byte[] get(int index) throws IOException {
+    if (index >= spilledCount) {
+      return memory.get(index - spilledCount);
+    }
+    byte[] block =
+        new byte[(int) (spillOffsets[index + 1] - spillOffsets[index])];
+    spill.seek(spillOffsets[index]);
+    spill.readFully(block);
+    return block;
+  }
+
+  void set(int index, byte[] block) throws IOException {
+    if (index >= spilledCount) {
+      memory.set(index - spilledCount, block);
+      return;
+    }
+    if (block.length != spillOffsets[index + 1] - spillOffsets[index]) {
+      throw new IllegalArgumentException(
+          String.format("Block %d cannot change length once spilled", index));
+    }
+    spill.seek(spillOffsets[index]);
+    spill.write(block);
+  }
+
+  void writeTo(DataOutput out) throws IOException {
+    long remaining = getSpilledBytes();
+    if (remaining > 0L) {
+      byte[] buf = new byte[COPY_BUFFER_SIZE];
+      spill.seek(0L);
+      while (remaining > 0L) {
+        int c = (int) Math.min(buf.length, remaining);
+        spill.readFully(buf, 0, c);
+        out.write(buf, 0, c);
+        remaining -= c;
+      }
+    }
+    for (byte[] block : memory) {
+      out.write(block);
+    }
+  }
+
+  void clear() throws IOException {
+    memory.clear();
+    memoryBytes = 0L;
+    spilledCount = 0;
+    close();
+  }
+
+  private void spill() throws IOException {
+    if (spill == null) {
+      spillFile = File.createTempFile("squashfs-metadata-", ".tmp",
+          spillDirectory);
+      spill = new RandomAccessFile(spillFile, "rw");
+    }
+    int count = size();
+    if (spillOffsets.length <= count) {
+      spillOffsets = Arrays.copyOf(spillOffsets,
+          Math.max(count + 1, spillOffsets.length * 2));
+    }
+    spill.seek(spillOffsets[spilledCount]);
+    for (byte[] block : memory) {
+      spill.write(block);
+      spillOffsets[spilledCount + 1] = spillOffsets[spilledCount]
+          + block.length;
+      spilledCount++;
+    }
+    memory.clear();
+    memoryBytes = 0L;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (spill == null) {
+      return;
+    }
+    try {
+      spill.close();
+    } finally {
+      spill = null;
+      Files.deleteIfExists(spillFile.toPath());
+      spillFile = null;
+      spilledCount = 0;
+    }
+  }
+
+}
@@ -19,6 +19,8 @@
 package org.apache.hadoop.squashfs.superblock;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.compression.CompressionCodecs;
+import org.apache.hadoop.squashfs.compression.Decompressor;
 import org.apache.hadoop.squashfs.inode.INodeRef;
 
 import java.io.DataInput;
@@ -49,6 +51,9 @@ public class SuperBlock {
 
   public static final long TABLE_NOT_PRESENT = 0xffff_ffff_ffff_ffffL;
 
+  // no compressor defines options anywhere near this large
+  public static final int MAX_COMPRESSOR_OPTIONS_SIZE = 256;
+
   int inodeCount;
   int modificationTime = (int) (System.currentTimeMillis() / 1000);
   int blockSize = DEFAULT_BLOCK_SIZE;
@@ -67,6 +72,10 @@ public class SuperBlock {
   long directoryTableStart;
   long fragmentTableStart;
   long exportTableStart;
+  byte[] compressorOptions;
+
+  // decoded from the compression fields on first use, not per block
+  private volatile Decompressor decompressor;
 
   public static SuperBlock read(DataInput in)
       throws IOException, SquashFsException {
@@ -97,6 +106,7 @@ public class SuperBlock {
 
   public void setBlockSize(int blockSize) {
     this.blockSize = blockSize;
+    this.decompressor = null;
   }
 
   public int getFragmentEntryCount() {
@@ -113,6 +123,7 @@ public class SuperBlock {
 
   public void setCompressionId(CompressionId compressionId) {
     this.compressionId = compressionId;
+    this.decompressor = null;
   }
 
   public short getBlockLog() {
@@ -219,6 +230,25 @@ public class SuperBlock {
     this.exportTableStart = exportTableStart;
   }
 
+  // raw payload of the compressor options block, or null if absent
+  public byte[] getCompressorOptions() {
+    return compressorOptions;
+  }
+
+  public void setCompressorOptions(byte[] compressorOptions) {
+    this.compressorOptions = compressorOptions;
+    this.decompressor = null;
+  }
+
+  public Decompressor getDecompressor() throws SquashFsException {
+    Decompressor result = decompressor;
+    if (result == null) {
+      result = CompressionCodecs.decompressor(this);
+      decompressor = result;
+    }
+    return result;
+  }
+
   public boolean hasFlag(SuperBlockFlag flag) {
     return flag.isSet(flags);
   }
@@ -290,6 +320,32 @@ public class SuperBlock {
     directoryTableStart = buffer.getLong();
     fragmentTableStart = buffer.getLong();
     exportTableStart = buffer.getLong();
+
+    compressorOptions = hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS)
+        ? readCompressorOptions(in) : null;
+    decompressor = null;
+  }
+
+  private static byte[] readCompressorOptions(DataInput in)
+      throws IOException, SquashFsException {
+    // stored as an uncompressed metadata block directly after the superblock
+    byte[] raw = new byte[2];
+    in.readFully(raw);
+    short header =
+        ByteBuffer.wrap(raw).order(ByteOrder.LITTLE_ENDIAN).getShort();
+    int size = header & 0x7fff;
+    if ((header & 0x8000) == 0) {
+      throw new SquashFsException(
+          "Corrupt archive, compressor options must not be compressed");
+    }
+    if (size > MAX_COMPRESSOR_OPTIONS_SIZE) {
+      throw new SquashFsException(
+          String.format("Corrupt archive, got %d bytes of compressor options",
+              size));
+    }
+    byte[] options = new byte[size];
+    in.readFully(options);
+    return options;
   }
 
   @Override
@@ -327,6 +383,10 @@ public class SuperBlock {
     dumpBin(buf, width, "directoryTableStart", directoryTableStart, DECIMAL);
     dumpBin(buf, width, "fragmentTableStart", fragmentTableStart, DECIMAL);
     dumpBin(buf, width, "exportTableStart", exportTableStart, DECIMAL);
+    if (compressorOptions != null) {
+      dumpBin(buf, width, "compressorOptions", compressorOptions, 0,
+          compressorOptions.length, 16, 2);
+    }
     buf.append("}");
     return buf.toString();
   }
@@ -19,8 +19,10 @@
 package org.apache.hadoop.squashfs.table;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.io.PositionalReader;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
@@ -29,12 +31,15 @@ import java.nio.ByteOrder;
 
 public class FileTableReader implements TableReader {
 
-  private final RandomAccessFile raf;
+  private final Closeable file;
+  private final PositionalReader in;
   private final SuperBlock sb;
   private final boolean shouldClose;
 
   public FileTableReader(File file) throws IOException, SquashFsException {
-    this.raf = new RandomAccessFile(file, "r");
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    this.file = raf;
+    this.in = PositionalReader.wrap(raf.getChannel());
     this.sb = SuperBlock.read(raf);
     this.shouldClose = true;
   }
@@ -42,7 +47,16 @@ public class FileTableReader implements TableReader {
   public FileTableReader(RandomAccessFile raf, SuperBlock sb,
       boolean shouldClose)
       throws SquashFsException, IOException {
-    this.raf = raf;
+    this.file = raf;
+    this.in = PositionalReader.wrap(raf.getChannel());
+    this.sb = sb;
+    this.shouldClose = shouldClose;
+  }
+
+  public FileTableReader(PositionalReader in, SuperBlock sb,
+      boolean shouldClose) {
+    this.file = in;
+    this.in = in;
     this.sb = sb;
     this.shouldClose = shouldClose;
   }
@@ -54,21 +68,15 @@ public class FileTableReader implements TableReader {
 
   @Override
   public ByteBuffer read(long fileOffset, int length) throws IOException {
-    long prevPosition = raf.getFilePointer();
-    try {
-      raf.seek(fileOffset);
-      byte[] buf = new byte[length];
-      raf.readFully(buf);
-      return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
-    } finally {
-      raf.seek(prevPosition);
-    }
+    byte[] buf = new byte[length];
+    in.readFully(fileOffset, buf);
+    return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
   }
 
   @Override
   public void close() throws IOException {
     if (shouldClose) {
-      raf.close();
+      file.close();
     }
   }
 
@@ -0,0 +1,351 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.tools;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.SquashFsWriterOptions;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+import org.apache.hadoop.squashfs.util.SizeTrackingInputStream;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+// Converts many tarballs at once. All jobs share one compression pool, and
+// what their writers may buffer (pending data blocks, fragments and
+// metadata) is carved out of one memory budget. Queued jobs start smallest
+// first, so small layers are not stuck behind large ones.
+public class BatchConverter implements Closeable {
+
+  public static final long MIN_JOB_MEMORY = 4L * 1024L * 1024L;
+
+  public enum State {
+    QUEUED, RUNNING, SUCCEEDED, FAILED
+  }
+
+  public static class Job {
+    private final File input;
+    private final File output;
+    private final long inputSize;
+    private final long sequence;
+    private final long memory;
+    private final CompletableFuture<Job> done = new CompletableFuture<>();
+    private volatile State state = State.QUEUED;
+    private volatile SizeTrackingInputStream in = null;
+    private volatile long entryCount = 0L;
+    private volatile long startNanos = 0L;
+    private volatile long endNanos = 0L;
+    private volatile Exception error = null;
+
+    Job(File input, File output, long sequence, long memory) {
+      this.input = input;
+      this.output = output;
+      this.inputSize = input.length();
+      this.sequence = sequence;
+      this.memory = memory;
+    }
+
+    public File getInput() {
+      return input;
+    }
+
+    public File getOutput() {
+      return output;
+    }
+
+    public long getInputSize() {
+      return inputSize;
+    }
+
+    public State getState() {
+      return state;
+    }
+
+    // share of the memory budget held while running
+    public long getReservedMemory() {
+      return memory;
+    }
+
+    public long getBytesRead() {
+      SizeTrackingInputStream stream = in;
+      if (state == State.SUCCEEDED) {
+        return inputSize;
+      }
+      return stream == null ? 0L : stream.getByteCount();
+    }
+
+    // fraction of the input read so far
+    public double getProgress() {
+      if (state == State.SUCCEEDED) {
+        return 1.0;
+      }
+      return inputSize == 0L ? 0.0
+          : Math.min(1.0, (double) getBytesRead() / inputSize);
+    }
+
+    public long getEntryCount() {
+      return entryCount;
+    }
+
+    // System.nanoTime() when the job started running, 0 while queued
+    long getStartNanos() {
+      return startNanos;
+    }
+
+    public long getElapsedNanos() {
+      long start = startNanos;
+      if (start == 0L) {
+        return 0L;
+      }
+      long end = endNanos;
+      return (end == 0L ? System.nanoTime() : end) - start;
+    }
+
+    // input bytes per second
+    public double getThroughput() {
+      long elapsed = getElapsedNanos();
+      return elapsed <= 0L ? 0.0 : getBytesRead() * 1e9 / elapsed;
+    }
+
+    public Exception getError() {
+      return error;
+    }
+
+    public boolean isDone() {
+      return done.isDone();
+    }
+
+    // waits for the job to finish; its error is rethrown
+    public void await() throws IOException, InterruptedException {
+      try {
+        done.get();
+      } catch (ExecutionException e) {
+        Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException) cause;
+        }
+        if (cause instanceof RuntimeException) {
+          throw (RuntimeException) cause;
+        }
+        throw new IOException(cause);
+      }
+    }
+
+    private void finish(Exception e) {
+      endNanos = System.nanoTime();
+      error = e;
+      state = (e == null) ? State.SUCCEEDED : State.FAILED;
+      if (e == null) {
+        done.complete(this);
+      } else {
+        done.completeExceptionally(e);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "batch-job { input=%s, output=%s, inputSize=%d, state=%s, progress=%.3f, entryCount=%d, elapsedNanos=%d, reservedMemory=%d }",
+          input, output, inputSize, state, getProgress(), entryCount,
+          getElapsedNanos(), memory);
+    }
+  }
+
+  private final Supplier<SquashFsWriterOptions> options;
+  private final ExecutorService compressionPool;
+  private final ExecutorService jobPool;
+  private final long memoryBudget;
+  private final long maxJobMemory;
+  private final PriorityQueue<Job> queue = new PriorityQueue<>(
+      Comparator.comparingLong(Job::getInputSize)
+          .thenComparingLong(j -> j.sequence));
+  private final List<Job> jobs = new ArrayList<>();
+  private long memoryInUse = 0L;
+  private long peakMemoryInUse = 0L;
+
+  // options supplies fresh writer options for each job; its compression
+  // pool and memory limits are replaced
+  public BatchConverter(Supplier<SquashFsWriterOptions> options,
+      int compressionThreads, int maxConcurrentJobs, long memoryBudget) {
+    if (compressionThreads < 1) {
+      throw new IllegalArgumentException(
+          String.format("Invalid compression thread count %d (min 1)",
+              compressionThreads));
+    }
+    if (maxConcurrentJobs < 1) {
+      throw new IllegalArgumentException(
+          String.format("Invalid concurrent job count %d (min 1)",
+              maxConcurrentJobs));
+    }
+    if (memoryBudget < MIN_JOB_MEMORY) {
+      throw new IllegalArgumentException(
+          String.format("Invalid memory budget %d (min %d)", memoryBudget,
+              MIN_JOB_MEMORY));
+    }
+    this.options = options;
+    this.memoryBudget = memoryBudget;
+    this.maxJobMemory =
+        Math.max(MIN_JOB_MEMORY, memoryBudget / maxConcurrentJobs);
+    this.compressionPool = Executors.newFixedThreadPool(compressionThreads);
+    this.jobPool = Executors.newFixedThreadPool(maxConcurrentJobs);
+  }
+
+  public synchronized Job submit(File input, File output) {
+    Job job = new Job(input, output, jobs.size(), reservation(input.length()));
+    jobs.add(job);
+    queue.add(job);
+    // each task runs whichever queued job is smallest when it starts
+    jobPool.execute(this::runNext);
+    return job;
+  }
+
+  public synchronized List<Job> getJobs() {
+    return new ArrayList<>(jobs);
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public synchronized long getMemoryInUse() {
+    return memoryInUse;
+  }
+
+  public synchronized long getPeakMemoryInUse() {
+    return peakMemoryInUse;
+  }
+
+  // waits for every job submitted so far; failed jobs do not stop the rest
+  public void awaitAll() throws InterruptedException {
+    for (Job job : getJobs()) {
+      try {
+        job.done.get();
+      } catch (ExecutionException e) {
+        // reported through the job
+      }
+    }
+  }
+
+  @Override
+  public void close() {
+    jobPool.shutdownNow();
+    compressionPool.shutdownNow();
+  }
+
+  // a layer cannot usefully buffer much more than its own size
+  private long reservation(long inputSize) {
+    long wanted = inputSize > Long.MAX_VALUE / 2 ? Long.MAX_VALUE
+        : inputSize * 2L;
+    return Math.max(MIN_JOB_MEMORY, Math.min(maxJobMemory, wanted));
+  }
+
+  private void runNext() {
+    Job job;
+    synchronized (this) {
+      while (true) {
+        job = queue.peek();
+        if (job == null) {
+          return;
+        }
+        // the smallest job waits for memory rather than letting a larger
+        // one overtake it
+        if (memoryInUse + job.memory <= memoryBudget) {
+          break;
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+      queue.poll();
+      memoryInUse += job.memory;
+      peakMemoryInUse = Math.max(peakMemoryInUse, memoryInUse);
+    }
+
+    Exception error = null;
+    try {
+      convert(job);
+    } catch (IOException | RuntimeException e) {
+      error = e;
+    } finally {
+      synchronized (this) {
+        memoryInUse -= job.memory;
+        notifyAll();
+      }
+    }
+    // completed only once its memory is back in the budget
+    job.finish(error);
+  }
+
+  private void convert(Job job) throws IOException {
+    job.startNanos = System.nanoTime();
+    job.state = State.RUNNING;
+
+    SquashFsWriterOptions jobOptions = options.get()
+        .compressionPool(compressionPool)
+        .writerThread(true);
+    limitMemory(jobOptions, job.memory);
+
+    try (SizeTrackingInputStream in =
+        new SizeTrackingInputStream(new FileInputStream(job.input));
+        TarArchiveInputStream tis = SquashConvert.openTar(in);
+        SquashFsWriter writer = new SquashFsWriter(job.output, jobOptions)) {
+      job.in = in;
+
+      TarArchiveEntry entry;
+      AtomicReference<Date> modDate = new AtomicReference<>(new Date(0));
+      while ((entry = tis.getNextTarEntry()) != null) {
+        SquashConvert.processTarEntry(tis, entry,
+            SquashConvert.normalize(entry.getName()), writer, modDate);
+        job.entryCount++;
+      }
+      writer.setModificationTime((int) (modDate.get().getTime() / 1000L));
+      writer.finish();
+    }
+  }
+
+  // splits a job's share of the budget between the buffers of its writer
+  static void limitMemory(SquashFsWriterOptions options, long memory) {
+    int blockSize = SuperBlock.DEFAULT_BLOCK_SIZE;
+    // a pending block holds both its data and its compressed copy
+    long pendingBlocks = (memory / 2L) / (2L * blockSize);
+    options
+        .maxPendingBlocks((int) Math.max(1L,
+            Math.min(pendingBlocks, Integer.MAX_VALUE)))
+        .maxBufferedFragmentBytes(Math.max(blockSize, memory / 4L))
+        // per table, for both the inode and the directory table
+        .maxMetadataMemory(Math.max(1L, memory / 8L));
+  }
+
+}
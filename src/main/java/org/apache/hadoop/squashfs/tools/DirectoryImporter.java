@@ -0,0 +1,394 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.tools;
+
+import org.apache.hadoop.squashfs.SquashFsEntryBuilder;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.util.SizeTrackingInputStream;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Adds an unpacked directory tree to a writer. Entries are added in a fixed
+// order (depth first, names sorted) while a pool reads the files coming up
+// next, so the image does not depend on how the reads are scheduled. Owners,
+// modes, symlinks, device nodes and hard links (by file identity) are kept.
+public class DirectoryImporter {
+
+  public static final long DEFAULT_READ_AHEAD_BYTES = 64L * 1024L * 1024L;
+  public static final long DEFAULT_MAP_THRESHOLD = 1024L * 1024L;
+
+  // largest file read into a single buffer
+  private static final long MAX_BUFFERED_SIZE = Integer.MAX_VALUE - 8;
+
+  private static final int S_IFMT = 0170000;
+  private static final int S_IFSOCK = 0140000;
+  private static final int S_IFLNK = 0120000;
+  private static final int S_IFREG = 0100000;
+  private static final int S_IFBLK = 0060000;
+  private static final int S_IFDIR = 0040000;
+  private static final int S_IFCHR = 0020000;
+  private static final int S_IFIFO = 0010000;
+
+  private final SquashFsWriter writer;
+  private final ExecutorService readPool;
+  private final long readAheadBytes;
+  private final long mapThreshold;
+  private final AtomicReference<Date> modDate;
+
+  private long addedCount = 0L;
+  private long hardlinkCount = 0L;
+  private long skippedCount = 0L;
+  private long bytesRead = 0L;
+
+  public DirectoryImporter(SquashFsWriter writer, ExecutorService readPool,
+      AtomicReference<Date> modDate) {
+    this(writer, readPool, modDate, DEFAULT_READ_AHEAD_BYTES,
+        DEFAULT_MAP_THRESHOLD);
+  }
+
+  // files of at least mapThreshold bytes are memory-mapped rather than
+  // copied; at most about readAheadBytes are read ahead of the writer
+  public DirectoryImporter(SquashFsWriter writer, ExecutorService readPool,
+      AtomicReference<Date> modDate, long readAheadBytes, long mapThreshold) {
+    if (readAheadBytes < 0L) {
+      throw new IllegalArgumentException(
+          String.format("Invalid read-ahead size %d", readAheadBytes));
+    }
+    this.writer = writer;
+    this.readPool = readPool;
+    this.modDate = modDate;
+    this.readAheadBytes = readAheadBytes;
+    this.mapThreshold = mapThreshold;
+  }
+
+  public long getAddedCount() {
+    return addedCount;
+  }
+
+  public long getHardlinkCount() {
+    return hardlinkCount;
+  }
+
+  // sockets, which have no place in an image
+  public long getSkippedCount() {
+    return skippedCount;
+  }
+
+  public long getBytesRead() {
+    return bytesRead;
+  }
+
+  // adds the contents of dir; dir itself becomes the root directory
+  public void importDirectory(File dir) throws IOException {
+    Path root = dir.toPath();
+    Attributes rootAttributes = Attributes.read(root);
+    if (rootAttributes.type != S_IFDIR) {
+      throw new IOException(
+          String.format("'%s' is not a directory", dir.getAbsolutePath()));
+    }
+    writer.setRootAttributes(rootAttributes.uid, rootAttributes.gid,
+        rootAttributes.permissions,
+        (int) (rootAttributes.lastModified / 1000L));
+    updateModDate(rootAttributes.lastModified);
+
+    List<Node> nodes = new ArrayList<>();
+    walk(root, "", nodes, new HashMap<>());
+
+    int next = 0;
+    long reading = 0L;
+    try {
+      for (int i = 0; i < nodes.size(); i++) {
+        while (next < nodes.size() && (next <= i || reading < readAheadBytes)) {
+          Node ahead = nodes.get(next++);
+          if (ahead.isBuffered()) {
+            ahead.content = readPool.submit(() -> read(ahead));
+            reading += ahead.attributes.size;
+          }
+        }
+
+        Node node = nodes.get(i);
+        add(node);
+        if (node.content != null) {
+          reading -= node.attributes.size;
+          node.content = null;
+        }
+      }
+    } finally {
+      for (int i = 0; i < next; i++) {
+        Future<ByteBuffer> content = nodes.get(i).content;
+        if (content != null) {
+          content.cancel(true);
+        }
+      }
+    }
+  }
+
+  private void walk(Path dir, String prefix, List<Node> nodes,
+      Map<Object, String> linkTargets) throws IOException {
+    List<Path> children = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+      for (Path child : stream) {
+        children.add(child);
+      }
+    }
+    Collections.sort(children);
+
+    for (Path child : children) {
+      String name = prefix + "/" + child.getFileName();
+      Attributes attributes = Attributes.read(child);
+      if (attributes.type == S_IFSOCK || attributes.type == 0) {
+        skippedCount++;
+        continue;
+      }
+
+      Node node = new Node(child, name, attributes);
+      if (attributes.type != S_IFDIR && attributes.nlink > 1
+          && attributes.fileKey != null) {
+        // the first path found for a file is stored, the others link to it
+        node.hardlinkTarget = linkTargets.putIfAbsent(attributes.fileKey, name);
+      }
+      nodes.add(node);
+
+      if (attributes.type == S_IFDIR) {
+        walk(child, name, nodes, linkTargets);
+      }
+    }
+  }
+
+  private ByteBuffer read(Node node) throws IOException {
+    try (FileChannel channel =
+        FileChannel.open(node.path, StandardOpenOption.READ)) {
+      // a file which shrank since it was listed is stored as it is now
+      long size = Math.min(node.attributes.size, channel.size());
+      if (size >= mapThreshold) {
+        return channel.map(FileChannel.MapMode.READ_ONLY, 0L, size).load();
+      }
+      ByteBuffer buffer = ByteBuffer.allocate((int) size);
+      while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+        // keep reading
+      }
+      buffer.flip();
+      return buffer;
+    }
+  }
+
+  private void add(Node node) throws IOException {
+    Attributes attributes = node.attributes;
+    updateModDate(attributes.lastModified);
+
+    SquashFsEntryBuilder tb = writer.entry(node.name)
+        .uid(attributes.uid)
+        .gid(attributes.gid)
+        .permissions(attributes.permissions)
+        .lastModified(attributes.lastModified);
+
+    switch (attributes.type) {
+    case S_IFDIR:
+      tb.directory();
+      break;
+    case S_IFREG:
+      tb.file();
+      break;
+    case S_IFLNK:
+      tb.symlink(Files.readSymbolicLink(node.path).toString());
+      break;
+    case S_IFBLK:
+      tb.blockDev(major(attributes.rdev), minor(attributes.rdev));
+      break;
+    case S_IFCHR:
+      tb.charDev(major(attributes.rdev), minor(attributes.rdev));
+      break;
+    case S_IFIFO:
+      tb.fifo();
+      break;
+    default:
+      throw new IOException(
+          String.format("Unknown file type for '%s'", node.path));
+    }
+
+    if (node.hardlinkTarget != null) {
+      tb.hardlink(node.hardlinkTarget).fileSize(attributes.size);
+      hardlinkCount++;
+    } else if (attributes.type == S_IFREG) {
+      if (node.content != null) {
+        ByteBuffer content = await(node);
+        bytesRead += content.remaining();
+        tb.content(new ByteBufferInputStream(content), content.remaining());
+      } else {
+        // too large for one buffer, so read as the writer goes
+        try (SizeTrackingInputStream in = new SizeTrackingInputStream(
+            new FileInputStream(node.path.toFile()))) {
+          tb.content(in, attributes.size);
+          bytesRead += in.getByteCount();
+        }
+      }
+    }
+
+    tb.build();
+    addedCount++;
+  }
+
+  private static ByteBuffer await(Node node) throws IOException {
+    try {
+      return node.content.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException(
+          String.format("Interrupted while reading '%s'", node.path), e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new IOException(
+          String.format("Unable to read '%s'", node.path), cause);
+    }
+  }
+
+  private void updateModDate(long lastModified) {
+    if (lastModified > modDate.get().getTime()) {
+      modDate.set(new Date(lastModified));
+    }
+  }
+
+  // Linux dev_t encoding, as in glibc's gnu_dev_major and gnu_dev_minor
+  static int major(long rdev) {
+    return (int) (((rdev >>> 32) & 0xfffff000L) | ((rdev >>> 8) & 0xfffL));
+  }
+
+  static int minor(long rdev) {
+    return (int) (((rdev >>> 12) & 0xffffff00L) | (rdev & 0xffL));
+  }
+
+  private static class Node {
+    private final Path path;
+    private final String name;
+    private final Attributes attributes;
+    private String hardlinkTarget;
+    private Future<ByteBuffer> content;
+
+    Node(Path path, String name, Attributes attributes) {
+      this.path = path;
+      this.name = name;
+      this.attributes = attributes;
+    }
+
+    // stored file contents which are read ahead by the pool
+    boolean isBuffered() {
+      return attributes.type == S_IFREG && hardlinkTarget == null
+          && attributes.size <= MAX_BUFFERED_SIZE;
+    }
+  }
+
+  private static class Attributes {
+    private int type;
+    private short permissions;
+    private int uid;
+    private int gid;
+    private long rdev;
+    private int nlink;
+    private long size;
+    private long lastModified;
+    private Object fileKey;
+
+    static Attributes read(Path path) throws IOException {
+      Attributes a = new Attributes();
+      try {
+        Map<String, Object> unix =
+            Files.readAttributes(path, "unix:*", LinkOption.NOFOLLOW_LINKS);
+        int mode = (Integer) unix.get("mode");
+        a.type = mode & S_IFMT;
+        a.permissions = (short) (mode & 07777);
+        a.uid = (Integer) unix.get("uid");
+        a.gid = (Integer) unix.get("gid");
+        a.rdev = (Long) unix.get("rdev");
+        a.nlink = (Integer) unix.get("nlink");
+        a.size = (Long) unix.get("size");
+        a.lastModified = ((FileTime) unix.get("lastModifiedTime")).toMillis();
+        a.fileKey = unix.get("fileKey");
+      } catch (UnsupportedOperationException e) {
+        // no owners or modes on this platform, so make everything readable
+        BasicFileAttributes basic = Files.readAttributes(path,
+            BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        if (basic.isDirectory()) {
+          a.type = S_IFDIR;
+          a.permissions = 0755;
+        } else if (basic.isSymbolicLink()) {
+          a.type = S_IFLNK;
+          a.permissions = 0777;
+        } else if (basic.isRegularFile()) {
+          a.type = S_IFREG;
+          a.permissions = 0644;
+        }
+        a.nlink = 1;
+        a.size = basic.size();
+        a.lastModified = basic.lastModifiedTime().toMillis();
+      }
+      return a;
+    }
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+    private final ByteBuffer buffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      this.buffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!buffer.hasRemaining()) {
+        return -1;
+      }
+      int count = Math.min(len, buffer.remaining());
+      buffer.get(b, off, count);
+      return count;
+    }
+  }
+
+}
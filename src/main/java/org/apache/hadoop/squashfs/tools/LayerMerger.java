@@ -0,0 +1,228 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.tools;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.hadoop.squashfs.SquashFsEntry;
+import org.apache.hadoop.squashfs.SquashFsTree;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Merges a stack of OCI image layers into one writer. Layers are added
+// from the top of the stack down: an entry is only written if no upper
+// layer replaced it or removed it with a whiteout, so hidden content is
+// never read past, let alone compressed.
+class LayerMerger {
+
+  static final String WHITEOUT_PREFIX = ".wh.";
+  static final String OPAQUE_WHITEOUT = ".wh..wh..opq";
+
+  private final SquashFsWriter writer;
+  private final SquashFsTree tree;
+  private final AtomicReference<Date> modDate;
+
+  // whiteouts of the layers added so far; they only apply to lower layers
+  private final Set<String> removed = new HashSet<>();
+  private final Set<String> opaque = new HashSet<>();
+
+  private long addedCount = 0L;
+  private long hiddenCount = 0L;
+  private long hiddenBytes = 0L;
+  private long restoredLinkCount = 0L;
+
+  LayerMerger(SquashFsWriter writer, AtomicReference<Date> modDate) {
+    this.writer = writer;
+    this.tree = writer.getFsTree();
+    this.modDate = modDate;
+  }
+
+  long getAddedCount() {
+    return addedCount;
+  }
+
+  long getHiddenCount() {
+    return hiddenCount;
+  }
+
+  long getHiddenBytes() {
+    return hiddenBytes;
+  }
+
+  long getRestoredLinkCount() {
+    return restoredLinkCount;
+  }
+
+  void addLayer(File layer) throws IOException {
+    Set<String> layerRemoved = new HashSet<>();
+    Set<String> layerOpaque = new HashSet<>();
+    Set<String> skippedFiles = new HashSet<>();
+    // visible hard links to files this layer could not write, by target
+    Map<String, List<String>> orphanedLinks = new LinkedHashMap<>();
+
+    try (TarArchiveInputStream tis =
+        SquashConvert.openTar(new FileInputStream(layer))) {
+      TarArchiveEntry entry;
+      while ((entry = tis.getNextTarEntry()) != null) {
+        String name = SquashConvert.normalize(entry.getName());
+        if ("/".equals(name)) {
+          // the root directory is always present
+          continue;
+        }
+        String shortName = name.substring(name.lastIndexOf('/') + 1);
+
+        if (shortName.startsWith(WHITEOUT_PREFIX)) {
+          String dir = name.substring(0, name.lastIndexOf('/'));
+          if (OPAQUE_WHITEOUT.equals(shortName)) {
+            layerOpaque.add(dir);
+          } else {
+            layerRemoved.add(
+                dir + "/" + shortName.substring(WHITEOUT_PREFIX.length()));
+          }
+          continue;
+        }
+
+        boolean regularFile = entry.isFile() && !entry.isLink();
+        if (!isVisible(name)) {
+          hiddenCount++;
+          if (regularFile) {
+            hiddenBytes += entry.getSize();
+            skippedFiles.add(name);
+          }
+          continue;
+        }
+
+        if (entry.isLink()) {
+          String target = SquashConvert.normalize(entry.getLinkName());
+          if (skippedFiles.contains(target)) {
+            orphanedLinks.computeIfAbsent(target, t -> new ArrayList<>())
+                .add(name);
+            continue;
+          }
+        }
+
+        addParents(name);
+        System.err.println(name);
+        SquashConvert.processTarEntry(tis, entry, name, writer, modDate);
+        addedCount++;
+      }
+    }
+
+    if (!orphanedLinks.isEmpty()) {
+      restoreLinks(layer, orphanedLinks);
+    }
+
+    removed.addAll(layerRemoved);
+    opaque.addAll(layerOpaque);
+  }
+
+  // whether an entry of the layer being added is still visible through
+  // the layers above it
+  boolean isVisible(String name) {
+    SquashFsEntry existing = tree.get(name);
+    if (existing != null && !existing.isSynthetic()) {
+      // replaced, or a directory whose upper attributes win
+      return false;
+    }
+    if (removed.contains(name)) {
+      return false;
+    }
+    for (int slash = name.lastIndexOf('/'); slash >= 0;
+        slash = name.lastIndexOf('/', slash - 1)) {
+      String dir = name.substring(0, slash);
+      if (removed.contains(dir) || opaque.contains(dir)) {
+        return false;
+      }
+      SquashFsEntry parent = tree.get(dir);
+      if (parent != null && !parent.isSynthetic()
+          && (parent.getType() == null || !parent.getType().directory())) {
+        // an upper layer replaced the directory with something else
+        return false;
+      }
+    }
+    return true;
+  }
+
+  // stands in for parents this layer does not list; a lower layer which
+  // does list them replaces them
+  private void addParents(String name) {
+    for (int slash = name.lastIndexOf('/'); slash > 0;
+        slash = name.lastIndexOf('/', slash - 1)) {
+      String dir = name.substring(0, slash);
+      if (tree.get(dir) != null) {
+        return;
+      }
+      writer.entry(dir)
+          .directory()
+          .synthetic()
+          .uid(0)
+          .gid(0)
+          .permissions((short) 0755)
+          .lastModified(0L)
+          .build();
+    }
+  }
+
+  // A hard link only carries its target's path. If an upper layer hid the
+  // target but not the link, the target's content is read again from a
+  // second pass over the layer and stored under the first link instead.
+  private void restoreLinks(File layer, Map<String, List<String>> links)
+      throws IOException {
+
+    try (TarArchiveInputStream tis =
+        SquashConvert.openTar(new FileInputStream(layer))) {
+      TarArchiveEntry entry;
+      while (!links.isEmpty() && (entry = tis.getNextTarEntry()) != null) {
+        String name = SquashConvert.normalize(entry.getName());
+        List<String> names = links.remove(name);
+        if (names == null || !entry.isFile() || entry.isLink()) {
+          continue;
+        }
+
+        String first = names.get(0);
+        addParents(first);
+        System.err.println(first);
+        SquashConvert.processTarEntry(tis, entry, first, writer, modDate);
+        for (String link : names.subList(1, names.size())) {
+          addParents(link);
+          writer.entry(link).hardlink(first).build();
+        }
+        addedCount += names.size();
+        restoredLinkCount += names.size();
+      }
+    }
+
+    if (!links.isEmpty()) {
+      throw new IOException(
+          String.format("Hard link target '%s' not found in layer %s",
+              links.keySet().iterator().next(), layer));
+    }
+  }
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.tools;
+
+import org.apache.hadoop.squashfs.SquashFsWriterOptions;
+import org.apache.hadoop.squashfs.data.FragmentPackingStrategy;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class SquashBatchConvert {
+
+  private static final long REPORT_INTERVAL_MILLIS = 1000L;
+
+  private static void convertAll(List<File> files, String profile,
+      String packing, String compression, int threads, int jobs,
+      long memory) throws Exception {
+
+    try (BatchConverter converter = new BatchConverter(
+        () -> SquashConvert.createOptions(profile, packing, compression, null,
+            null),
+        threads, jobs, memory)) {
+
+      for (int i = 0; i < files.size(); i += 2) {
+        converter.submit(files.get(i), files.get(i + 1));
+      }
+
+      long started = System.nanoTime();
+      while (!allDone(converter.getJobs())) {
+        Thread.sleep(REPORT_INTERVAL_MILLIS);
+        System.err.printf("[%6d ms] memory %d / %d MiB%n",
+            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started),
+            converter.getMemoryInUse() >> 20,
+            converter.getMemoryBudget() >> 20);
+        for (BatchConverter.Job job : converter.getJobs()) {
+          if (job.getState() == BatchConverter.State.RUNNING) {
+            System.err.printf("  %5.1f%% %8.1f MiB/s %s%n",
+                job.getProgress() * 100.0, job.getThroughput() / (1 << 20),
+                job.getInput());
+          }
+        }
+      }
+      converter.awaitAll();
+
+      int failed = 0;
+      System.err.println("Finished:");
+      for (BatchConverter.Job job : converter.getJobs()) {
+        if (job.getState() == BatchConverter.State.SUCCEEDED) {
+          System.err.printf("  ok     %8d ms %8.1f MiB/s %7d entries %s -> %s%n",
+              TimeUnit.NANOSECONDS.toMillis(job.getElapsedNanos()),
+              job.getThroughput() / (1 << 20), job.getEntryCount(),
+              job.getInput(), job.getOutput());
+        } else {
+          failed++;
+          System.err.printf("  FAILED %s: %s%n", job.getInput(),
+              job.getError());
+        }
+      }
+      System.err.printf("Peak memory reserved: %d MiB of %d MiB%n",
+          converter.getPeakMemoryInUse() >> 20,
+          converter.getMemoryBudget() >> 20);
+      if (failed > 0) {
+        System.exit(2);
+      }
+    }
+  }
+
+  private static boolean allDone(List<BatchConverter.Job> jobs) {
+    for (BatchConverter.Job job : jobs) {
+      if (!job.isDone()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  public static void usage() {
+    System.err.printf(
+        "Usage: %s [--profile <profile>] [--compression <compression>] [--packing <packing>] [--threads <count>] [--jobs <count>] [--memory <MiB>] <tar-file> <squashfs-file> [<tar-file> <squashfs-file>...]%n",
+        SquashBatchConvert.class.getSimpleName());
+    System.err.println();
+    System.err.printf("Profiles: %s (default), %s, %s%n",
+        SquashFsWriterOptions.PROFILE_DEFAULT,
+        SquashFsWriterOptions.PROFILE_FAST_LAUNCH,
+        SquashFsWriterOptions.PROFILE_ARCHIVAL);
+    System.err.println("Compression: zlib (default), lz4, zstd");
+    System.err.printf("Fragment packing: %s, %s, %s (default from profile)%n",
+        FragmentPackingStrategy.ARRIVAL,
+        FragmentPackingStrategy.DIRECTORY,
+        FragmentPackingStrategy.EXTENSION);
+    System.err.println(
+        "Threads: compression threads shared by all jobs (default one per CPU)");
+    System.err.println(
+        "Jobs: conversions run at once; smaller inputs start first (default one per CPU)");
+    System.err.println(
+        "Memory: MiB of block, fragment and metadata buffers shared by all jobs (default 512)");
+    System.err.println();
+    System.exit(1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    String profile = SquashFsWriterOptions.PROFILE_DEFAULT;
+    String packing = null;
+    String compression = null;
+    int threads = Runtime.getRuntime().availableProcessors();
+    int jobs = Runtime.getRuntime().availableProcessors();
+    long memory = 512L;
+    int i = 0;
+    while (i + 1 < args.length && args[i].startsWith("--")) {
+      if ("--profile".equals(args[i])) {
+        profile = args[i + 1];
+      } else if ("--compression".equals(args[i])) {
+        compression = args[i + 1];
+      } else if ("--packing".equals(args[i])) {
+        packing = args[i + 1];
+      } else if ("--threads".equals(args[i])) {
+        threads = Integer.parseInt(args[i + 1]);
+      } else if ("--jobs".equals(args[i])) {
+        jobs = Integer.parseInt(args[i + 1]);
+      } else if ("--memory".equals(args[i])) {
+        memory = Long.parseLong(args[i + 1]);
+      } else {
+        usage();
+      }
+      i += 2;
+    }
+    int remaining = args.length - i;
+    if (remaining < 2 || remaining % 2 != 0) {
+      usage();
+    }
+    List<File> files = new ArrayList<>();
+    for (int j = i; j < args.length; j++) {
+      files.add(new File(args[j]));
+    }
+    convertAll(files, profile, packing, compression, threads, jobs,
+        memory * 1024L * 1024L);
+  }
+
+}
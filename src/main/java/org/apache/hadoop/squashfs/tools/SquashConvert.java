@@ -22,66 +22,269 @@ import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.hadoop.squashfs.SquashFsEntryBuilder;
 import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.SquashFsWriterOptions;
+import org.apache.hadoop.squashfs.data.FragmentPackingStrategy;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+import org.apache.hadoop.squashfs.util.ReadAheadInputStream;
 import org.apache.hadoop.squashfs.util.SizeTrackingInputStream;
+import org.apache.hadoop.squashfs.util.StageStats;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.zip.GZIPInputStream;
 
 public class SquashConvert {
 
-  private static void convertToSquashFs(File inputFile, File outputFile)
-      throws IOException {
+  private static final int GZIP_BUFFER_SIZE = 64 * 1024;
+
+  private static void convertToSquashFs(File inputFile, File outputFile,
+      String profile, String packing, String compression,
+      Long metadataMemory, boolean append) throws IOException {
 
     long size = inputFile.length();
 
     System.err.printf("Converting %s -> %s...%n",
         inputFile.getAbsolutePath(), outputFile.getAbsolutePath());
 
+    int compressionThreads = Runtime.getRuntime().availableProcessors();
+    ExecutorService compressionPool =
+        Executors.newFixedThreadPool(compressionThreads);
+
+    // the conversion runs as a pipeline: one thread inflates the archive,
+    // this thread parses tar entries into block-sized buffers, the pool
+    // compresses them and a writer thread appends them in order
+    long started = System.nanoTime();
     try (
         FileInputStream fis = new FileInputStream(inputFile);
         SizeTrackingInputStream stis = new SizeTrackingInputStream(fis);
-        GZIPInputStream gis = new GZIPInputStream(stis);
-        TarArchiveInputStream tis = new TarArchiveInputStream(gis)) {
+        GZIPInputStream gis = new GZIPInputStream(stis, GZIP_BUFFER_SIZE);
+        ReadAheadInputStream rais =
+            new ReadAheadInputStream(gis, new StageStats("inflate"));
+        TarArchiveInputStream tis = new TarArchiveInputStream(rais)) {
 
       long fileCount = 0L;
-      try (SquashFsWriter writer = new SquashFsWriter(outputFile)) {
+      SquashFsWriterOptions options = createOptions(profile, packing,
+          compression, metadataMemory, compressionPool);
+
+      try (SquashFsWriter writer = openWriter(outputFile, options, append)) {
         TarArchiveEntry entry;
         AtomicReference<Date> modDate = new AtomicReference<>(new Date(0));
+        StageStats parseStats = new StageStats("parse");
 
-        while ((entry = tis.getNextTarEntry()) != null) {
-          processTarEntry(stis, tis, entry, writer, modDate);
+        while (true) {
+          // time spent waiting on the neighbouring stages is not parsing
+          long stalled = rais.getStalledNanos() + writer.getStalledNanos();
+          long start = System.nanoTime();
+          if ((entry = tis.getNextTarEntry()) == null) {
+            break;
+          }
+          String name = normalize(entry.getName());
+          System.err.println(name);
+          processTarEntry(tis, entry, name, writer, modDate);
+          long waited = rais.getStalledNanos() + writer.getStalledNanos()
+              - stalled;
+          parseStats.waited(waited);
+          parseStats.busy(System.nanoTime() - start - waited);
           fileCount++;
         }
         writer.setModificationTime((int) (modDate.get().getTime() / 1000L));
         writer.finish();
+        printWriterSummary(writer);
+
+        long elapsed = System.nanoTime() - started;
+        System.err.printf("Pipeline stage utilization over %d ms:%n",
+            TimeUnit.NANOSECONDS.toMillis(elapsed));
+        System.err.printf("  %s%n", rais.getReadStats().format(elapsed, 1));
+        System.err.printf("  %s%n", parseStats.format(elapsed, 1));
+        System.err.printf("  %s%n", writer.getCompressStats()
+            .format(elapsed, compressionThreads));
+        System.err.printf("  %s%n", writer.getWriteStats().format(elapsed, 1));
       }
 
       System.err.printf("Converted image containing %d files.%n", fileCount);
+    } finally {
+      compressionPool.shutdownNow();
+    }
+  }
+
+  // flattens an ordered stack of image layers, bottom layer first, into
+  // a single image
+  private static void convertLayersToSquashFs(List<File> layers,
+      File outputFile, String profile, String packing, String compression,
+      Long metadataMemory) throws IOException {
+
+    System.err.printf("Flattening %d layers -> %s...%n", layers.size(),
+        outputFile.getAbsolutePath());
+
+    ExecutorService compressionPool = Executors
+        .newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      SquashFsWriterOptions options = createOptions(profile, packing,
+          compression, metadataMemory, compressionPool);
+
+      try (SquashFsWriter writer = new SquashFsWriter(outputFile, options)) {
+        AtomicReference<Date> modDate = new AtomicReference<>(new Date(0));
+        LayerMerger merger = new LayerMerger(writer, modDate);
+
+        // upper layers are read first, so whatever they hide or replace
+        // is never compressed
+        for (int i = layers.size() - 1; i >= 0; i--) {
+          System.err.printf("Reading layer %d: %s%n", i + 1,
+              layers.get(i).getAbsolutePath());
+          merger.addLayer(layers.get(i));
+        }
+        writer.setModificationTime((int) (modDate.get().getTime() / 1000L));
+        writer.finish();
+        printWriterSummary(writer);
+
+        System.err.printf(
+            "Skipped %d hidden entries (%d bytes never compressed), restored %d hard links.%n",
+            merger.getHiddenCount(), merger.getHiddenBytes(),
+            merger.getRestoredLinkCount());
+        System.err.printf("Converted image containing %d files.%n",
+            merger.getAddedCount());
+      }
+    } finally {
+      compressionPool.shutdownNow();
     }
   }
 
-  private static void processTarEntry(
-      SizeTrackingInputStream stis,
+  // builds an image from an unpacked directory tree
+  private static void convertDirectoryToSquashFs(File inputDir,
+      File outputFile, String profile, String packing, String compression,
+      Long metadataMemory, boolean append) throws IOException {
+
+    System.err.printf("Converting %s -> %s...%n",
+        inputDir.getAbsolutePath(), outputFile.getAbsolutePath());
+
+    int threads = Runtime.getRuntime().availableProcessors();
+    ExecutorService compressionPool = Executors.newFixedThreadPool(threads);
+    ExecutorService readPool = Executors.newFixedThreadPool(threads);
+    try {
+      SquashFsWriterOptions options = createOptions(profile, packing,
+          compression, metadataMemory, compressionPool);
+
+      try (SquashFsWriter writer = openWriter(outputFile, options, append)) {
+        AtomicReference<Date> modDate = new AtomicReference<>(new Date(0));
+        DirectoryImporter importer =
+            new DirectoryImporter(writer, readPool, modDate);
+        importer.importDirectory(inputDir);
+        writer.setModificationTime((int) (modDate.get().getTime() / 1000L));
+        writer.finish();
+        printWriterSummary(writer);
+
+        System.err.printf(
+            "Read %d bytes, stored %d hard links, skipped %d sockets.%n",
+            importer.getBytesRead(), importer.getHardlinkCount(),
+            importer.getSkippedCount());
+        System.err.printf("Converted image containing %d files.%n",
+            importer.getAddedCount());
+      }
+    } finally {
+      readPool.shutdownNow();
+      compressionPool.shutdownNow();
+    }
+  }
+
+  // when appending, the existing image keeps its data and only its
+  // metadata is rewritten
+  private static SquashFsWriter openWriter(File outputFile,
+      SquashFsWriterOptions options, boolean append) throws IOException {
+    if (append && outputFile.exists()) {
+      System.err.printf("Appending to existing image %s%n",
+          outputFile.getAbsolutePath());
+      return SquashFsWriter.append(outputFile, options);
+    }
+    return new SquashFsWriter(outputFile, options);
+  }
+
+  static SquashFsWriterOptions createOptions(String profile,
+      String packing, String compression, Long metadataMemory,
+      ExecutorService compressionPool) {
+    SquashFsWriterOptions options = SquashFsWriterOptions
+        .forProfile(profile)
+        .compressionPool(compressionPool)
+        .writerThread(true);
+    if (compression != null) {
+      options.compression(
+          CompressionId.valueOf(compression.toUpperCase(Locale.ROOT)));
+    }
+    if (packing != null) {
+      options.fragmentPacking(FragmentPackingStrategy.forName(packing));
+    }
+    if (metadataMemory != null) {
+      options.maxMetadataMemory(metadataMemory * 1024L * 1024L);
+    }
+    return options;
+  }
+
+  private static void printWriterSummary(SquashFsWriter writer) {
+    System.err.printf(
+        "Stored %d incompressible blocks as-is (~%d ms CPU saved).%n",
+        writer.getSkippedBlockCount(),
+        writer.getEstimatedNanosSaved() / 1_000_000L);
+    System.err.printf(
+        "Deduplicated %d files, %d data blocks and %d fragments.%n",
+        writer.getDeduplicatedFileCount(),
+        writer.getDeduplicatedBlockCount(),
+        writer.getDeduplicatedFragmentCount());
+  }
+
+  // a tar stream, gzipped or not
+  static TarArchiveInputStream openTar(InputStream in) throws IOException {
+    InputStream buffered = new BufferedInputStream(in, GZIP_BUFFER_SIZE);
+    try {
+      buffered.mark(2);
+      int magic = buffered.read() | (buffered.read() << 8);
+      buffered.reset();
+      if (magic == GZIPInputStream.GZIP_MAGIC) {
+        buffered = new ReadAheadInputStream(
+            new GZIPInputStream(buffered, GZIP_BUFFER_SIZE));
+      }
+      return new TarArchiveInputStream(buffered);
+    } catch (IOException | RuntimeException e) {
+      buffered.close();
+      throw e;
+    }
+  }
+
+  // absolute path of a tar entry name, such as "/usr/bin" for "./usr/bin/"
+  static String normalize(String name) {
+    return name
+        .replaceAll("/+", "/")
+        .replaceAll("^/", "")
+        .replaceAll("^(\\./)+", "")
+        .replaceAll("/\\.?$", "")
+        .replaceAll("^\\.$", "")
+        .replaceAll("^", "/");
+  }
+
+  static void processTarEntry(
       TarArchiveInputStream tis,
       TarArchiveEntry entry,
+      String name,
       SquashFsWriter writer,
       AtomicReference<Date> modDate) throws IOException {
 
+    // the root directory is always present
+    if ("/".equals(name)) {
+      return;
+    }
+
     int userId = (int) entry.getLongUserId();
     int groupId = (int) entry.getLongGroupId();
 
-    String name = entry.getName()
-        .replaceAll("/+", "/")
-        .replaceAll("^/", "")
-        .replaceAll("/$", "")
-        .replaceAll("^", "/");
-
-    System.err.println(name);
-
     short permissions = (short) (entry.getMode() & 07777);
 
     Date lastModified = entry.getLastModifiedDate();
@@ -114,12 +317,7 @@ public class SquashConvert {
     }
 
     if (entry.isLink()) {
-      String target = entry.getLinkName()
-          .replaceAll("/+", "/")
-          .replaceAll("^/", "")
-          .replaceAll("/$", "")
-          .replaceAll("^", "/");
-      tb.hardlink(target);
+      tb.hardlink(normalize(entry.getLinkName()));
     }
 
     if (entry.isFile() && !entry.isLink()) {
@@ -130,17 +328,87 @@ public class SquashConvert {
   }
 
   public static void usage() {
-    System.err.printf("Usage: %s <tar-gz-file> <squashfs-file>%n",
+    System.err.printf(
+        "Usage: %s [--profile <profile>] [--compression <compression>] [--packing <packing>] [--metadata-memory <MiB>] [--append] <tar-gz-file|directory> <squashfs-file>%n",
         SquashConvert.class.getSimpleName());
+    System.err.printf(
+        "       %s [options] --layers <layer-tar-file>... <squashfs-file>%n",
+        SquashConvert.class.getSimpleName());
+    System.err.println();
+    System.err.printf("Profiles: %s (default), %s, %s%n",
+        SquashFsWriterOptions.PROFILE_DEFAULT,
+        SquashFsWriterOptions.PROFILE_FAST_LAUNCH,
+        SquashFsWriterOptions.PROFILE_ARCHIVAL);
+    System.err.println("Compression: zlib (default), lz4, zstd");
+    System.err.printf("Fragment packing: %s, %s, %s (default from profile)%n",
+        FragmentPackingStrategy.ARRIVAL,
+        FragmentPackingStrategy.DIRECTORY,
+        FragmentPackingStrategy.EXTENSION);
+    System.err.println(
+        "Metadata memory: MiB of inode and directory blocks kept in memory before spilling to disk (default unlimited)");
+    System.err.println(
+        "Append: add to an existing image, keeping its data in place and replacing entries with the same path");
+    System.err.println(
+        "Layers: OCI layer tarballs, gzipped or not, bottom layer first; whiteouts are applied and the result flattened into one image");
     System.err.println();
     System.exit(1);
   }
 
   public static void main(String[] args) throws Exception {
-    if (args.length != 2) {
+    String profile = SquashFsWriterOptions.PROFILE_DEFAULT;
+    String packing = null;
+    String compression = null;
+    Long metadataMemory = null;
+    boolean layers = false;
+    boolean append = false;
+    int i = 0;
+    while (i + 1 < args.length && args[i].startsWith("--")) {
+      if ("--layers".equals(args[i])) {
+        layers = true;
+        i++;
+        continue;
+      }
+      if ("--append".equals(args[i])) {
+        append = true;
+        i++;
+        continue;
+      }
+      if ("--profile".equals(args[i])) {
+        profile = args[i + 1];
+      } else if ("--compression".equals(args[i])) {
+        compression = args[i + 1];
+      } else if ("--packing".equals(args[i])) {
+        packing = args[i + 1];
+      } else if ("--metadata-memory".equals(args[i])) {
+        metadataMemory = Long.parseLong(args[i + 1]);
+      } else {
+        usage();
+      }
+      i += 2;
+    }
+    if (layers) {
+      if (args.length - i < 2) {
+        usage();
+      }
+      List<File> layerFiles = new ArrayList<>();
+      for (int j = i; j < args.length - 1; j++) {
+        layerFiles.add(new File(args[j]));
+      }
+      convertLayersToSquashFs(layerFiles, new File(args[args.length - 1]),
+          profile, packing, compression, metadataMemory);
+      return;
+    }
+    if (args.length - i != 2) {
       usage();
     }
-    convertToSquashFs(new File(args[0]), new File(args[1]));
+    File input = new File(args[i]);
+    if (input.isDirectory()) {
+      convertDirectoryToSquashFs(input, new File(args[i + 1]), profile,
+          packing, compression, metadataMemory, append);
+      return;
+    }
+    convertToSquashFs(input, new File(args[i + 1]), profile, packing,
+        compression, metadataMemory, append);
   }
 
 }
@@ -0,0 +1,262 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
+
+// reads its source on a background thread into a fixed set of chunks, so
+// an expensive source such as a gzip stream is decoded while earlier data
+// is still being consumed; the reader only blocks once every chunk is full
+public class ReadAheadInputStream extends InputStream {
+
+  public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+  public static final int DEFAULT_MAX_CHUNKS = 8;
+
+  private static final Chunk END = new Chunk(0);
+
+  private final InputStream source;
+  private final BlockingQueue<Chunk> free;
+  private final BlockingQueue<Chunk> filled = new LinkedBlockingQueue<>();
+  private final StageStats readStats;
+  private final LongAdder stalledNanos = new LongAdder();
+  private final Thread thread;
+  private final byte[] single = new byte[1];
+  private volatile boolean closed = false;
+  private Chunk current = null;
+  private boolean eof = false;
+
+  public ReadAheadInputStream(InputStream source) {
+    this(source, new StageStats("read"));
+  }
+
+  public ReadAheadInputStream(InputStream source, StageStats readStats) {
+    this(source, DEFAULT_CHUNK_SIZE, DEFAULT_MAX_CHUNKS, readStats);
+  }
+
+  public ReadAheadInputStream(InputStream source, int chunkSize,
+      int maxChunks, StageStats readStats) {
+    if (chunkSize < 1) {
+      throw new IllegalArgumentException(
+          String.format("Invalid chunk size %d (min 1)", chunkSize));
+    }
+    if (maxChunks < 2) {
+      throw new IllegalArgumentException(
+          String.format("Invalid max chunk count %d (min 2)", maxChunks));
+    }
+    this.source = source;
+    this.readStats = readStats;
+    this.free = new ArrayBlockingQueue<>(maxChunks);
+    for (int i = 0; i < maxChunks; i++) {
+      free.add(new Chunk(chunkSize));
+    }
+    thread = new Thread(this::fill, "squashfs-read-ahead");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // time the background thread spent reading the source (busy) and
+  // waiting for the consumer to free a chunk (waiting)
+  public StageStats getReadStats() {
+    return readStats;
+  }
+
+  // time the consumer spent waiting for the source to catch up
+  public long getStalledNanos() {
+    return stalledNanos.sum();
+  }
+
+  @Override
+  public int read() throws IOException {
+    int c = read(single, 0, 1);
+    return c < 0 ? -1 : (single[0] & 0xff);
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (off < 0 || len < 0 || len > b.length - off) {
+      throw new IndexOutOfBoundsException();
+    }
+    if (len == 0) {
+      return 0;
+    }
+    Chunk chunk = current();
+    if (chunk == null) {
+      return -1;
+    }
+    int c = Math.min(len, chunk.length - chunk.position);
+    System.arraycopy(chunk.data, chunk.position, b, off, c);
+    chunk.position += c;
+    if (chunk.position == chunk.length) {
+      release();
+    }
+    return c;
+  }
+
+  @Override
+  public long skip(long n) throws IOException {
+    long skipped = 0L;
+    while (skipped < n) {
+      Chunk chunk = current();
+      if (chunk == null) {
+        break;
+      }
+      int c = (int) Math.min(n - skipped, chunk.length - chunk.position);
+      chunk.position += c;
+      skipped += c;
+      if (chunk.position == chunk.length) {
+        release();
+      }
+    }
+    return skipped;
+  }
+
+  @Override
+  public int available() throws IOException {
+    ensureOpen();
+    return current == null ? 0 : current.length - current.position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    thread.interrupt();
+    try {
+      source.close();
+    } finally {
+      try {
+        thread.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException(
+            "Interrupted waiting for read-ahead to stop");
+      }
+    }
+  }
+
+  private Chunk current() throws IOException {
+    ensureOpen();
+    if (current != null) {
+      return current;
+    }
+    if (eof) {
+      return null;
+    }
+
+    long start = System.nanoTime();
+    Chunk chunk;
+    try {
+      chunk = filled.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for read-ahead");
+    } finally {
+      stalledNanos.add(System.nanoTime() - start);
+    }
+
+    if (chunk == END) {
+      eof = true;
+      return null;
+    }
+    if (chunk.error != null) {
+      eof = true;
+      if (chunk.error instanceof IOException) {
+        throw (IOException) chunk.error;
+      }
+      throw new IOException(chunk.error);
+    }
+    current = chunk;
+    return chunk;
+  }
+
+  private void release() {
+    current.position = 0;
+    current.length = 0;
+    free.add(current);
+    current = null;
+  }
+
+  private void ensureOpen() throws IOException {
+    if (closed) {
+      throw new IOException("Stream closed");
+    }
+  }
+
+  private void fill() {
+    try {
+      while (!closed) {
+        long start = System.nanoTime();
+        Chunk chunk = free.take();
+        readStats.waited(System.nanoTime() - start);
+
+        start = System.nanoTime();
+        int length = readFully(chunk.data);
+        readStats.busy(System.nanoTime() - start);
+
+        if (length > 0) {
+          chunk.length = length;
+          filled.add(chunk);
+        }
+        if (length < chunk.data.length) {
+          filled.add(END);
+          return;
+        }
+      }
+    } catch (InterruptedException e) {
+      // closed while waiting for the consumer
+    } catch (IOException | RuntimeException e) {
+      if (!closed) {
+        Chunk failed = new Chunk(0);
+        failed.error = e;
+        filled.add(failed);
+      }
+    }
+  }
+
+  private int readFully(byte[] buf) throws IOException {
+    int off = 0;
+    while (off < buf.length) {
+      int c = source.read(buf, off, buf.length - off);
+      if (c < 0) {
+        break;
+      }
+      off += c;
+    }
+    return off;
+  }
+
+  private static class Chunk {
+    private final byte[] data;
+    private int length = 0;
+    private int position = 0;
+    private Exception error = null;
+
+    Chunk(int size) {
+      this.data = new byte[size];
+    }
+  }
+
+}
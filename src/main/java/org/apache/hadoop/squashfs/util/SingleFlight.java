@@ -0,0 +1,113 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.util;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+// coalesces concurrent loads of the same key: the first caller runs the
+// loader, callers arriving while it is in flight wait for its result
+// instead of loading again. Nothing is kept once a load completes, so
+// callers still need their own cache.
+public class SingleFlight<K, V> {
+
+  @FunctionalInterface
+  public interface Loader<V> {
+    V load() throws IOException;
+  }
+
+  private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight =
+      new ConcurrentHashMap<>();
+  private final LongAdder loads = new LongAdder();
+  private final LongAdder coalesced = new LongAdder();
+
+  public V load(K key, Loader<V> loader) throws IOException {
+    CompletableFuture<V> mine = new CompletableFuture<>();
+    CompletableFuture<V> running;
+    while ((running = inFlight.putIfAbsent(key, mine)) != null) {
+      coalesced.increment();
+      try {
+        return await(running);
+      } catch (ClosedByInterruptException | InterruptedIOException e) {
+        // the loader's thread was interrupted, not ours: load it again
+        if (Thread.currentThread().isInterrupted()) {
+          throw e;
+        }
+      }
+    }
+
+    loads.increment();
+    try {
+      V value = loader.load();
+      inFlight.remove(key, mine);
+      mine.complete(value);
+      return value;
+    } catch (IOException | RuntimeException | Error e) {
+      inFlight.remove(key, mine);
+      mine.completeExceptionally(e);
+      throw e;
+    }
+  }
+
+  private static <V> V await(CompletableFuture<V> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for load");
+    } catch (ExecutionException e) {
+      // waiters see the loader's own failure
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  // loads actually run
+  public long getLoadCount() {
+    return loads.sum();
+  }
+
+  // loads saved by waiting on one already in flight
+  public long getCoalescedCount() {
+    return coalesced.sum();
+  }
+
+  public int getInFlightCount() {
+    return inFlight.size();
+  }
+
+  public void resetStatistics() {
+    loads.reset();
+    coalesced.reset();
+  }
+
+}
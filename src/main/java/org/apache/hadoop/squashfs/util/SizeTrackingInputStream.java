@@ -22,8 +22,9 @@ import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 
+// the count may be read from other threads, e.g. to report progress
 public class SizeTrackingInputStream extends FilterInputStream {
-  private long byteCount = 0L;
+  private volatile long byteCount = 0L;
   private long mark = -1L;
 
   public SizeTrackingInputStream(InputStream in) {
@@ -63,7 +64,7 @@ public class SizeTrackingInputStream extends FilterInputStream {
 
   @Override
   public long skip(long n) throws IOException {
-    long c = skip(n);
+    long c = in.skip(n);
     byteCount += c;
     return c;
   }
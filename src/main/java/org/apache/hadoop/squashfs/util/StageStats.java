@@ -0,0 +1,86 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.hadoop.squashfs.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// time one stage of a pipeline spends working and waiting on its
+// neighbours; safe to update from any number of worker threads
+public class StageStats {
+
+  private final String name;
+  private final LongAdder busyNanos = new LongAdder();
+  private final LongAdder waitNanos = new LongAdder();
+  private final LongAdder items = new LongAdder();
+
+  public StageStats(String name) {
+    this.name = name;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void busy(long nanos) {
+    busyNanos.add(nanos);
+    items.increment();
+  }
+
+  public void waited(long nanos) {
+    waitNanos.add(nanos);
+  }
+
+  public long getBusyNanos() {
+    return busyNanos.sum();
+  }
+
+  public long getWaitNanos() {
+    return waitNanos.sum();
+  }
+
+  public long getItemCount() {
+    return items.sum();
+  }
+
+  // fraction of the available worker time spent working
+  public double getUtilization(long elapsedNanos, int workers) {
+    if (elapsedNanos <= 0L || workers < 1) {
+      return 0.0;
+    }
+    return Math.min(1.0,
+        (double) getBusyNanos() / ((double) elapsedNanos * workers));
+  }
+
+  public String format(long elapsedNanos, int workers) {
+    return String.format(
+        "%-9s %5.1f%% busy (%d ms busy, %d ms waiting, %d items, %d workers)",
+        name, getUtilization(elapsedNanos, workers) * 100.0,
+        TimeUnit.NANOSECONDS.toMillis(getBusyNanos()),
+        TimeUnit.NANOSECONDS.toMillis(getWaitNanos()),
+        getItemCount(), workers);
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "stage-stats { name=%s, busyNanos=%d, waitNanos=%d, items=%d }",
+        name, getBusyNanos(), getWaitNanos(), getItemCount());
+  }
+
+}
@@ -0,0 +1,103 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+public class NamePoolTest {
+
+	@Test
+	public void internShouldReturnSameIdForSameName() {
+		NamePool pool = new NamePool();
+		int a = pool.intern("/dir/name", 5, 9);
+		int b = pool.intern("name", 0, 4);
+		assertEquals(a, b);
+		assertEquals(1, pool.size());
+		assertEquals("name", pool.getName(a));
+	}
+
+	@Test
+	public void internShouldSurviveGrowth() {
+		NamePool pool = new NamePool();
+		int[] ids = new int[10000];
+		for (int i = 0; i < ids.length; i++) {
+			String name = "file-" + i;
+			ids[i] = pool.intern(name, 0, name.length());
+		}
+		for (int i = 0; i < ids.length; i++) {
+			String name = "file-" + i;
+			assertEquals(ids[i], pool.find(name, 0, name.length()));
+			assertEquals(name, pool.getName(ids[i]));
+		}
+		assertEquals(ids.length, pool.size());
+	}
+
+	@Test
+	public void findShouldReturnMinusOneForUnknownName() {
+		NamePool pool = new NamePool();
+		pool.intern("known", 0, 5);
+		assertEquals(-1, pool.find("unknown", 0, 7));
+	}
+
+	@Test
+	public void compareShouldOrderByUnsignedBytes() {
+		NamePool pool = new NamePool();
+		int plain = pool.intern("e", 0, 1);
+		int accented = pool.intern("é", 0, 1);
+		int longer = pool.intern("ee", 0, 2);
+		assertTrue(pool.compare(plain, accented) < 0);
+		assertTrue(pool.compare(plain, longer) < 0);
+		assertTrue(pool.compare(longer, accented) < 0);
+		assertEquals(0, pool.compare(plain, plain));
+	}
+
+	@Test
+	public void namesShouldBeStoredAsIso88591() {
+		NamePool pool = new NamePool();
+		int id = pool.intern("café", 0, 4);
+		assertArrayEquals("café".getBytes(StandardCharsets.ISO_8859_1), pool.getBytes(id));
+		int unmappable = pool.intern("€", 0, 1);
+		assertEquals("€", pool.getName(unmappable));
+		assertArrayEquals(new byte[] { '?' }, pool.getBytes(unmappable));
+		assertNotEquals(id, unmappable);
+	}
+
+	@Test
+	public void namesWrittenAlikeShouldStayDistinct() {
+		NamePool pool = new NamePool();
+		int japan = pool.intern("日本", 0, 2);
+		int china = pool.intern("中国", 0, 2);
+		int marks = pool.intern("??", 0, 2);
+		assertNotEquals(japan, china);
+		assertNotEquals(japan, marks);
+		assertEquals(japan, pool.find("/日本", 1, 3));
+		assertEquals("中国", pool.getName(china));
+		assertArrayEquals(pool.getBytes(marks), pool.getBytes(japan));
+		assertEquals(0, pool.compare(japan, china));
+		assertEquals(3, pool.size());
+	}
+
+}
@@ -0,0 +1,226 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.squashfs.inode.DeviceINode;
+import org.apache.hadoop.squashfs.inode.FileINode;
+import org.apache.hadoop.squashfs.inode.INode;
+import org.apache.hadoop.squashfs.inode.SymlinkINode;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+public class SquashFsAppendTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	File image;
+	byte[] large;
+	byte[] small;
+
+	@Before
+	public void setUp() throws Exception {
+		image = temp.newFile();
+		Random random = new Random(0L);
+		large = new byte[300_000];
+		random.nextBytes(large);
+		small = "hello, world\n".getBytes(StandardCharsets.UTF_8);
+
+		try (SquashFsWriter writer = new SquashFsWriter(image)) {
+			writer.setRootAttributes(1000, 1000, (short) 0755, 1_600_000_000);
+			writer.entry("/bin").directory().uid(0).gid(0).permissions((short) 0755).lastModified(0L).build();
+			writer.entry("/bin/large").uid(1000).gid(100).permissions((short) 0640).lastModified(0L).content(large)
+					.build();
+			writer.entry("/bin/small").uid(0).gid(0).permissions((short) 0644).lastModified(0L).content(small).build();
+			writer.entry("/bin/link").hardlink("/bin/large").build();
+			writer.entry("/bin/sh").symlink("small").uid(0).gid(0).permissions((short) 0777).lastModified(0L)
+					.build();
+			writer.entry("/null").charDev(1, 3).uid(0).gid(0).permissions((short) 0666).lastModified(0L).build();
+			writer.entry("/holes").uid(0).gid(0).permissions((short) 0644).lastModified(0L)
+					.content(new byte[3 * 128 * 1024 + 1]).build();
+			writer.setModificationTime(1_600_000_000);
+			writer.finish();
+		}
+	}
+
+	byte[] content(SquashFsReader reader, String path) throws IOException {
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			reader.writeFileStream(reader.findInodeByPath(path), bos);
+			return bos.toByteArray();
+		}
+	}
+
+	long dataEnd() throws IOException {
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			return reader.getSuperBlock().getInodeTableStart();
+		}
+	}
+
+	void appendFiles(SquashFsWriterOptions options) throws IOException {
+		try (SquashFsWriter writer = SquashFsWriter.append(image, options)) {
+			writer.entry("/etc").directory().uid(0).gid(0).permissions((short) 0755).lastModified(0L).build();
+			writer.entry("/etc/motd").uid(0).gid(0).permissions((short) 0644).lastModified(0L)
+					.content("welcome\n".getBytes(StandardCharsets.UTF_8)).build();
+			writer.entry("/bin/small").uid(0).gid(0).permissions((short) 0600).lastModified(0L)
+					.content("replaced\n".getBytes(StandardCharsets.UTF_8)).build();
+			writer.finish();
+		}
+	}
+
+	@Test
+	public void appendShouldKeepExistingEntries() throws Exception {
+		long dataEnd = dataEnd();
+		byte[] before = Files.readAllBytes(image.toPath());
+
+		appendFiles(new SquashFsWriterOptions());
+
+		byte[] after = Files.readAllBytes(image.toPath());
+		assertArrayEquals("data section rewritten", Arrays.copyOfRange(before, 96, (int) dataEnd),
+				Arrays.copyOfRange(after, 96, (int) dataEnd));
+		assertEquals("image not padded", 0, after.length % 4096);
+
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertArrayEquals(large, content(reader, "/bin/large"));
+			assertArrayEquals(large, content(reader, "/bin/link"));
+			assertArrayEquals(new byte[3 * 128 * 1024 + 1], content(reader, "/holes"));
+			assertArrayEquals("welcome\n".getBytes(StandardCharsets.UTF_8), content(reader, "/etc/motd"));
+			assertArrayEquals("replaced\n".getBytes(StandardCharsets.UTF_8), content(reader, "/bin/small"));
+			assertEquals(0600, reader.findInodeByPath("/bin/small").getPermissions());
+
+			INode file = reader.findInodeByPath("/bin/large");
+			assertEquals(file.getInodeNumber(), reader.findInodeByPath("/bin/link").getInodeNumber());
+			assertEquals(2, file.getNlink());
+			assertEquals(0640, file.getPermissions());
+			assertEquals(1000, reader.getIdTable().idFromIndex(file.getUidIdx()));
+			assertEquals(100, reader.getIdTable().idFromIndex(file.getGidIdx()));
+
+			INode sh = reader.findInodeByPath("/bin/sh");
+			assertEquals("small", new String(((SymlinkINode) sh).getTargetPath(), StandardCharsets.ISO_8859_1));
+			assertEquals((1 << 8) | 3, ((DeviceINode) reader.findInodeByPath("/null")).getDevice());
+			assertTrue(((FileINode) reader.findInodeByPath("/holes")).getSparse() > 0L);
+
+			INode root = reader.getRootInode();
+			assertEquals(0755, root.getPermissions());
+			assertEquals(1000, reader.getIdTable().idFromIndex(root.getUidIdx()));
+			assertEquals(1_600_000_000, root.getModifiedTime());
+		}
+	}
+
+	@Test
+	public void appendWithCompressionPoolShouldWork() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			appendFiles(new SquashFsWriterOptions().compressionPool(executor).writerThread(true));
+		} finally {
+			executor.shutdownNow();
+		}
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertArrayEquals(large, content(reader, "/bin/large"));
+			assertArrayEquals("welcome\n".getBytes(StandardCharsets.UTF_8), content(reader, "/etc/motd"));
+		}
+	}
+
+	@Test
+	public void repeatedAppendShouldKeepEarlierAppends() throws Exception {
+		appendFiles(new SquashFsWriterOptions());
+		try (SquashFsWriter writer = SquashFsWriter.append(image, new SquashFsWriterOptions())) {
+			writer.entry("/etc/hosts").uid(0).gid(0).permissions((short) 0644).lastModified(0L).content(small)
+					.build();
+			writer.finish();
+		}
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertArrayEquals(small, content(reader, "/etc/hosts"));
+			assertArrayEquals("welcome\n".getBytes(StandardCharsets.UTF_8), content(reader, "/etc/motd"));
+			assertArrayEquals(large, content(reader, "/bin/link"));
+		}
+	}
+
+	@Test
+	public void replacingOnePathOfHardlinkShouldKeepTheOther() throws Exception {
+		try (SquashFsWriter writer = SquashFsWriter.append(image, new SquashFsWriterOptions())) {
+			writer.entry("/bin/large").uid(0).gid(0).permissions((short) 0644).lastModified(0L).content(small)
+					.build();
+			writer.finish();
+		}
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertArrayEquals(small, content(reader, "/bin/large"));
+			assertArrayEquals(large, content(reader, "/bin/link"));
+			INode link = reader.findInodeByPath("/bin/link");
+			assertNotEquals(link.getInodeNumber(), reader.findInodeByPath("/bin/large").getInodeNumber());
+			assertEquals(1, link.getNlink());
+			assertEquals(0640, link.getPermissions());
+		}
+	}
+
+	@Test
+	public void replacingHardlinkTargetWithDirectoryShouldKeepLink() throws Exception {
+		try (SquashFsWriter writer = SquashFsWriter.append(image, new SquashFsWriterOptions())) {
+			writer.entry("/bin/large").directory().uid(0).gid(0).permissions((short) 0755).lastModified(0L).build();
+			writer.finish();
+		}
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertTrue(reader.findInodeByPath("/bin/large").getInodeType().directory());
+			assertArrayEquals(large, content(reader, "/bin/link"));
+		}
+	}
+
+	@Test
+	public void unfinishedAppendShouldLeaveImageUnchanged() throws Exception {
+		byte[] before = Files.readAllBytes(image.toPath());
+		try (SquashFsWriter writer = SquashFsWriter.append(image, new SquashFsWriterOptions())) {
+			byte[] data = new byte[500_000];
+			new Random(1L).nextBytes(data);
+			writer.entry("/big").uid(0).gid(0).permissions((short) 0644).lastModified(0L).content(data).build();
+		}
+		assertArrayEquals("image changed", before, Files.readAllBytes(image.toPath()));
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertArrayEquals(large, content(reader, "/bin/link"));
+		}
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void appendWithOtherCompressionShouldFail() throws Exception {
+		long length = image.length();
+		try {
+			SquashFsWriter.append(image, new SquashFsWriterOptions().compression(CompressionId.LZ4)).close();
+		} finally {
+			assertEquals("image modified", length, image.length());
+		}
+	}
+
+}
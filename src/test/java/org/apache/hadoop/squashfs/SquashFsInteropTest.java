@@ -23,19 +23,31 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import org.junit.Rule;
 import org.junit.Test;
@@ -44,7 +56,12 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import org.apache.hadoop.squashfs.compression.CompressionCodecs;
+import org.apache.hadoop.squashfs.compression.Lz4CompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZlibCompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZstdCompressorOptions;
 import org.apache.hadoop.squashfs.data.DataBlockCache;
+import org.apache.hadoop.squashfs.data.FragmentPackingStrategy;
 import org.apache.hadoop.squashfs.directory.DirectoryEntry;
 import org.apache.hadoop.squashfs.inode.DeviceINode;
 import org.apache.hadoop.squashfs.inode.DirectoryINode;
@@ -56,6 +73,9 @@ import org.apache.hadoop.squashfs.inode.SymlinkINode;
 import org.apache.hadoop.squashfs.io.MappedFile;
 import org.apache.hadoop.squashfs.metadata.MetadataBlockCache;
 import org.apache.hadoop.squashfs.metadata.TaggedMetadataBlockReader;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
 
 @RunWith(Parameterized.class)
 public class SquashFsInteropTest {
@@ -68,6 +88,7 @@ public class SquashFsInteropTest {
 		return Arrays.asList(new Object[][] {
 				{ "file", (ReaderCreator) (a -> createFileReader(a)) },
 				{ "file-with-cache", (ReaderCreator) (a -> createFileReaderWithCache(a)) },
+				{ "file-with-two-tier-cache", (ReaderCreator) (a -> createFileReaderWithTwoTierCache(a)) },
 				{ "mapped", (ReaderCreator) (a -> createMappedReader(a)) },
 				{ "mapped-with-cache", (ReaderCreator) (a -> createMappedReaderWithCache(a)) } });
 	}
@@ -93,7 +114,16 @@ public class SquashFsInteropTest {
 
 	public static SquashFsReader createFileReaderWithCache(File archive) throws SquashFsException, IOException {
 		MetadataBlockCache cache = new MetadataBlockCache(new TaggedMetadataBlockReader(true));
-		return SquashFsReader.fromFile(0, archive, cache, new DataBlockCache(64), new DataBlockCache(64));
+		return SquashFsReader.fromFile(0, archive, cache, new DataBlockCache(64L * SuperBlock.DEFAULT_BLOCK_SIZE),
+				new DataBlockCache(64L * SuperBlock.DEFAULT_BLOCK_SIZE));
+	}
+
+	// a hot tier of two blocks, so most reads are served from compressed bytes
+	public static SquashFsReader createFileReaderWithTwoTierCache(File archive) throws SquashFsException, IOException {
+		MetadataBlockCache cache = new MetadataBlockCache(new TaggedMetadataBlockReader(true));
+		return SquashFsReader.fromFile(0, archive, cache,
+				new DataBlockCache(2L * SuperBlock.DEFAULT_BLOCK_SIZE, 64L * SuperBlock.DEFAULT_BLOCK_SIZE),
+				new DataBlockCache(2L * SuperBlock.DEFAULT_BLOCK_SIZE, 64L * SuperBlock.DEFAULT_BLOCK_SIZE));
 	}
 
 	public static SquashFsReader createMappedReader(File archive) throws SquashFsException, IOException {
@@ -114,7 +144,8 @@ public class SquashFsInteropTest {
 					MappedSquashFsReader.PREFERRED_MAP_SIZE,
 					MappedSquashFsReader.PREFERRED_WINDOW_SIZE);
 		}
-		return SquashFsReader.fromMappedFile(0, mmap, cache, new DataBlockCache(64), new DataBlockCache(64));
+		return SquashFsReader.fromMappedFile(0, mmap, cache, new DataBlockCache(64L * SuperBlock.DEFAULT_BLOCK_SIZE),
+				new DataBlockCache(64L * SuperBlock.DEFAULT_BLOCK_SIZE));
 	}
 
 	@Test
@@ -498,8 +529,8 @@ public class SquashFsInteropTest {
 			writer.finish();
 
 			assertEquals("wrong target name", "/target.dat", source.getHardlinkTarget());
-			assertSame("wrong target", target, source.getHardlinkEntry());
-			assertSame("wrong inode", target.getInode(), source.getInode());
+			assertEquals("wrong target", target, source.getHardlinkEntry());
+			assertEquals("wrong inode", target.getInode().getInodeNumber(), source.getInode().getInodeNumber());
 			assertSame("wrong link count for source", 2, source.getNlink());
 			assertSame("wrong link count for target", 2, target.getNlink());
 		}
@@ -876,7 +907,633 @@ public class SquashFsInteropTest {
 					.permissions((short) 0644)
 					.build();
 
-			assertEquals("wrong timestamp", System.currentTimeMillis(), entry.lastModified * 1000L, 10000L);
+			assertEquals("wrong timestamp", System.currentTimeMillis(), entry.getLastModified() * 1000L, 10000L);
+		}
+	}
+
+	private static byte[][] writeMixedArchive(File archive, ExecutorService executor) throws Exception {
+		return writeMixedArchive(archive, new SquashFsWriterOptions().compressionPool(executor));
+	}
+
+	private static byte[][] writeMixedArchive(File archive, SquashFsWriterOptions options) throws Exception {
+		Random r = new Random(0L);
+		byte[][] contents = new byte[8][];
+		try (SquashFsWriter writer = new SquashFsWriter(archive, options)) {
+			// root directory is otherwise stamped with the current time
+			writer.getFsTree().getRoot().setLastModified(0);
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = new byte[(i * 100_000) + 1234];
+				if (i % 2 == 0) {
+					r.nextBytes(contents[i]);
+				} else {
+					Arrays.fill(contents[i], (byte) i);
+				}
+				writer.entry(String.format("/file-%d.dat", i))
+						.lastModified(0L)
+						.uid(0)
+						.gid(0)
+						.content(contents[i])
+						.permissions((short) 0644)
+						.build();
+			}
+			writer.setModificationTime(0);
+			writer.finish();
+		}
+		return contents;
+	}
+
+	@Test
+	public void archiveWrittenInParallelShouldMatchSerialArchive() throws Exception {
+		File serial = temp.newFile();
+		File parallel = temp.newFile();
+
+		byte[][] contents = writeMixedArchive(serial, (ExecutorService) null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			writeMixedArchive(parallel, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		try (SquashFsReader reader = createReader(parallel)) {
+			for (int i = 0; i < contents.length; i++) {
+				INode file = reader.findInodeByPath(String.format("/file-%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content for file %d", i), contents[i], bos.toByteArray());
+				}
+			}
+		}
+
+		assertArrayEquals("images differ", Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+	}
+
+	@Test
+	public void archiveWrittenWithWriterThreadShouldMatchSerialArchive() throws Exception {
+		File serialMixed = temp.newFile();
+		File threadedMixed = temp.newFile();
+		File serialSmall = temp.newFile();
+		File threadedSmall = temp.newFile();
+		File serialDuplicate = temp.newFile();
+		File threadedDuplicate = temp.newFile();
+
+		writeMixedArchive(serialMixed, (ExecutorService) null);
+		writeManySmallFilesArchive(serialSmall, (ExecutorService) null);
+		byte[][] contents = writeDuplicateArchive(serialDuplicate, new SquashFsWriterOptions().deduplicateFiles(false),
+				6L, 0L);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			writeMixedArchive(threadedMixed,
+					new SquashFsWriterOptions().compressionPool(executor).maxPendingBlocks(2).writerThread(true));
+			writeManySmallFilesArchive(threadedSmall,
+					new SquashFsWriterOptions().compressionPool(executor).writerThread(true));
+			writeDuplicateArchive(threadedDuplicate,
+					new SquashFsWriterOptions().compressionPool(executor).deduplicateFiles(false).writerThread(true), 6L,
+					0L);
+		} finally {
+			executor.shutdownNow();
+		}
+		verifyDuplicateArchive(threadedDuplicate, contents);
+
+		assertArrayEquals("mixed images differ", Files.readAllBytes(serialMixed.toPath()),
+				Files.readAllBytes(threadedMixed.toPath()));
+		assertArrayEquals("small file images differ", Files.readAllBytes(serialSmall.toPath()),
+				Files.readAllBytes(threadedSmall.toPath()));
+		assertArrayEquals("duplicate images differ", Files.readAllBytes(serialDuplicate.toPath()),
+				Files.readAllBytes(threadedDuplicate.toPath()));
+	}
+
+	private static byte[][] writeManySmallFilesArchive(File archive, ExecutorService executor) throws Exception {
+		return writeManySmallFilesArchive(archive, new SquashFsWriterOptions().compressionPool(executor));
+	}
+
+	private static byte[][] writeManySmallFilesArchive(File archive, SquashFsWriterOptions options) throws Exception {
+		Random r = new Random(0L);
+		byte[][] contents = new byte[3000][];
+		try (SquashFsWriter writer = new SquashFsWriter(archive, options)) {
+			// root directory is otherwise stamped with the current time
+			writer.getFsTree().getRoot().setLastModified(0);
+			for (int d = 0; d < 30; d++) {
+				writer.entry(String.format("/dir-%02d", d))
+						.directory()
+						.lastModified(0L)
+						.uid(0)
+						.gid(0)
+						.permissions((short) 0755)
+						.build();
+				writer.entry(String.format("/dir-%02d/empty", d))
+						.directory()
+						.lastModified(0L)
+						.uid(0)
+						.gid(0)
+						.permissions((short) 0755)
+						.build();
+			}
+			for (int i = 0; i < contents.length; i++) {
+				contents[i] = new byte[r.nextInt(2000) + 1];
+				if (i % 3 == 0) {
+					r.nextBytes(contents[i]);
+				} else {
+					Arrays.fill(contents[i], (byte) i);
+				}
+				writer.entry(String.format("/dir-%02d/file-with-a-longer-name-%04d.dat", i % 30, i))
+						.lastModified(0L)
+						.uid(i % 7)
+						.gid(i % 5)
+						.content(contents[i])
+						.permissions((short) 0644)
+						.build();
+			}
+			writer.setModificationTime(0);
+			writer.finish();
+		}
+		return contents;
+	}
+
+	@Test
+	public void archiveWithManySmallFilesWrittenInParallelShouldMatchSerialArchive() throws Exception {
+		File serial = temp.newFile();
+		File parallel = temp.newFile();
+
+		byte[][] contents = writeManySmallFilesArchive(serial, (ExecutorService) null);
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			writeManySmallFilesArchive(parallel, executor);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		try (SquashFsReader reader = createReader(parallel)) {
+			assertTrue("inode table too small", reader.getSuperBlock().getDirectoryTableStart()
+					- reader.getSuperBlock().getInodeTableStart() > 16384);
+			for (int i = 0; i < contents.length; i += 37) {
+				INode file = reader.findInodeByPath(String.format("/dir-%02d/file-with-a-longer-name-%04d.dat", i % 30, i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content for file %d", i), contents[i], bos.toByteArray());
+				}
+			}
+			assertEquals("wrong child count", 0, reader.getChildren(reader.findInodeByPath("/dir-29/empty")).size());
+		}
+
+		assertArrayEquals("images differ", Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+	}
+
+	@Test
+	public void archiveWithSpilledMetadataShouldMatchInMemoryArchive() throws Exception {
+		File inMemory = temp.newFile();
+		File spilledSerial = temp.newFile();
+		File spilledParallel = temp.newFile();
+		File spillDir = temp.newFolder();
+
+		byte[][] contents = writeManySmallFilesArchive(inMemory, (ExecutorService) null);
+		writeManySmallFilesArchive(spilledSerial,
+				new SquashFsWriterOptions().maxMetadataMemory(8192).metadataSpillDirectory(spillDir));
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			writeManySmallFilesArchive(spilledParallel, new SquashFsWriterOptions()
+					.compressionPool(executor)
+					.maxMetadataMemory(8192)
+					.metadataSpillDirectory(spillDir));
+		} finally {
+			executor.shutdownNow();
+		}
+		assertEquals("spill files not removed", 0, spillDir.list().length);
+
+		try (SquashFsReader reader = createReader(spilledParallel)) {
+			for (int i = 0; i < contents.length; i += 37) {
+				INode file = reader.findInodeByPath(String.format("/dir-%02d/file-with-a-longer-name-%04d.dat", i % 30, i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content for file %d", i), contents[i], bos.toByteArray());
+				}
+			}
+		}
+
+		byte[] expected = Files.readAllBytes(inMemory.toPath());
+		assertArrayEquals("serial images differ", expected, Files.readAllBytes(spilledSerial.toPath()));
+		assertArrayEquals("parallel images differ", expected, Files.readAllBytes(spilledParallel.toPath()));
+	}
+
+	@Test
+	public void archiveWrittenWithFastLaunchProfileShouldRecordCompressorOptions() throws Exception {
+		File archive = temp.newFile();
+		File reference = temp.newFile();
+
+		byte[][] contents = writeMixedArchive(reference, (ExecutorService) null);
+		try (SquashFsWriter writer = new SquashFsWriter(archive, SquashFsWriterOptions.forProfile("fast-launch"))) {
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file-%d.dat", i))
+						.uid(0)
+						.gid(0)
+						.content(contents[i])
+						.permissions((short) 0644)
+						.build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			assertTrue("compressor options not set", reader.getSuperBlock().hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+			for (int i = 0; i < contents.length; i++) {
+				INode file = reader.findInodeByPath(String.format("/file-%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content for file %d", i), contents[i], bos.toByteArray());
+				}
+			}
+		}
+
+		ByteBuffer options = ByteBuffer.wrap(Files.readAllBytes(archive.toPath()), SuperBlock.SIZE, 10)
+				.order(ByteOrder.LITTLE_ENDIAN);
+		assertEquals("wrong options header", (short) (0x8000 | 8), options.getShort());
+		assertEquals("wrong level", 1, options.getInt());
+		assertEquals("wrong window size", (short) 15, options.getShort());
+		assertEquals("wrong strategy", (short) 0, options.getShort());
+
+		try (SquashFsReader reader = createReader(reference)) {
+			assertFalse("compressor options set", reader.getSuperBlock().hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+		}
+	}
+
+	private static long writeRandomArchive(File archive, SquashFsWriterOptions options, byte[] content) throws Exception {
+		try (SquashFsWriter writer = new SquashFsWriter(archive, options)) {
+			writer.getFsTree().getRoot().setLastModified(0);
+			writer.entry("/random.dat")
+					.lastModified(0L)
+					.uid(0)
+					.gid(0)
+					.content(content)
+					.permissions((short) 0644)
+					.build();
+			writer.setModificationTime(0);
+			writer.finish();
+			return writer.getSkippedBlockCount();
+		}
+	}
+
+	@Test
+	public void incompressibleBlocksShouldBeStoredWithoutCompressing() throws Exception {
+		File archive = temp.newFile();
+		File compressed = temp.newFile();
+		byte[] content = new byte[(SuperBlock.DEFAULT_BLOCK_SIZE * 4) + 1000];
+		new Random(0L).nextBytes(content);
+
+		assertEquals("wrong skipped count", 4L,
+				writeRandomArchive(archive, new SquashFsWriterOptions().skipIncompressibleBlocks(true), content));
+		assertEquals("wrong skipped count", 0L, writeRandomArchive(compressed, new SquashFsWriterOptions(), content));
+
+		try (SquashFsReader reader = createReader(archive)) {
+			FileINode file = (FileINode) reader.findInodeByPath("/random.dat");
+			for (int size : file.getBlockSizes()) {
+				assertTrue("block compressed", (size & 0x1000000) != 0);
+			}
+			try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+				reader.writeFileStream(file, bos);
+				assertArrayEquals("wrong content", content, bos.toByteArray());
+			}
+		}
+
+		assertArrayEquals("images differ", Files.readAllBytes(compressed.toPath()), Files.readAllBytes(archive.toPath()));
+	}
+
+	private static byte[][] writeDuplicateArchive(File archive, SquashFsWriterOptions options, long expectedBlocks,
+			long expectedFiles) throws Exception {
+		Random random = new Random(0L);
+		byte[] shared = new byte[SuperBlock.DEFAULT_BLOCK_SIZE * 3];
+		random.nextBytes(shared);
+		byte[] diverging = Arrays.copyOf(shared, shared.length + SuperBlock.DEFAULT_BLOCK_SIZE + 100);
+		Arrays.fill(diverging, SuperBlock.DEFAULT_BLOCK_SIZE * 2, diverging.length, (byte) 7);
+
+		byte[][] contents = new byte[][] { shared, shared.clone(), diverging, shared.clone() };
+		try (SquashFsWriter writer = new SquashFsWriter(archive, options)) {
+			writer.getFsTree().getRoot().setLastModified(0);
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file-%d", i))
+						.lastModified(0L)
+						.uid(0)
+						.gid(0)
+						.content(contents[i])
+						.permissions((short) 0644)
+						.build();
+			}
+			writer.setModificationTime(0);
+			writer.finish();
+			assertEquals("wrong deduplicated block count", expectedBlocks, writer.getDeduplicatedBlockCount());
+			assertEquals("wrong deduplicated file count", expectedFiles, writer.getDeduplicatedFileCount());
+		}
+		return contents;
+	}
+
+	private void verifyDuplicateArchive(File archive, byte[][] contents) throws Exception {
+		try (SquashFsReader reader = createReader(archive)) {
+			FileINode first = (FileINode) reader.findInodeByPath("/file-0");
+			for (int i = 0; i < contents.length; i++) {
+				FileINode file = (FileINode) reader.findInodeByPath(String.format("/file-%d", i));
+				if (i != 2) {
+					assertEquals(String.format("file %d not shared", i), first.getBlocksStart(), file.getBlocksStart());
+				}
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals(String.format("wrong content for file %d", i), contents[i], bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void duplicateBlocksShouldBeStoredOnce() throws Exception {
+		File archive = temp.newFile();
+		File reference = temp.newFile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		byte[][] contents;
+		try {
+			contents = writeDuplicateArchive(archive,
+					new SquashFsWriterOptions().compressionPool(executor).deduplicateFiles(false), 6L, 0L);
+			writeDuplicateArchive(reference,
+					new SquashFsWriterOptions().deduplicateBlocks(false).deduplicateFiles(false), 0L, 0L);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertTrue("image not smaller",
+				archive.length() + (SuperBlock.DEFAULT_BLOCK_SIZE * 6L) <= reference.length());
+		verifyDuplicateArchive(archive, contents);
+	}
+
+	@Test
+	public void duplicateFilesShouldShareBlocksAndFragment() throws Exception {
+		File archive = temp.newFile();
+		File blocksOnly = temp.newFile();
+		byte[][] contents = writeDuplicateArchive(archive, new SquashFsWriterOptions(), 0L, 2L);
+		writeDuplicateArchive(blocksOnly, new SquashFsWriterOptions().deduplicateFiles(false), 6L, 0L);
+		verifyDuplicateArchive(archive, contents);
+
+		try (SquashFsReader reader = createReader(archive)) {
+			FileINode first = (FileINode) reader.findInodeByPath("/file-0");
+			FileINode second = (FileINode) reader.findInodeByPath("/file-1");
+			assertArrayEquals("wrong block sizes", first.getBlockSizes(), second.getBlockSizes());
+			assertEquals("wrong fragment index", first.getFragmentBlockIndex(), second.getFragmentBlockIndex());
+			assertEquals("wrong fragment offset", first.getFragmentOffset(), second.getFragmentOffset());
+		}
+
+		// sharing the tail as well means fewer fragment bytes
+		assertTrue("image not smaller", archive.length() <= blocksOnly.length());
+	}
+
+	@Test
+	public void duplicateFilesShouldBeSharedWithoutBlockDeduplication() throws Exception {
+		File archive = temp.newFile();
+		File reference = temp.newFile();
+		byte[][] contents = writeDuplicateArchive(archive, new SquashFsWriterOptions().deduplicateBlocks(false), 0L,
+				2L);
+		writeDuplicateArchive(reference, new SquashFsWriterOptions().deduplicateBlocks(false).deduplicateFiles(false),
+				0L, 0L);
+		verifyDuplicateArchive(archive, contents);
+
+		// the two duplicates are not written again, the diverging file is
+		assertTrue("image not smaller",
+				archive.length() + (SuperBlock.DEFAULT_BLOCK_SIZE * 6L) <= reference.length());
+	}
+
+	@Test
+	public void duplicateSmallFilesShouldShareFragment() throws Exception {
+		File archive = temp.newFile();
+		byte[] content = "same content".getBytes(StandardCharsets.UTF_8);
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (int i = 0; i < 3; i++) {
+				writer.entry(String.format("/small-%d", i)).uid(0).gid(0).content(content).permissions((short) 0644)
+						.build();
+			}
+			writer.entry("/empty").uid(0).gid(0).content(new byte[0]).permissions((short) 0644).build();
+			writer.finish();
+			assertEquals("wrong deduplicated file count", 2L, writer.getDeduplicatedFileCount());
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			for (int i = 0; i < 3; i++) {
+				FileINode file = (FileINode) reader.findInodeByPath(String.format("/small-%d", i));
+				assertEquals("wrong fragment offset", 0, file.getFragmentOffset());
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals("wrong content", content, bos.toByteArray());
+				}
+			}
+			assertEquals("wrong fragment count", 1, reader.getSuperBlock().getFragmentEntryCount());
+		}
+	}
+
+	@Test
+	public void duplicateTailsShouldShareFragment() throws Exception {
+		File archive = temp.newFile();
+		byte[] license = "Licensed under the Apache License, Version 2.0".getBytes(StandardCharsets.UTF_8);
+		byte[][] contents = new byte[3][];
+		for (int i = 0; i < contents.length; i++) {
+			// distinct files sharing only their tail
+			contents[i] = new byte[SuperBlock.DEFAULT_BLOCK_SIZE + license.length];
+			Arrays.fill(contents[i], 0, SuperBlock.DEFAULT_BLOCK_SIZE, (byte) (i + 1));
+			System.arraycopy(license, 0, contents[i], SuperBlock.DEFAULT_BLOCK_SIZE, license.length);
+		}
+
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (int i = 0; i < contents.length; i++) {
+				writer.entry(String.format("/file-%d", i)).uid(0).gid(0).content(contents[i]).permissions((short) 0644)
+						.build();
+			}
+			writer.finish();
+			assertEquals("wrong deduplicated file count", 0L, writer.getDeduplicatedFileCount());
+			assertEquals("wrong deduplicated fragment count", 2L, writer.getDeduplicatedFragmentCount());
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			for (int i = 0; i < contents.length; i++) {
+				FileINode file = (FileINode) reader.findInodeByPath(String.format("/file-%d", i));
+				assertEquals("wrong fragment offset", 0, file.getFragmentOffset());
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(file, bos);
+					assertArrayEquals("wrong content", contents[i], bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	@Test
+	public void directoryPackingShouldGroupTailsOfADirectory() throws Exception {
+		File archive = temp.newFile();
+		Random random = new Random(0L);
+		List<String> paths = new ArrayList<>();
+		for (int d = 0; d < 8; d++) {
+			for (int f = 0; f < 8; f++) {
+				paths.add(String.format("/dir-%d/file-%d", d, f));
+			}
+		}
+		Collections.shuffle(paths, random);
+
+		Map<String, byte[]> contents = new HashMap<>();
+		SquashFsWriterOptions options = new SquashFsWriterOptions()
+				.fragmentPacking(FragmentPackingStrategy.BY_DIRECTORY);
+		try (SquashFsWriter writer = new SquashFsWriter(archive, options)) {
+			for (int d = 0; d < 8; d++) {
+				writer.entry(String.format("/dir-%d", d)).directory().uid(0).gid(0).permissions((short) 0755).build();
+			}
+			for (String path : paths) {
+				byte[] content = new byte[8000 + random.nextInt(8000)];
+				random.nextBytes(content);
+				contents.put(path, content);
+				writer.entry(path).uid(0).gid(0).content(content).permissions((short) 0644).build();
+			}
+			writer.finish();
+		}
+
+		try (SquashFsReader reader = createReader(archive)) {
+			for (int d = 0; d < 8; d++) {
+				Set<Integer> fragments = new HashSet<>();
+				for (int f = 0; f < 8; f++) {
+					String path = String.format("/dir-%d/file-%d", d, f);
+					FileINode file = (FileINode) reader.findInodeByPath(path);
+					fragments.add(file.getFragmentBlockIndex());
+					try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+						reader.writeFileStream(file, bos);
+						assertArrayEquals(String.format("wrong content for %s", path), contents.get(path),
+								bos.toByteArray());
+					}
+				}
+				assertTrue(String.format("directory %d spread over %s", d, fragments), fragments.size() <= 2);
+			}
+		}
+	}
+
+	private void verifyMixedArchive(File archive, byte[][] contents) throws Exception {
+		try (SquashFsReader reader = createReader(archive)) {
+			for (int i = 0; i < contents.length; i++) {
+				INode inode = reader.findInodeByPath(String.format("/file-%d.dat", i));
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(inode, bos);
+					assertArrayEquals(String.format("wrong content for file %d", i), contents[i], bos.toByteArray());
+				}
+			}
+		}
+	}
+
+	private static ByteBuffer compressorOptions(File archive) throws IOException {
+		return ByteBuffer.wrap(Files.readAllBytes(archive.toPath()), SuperBlock.SIZE, 10).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Test
+	public void lz4ArchiveShouldBeReadable() throws Exception {
+		File fast = temp.newFile();
+		File high = temp.newFile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		byte[][] contents;
+		try {
+			contents = writeMixedArchive(fast,
+					new SquashFsWriterOptions().compression(CompressionId.LZ4).compressionPool(executor));
+			writeMixedArchive(high, new SquashFsWriterOptions().compression(CompressionId.LZ4).compressionLevel(9));
+		} finally {
+			executor.shutdownNow();
+		}
+		verifyMixedArchive(fast, contents);
+		verifyMixedArchive(high, contents);
+
+		try (SquashFsReader reader = createReader(fast)) {
+			assertSame("wrong compression", CompressionId.LZ4, reader.getSuperBlock().getCompressionId());
+			assertTrue("compressor options not set", reader.getSuperBlock().hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+		}
+
+		// lz4_comp_opts { version, flags }, which the kernel requires
+		ByteBuffer options = compressorOptions(fast);
+		assertEquals("wrong options header", (short) (0x8000 | 8), options.getShort());
+		assertEquals("wrong version", 1, options.getInt());
+		assertEquals("wrong flags", 0, options.getInt());
+		options = compressorOptions(high);
+		options.getShort();
+		assertEquals("wrong version", 1, options.getInt());
+		assertEquals("wrong flags", 1, options.getInt());
+	}
+
+	@Test
+	public void zstdArchiveShouldBeReadable() throws Exception {
+		File standard = temp.newFile();
+		File high = temp.newFile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		byte[][] contents;
+		try {
+			contents = writeMixedArchive(standard,
+					new SquashFsWriterOptions().compression(CompressionId.ZSTD).compressionPool(executor));
+			writeMixedArchive(high, new SquashFsWriterOptions().compression(CompressionId.ZSTD).compressionLevel(19));
+		} finally {
+			executor.shutdownNow();
+		}
+		verifyMixedArchive(standard, contents);
+		verifyMixedArchive(high, contents);
+
+		// the default level is implied, like mksquashfs
+		try (SquashFsReader reader = createReader(standard)) {
+			assertSame("wrong compression", CompressionId.ZSTD, reader.getSuperBlock().getCompressionId());
+			assertFalse("compressor options set", reader.getSuperBlock().hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+		}
+		try (SquashFsReader reader = createReader(high)) {
+			assertTrue("compressor options not set", reader.getSuperBlock().hasFlag(SuperBlockFlag.COMPRESSOR_OPTIONS));
+		}
+
+		// zstd_comp_opts { compression_level }
+		ByteBuffer options = compressorOptions(high);
+		assertEquals("wrong options header", (short) (0x8000 | 4), options.getShort());
+		assertEquals("wrong level", 19, options.getInt());
+	}
+
+	@Test
+	public void tunedCompressorOptionsShouldRoundTrip() throws Exception {
+		File zlib = temp.newFile();
+		File lz4 = temp.newFile();
+		File zstd = temp.newFile();
+		int strategies = ZlibCompressorOptions.STRATEGY_DEFAULT | ZlibCompressorOptions.STRATEGY_FILTERED;
+		byte[][] contents = writeMixedArchive(zlib,
+				new SquashFsWriterOptions().compressionLevel(6).zlibStrategies(strategies));
+		writeMixedArchive(lz4, new SquashFsWriterOptions().compression(CompressionId.LZ4).compressionLevel(12));
+		writeMixedArchive(zstd, new SquashFsWriterOptions().compression(CompressionId.ZSTD).compressionLevel(5));
+		verifyMixedArchive(zlib, contents);
+		verifyMixedArchive(lz4, contents);
+		verifyMixedArchive(zstd, contents);
+
+		try (SquashFsReader reader = createReader(zlib)) {
+			assertEquals(new ZlibCompressorOptions(6, 15, strategies), CompressionCodecs.readOptions(reader.getSuperBlock()));
+		}
+		try (SquashFsReader reader = createReader(lz4)) {
+			assertEquals(new Lz4CompressorOptions(1, Lz4CompressorOptions.FLAG_HC),
+					CompressionCodecs.readOptions(reader.getSuperBlock()));
+		}
+		try (SquashFsReader reader = createReader(zstd)) {
+			assertEquals(new ZstdCompressorOptions(5), CompressionCodecs.readOptions(reader.getSuperBlock()));
+		}
+	}
+
+	@Test
+	public void archiveWithNonDefaultWindowSizeShouldBeReadable() throws Exception {
+		File archive = temp.newFile();
+		byte[][] contents = writeMixedArchive(archive, new SquashFsWriterOptions().compressionLevel(6));
+
+		// as written by mksquashfs -Xwindow-size 12; inflate does not care
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			raf.seek(SuperBlock.SIZE + 2 + 4);
+			raf.write(new byte[] { 12, 0 });
+		}
+		verifyMixedArchive(archive, contents);
+		try (SquashFsReader reader = createReader(archive)) {
+			assertEquals(new ZlibCompressorOptions(6, 12, 0), CompressionCodecs.readOptions(reader.getSuperBlock()));
+		}
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void archiveWithCorruptCompressorOptionsShouldFail() throws Exception {
+		File archive = temp.newFile();
+		writeMixedArchive(archive, new SquashFsWriterOptions().compressionLevel(6));
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "rw")) {
+			raf.seek(SuperBlock.SIZE + 2 + 4);
+			raf.write(new byte[] { 42, 0 });
+		}
+		try (SquashFsReader reader = createReader(archive)) {
+			reader.getRootInode();
 		}
 	}
 
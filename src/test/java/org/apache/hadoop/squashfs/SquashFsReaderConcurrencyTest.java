@@ -0,0 +1,253 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import org.apache.hadoop.squashfs.data.DataBlockCache;
+import org.apache.hadoop.squashfs.directory.DirectoryEntry;
+import org.apache.hadoop.squashfs.inode.INode;
+import org.apache.hadoop.squashfs.io.MappedFile;
+import org.apache.hadoop.squashfs.metadata.MetadataBlockCache;
+import org.apache.hadoop.squashfs.metadata.TaggedMetadataBlockReader;
+
+@RunWith(Parameterized.class)
+public class SquashFsReaderConcurrencyTest {
+
+	static final int THREADS = 16;
+	static final int OPERATIONS = 400;
+	static final int DIRS = 8;
+	static final int FILES_PER_DIR = 25;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	@Parameters(name = "{0}")
+	public static Collection<Object[]> data() {
+		return Arrays.asList(new Object[][] {
+				{ "file", (SquashFsInteropTest.ReaderCreator) (a -> SquashFsReader.fromFile(0, a)) },
+				{ "file-with-small-cache", (SquashFsInteropTest.ReaderCreator) (a -> createFileReaderWithSmallCache(a)) },
+				{ "file-with-two-tier-cache",
+						(SquashFsInteropTest.ReaderCreator) SquashFsInteropTest::createFileReaderWithTwoTierCache },
+				{ "mapped", (SquashFsInteropTest.ReaderCreator) (a -> createMappedReader(a)) } });
+	}
+
+	// small enough that threads keep evicting each other's blocks
+	static SquashFsReader createFileReaderWithSmallCache(File archive) throws SquashFsException, IOException {
+		MetadataBlockCache cache = new MetadataBlockCache(new TaggedMetadataBlockReader(true), 4);
+		return SquashFsReader.fromFile(0, archive, cache, new DataBlockCache(512L * 1024L, 4),
+				new DataBlockCache(512L * 1024L, 4));
+	}
+
+	static SquashFsReader createMappedReader(File archive) throws SquashFsException, IOException {
+		try (RandomAccessFile raf = new RandomAccessFile(archive, "r")) {
+			MappedFile mmap = MappedFile.mmap(raf.getChannel(), MappedSquashFsReader.PREFERRED_MAP_SIZE,
+					MappedSquashFsReader.PREFERRED_WINDOW_SIZE);
+			return SquashFsReader.fromMappedFile(0, mmap);
+		}
+	}
+
+	private final SquashFsInteropTest.ReaderCreator creator;
+
+	File archive;
+	List<String> paths = new ArrayList<>();
+	List<byte[]> contents = new ArrayList<>();
+
+	public SquashFsReaderConcurrencyTest(String testName, SquashFsInteropTest.ReaderCreator creator) {
+		this.creator = creator;
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		archive = temp.newFile();
+		Random random = new Random(0L);
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			for (int d = 0; d < DIRS; d++) {
+				writer.entry(String.format("/dir-%d", d)).directory().uid(0).gid(0).permissions((short) 0755)
+						.lastModified(0L).build();
+				for (int f = 0; f < FILES_PER_DIR; f++) {
+					// a mix of fragments only, whole blocks and blocks with tails
+					byte[] content = new byte[random.nextInt(4) == 0 ? random.nextInt(400_000) : random.nextInt(5_000)];
+					for (int i = 0; i < content.length; i++) {
+						content[i] = (byte) random.nextInt(16);
+					}
+					String path = String.format("/dir-%d/file-%d", d, f);
+					writer.entry(path).uid(d).gid(f).permissions((short) 0644).lastModified(0L).content(content).build();
+					paths.add(path);
+					contents.add(content);
+				}
+			}
+			writer.finish();
+		}
+	}
+
+	@Test
+	public void concurrentReadsShouldNotInterfere() throws Exception {
+		try (SquashFsReader reader = creator.create(archive)) {
+			CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+			try {
+				List<Future<Integer>> results = new ArrayList<>();
+				for (int t = 0; t < THREADS; t++) {
+					long seed = t;
+					results.add(executor.submit(() -> {
+						start.await();
+						return exercise(reader, new Random(seed));
+					}));
+				}
+				start.countDown();
+
+				int operations = 0;
+				for (Future<Integer> result : results) {
+					operations += result.get(2, TimeUnit.MINUTES);
+				}
+				assertEquals(THREADS * OPERATIONS, operations);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	@Test
+	public void interruptingOneReaderShouldNotFailTheOthers() throws Exception {
+		try (SquashFsReader reader = creator.create(archive)) {
+			CountDownLatch start = new CountDownLatch(1);
+			ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+			try {
+				List<Future<Integer>> results = new ArrayList<>();
+				for (int t = 0; t < THREADS; t++) {
+					long seed = t;
+					results.add(executor.submit(() -> {
+						start.await();
+						return exercise(reader, new Random(seed));
+					}));
+				}
+				Future<Integer> interrupted = executor.submit(() -> {
+					start.await();
+					return interruptRepeatedly(reader, new Random(THREADS));
+				});
+				start.countDown();
+
+				int operations = 0;
+				for (Future<Integer> result : results) {
+					operations += result.get(2, TimeUnit.MINUTES);
+				}
+				assertEquals(THREADS * OPERATIONS, operations);
+				assertEquals(OPERATIONS / 10, interrupted.get(2, TimeUnit.MINUTES).intValue());
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	// a read on an interrupted thread closes a file channel for everyone
+	int interruptRepeatedly(SquashFsReader reader, Random random) throws Exception {
+		int operations = 0;
+		for (int n = 0; n < OPERATIONS / 10; n++) {
+			int i = random.nextInt(paths.size());
+			INode inode = reader.findInodeByPath(paths.get(i));
+			Thread.currentThread().interrupt();
+			try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+				reader.writeFileStream(inode, bos);
+			} catch (IOException e) {
+				// expected when the read reached the channel
+			} finally {
+				Thread.interrupted();
+			}
+
+			// once the interrupt is cleared this thread reads normally again
+			try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+				reader.writeFileStream(inode, bos);
+				assertArrayEquals(paths.get(i), contents.get(i), bos.toByteArray());
+			}
+			operations++;
+		}
+		return operations;
+	}
+
+	int exercise(SquashFsReader reader, Random random) throws Exception {
+		int operations = 0;
+		for (int n = 0; n < OPERATIONS; n++) {
+			int i = random.nextInt(paths.size());
+			String path = paths.get(i);
+			byte[] expected = contents.get(i);
+			INode inode = reader.findInodeByPath(path);
+
+			switch (random.nextInt(4)) {
+			case 0:
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+					reader.writeFileStream(inode, bos);
+					assertArrayEquals(path, expected, bos.toByteArray());
+				}
+				break;
+			case 1:
+				if (expected.length > 0) {
+					int offset = random.nextInt(expected.length);
+					int length = 1 + random.nextInt(Math.min(expected.length - offset, 200_000));
+					byte[] buf = new byte[length];
+					int total = 0;
+					while (total < length) {
+						int c = reader.read(inode, offset + total, buf, total, length - total);
+						assertTrue(path, c > 0);
+						total += c;
+					}
+					assertArrayEquals(path, Arrays.copyOfRange(expected, offset, offset + length), buf);
+				}
+				break;
+			case 2:
+				String dir = path.substring(0, path.lastIndexOf('/'));
+				List<DirectoryEntry> children = reader.getChildren(reader.findInodeByPath(dir));
+				assertEquals(dir, FILES_PER_DIR, children.size());
+				break;
+			default:
+				assertEquals(path, i / FILES_PER_DIR, reader.getIdTable().idFromIndex(inode.getUidIdx()));
+				assertEquals(path, i % FILES_PER_DIR, reader.getIdTable().idFromIndex(inode.getGidIdx()));
+				break;
+			}
+			operations++;
+		}
+		return operations;
+	}
+
+}
@@ -0,0 +1,243 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.squashfs.data.DataBlockRef;
+import org.apache.hadoop.squashfs.inode.FileINode;
+import org.apache.hadoop.squashfs.inode.INodeType;
+
+public class SquashFsTreeTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	SquashFsWriter writer;
+
+	@Before
+	public void setUp() throws Exception {
+		writer = new SquashFsWriter(temp.newFile());
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		writer.close();
+	}
+
+	SquashFsEntry dir(String name) {
+		return writer.entry(name).directory().uid(0).gid(0).permissions((short) 0755).lastModified(0L).build();
+	}
+
+	SquashFsEntry file(String name) throws Exception {
+		return writer.entry(name).uid(0).gid(0).permissions((short) 0644).lastModified(0L).content(new byte[10]).build();
+	}
+
+	@Test
+	public void entriesMayBeAddedBeforeTheirParents() throws Exception {
+		SquashFsEntry leaf = file("/a/b/c.txt");
+		SquashFsEntry b = dir("/a/b");
+		SquashFsEntry a = dir("/a");
+		writer.finish();
+
+		assertEquals(b, leaf.getParent());
+		assertEquals(a, b.getParent());
+		assertEquals(writer.getFsTree().getRoot(), a.getParent());
+		assertEquals("/a/b/c.txt", leaf.getName());
+		assertEquals("c.txt", leaf.getShortName());
+		assertEquals(4, writer.getFsTree().getInodeCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingParentShouldFail() throws Exception {
+		file("/missing/file.txt");
+		writer.finish();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parentWhichIsNotADirectoryShouldFail() throws Exception {
+		file("/file.txt");
+		file("/file.txt/child.txt");
+		writer.finish();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void missingHardlinkTargetShouldFail() throws Exception {
+		writer.entry("/link").hardlink("/nowhere").build();
+		writer.finish();
+	}
+
+	@Test
+	public void childrenShouldBeSortedByNameBytes() throws Exception {
+		file("/b");
+		file("/é");
+		file("/a");
+		file("/B");
+		file("/ab");
+		writer.finish();
+
+		List<String> names = writer.getFsTree().getRoot().getChildren().stream().map(SquashFsEntry::getShortName)
+				.collect(Collectors.toList());
+		assertEquals(List.of("B", "a", "ab", "b", "é"), names);
+	}
+
+	@Test
+	public void namesWrittenAlikeShouldKeepBothEntries() throws Exception {
+		SquashFsEntry japan = file("/日本");
+		SquashFsEntry china = file("/中国");
+		writer.finish();
+
+		assertNotSame(japan.getInode(), china.getInode());
+		assertEquals("/日本", japan.getName());
+		assertEquals("/中国", china.getName());
+		assertEquals(2, writer.getFsTree().getRoot().getChildren().size());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void addingAnExistingEntryShouldFail() throws Exception {
+		file("/file.txt");
+		file("/file.txt");
+	}
+
+	@Test
+	public void syntheticEntryShouldBeReplacedByRealOne() throws Exception {
+		SquashFsEntry synthetic = writer.entry("/dir").directory().synthetic().uid(0).gid(0)
+				.permissions((short) 0755).build();
+		SquashFsEntry real = dir("/dir");
+		assertEquals(synthetic, real);
+		assertFalse(real.isSynthetic());
+
+		SquashFsEntry ignored = writer.entry("/dir").directory().synthetic().uid(0).gid(0)
+				.permissions((short) 0700).build();
+		assertEquals(real, ignored);
+		assertFalse(ignored.isSynthetic());
+	}
+
+	@Test
+	public void inodesShouldBeAvailableOnlyAfterBuild() throws Exception {
+		SquashFsEntry entry = file("/file.txt");
+		assertNull(entry.getInode());
+		assertTrue(entry.getChildren().isEmpty());
+		writer.finish();
+
+		assertSame(INodeType.BASIC_FILE, entry.getInode().getInodeType());
+		assertEquals(entry.getInodeNumber(), entry.getInode().getInodeNumber());
+		assertEquals(1, entry.getInodeNumber());
+		assertEquals(2, writer.getFsTree().getRoot().getInodeNumber());
+		assertEquals(3, writer.getFsTree().getRoot().getNlink());
+	}
+
+	@Test
+	public void blockSizesShouldBePacked() throws Exception {
+		SquashFsEntry entry = writer.entry("/big.dat").file().fileSize(300000L).uid(0).gid(0)
+				.permissions((short) 0644).lastModified(0L)
+				.dataBlock(new DataBlockRef(96L, 131072, 1000, true, false))
+				.dataBlock(new DataBlockRef(1096L, 131072, 131072, false, false))
+				.dataBlock(new DataBlockRef(132168L, 37856, 0, false, true))
+				.build();
+		writer.finish();
+
+		List<DataBlockRef> blocks = entry.getDataBlocks();
+		assertEquals(3, blocks.size());
+		assertEquals(96L, blocks.get(0).getLocation());
+		assertEquals(1000, blocks.get(0).getPhysicalSize());
+		assertTrue(blocks.get(0).isCompressed());
+		assertEquals(1096L, blocks.get(1).getLocation());
+		assertFalse(blocks.get(1).isCompressed());
+		assertTrue(blocks.get(2).isSparse());
+		assertEquals(37856, blocks.get(2).getLogicalSize());
+
+		FileINode inode = (FileINode) entry.getInode();
+		assertEquals(96L, inode.getBlocksStart());
+		assertEquals(37856L, inode.getSparse());
+		assertEquals(3, inode.getBlockSizes().length);
+		assertEquals(131072 | 0x1_000_000, inode.getBlockSizes()[1]);
+	}
+
+	@Test
+	public void linksAndDevicesShouldKeepTheirAttributes() throws Exception {
+		SquashFsEntry target = file("/target.txt");
+		SquashFsEntry symlink = writer.entry("/link").symlink("target.txt").uid(0).gid(0)
+				.permissions((short) 0777).lastModified(0L).build();
+		SquashFsEntry first = writer.entry("/first").hardlink("/target.txt").build();
+		SquashFsEntry second = writer.entry("/second").hardlink("/target.txt").build();
+		SquashFsEntry device = writer.entry("/tty").charDev(4, 1 << 18).uid(0).gid(0).permissions((short) 0620)
+				.lastModified(0L).build();
+		writer.finish();
+
+		assertEquals("target.txt", symlink.getSymlinkTarget());
+		assertNull(target.getSymlinkTarget());
+		assertEquals("/target.txt", first.getHardlinkTarget());
+		assertEquals(target, first.getHardlinkEntry());
+		assertEquals(target, second.getHardlinkEntry());
+		assertNull(target.getHardlinkEntry());
+		assertEquals(target.getInodeNumber(), second.getInodeNumber());
+		assertEquals(3, target.getNlink());
+		assertEquals(3, first.getNlink());
+		assertEquals(1, symlink.getNlink());
+		assertEquals(4, device.getMajor());
+		assertEquals(1 << 18, device.getMinor());
+		assertEquals(0, target.getMajor());
+	}
+
+	@Test
+	public void manyEntriesShouldKeepTheirAttributes() throws Exception {
+		for (int d = 0; d < 20; d++) {
+			dir(String.format("/d%02d", d));
+		}
+		for (int i = 0; i < 20000; i++) {
+			writer.entry(String.format("/d%02d/f%05d", i % 20, i)).file().fileSize(0L).uid(i % 5).gid(0)
+					.permissions((short) 0644).lastModified(i * 1000L).build();
+		}
+		writer.finish();
+
+		SquashFsTree tree = writer.getFsTree();
+		assertEquals(20021, tree.getInodeCount());
+		List<SquashFsEntry> dirs = tree.getRoot().getChildren();
+		assertEquals(20, dirs.size());
+		for (SquashFsEntry d : dirs) {
+			List<SquashFsEntry> files = d.getChildren();
+			assertEquals(1000, files.size());
+			for (int j = 1; j < files.size(); j++) {
+				assertTrue(files.get(j - 1).getShortName().compareTo(files.get(j).getShortName()) < 0);
+			}
+			for (SquashFsEntry f : files) {
+				int i = Integer.parseInt(f.getShortName().substring(1));
+				assertEquals(String.format("/d%02d/f%05d", i % 20, i), f.getName());
+				assertEquals(i, f.getLastModified());
+				assertEquals(i % 5, f.getInode().getUidIdx());
+			}
+		}
+	}
+
+}
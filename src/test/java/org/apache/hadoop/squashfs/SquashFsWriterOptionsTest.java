@@ -0,0 +1,248 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import org.apache.hadoop.squashfs.compression.CompressionCodecs;
+import org.apache.hadoop.squashfs.compression.CompressionCodecs.Effort;
+import org.apache.hadoop.squashfs.compression.Lz4CompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZlibCompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZstdCompressorOptions;
+import org.apache.hadoop.squashfs.data.FragmentPackingStrategy;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+public class SquashFsWriterOptionsTest {
+
+	@Test
+	public void defaultsShouldUseBestCompression() {
+		SquashFsWriterOptions options = new SquashFsWriterOptions();
+		assertNull(options.getCompressionPool());
+		assertEquals(9, options.getDataCompressionLevel());
+		assertEquals(9, options.getFragmentCompressionLevel());
+		assertEquals(9, options.getMetadataCompressionLevel());
+		assertFalse(options.isSkipIncompressibleBlocks());
+	}
+
+	@Test
+	public void fastLaunchProfileShouldLowerDataLevels() {
+		SquashFsWriterOptions options = SquashFsWriterOptions.forProfile("fast-launch");
+		assertEquals(1, options.getDataCompressionLevel());
+		assertEquals(1, options.getFragmentCompressionLevel());
+		assertEquals(9, options.getMetadataCompressionLevel());
+		assertTrue(options.isSkipIncompressibleBlocks());
+	}
+
+	@Test
+	public void archivalProfileShouldUseBestCompression() {
+		SquashFsWriterOptions options = SquashFsWriterOptions.forProfile("archival");
+		assertEquals(9, options.getDataCompressionLevel());
+		assertEquals(9, options.getFragmentCompressionLevel());
+		assertEquals(9, options.getMetadataCompressionLevel());
+		assertFalse(options.isSkipIncompressibleBlocks());
+		assertSame(FragmentPackingStrategy.BY_EXTENSION, options.getFragmentPacking());
+		assertTrue(options.getMaxBufferedFragmentBytes() > new SquashFsWriterOptions().getMaxBufferedFragmentBytes());
+		assertNotEquals(new SquashFsWriterOptions().toString(), options.toString());
+	}
+
+	@Test
+	public void profilesShouldFollowSelectedCompression() {
+		for (CompressionId id : new CompressionId[] { CompressionId.ZLIB, CompressionId.LZ4, CompressionId.ZSTD }) {
+			int fastest = CompressionCodecs.fastestLevel(id);
+			int standard = CompressionCodecs.defaultLevel(id);
+			int max = CompressionCodecs.maxLevel(id);
+
+			SquashFsWriterOptions options = SquashFsWriterOptions.forProfile("default").compression(id);
+			assertLevels(id + "/default", options, standard, standard, standard);
+
+			options = SquashFsWriterOptions.forProfile("fast-launch").compression(id);
+			assertLevels(id + "/fast-launch", options, fastest, fastest, standard);
+
+			options = SquashFsWriterOptions.forProfile("archival").compression(id);
+			assertLevels(id + "/archival", options, max, max, max);
+		}
+	}
+
+	@Test
+	public void fastLaunchWithLz4ShouldUseFastCompressor() {
+		SquashFsWriterOptions options = SquashFsWriterOptions.forProfile("fast-launch").compression(CompressionId.LZ4);
+		assertEquals(0, options.getDataCompressionLevel());
+		assertFalse(((Lz4CompressorOptions) options.getCompressorOptions()).isHighCompression());
+	}
+
+	@Test
+	public void archivalWithZstdShouldUseMaxLevel() {
+		SquashFsWriterOptions options = SquashFsWriterOptions.forProfile("archival").compression(CompressionId.ZSTD);
+		assertEquals(22, ((ZstdCompressorOptions) options.getCompressorOptions()).getLevel());
+	}
+
+	@Test
+	public void explicitLevelShouldOverrideEffort() {
+		SquashFsWriterOptions options = SquashFsWriterOptions.forProfile("archival").dataCompressionLevel(5);
+		assertEquals(5, options.getDataCompressionLevel());
+		assertEquals(9, options.getFragmentCompressionLevel());
+		options.dataCompressionEffort(Effort.FASTEST);
+		assertEquals(1, options.getDataCompressionLevel());
+	}
+
+	static void assertLevels(String message, SquashFsWriterOptions options, int data, int fragment, int metadata) {
+		assertEquals(message + " data", data, options.getDataCompressionLevel());
+		assertEquals(message + " fragment", fragment, options.getFragmentCompressionLevel());
+		assertEquals(message + " metadata", metadata, options.getMetadataCompressionLevel());
+	}
+
+	@Test
+	public void defaultProfileShouldMatchDefaults() {
+		assertEquals(new SquashFsWriterOptions().toString(), SquashFsWriterOptions.forProfile("default").toString());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownProfileShouldFail() {
+		SquashFsWriterOptions.forProfile("bogus");
+	}
+
+	@Test
+	public void compressionLevelShouldSetAllLevels() {
+		SquashFsWriterOptions options = new SquashFsWriterOptions().compressionLevel(3);
+		assertEquals(3, options.getDataCompressionLevel());
+		assertEquals(3, options.getFragmentCompressionLevel());
+		assertEquals(3, options.getMetadataCompressionLevel());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void negativeCompressionLevelShouldFail() {
+		new SquashFsWriterOptions().dataCompressionLevel(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tooLargeCompressionLevelShouldFail() {
+		new SquashFsWriterOptions().metadataCompressionLevel(10);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroMaxPendingBlocksShouldFail() {
+		new SquashFsWriterOptions().maxPendingBlocks(0);
+	}
+
+	@Test
+	public void compressionPoolShouldBeRetained() {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			SquashFsWriterOptions options = new SquashFsWriterOptions().compressionPool(executor).maxPendingBlocks(5);
+			assertSame(executor, options.getCompressionPool());
+			assertEquals(5, options.getMaxPendingBlocks());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void writerThreadShouldDefaultToOff() {
+		assertFalse(new SquashFsWriterOptions().isWriterThread());
+		assertTrue(new SquashFsWriterOptions().writerThread(true).isWriterThread());
+	}
+
+	@Test
+	public void toStringShouldNotFail() {
+		assertNotNull(new SquashFsWriterOptions().toString());
+	}
+
+	@Test
+	public void lz4ShouldDefaultToFastCompressor() {
+		SquashFsWriterOptions options = new SquashFsWriterOptions().compression(CompressionId.LZ4);
+		assertSame(CompressionId.LZ4, options.getCompression());
+		assertEquals(0, options.getDataCompressionLevel());
+		assertEquals(0, options.getMetadataCompressionLevel());
+		assertEquals(12, options.dataCompressionLevel(12).getDataCompressionLevel());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void levelInvalidForNewCompressionShouldFail() {
+		new SquashFsWriterOptions().compression(CompressionId.LZ4).dataCompressionLevel(12).compression(CompressionId.ZLIB);
+	}
+
+	@Test
+	public void zstdShouldUseItsOwnLevels() {
+		SquashFsWriterOptions options = new SquashFsWriterOptions().compression(CompressionId.ZSTD);
+		assertSame(CompressionId.ZSTD, options.getCompression());
+		assertEquals(15, options.getDataCompressionLevel());
+		assertEquals(15, options.getMetadataCompressionLevel());
+		assertEquals(22, options.dataCompressionLevel(22).getDataCompressionLevel());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zstdLevelZeroShouldFail() {
+		new SquashFsWriterOptions().compression(CompressionId.ZSTD).dataCompressionLevel(0);
+	}
+
+	@Test
+	public void compressorOptionsShouldFollowSettings() {
+		assertTrue(new SquashFsWriterOptions().getCompressorOptions().isImplied());
+		assertEquals(new ZlibCompressorOptions(6, 15, ZlibCompressorOptions.STRATEGY_FILTERED),
+				new SquashFsWriterOptions().dataCompressionLevel(6)
+						.zlibStrategies(ZlibCompressorOptions.STRATEGY_FILTERED).getCompressorOptions());
+		assertEquals(new Lz4CompressorOptions(1, Lz4CompressorOptions.FLAG_HC),
+				new SquashFsWriterOptions().compression(CompressionId.LZ4).dataCompressionLevel(9).getCompressorOptions());
+		assertEquals(new ZstdCompressorOptions(3),
+				new SquashFsWriterOptions().compression(CompressionId.ZSTD).dataCompressionLevel(3).getCompressorOptions());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zlibStrategiesShouldFailForOtherCompression() {
+		new SquashFsWriterOptions().compression(CompressionId.LZ4).zlibStrategies(ZlibCompressorOptions.STRATEGY_FILTERED);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void switchingCompressionShouldFailIfZlibStrategiesSet() {
+		new SquashFsWriterOptions().zlibStrategies(ZlibCompressorOptions.STRATEGY_FILTERED).compression(CompressionId.ZSTD);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedZlibStrategyShouldFail() {
+		new SquashFsWriterOptions().zlibStrategies(ZlibCompressorOptions.STRATEGY_FIXED);
+	}
+
+	@Test
+	public void maxMetadataMemoryShouldDefaultToUnlimited() {
+		assertEquals(Long.MAX_VALUE, new SquashFsWriterOptions().getMaxMetadataMemory());
+		assertEquals(65536L, new SquashFsWriterOptions().maxMetadataMemory(65536L).getMaxMetadataMemory());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroMaxMetadataMemoryShouldFail() {
+		new SquashFsWriterOptions().maxMetadataMemory(0L);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unsupportedCompressionShouldFail() {
+		new SquashFsWriterOptions().compression(CompressionId.LZO);
+	}
+
+}
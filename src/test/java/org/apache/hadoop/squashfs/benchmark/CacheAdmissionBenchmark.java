@@ -0,0 +1,219 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.benchmark;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.apache.hadoop.squashfs.data.DataBlock;
+import org.apache.hadoop.squashfs.data.DataBlockCache;
+
+/*
+ * Replays a synthetic block trace through a data block cache under each
+ * admission policy. Point reads follow a Zipf distribution over small
+ * fragment and file blocks whose total size is several times the cache;
+ * scans read a 2 GiB file front to back in full blocks. Workloads:
+ *
+ *   points - point reads only
+ *   burst  - point reads, one full scan, then point reads again
+ *   mixed  - one scan block after every three point reads
+ *
+ * Besides the replay time, each trial reports the overall hit ratio and
+ * the hit ratio of the point reads. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.apache.hadoop.squashfs.benchmark.CacheAdmissionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CacheAdmissionBenchmark {
+
+	static final long CACHE_BYTES = 32L * 1024L * 1024L;
+	static final int POINT_BLOCKS = 4096;
+	static final int SCAN_BLOCK_SIZE = 128 * 1024;
+	static final int SCAN_BLOCKS = (int) ((2L << 30) / SCAN_BLOCK_SIZE);
+	static final int POINT_READS = 200_000;
+	static final double ZIPF_EXPONENT = 1.0;
+
+	@Param({ "LRU", "TINY_LFU" })
+	DataBlockCache.Policy policy;
+
+	@Param({ "points", "burst", "mixed" })
+	String workload;
+
+	DataBlockCache.Key[] keys;
+	DataBlock[] blocks;
+	// indexes into keys; point blocks come first
+	int[] trace;
+	long hits;
+	long pointHits;
+	long pointReads;
+	long rejected;
+	boolean loaded;
+
+	@Setup(Level.Trial)
+	public void setup() {
+		Random random = new Random(0L);
+		byte[] data = new byte[SCAN_BLOCK_SIZE];
+		keys = new DataBlockCache.Key[POINT_BLOCKS + SCAN_BLOCKS];
+		blocks = new DataBlock[keys.length];
+		long offset = 0L;
+		for (int i = 0; i < keys.length; i++) {
+			int size = i < POINT_BLOCKS ? 8192 + random.nextInt(56 * 1024) : SCAN_BLOCK_SIZE;
+			keys[i] = new DataBlockCache.Key(0, true, offset, size, size);
+			blocks[i] = new DataBlock(data, size, size);
+			offset += size;
+		}
+		trace = trace(workload, random);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		System.out.printf("%n[%s/%s] hit ratio: %.3f, point read hit ratio: %.3f, rejected: %d%n", policy, workload,
+				hits / (double) trace.length, pointHits / (double) Math.max(1L, pointReads), rejected);
+	}
+
+	@Benchmark
+	public long replay() throws IOException {
+		DataBlockCache cache = new DataBlockCache(CACHE_BYTES, policy);
+		long pointHitCount = 0L;
+		long pointReadCount = 0L;
+		for (int index : trace) {
+			loaded = false;
+			DataBlock block = blocks[index];
+			cache.getOrLoad(keys[index], () -> {
+				loaded = true;
+				return block;
+			});
+			if (index < POINT_BLOCKS) {
+				pointReadCount++;
+				if (!loaded) {
+					pointHitCount++;
+				}
+			}
+		}
+		hits = cache.getCacheHits();
+		pointHits = pointHitCount;
+		pointReads = pointReadCount;
+		rejected = cache.getRejectedCount();
+		return hits;
+	}
+
+	static int[] trace(String workload, Random random) {
+		double[] cumulative = zipf(POINT_BLOCKS, ZIPF_EXPONENT);
+		// popularity unrelated to position in the image
+		int[] ranked = new int[POINT_BLOCKS];
+		for (int i = 0; i < ranked.length; i++) {
+			ranked[i] = i;
+		}
+		for (int i = ranked.length - 1; i > 0; i--) {
+			int j = random.nextInt(i + 1);
+			int t = ranked[i];
+			ranked[i] = ranked[j];
+			ranked[j] = t;
+		}
+
+		int[] trace;
+		int pos = 0;
+		switch (workload) {
+		case "points":
+			trace = new int[POINT_READS];
+			while (pos < trace.length) {
+				trace[pos++] = point(cumulative, ranked, random);
+			}
+			return trace;
+		case "burst":
+			trace = new int[POINT_READS + SCAN_BLOCKS];
+			while (pos < POINT_READS / 2) {
+				trace[pos++] = point(cumulative, ranked, random);
+			}
+			for (int i = 0; i < SCAN_BLOCKS; i++) {
+				trace[pos++] = POINT_BLOCKS + i;
+			}
+			while (pos < trace.length) {
+				trace[pos++] = point(cumulative, ranked, random);
+			}
+			return trace;
+		case "mixed":
+			trace = new int[POINT_READS + POINT_READS / 3];
+			int scan = 0;
+			while (pos < trace.length) {
+				if (pos % 4 == 3) {
+					trace[pos++] = POINT_BLOCKS + scan;
+					scan = (scan + 1) % SCAN_BLOCKS;
+				} else {
+					trace[pos++] = point(cumulative, ranked, random);
+				}
+			}
+			return trace;
+		default:
+			throw new IllegalArgumentException("Unknown workload " + workload);
+		}
+	}
+
+	static int point(double[] cumulative, int[] ranked, Random random) {
+		int rank = Arrays.binarySearch(cumulative, random.nextDouble());
+		if (rank < 0) {
+			rank = -rank - 1;
+		}
+		return ranked[Math.min(rank, ranked.length - 1)];
+	}
+
+	static double[] zipf(int n, double exponent) {
+		double[] cumulative = new double[n];
+		double sum = 0.0;
+		for (int i = 0; i < n; i++) {
+			sum += 1.0 / Math.pow(i + 1, exponent);
+			cumulative[i] = sum;
+		}
+		for (int i = 0; i < n; i++) {
+			cumulative[i] /= sum;
+		}
+		return cumulative;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(CacheAdmissionBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,175 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.benchmark;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.apache.hadoop.squashfs.compression.CompressionCodecs;
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.Decompressor;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+/*
+ * Compresses and decompresses data blocks with each writable codec. The
+ * content is taken from the running JDK (shared libraries, class data,
+ * configuration and legal text), which is close to what a typical
+ * container layer holds; setup prints the resulting compression ratio so
+ * the throughput can be weighed against image size. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.apache.hadoop.squashfs.benchmark.CompressionBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+
+	static final int BLOCK_SIZE = 131072;
+	static final int CORPUS_SIZE = 16 * 1024 * 1024;
+	static final int MAX_BYTES_PER_FILE = 1024 * 1024;
+
+	// codec and level; the first entry of each codec is the default level
+	@Param({ "zlib:9", "zlib:6", "lz4:0", "lz4:9", "zstd:15", "zstd:3", "zstd:19" })
+	String codec;
+
+	Compressor compressor;
+	Decompressor decompressor;
+	byte[][] blocks;
+	byte[][] compressed;
+	int next;
+
+	@Setup
+	public void setup() throws IOException {
+		String[] parts = codec.split(":");
+		CompressionId id = CompressionId.valueOf(parts[0].toUpperCase(Locale.ROOT));
+		compressor = CompressionCodecs.compressor(id, Integer.parseInt(parts[1]));
+		decompressor = CompressionCodecs.decompressor(id);
+
+		blocks = corpus();
+		compressed = new byte[blocks.length][];
+		long total = 0L;
+		long stored = 0L;
+		for (int i = 0; i < blocks.length; i++) {
+			compressed[i] = compressor.compress(blocks[i], 0, BLOCK_SIZE, BLOCK_SIZE);
+			total += BLOCK_SIZE;
+			stored += compressed[i] == null ? BLOCK_SIZE : compressed[i].length;
+		}
+		System.out.printf("%n%s: %d blocks, %d -> %d bytes (ratio %.3f)%n",
+				codec, blocks.length, total, stored, (double) stored / total);
+	}
+
+	@Benchmark
+	public byte[] compress() throws IOException {
+		byte[] block = blocks[next];
+		next = (next + 1) % blocks.length;
+		return compressor.compress(block, 0, BLOCK_SIZE, BLOCK_SIZE);
+	}
+
+	@Benchmark
+	public byte[] decompress() throws IOException {
+		byte[] block;
+		do {
+			block = compressed[next];
+			next = (next + 1) % blocks.length;
+		} while (block == null);
+		return decompressor.decompress(block, 0, block.length, BLOCK_SIZE, BLOCK_SIZE);
+	}
+
+	// the same blocks for every codec, so ratios are comparable
+	static byte[][] corpus() throws IOException {
+		byte[] data = new byte[CORPUS_SIZE];
+		int length = 0;
+		for (Path file : jdkFiles()) {
+			try (InputStream in = Files.newInputStream(file)) {
+				int limit = Math.min(MAX_BYTES_PER_FILE, data.length - length);
+				int c;
+				while (limit > 0 && (c = in.read(data, length, limit)) > 0) {
+					length += c;
+					limit -= c;
+				}
+			}
+			if (length == data.length) {
+				break;
+			}
+		}
+		if (length < BLOCK_SIZE) {
+			// no usable JDK tree; fall back to text-like synthetic content
+			Random r = new Random(0L);
+			for (; length < data.length; length++) {
+				data[length] = (byte) ('a' + r.nextInt(16));
+			}
+		}
+		byte[][] result = new byte[length / BLOCK_SIZE][];
+		for (int i = 0; i < result.length; i++) {
+			result[i] = new byte[BLOCK_SIZE];
+			System.arraycopy(data, i * BLOCK_SIZE, result[i], 0, BLOCK_SIZE);
+		}
+		return result;
+	}
+
+	static List<Path> jdkFiles() {
+		Path home = Paths.get(System.getProperty("java.home"));
+		List<Path> files;
+		try (Stream<Path> s = Files.walk(home)) {
+			files = s.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+		} catch (IOException | RuntimeException e) {
+			return Collections.emptyList();
+		}
+		// interleave kinds of content instead of reading one directory first
+		List<Path> result = new ArrayList<>(files);
+		Collections.shuffle(result, new Random(0L));
+		return result;
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(CompressionBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,199 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.apache.hadoop.squashfs.SquashFsReader;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.SquashFsWriterOptions;
+import org.apache.hadoop.squashfs.data.DataBlockCache;
+import org.apache.hadoop.squashfs.data.FragmentPackingStrategy;
+import org.apache.hadoop.squashfs.directory.DirectoryEntry;
+import org.apache.hadoop.squashfs.inode.FileINode;
+import org.apache.hadoop.squashfs.inode.INode;
+import org.apache.hadoop.squashfs.metadata.MetadataBlockCache;
+import org.apache.hadoop.squashfs.metadata.TaggedMetadataBlockReader;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+
+/*
+ * Reads every file of one directory at a time ("ls -l && cat *") from an
+ * image whose small files arrived in shuffled order, as they do when
+ * layers are flattened. Besides the read rate, each trial reports the
+ * fragment blocks touched per directory read and the image size. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.apache.hadoop.squashfs.benchmark.FragmentPackingBenchmark
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FragmentPackingBenchmark {
+
+	static final int DIRECTORIES = 64;
+	static final int FILES_PER_DIRECTORY = 24;
+	static final String[] EXTENSIONS = { "conf", "json", "txt" };
+
+	@Param({ FragmentPackingStrategy.ARRIVAL, FragmentPackingStrategy.DIRECTORY, FragmentPackingStrategy.EXTENSION })
+	String packing;
+
+	File image;
+	SquashFsReader reader;
+	DataBlockCache fragmentCache;
+	List<INode> directories;
+	int next;
+	long directoriesRead;
+	long fragmentsTouched;
+
+	@Setup(Level.Trial)
+	public void setup() throws Exception {
+		image = File.createTempFile("fragment-packing", ".sfs");
+		writeImage(image, FragmentPackingStrategy.forName(packing));
+
+		long cacheBytes = DIRECTORIES * (long) SuperBlock.DEFAULT_BLOCK_SIZE;
+		fragmentCache = new DataBlockCache(cacheBytes);
+		reader = SquashFsReader.fromFile(0, image, new MetadataBlockCache(new TaggedMetadataBlockReader(true)),
+				new DataBlockCache(cacheBytes), fragmentCache);
+
+		directories = new ArrayList<>();
+		long distinct = 0L;
+		for (DirectoryEntry entry : reader.getChildren(reader.getRootInode())) {
+			INode dir = reader.findInodeByDirectoryEntry(entry);
+			directories.add(dir);
+			Set<Integer> fragments = new HashSet<>();
+			for (DirectoryEntry child : reader.getChildren(dir)) {
+				fragments.add(((FileINode) reader.findInodeByDirectoryEntry(child)).getFragmentBlockIndex());
+			}
+			distinct += fragments.size();
+		}
+		System.out.printf("%n[%s] image size: %d bytes, fragments: %d, distinct fragments per directory: %.2f%n",
+				packing, image.length(), reader.getSuperBlock().getFragmentEntryCount(),
+				distinct / (double) directories.size());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		System.out.printf("%n[%s] fragments touched per directory read: %.2f%n", packing,
+				fragmentsTouched / (double) Math.max(1L, directoriesRead));
+		reader.close();
+		Files.delete(image.toPath());
+	}
+
+	@Benchmark
+	public long readDirectory() throws IOException {
+		INode dir = directories.get(next);
+		next = (next + 1) % directories.size();
+
+		// cold fragment cache for each directory, so misses count fragments;
+		// clearing also resets the statistics
+		fragmentCache.clearCache();
+		long total = 0L;
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		for (DirectoryEntry child : reader.getChildren(dir)) {
+			bos.reset();
+			total += reader.writeFileStream(reader.findInodeByDirectoryEntry(child), bos);
+		}
+		directoriesRead++;
+		fragmentsTouched += fragmentCache.getCacheMisses();
+		return total;
+	}
+
+	static void writeImage(File image, FragmentPackingStrategy packing) throws Exception {
+		Random random = new Random(0L);
+		List<String> paths = new ArrayList<>();
+		for (int d = 0; d < DIRECTORIES; d++) {
+			for (int f = 0; f < FILES_PER_DIRECTORY; f++) {
+				paths.add(String.format("/dir-%02d/file-%02d.%s", d, f, EXTENSIONS[f % EXTENSIONS.length]));
+			}
+		}
+		Collections.shuffle(paths, random);
+
+		SquashFsWriterOptions options = new SquashFsWriterOptions().fragmentPacking(packing);
+		try (SquashFsWriter writer = new SquashFsWriter(image, options)) {
+			for (int d = 0; d < DIRECTORIES; d++) {
+				writer.entry(String.format("/dir-%02d", d)).directory().uid(0).gid(0).permissions((short) 0755)
+						.lastModified(0L).build();
+			}
+			for (String path : paths) {
+				writer.entry(path).uid(0).gid(0).permissions((short) 0644).lastModified(0L)
+						.content(content(path, random)).build();
+			}
+			writer.finish();
+		}
+	}
+
+	// text with a vocabulary per extension, so grouping by type helps
+	static byte[] content(String path, Random random) {
+		String ext = path.substring(path.lastIndexOf('.') + 1);
+		int size = 200 + random.nextInt(3800);
+		StringBuilder sb = new StringBuilder(size + 32);
+		sb.append(path).append('\n');
+		while (sb.length() < size) {
+			int word = random.nextInt(64);
+			switch (ext) {
+			case "conf":
+				sb.append("option_").append(word).append(" = ").append(random.nextInt(1000)).append('\n');
+				break;
+			case "json":
+				sb.append("{\"key").append(word).append("\": [").append(random.nextInt(1000)).append("]},\n");
+				break;
+			default:
+				sb.append("lorem").append(word).append(' ');
+			}
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(FragmentPackingBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
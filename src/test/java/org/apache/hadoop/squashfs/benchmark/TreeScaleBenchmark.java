@@ -0,0 +1,186 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.apache.hadoop.squashfs.SquashFsEntryBuilder;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.SquashFsWriterOptions;
+import org.apache.hadoop.squashfs.data.DataBlockRef;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+/*
+ * Builds the directory tree of a synthetic image with millions of entries:
+ * a few thousand directories two levels deep, each holding files whose
+ * names repeat from one directory to the next, as in source trees and
+ * package caches, with a symlink and a hardlink in every fifty entries.
+ * Only the metadata is written; files point at made-up data blocks. Each
+ * iteration reports the heap retained by the tree once all entries are
+ * added and the peak heap while finishing the image; the timed part is
+ * finish(), which builds the tree and writes the inode and directory
+ * tables. The larger sizes need a big heap. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.apache.hadoop.squashfs.benchmark.TreeScaleBenchmark
+ *
+ * At 5M entries with a 4.5 GiB heap on one core, against the object-per-entry
+ * tree this replaced (same benchmark, LZ4, 1 warmup, 2 measured iterations):
+ *
+ *                           object tree   array tree
+ *   retained after adding      1634 MiB      609 MiB   (2.7x)
+ *   peak while finishing       3433 MiB     1222 MiB   (2.8x)
+ *   finish()                    17.0 s        5.7 s    (3.0x)
+ *
+ * That is well short of an order of magnitude: the object tree already cost
+ * only about 340 bytes per entry, and the array tree still needs about 80
+ * plus the slack left by growing its arrays.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx12g" })
+public class TreeScaleBenchmark {
+
+	static final int FILES_PER_DIRECTORY = 500;
+	static final int DIRECTORIES_PER_PARENT = 50;
+	static final int BLOCK_SIZE = 131072;
+	static final int LINK_INTERVAL = 50;
+
+	@Param({ "1000000", "5000000" })
+	int entries;
+
+	File image;
+	SquashFsWriter writer;
+
+	@Setup(Level.Iteration)
+	public void setup() throws Exception {
+		long baseline = usedHeap();
+		image = File.createTempFile("tree-scale", ".sfs");
+		// the fastest codec, so the tables cost little to compress
+		writer = new SquashFsWriter(image, new SquashFsWriterOptions().compression(CompressionId.LZ4));
+
+		int directories = Math.max(1, entries / FILES_PER_DIRECTORY);
+		int added = 0;
+		for (int d = 0; d < directories && added < entries; d++) {
+			String parent = String.format("/group-%04d", d / DIRECTORIES_PER_PARENT);
+			if (d % DIRECTORIES_PER_PARENT == 0) {
+				writer.entry(parent).directory().uid(0).gid(0).permissions((short) 0755).lastModified(0L).build();
+				added++;
+			}
+			String dir = String.format("%s/module-%04d", parent, d);
+			writer.entry(dir).directory().uid(0).gid(0).permissions((short) 0755).lastModified(0L).build();
+			added++;
+			for (int f = 0; f < FILES_PER_DIRECTORY - 1 && added < entries; f++) {
+				String name = String.format("%s/source-file-%03d.txt", dir, f);
+				if (f % LINK_INTERVAL == LINK_INTERVAL - 1) {
+					writer.entry(name).symlink(String.format("source-file-%03d.txt", f - 1)).uid(0).gid(0)
+							.permissions((short) 0777).lastModified(0L).build();
+					added++;
+					continue;
+				}
+				if (f % LINK_INTERVAL == LINK_INTERVAL / 2) {
+					writer.entry(name).hardlink(String.format("%s/source-file-000.txt", dir)).build();
+					added++;
+					continue;
+				}
+				long size = (f % 10) * 50_000L + 100L;
+				int blocks = (int) (size / BLOCK_SIZE);
+				long location = 96L + ((long) added * BLOCK_SIZE);
+				SquashFsEntryBuilder file = writer.entry(name)
+						.file()
+						.fileSize(size)
+						.uid(f % 3)
+						.gid(0)
+						.permissions((short) 0644)
+						.lastModified(0L);
+				for (int b = 0; b < blocks; b++) {
+					file.dataBlock(new DataBlockRef(location + b * 40_000L, BLOCK_SIZE, 40_000, true, false));
+				}
+				file.build();
+				added++;
+			}
+		}
+
+		System.out.printf("%n[%d] retained heap after adding entries: %d MiB%n", entries,
+				(usedHeap() - baseline) >> 20);
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			pool.resetPeakUsage();
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void tearDown() throws IOException {
+		long peak = 0L;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() == MemoryType.HEAP) {
+				peak += pool.getPeakUsage().getUsed();
+			}
+		}
+		System.out.printf("%n[%d] peak heap while finishing: %d MiB, image size: %d bytes%n", entries, peak >> 20,
+				image.length());
+		writer.close();
+		writer = null;
+		Files.delete(image.toPath());
+	}
+
+	@Benchmark
+	public void finish() throws Exception {
+		writer.finish();
+	}
+
+	static long usedHeap() {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		Runtime rt = Runtime.getRuntime();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(TreeScaleBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
@@ -0,0 +1,137 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
+import org.apache.hadoop.squashfs.compression.ZlibDecompressor;
+
+/*
+ * Compares the stream-based zlib path each call site used to allocate per
+ * block against the pooled codecs. Run with:
+ *
+ *   mvn test-compile exec:java -Dexec.classpathScope=test \
+ *     -Dexec.mainClass=org.apache.hadoop.squashfs.benchmark.ZlibCodecBenchmark
+ *
+ * Adding -prof gc (via the JMH command line) shows the allocation difference.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ZlibCodecBenchmark {
+
+	// metadata block and default data block sizes
+	@Param({ "8192", "131072" })
+	int size;
+
+	byte[] data;
+	byte[] compressed;
+
+	@Setup
+	public void setup() throws IOException {
+		Random r = new Random(0L);
+		data = new byte[size];
+		for (int i = 0; i < size; i++) {
+			data[i] = (byte) ('a' + r.nextInt(16));
+		}
+		compressed = streamCompress(data);
+	}
+
+	@Benchmark
+	public byte[] compressStreams() throws IOException {
+		return streamCompress(data);
+	}
+
+	@Benchmark
+	public byte[] compressPooled() throws IOException {
+		return ZlibCompressor.forLevel(Deflater.BEST_COMPRESSION)
+				.compress(data, 0, data.length, data.length);
+	}
+
+	@Benchmark
+	public byte[] decompressStreams() throws IOException {
+		byte[] xfer = new byte[4096];
+		try (ByteArrayInputStream bis = new ByteArrayInputStream(compressed)) {
+			try (InflaterInputStream iis =
+					new InflaterInputStream(bis, new Inflater(), 4096)) {
+				try (ByteArrayOutputStream bos = new ByteArrayOutputStream(4096)) {
+					int c = 0;
+					while ((c = iis.read(xfer, 0, 4096)) >= 0) {
+						if (c > 0) {
+							bos.write(xfer, 0, c);
+						}
+					}
+					return bos.toByteArray();
+				}
+			}
+		}
+	}
+
+	@Benchmark
+	public byte[] decompressPooled() throws IOException {
+		return ZlibDecompressor.INSTANCE.decompress(
+				compressed, 0, compressed.length, size, size);
+	}
+
+	static byte[] streamCompress(byte[] data) throws IOException {
+		Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			try (DeflaterOutputStream dos = new DeflaterOutputStream(
+					bos, def, 4096)) {
+				dos.write(data, 0, data.length);
+			}
+			return bos.toByteArray();
+		} finally {
+			def.end();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		new Runner(new OptionsBuilder()
+				.include(ZlibCodecBenchmark.class.getSimpleName())
+				.build()).run();
+	}
+
+}
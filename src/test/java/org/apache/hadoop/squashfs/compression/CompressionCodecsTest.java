@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+
+public class CompressionCodecsTest {
+
+	@Test
+	public void decompressorShouldMatchCompressionId() throws Exception {
+		assertSame(ZlibDecompressor.INSTANCE, CompressionCodecs.decompressor(CompressionId.ZLIB));
+		assertSame(Lz4Decompressor.INSTANCE, CompressionCodecs.decompressor(CompressionId.LZ4));
+		assertSame(ZstdDecompressor.INSTANCE, CompressionCodecs.decompressor(CompressionId.ZSTD));
+		assertSame(XzDecompressor.INSTANCE, CompressionCodecs.decompressor(CompressionId.XZ));
+		assertSame(LzmaDecompressor.INSTANCE, CompressionCodecs.decompressor(CompressionId.LZMA));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressorForNoneShouldFail() throws Exception {
+		CompressionCodecs.decompressor(CompressionId.NONE);
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void decompressorForUnsupportedIdShouldFail() throws Exception {
+		CompressionCodecs.decompressor(CompressionId.LZO);
+	}
+
+	@Test
+	public void compressorShouldMatchCompressionId() {
+		assertSame(ZlibCompressor.forLevel(6), CompressionCodecs.compressor(CompressionId.ZLIB, 6));
+		assertSame(Lz4Compressor.forLevel(0), CompressionCodecs.compressor(CompressionId.LZ4, 0));
+		assertSame(ZstdCompressor.forLevel(19), CompressionCodecs.compressor(CompressionId.ZSTD, 19));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void compressorForUnsupportedIdShouldFail() {
+		CompressionCodecs.compressor(CompressionId.LZO, 1);
+	}
+
+	@Test
+	public void levelsShouldDependOnCompressionId() {
+		assertTrue(CompressionCodecs.canWrite(CompressionId.ZLIB));
+		assertTrue(CompressionCodecs.canWrite(CompressionId.LZ4));
+		assertFalse(CompressionCodecs.canWrite(CompressionId.NONE));
+		assertEquals(9, CompressionCodecs.defaultLevel(CompressionId.ZLIB));
+		assertEquals(9, CompressionCodecs.maxLevel(CompressionId.ZLIB));
+		assertEquals(0, CompressionCodecs.defaultLevel(CompressionId.LZ4));
+		assertEquals(Lz4Compressor.MAX_LEVEL, CompressionCodecs.maxLevel(CompressionId.LZ4));
+		assertTrue(CompressionCodecs.canWrite(CompressionId.ZSTD));
+		assertEquals(1, CompressionCodecs.minLevel(CompressionId.ZSTD));
+		assertEquals(15, CompressionCodecs.defaultLevel(CompressionId.ZSTD));
+		assertEquals(22, CompressionCodecs.maxLevel(CompressionId.ZSTD));
+	}
+
+}
@@ -0,0 +1,173 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+
+public class CompressorOptionsTest {
+
+	static SuperBlock superBlock(CompressionId id, byte[] options) {
+		SuperBlock sb = new SuperBlock();
+		sb.setCompressionId(id);
+		sb.setCompressorOptions(options);
+		return sb;
+	}
+
+	static byte[] zlib(int level, int windowSize, int strategies) {
+		return ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
+				.putInt(level).putShort((short) windowSize).putShort((short) strategies).array();
+	}
+
+	@Test
+	public void zlibOptionsShouldRoundTrip() throws Exception {
+		ZlibCompressorOptions options = new ZlibCompressorOptions(6, 12,
+				ZlibCompressorOptions.STRATEGY_DEFAULT | ZlibCompressorOptions.STRATEGY_RUN_LENGTH_ENCODED);
+		assertArrayEquals(zlib(6, 12, 0x09), options.encode());
+		assertEquals(options, ZlibCompressorOptions.decode(options.encode()));
+		assertEquals(options.hashCode(), ZlibCompressorOptions.decode(options.encode()).hashCode());
+		assertSame(CompressionId.ZLIB, options.getCompressionId());
+		assertFalse(options.isImplied());
+		System.out.println(options);
+	}
+
+	@Test
+	public void zlibDefaultsShouldBeImplied() {
+		assertTrue(ZlibCompressorOptions.DEFAULT.isImplied());
+		assertFalse(new ZlibCompressorOptions(9, 15, ZlibCompressorOptions.STRATEGY_FILTERED).isImplied());
+		assertFalse(new ZlibCompressorOptions(9, 14, 0).isImplied());
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void zlibOptionsShouldRejectInvalidWindowSize() throws Exception {
+		ZlibCompressorOptions.decode(zlib(9, 16, 0));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void zlibOptionsShouldRejectInvalidLevel() throws Exception {
+		ZlibCompressorOptions.decode(zlib(10, 15, 0));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void zlibOptionsShouldRejectUnknownStrategies() throws Exception {
+		ZlibCompressorOptions.decode(zlib(9, 15, 0x20));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void zlibOptionsShouldRejectShortBlock() throws Exception {
+		ZlibCompressorOptions.decode(new byte[6]);
+	}
+
+	@Test
+	public void lz4OptionsShouldRoundTrip() throws Exception {
+		Lz4CompressorOptions options = Lz4CompressorOptions.forLevel(9);
+		assertTrue(options.isHighCompression());
+		assertEquals(options, Lz4CompressorOptions.decode(options.encode()));
+		assertFalse(Lz4CompressorOptions.forLevel(Lz4Compressor.FAST_LEVEL).isHighCompression());
+		assertFalse("lz4 options are never implied", Lz4CompressorOptions.DEFAULT.isImplied());
+		System.out.println(options);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void lz4OptionsShouldRejectUnknownVersion() throws Exception {
+		Lz4CompressorOptions.decode(new Lz4CompressorOptions(2, 0).encode());
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void lz4OptionsShouldRejectUnknownFlags() throws Exception {
+		Lz4CompressorOptions.decode(new Lz4CompressorOptions(1, 2).encode());
+	}
+
+	@Test
+	public void zstdOptionsShouldRoundTrip() throws Exception {
+		ZstdCompressorOptions options = new ZstdCompressorOptions(19);
+		assertEquals(options, ZstdCompressorOptions.decode(options.encode()));
+		assertFalse(options.isImplied());
+		assertTrue(ZstdCompressorOptions.DEFAULT.isImplied());
+		System.out.println(options);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void zstdOptionsShouldRejectInvalidLevel() throws Exception {
+		ZstdCompressorOptions.decode(new ZstdCompressorOptions(23).encode());
+	}
+
+	@Test
+	public void xzOptionsShouldRoundTrip() throws Exception {
+		XzCompressorOptions options = new XzCompressorOptions(1 << 20, XzCompressorOptions.FILTER_X86);
+		assertEquals(options, XzCompressorOptions.decode(options.encode()));
+		assertFalse(options.isImplied());
+	}
+
+	@Test
+	public void readOptionsShouldDecodeByCompressionId() throws Exception {
+		assertEquals(new ZlibCompressorOptions(6, 12, 0),
+				CompressionCodecs.readOptions(superBlock(CompressionId.ZLIB, zlib(6, 12, 0))));
+		assertEquals(new Lz4CompressorOptions(1, 1),
+				CompressionCodecs.readOptions(superBlock(CompressionId.LZ4, new Lz4CompressorOptions(1, 1).encode())));
+		assertEquals(new ZstdCompressorOptions(3),
+				CompressionCodecs.readOptions(superBlock(CompressionId.ZSTD, new ZstdCompressorOptions(3).encode())));
+		assertEquals(new XzCompressorOptions(1 << 16, 0),
+				CompressionCodecs.readOptions(superBlock(CompressionId.XZ, new XzCompressorOptions(1 << 16, 0).encode())));
+	}
+
+	@Test
+	public void readOptionsShouldFallBackToDefaults() throws Exception {
+		assertSame(ZlibCompressorOptions.DEFAULT, CompressionCodecs.readOptions(superBlock(CompressionId.ZLIB, null)));
+		assertSame(Lz4CompressorOptions.DEFAULT, CompressionCodecs.readOptions(superBlock(CompressionId.LZ4, null)));
+		assertSame(ZstdCompressorOptions.DEFAULT, CompressionCodecs.readOptions(superBlock(CompressionId.ZSTD, null)));
+		assertEquals(new XzCompressorOptions(SuperBlock.DEFAULT_BLOCK_SIZE, 0),
+				CompressionCodecs.readOptions(superBlock(CompressionId.XZ, null)));
+		assertNull(CompressionCodecs.readOptions(superBlock(CompressionId.LZMA, null)));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressorShouldRejectCorruptOptions() throws Exception {
+		CompressionCodecs.decompressor(superBlock(CompressionId.ZLIB, zlib(9, 20, 0)));
+	}
+
+	@Test
+	public void decompressorShouldAcceptTunedOptions() throws Exception {
+		assertSame(ZlibDecompressor.INSTANCE, CompressionCodecs.decompressor(superBlock(CompressionId.ZLIB, zlib(1, 8, 0x1f))));
+		assertSame(Lz4Decompressor.INSTANCE,
+				CompressionCodecs.decompressor(superBlock(CompressionId.LZ4, Lz4CompressorOptions.forLevel(9).encode())));
+	}
+
+	@Test
+	public void compressorShouldHonorZlibStrategies() {
+		ZlibCompressor compressor = (ZlibCompressor) CompressionCodecs.compressor(
+				new ZlibCompressorOptions(6, 15, ZlibCompressorOptions.STRATEGY_FILTERED), 6);
+		assertEquals(ZlibCompressorOptions.STRATEGY_FILTERED, compressor.getStrategies());
+		assertSame(Lz4Compressor.forLevel(9), CompressionCodecs.compressor(Lz4CompressorOptions.forLevel(9), 9));
+	}
+
+}
@@ -0,0 +1,194 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EntropyCheckingCompressorTest {
+
+	EntropyCheckingCompressor compressor;
+
+	@Before
+	public void setUp() {
+		compressor = new EntropyCheckingCompressor(ZlibCompressor.forLevel(9));
+	}
+
+	static byte[] random(int length) {
+		return random(length, 0L);
+	}
+
+	static byte[] random(int length, long seed) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	// a random block picked for calibration, or one which is not
+	static byte[] randomBlock(boolean calibrated) {
+		for (long seed = 0L;; seed++) {
+			byte[] data = random(131072, seed);
+			if (EntropyCheckingCompressor.isCalibrationSample(data, 0, data.length) == calibrated) {
+				return data;
+			}
+		}
+	}
+
+	@Test
+	public void estimateEntropyOfConstantDataShouldBeZero() {
+		byte[] data = new byte[131072];
+		Arrays.fill(data, (byte) 7);
+		assertEquals(0.0, EntropyCheckingCompressor.estimateEntropy(data, 0, data.length), 0.0001);
+	}
+
+	@Test
+	public void estimateEntropyOfRandomDataShouldBeNearEight() {
+		byte[] data = random(131072);
+		double entropy = EntropyCheckingCompressor.estimateEntropy(data, 0, data.length);
+		assertTrue(String.format("entropy too low: %f", entropy), entropy > 7.9);
+	}
+
+	@Test
+	public void estimateEntropyOfTextShouldBeLow() {
+		byte[] data = new byte[131072];
+		Random r = new Random(0L);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + r.nextInt(26));
+		}
+		double entropy = EntropyCheckingCompressor.estimateEntropy(data, 0, data.length);
+		assertTrue(String.format("entropy too high: %f", entropy), entropy < 5.0);
+	}
+
+	@Test
+	public void estimateEntropyShouldRespectOffset() {
+		byte[] data = random(20000);
+		Arrays.fill(data, 10000, 20000, (byte) 0);
+		assertEquals(0.0, EntropyCheckingCompressor.estimateEntropy(data, 10000, 10000), 0.0001);
+	}
+
+	@Test
+	public void estimateEntropyOfEmptyDataShouldBeZero() {
+		assertEquals(0.0, EntropyCheckingCompressor.estimateEntropy(new byte[0], 0, 0), 0.0001);
+	}
+
+	@Test
+	public void randomDataShouldBeSkipped() throws Exception {
+		byte[] data = randomBlock(false);
+		assertNull(compressor.compress(data, 0, data.length, data.length));
+		assertEquals("wrong skipped count", 1L, compressor.getSkippedBlockCount());
+		assertEquals("wrong skipped bytes", 131072L, compressor.getSkippedBytes());
+		assertEquals("wrong compressed count", 0L, compressor.getCompressedBlockCount());
+	}
+
+	@Test
+	public void compressibleDataShouldMatchDelegate() throws Exception {
+		byte[] data = new byte[131072];
+		Random r = new Random(0L);
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) r.nextInt(16);
+		}
+		byte[] expected = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+		byte[] actual = compressor.compress(data, 0, data.length, data.length);
+		assertNotNull(actual);
+		assertArrayEquals(expected, actual);
+		assertEquals("wrong skipped count", 0L, compressor.getSkippedBlockCount());
+		assertEquals("wrong compressed count", 1L, compressor.getCompressedBlockCount());
+	}
+
+	@Test
+	public void estimatedNanosSavedShouldBeZeroWithoutData() {
+		assertEquals(0L, compressor.getEstimatedNanosSaved());
+	}
+
+	@Test
+	public void repeatedRandomChunkShouldBeCompressed() throws Exception {
+		// byte entropy is that of random data, but deflate finds the repeats
+		byte[] chunk = random(4096);
+		byte[] data = new byte[131072];
+		for (int i = 0; i < data.length; i += chunk.length) {
+			System.arraycopy(chunk, 0, data, i, chunk.length);
+		}
+		assertTrue(EntropyCheckingCompressor.estimateEntropy(data, 0, data.length) > 7.9);
+		byte[] actual = compressor.compress(data, 0, data.length, data.length);
+		assertNotNull("stored raw", actual);
+		assertTrue("too large: " + actual.length, actual.length < 8192);
+		assertEquals("wrong skipped count", 0L, compressor.getSkippedBlockCount());
+	}
+
+	@Test
+	public void calibrationChoiceShouldDependOnContentOnly() {
+		int picked = 0;
+		for (long seed = 0L; seed < 1024L; seed++) {
+			byte[] data = random(1024, seed);
+			boolean first = EntropyCheckingCompressor.isCalibrationSample(data, 0, data.length);
+			assertEquals(first, EntropyCheckingCompressor.isCalibrationSample(data.clone(), 0, data.length));
+			if (first) {
+				picked++;
+			}
+		}
+		// about one in CALIBRATION_INTERVAL
+		assertTrue("picked " + picked, picked > 4 && picked < 40);
+	}
+
+	@Test
+	public void calibratedBlockShouldKeepResultWhenItFits() throws Exception {
+		byte[] small = new byte[16];
+		compressor = new EntropyCheckingCompressor((data, offset, length, maxLength) -> small);
+		byte[] data = randomBlock(true);
+		assertSame(small, compressor.compress(data, 0, data.length, data.length));
+		assertEquals("wrong mispredicted count", 1L, compressor.getMispredictedBlockCount());
+		assertEquals("wrong compressed count", 1L, compressor.getCompressedBlockCount());
+		assertEquals("wrong skipped count", 0L, compressor.getSkippedBlockCount());
+	}
+
+	@Test
+	public void calibratedBlockShouldBeSkippedWhenResultDoesNotFit() throws Exception {
+		byte[] data = randomBlock(true);
+		assertNull(compressor.compress(data, 0, data.length, data.length));
+		assertEquals("wrong mispredicted count", 0L, compressor.getMispredictedBlockCount());
+		assertEquals("wrong skipped count", 1L, compressor.getSkippedBlockCount());
+	}
+
+	@Test
+	public void estimatedNanosSavedShouldBePositiveAfterManySkips() throws Exception {
+		assertNull(compressor.compress(randomBlock(true), 0, 131072, 131072));
+		byte[] data = randomBlock(false);
+		for (int i = 0; i < 2 * EntropyCheckingCompressor.CALIBRATION_INTERVAL; i++) {
+			assertNull(compressor.compress(data, 0, data.length, data.length));
+		}
+		assertTrue("no time saved", compressor.getEstimatedNanosSaved() > 0L);
+		assertTrue("no check time", compressor.getCheckNanos() > 0L);
+	}
+
+	@Test
+	public void toStringShouldNotFail() {
+		assertNotNull(compressor.toString());
+	}
+
+}
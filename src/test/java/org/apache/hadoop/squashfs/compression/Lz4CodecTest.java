@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+
+public class Lz4CodecTest {
+
+	@Test
+	public void forLevelShouldReturnSharedInstance() {
+		assertSame(Lz4Compressor.forLevel(0), Lz4Compressor.forLevel(0));
+		assertFalse(Lz4Compressor.forLevel(0).isHighCompression());
+		assertTrue(Lz4Compressor.forLevel(9).isHighCompression());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forLevelShouldFailOnInvalidLevel() {
+		Lz4Compressor.forLevel(Lz4Compressor.MAX_LEVEL + 1);
+	}
+
+	@Test
+	public void compressShouldReturnNullIfLargerThanMax() throws Exception {
+		byte[] data = new byte[8192];
+		new Random(0L).nextBytes(data);
+		assertNull(Lz4Compressor.forLevel(0).compress(data, 0, data.length, data.length));
+	}
+
+	@Test
+	public void roundTripShouldPreserveData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		for (int level = 0; level <= Lz4Compressor.MAX_LEVEL; level++) {
+			byte[] compressed = Lz4Compressor.forLevel(level).compress(data, 100, 9000, 10000);
+			assertNotNull(compressed);
+			byte[] out = Lz4Decompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9000, 10000);
+			assertArrayEquals(String.format("wrong data at level %d", level), Arrays.copyOfRange(data, 100, 9100), out);
+		}
+	}
+
+	@Test
+	public void highCompressionShouldNotBeLarger() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(131072);
+		byte[] fast = Lz4Compressor.forLevel(0).compress(data, 0, data.length, data.length);
+		byte[] high = Lz4Compressor.forLevel(9).compress(data, 0, data.length, data.length);
+		assertTrue(String.format("fast %d < high %d", fast.length, high.length), high.length <= fast.length);
+	}
+
+	@Test
+	public void decompressShouldAllowExactlyMaxLength() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = Lz4Compressor.forLevel(0).compress(data, 0, data.length, data.length);
+		assertArrayEquals(data, Lz4Decompressor.INSTANCE.decompress(compressed, 0, compressed.length, 10000, 10000));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailIfLargerThanMax() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = Lz4Compressor.forLevel(0).compress(data, 0, data.length, data.length);
+		Lz4Decompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9999, 9999);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailOnTruncatedData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = Lz4Compressor.forLevel(0).compress(data, 0, data.length, data.length);
+		Lz4Decompressor.INSTANCE.decompress(compressed, 0, compressed.length / 2, 10000, 10000);
+	}
+
+}
@@ -0,0 +1,214 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import org.junit.Test;
+import org.tukaani.xz.FilterOptions;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.LZMAOutputStream;
+import org.tukaani.xz.X86Options;
+import org.tukaani.xz.XZ;
+import org.tukaani.xz.XZOutputStream;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.superblock.CompressionId;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+
+public class XzCodecTest {
+
+	// one block as mksquashfs -comp xz writes it
+	public static byte[] xz(byte[] data, int offset, int length, int dictionarySize, boolean x86)
+			throws IOException {
+		LZMA2Options lzma2 = new LZMA2Options();
+		lzma2.setDictSize(dictionarySize);
+		FilterOptions[] filters = x86
+				? new FilterOptions[] { new X86Options(), lzma2 }
+				: new FilterOptions[] { lzma2 };
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (XZOutputStream xos = new XZOutputStream(bos, filters, XZ.CHECK_CRC32)) {
+			xos.write(data, offset, length);
+		}
+		return bos.toByteArray();
+	}
+
+	public static byte[] xz(byte[] data) throws IOException {
+		return xz(data, 0, data.length, SuperBlock.DEFAULT_BLOCK_SIZE, false);
+	}
+
+	// one block as mksquashfs -comp lzma writes it, uncompressed size included
+	public static byte[] lzma(byte[] data, int dictionarySize) throws IOException {
+		LZMA2Options options = new LZMA2Options();
+		options.setDictSize(dictionarySize);
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		try (LZMAOutputStream los = new LZMAOutputStream(bos, options, data.length)) {
+			los.write(data);
+		}
+		return bos.toByteArray();
+	}
+
+	static byte[] options(int dictionarySize, int filters) {
+		return ByteBuffer.allocate(XzCompressorOptions.SIZE).order(ByteOrder.LITTLE_ENDIAN)
+				.putInt(dictionarySize).putInt(filters).array();
+	}
+
+	@Test
+	public void xzRoundTripShouldPreserveData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data, 100, 9000, 8192, false);
+		byte[] out = XzDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9000, 10000);
+		assertArrayEquals(Arrays.copyOfRange(data, 100, 9100), out);
+	}
+
+	@Test
+	public void xzWithBcjFilterShouldDecompress() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data, 0, data.length, 8192, true);
+		assertArrayEquals(data, XzDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 10000, 10000));
+	}
+
+	@Test
+	public void xzShouldDecompressAtOffsetWithLowExpectedLength() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data);
+		byte[] padded = new byte[compressed.length + 20];
+		System.arraycopy(compressed, 0, padded, 10, compressed.length);
+		assertArrayEquals(data, XzDecompressor.INSTANCE.decompress(padded, 10, compressed.length, 100, 20000));
+	}
+
+	@Test
+	public void repeatedDecompressionShouldSucceed() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(131072);
+		byte[] compressed = xz(data);
+		for (int i = 0; i < 10; i++) {
+			assertArrayEquals(data, XzDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 131072, 131072));
+		}
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void xzShouldFailIfLargerThanMax() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data);
+		XzDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9999, 9999);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void xzShouldFailOnTruncatedData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data);
+		XzDecompressor.INSTANCE.decompress(compressed, 0, compressed.length - 4, 10000, 10000);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void xzShouldFailOnCorruptChecksum() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data);
+		// last block's CRC32 sits before the index and stream footer
+		compressed[compressed.length - 28] ^= 0x55;
+		XzDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 10000, 10000);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void xzShouldFailIfDictionaryLargerThanDeclared() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data, 0, data.length, 8 << 20, false);
+		XzDecompressor.forOptions(new XzCompressorOptions(8192, 0))
+				.decompress(compressed, 0, compressed.length, 10000, 10000);
+	}
+
+	@Test
+	public void xzShouldSucceedIfDictionaryMatchesDeclared() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = xz(data, 0, data.length, 1 << 20, true);
+		assertArrayEquals(data, XzDecompressor.forOptions(new XzCompressorOptions(1 << 20, XzCompressorOptions.FILTER_X86))
+				.decompress(compressed, 0, compressed.length, 10000, 10000));
+	}
+
+	@Test
+	public void lzmaRoundTripShouldPreserveData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = lzma(data, 131072);
+		assertArrayEquals(data, LzmaDecompressor.forDictionarySize(131072)
+				.decompress(compressed, 0, compressed.length, 10000, 10000));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void lzmaShouldFailIfLargerThanMax() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = lzma(data, 131072);
+		LzmaDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 5000, 5000);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void lzmaShouldFailOnTruncatedData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = lzma(data, 131072);
+		LzmaDecompressor.INSTANCE.decompress(compressed, 0, compressed.length / 2, 10000, 10000);
+	}
+
+	@Test
+	public void optionsShouldDefaultToBlockSize() throws Exception {
+		XzCompressorOptions options = XzCompressorOptions.forBlockSize(SuperBlock.DEFAULT_BLOCK_SIZE);
+		assertEquals(SuperBlock.DEFAULT_BLOCK_SIZE, options.getDictionarySize());
+		assertEquals(0, options.getFilters());
+		assertEquals(8192, XzCompressorOptions.forBlockSize(4096).getDictionarySize());
+	}
+
+	@Test
+	public void optionsShouldBeDecoded() throws Exception {
+		XzCompressorOptions options = XzCompressorOptions.decode(
+				options(3 << 16, XzCompressorOptions.FILTER_X86 | XzCompressorOptions.FILTER_ARM));
+		assertEquals(3 << 16, options.getDictionarySize());
+		assertEquals(0x09, options.getFilters());
+		System.out.println(options);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void optionsShouldRejectInvalidDictionarySize() throws Exception {
+		XzCompressorOptions.decode(options(100000, 0));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void optionsShouldRejectShortBlock() throws Exception {
+		XzCompressorOptions.decode(new byte[4]);
+	}
+
+	@Test
+	public void decompressorForSuperBlockShouldApplyOptions() throws Exception {
+		SuperBlock sb = new SuperBlock();
+		sb.setCompressionId(CompressionId.XZ);
+		sb.setCompressorOptions(options(1 << 20, 0));
+		XzDecompressor xz = (XzDecompressor) CompressionCodecs.decompressor(sb);
+		assertEquals(XzDecompressor.forOptions(new XzCompressorOptions(1 << 20, 0)).getMemoryLimit(), xz.getMemoryLimit());
+
+		sb.setCompressionId(CompressionId.ZLIB);
+		sb.setCompressorOptions(null);
+		assertSame(ZlibDecompressor.INSTANCE, CompressionCodecs.decompressor(sb));
+	}
+
+}
@@ -0,0 +1,162 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+
+public class ZlibCodecTest {
+
+	public static byte[] compressible(int length) {
+		Random r = new Random(0L);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) r.nextInt(4);
+		}
+		return data;
+	}
+
+	@Test
+	public void forLevelShouldReturnSharedInstance() {
+		assertSame(ZlibCompressor.forLevel(9), ZlibCompressor.forLevel(9));
+		assertEquals(1, ZlibCompressor.forLevel(1).getLevel());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forLevelShouldFailOnInvalidLevel() {
+		ZlibCompressor.forLevel(10);
+	}
+
+	@Test
+	public void compressShouldMatchDeflater() throws Exception {
+		byte[] data = compressible(131072);
+		byte[] compressed = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+
+		Deflater def = new Deflater(Deflater.BEST_COMPRESSION);
+		def.setInput(data);
+		def.finish();
+		byte[] buf = new byte[data.length];
+		int len = def.deflate(buf);
+		def.end();
+
+		assertArrayEquals(Arrays.copyOf(buf, len), compressed);
+	}
+
+	@Test
+	public void multipleStrategiesShouldKeepSmallestResult() throws Exception {
+		byte[] data = compressible(131072);
+		int all = ZlibCompressorOptions.STRATEGY_DEFAULT | ZlibCompressorOptions.STRATEGY_FILTERED
+				| ZlibCompressorOptions.STRATEGY_HUFFMAN_ONLY;
+		byte[] best = ZlibCompressor.forLevel(9, all).compress(data, 0, data.length, data.length);
+		for (int strategy = 1; strategy <= all; strategy <<= 1) {
+			byte[] single = ZlibCompressor.forLevel(9, strategy).compress(data, 0, data.length, data.length);
+			assertTrue(String.format("strategy %d: %d < %d", strategy, single.length, best.length),
+					best.length <= single.length);
+		}
+		assertArrayEquals(data, ZlibDecompressor.INSTANCE.decompress(best, 0, best.length, data.length, data.length));
+	}
+
+	@Test
+	public void defaultStrategyShouldMatchNoStrategies() throws Exception {
+		byte[] data = compressible(10000);
+		assertArrayEquals(ZlibCompressor.forLevel(6).compress(data, 0, data.length, data.length),
+				ZlibCompressor.forLevel(6, ZlibCompressorOptions.STRATEGY_DEFAULT).compress(data, 0, data.length, data.length));
+		assertEquals(0, ZlibCompressor.forLevel(6).getStrategies());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forLevelShouldFailOnUnsupportedStrategy() {
+		ZlibCompressor.forLevel(9, ZlibCompressorOptions.STRATEGY_RUN_LENGTH_ENCODED);
+	}
+
+	@Test
+	public void compressShouldReturnNullIfLargerThanMax() throws Exception {
+		byte[] data = new byte[8192];
+		new Random(0L).nextBytes(data);
+		assertNull(ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length));
+	}
+
+	@Test
+	public void roundTripShouldPreserveData() throws Exception {
+		byte[] data = compressible(10000);
+		for (int level = 0; level <= 9; level++) {
+			byte[] compressed = ZlibCompressor.forLevel(level).compress(data, 100, 9000, 10000);
+			assertNotNull(compressed);
+			byte[] out = ZlibDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9000, 10000);
+			assertArrayEquals(String.format("wrong data at level %d", level), Arrays.copyOfRange(data, 100, 9100), out);
+		}
+	}
+
+	@Test
+	public void decompressShouldHandleShortExpectedLength() throws Exception {
+		byte[] data = compressible(10000);
+		byte[] compressed = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+		byte[] out = ZlibDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 100, 20000);
+		assertArrayEquals(data, out);
+	}
+
+	@Test
+	public void decompressShouldHandleLongExpectedLength() throws Exception {
+		byte[] data = compressible(10000);
+		byte[] compressed = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+		byte[] out = ZlibDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 20000, 20000);
+		assertArrayEquals(data, out);
+	}
+
+	@Test
+	public void decompressShouldAllowExactlyMaxLength() throws Exception {
+		byte[] data = compressible(10000);
+		byte[] compressed = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+		byte[] out = ZlibDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 10000, 10000);
+		assertArrayEquals(data, out);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailIfLargerThanMax() throws Exception {
+		byte[] data = compressible(10000);
+		byte[] compressed = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+		ZlibDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9999, 9999);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailOnTruncatedData() throws Exception {
+		byte[] data = compressible(10000);
+		byte[] compressed = ZlibCompressor.forLevel(9).compress(data, 0, data.length, data.length);
+		ZlibDecompressor.INSTANCE.decompress(compressed, 0, compressed.length / 2, 10000, 10000);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailOnCorruptData() throws Exception {
+		byte[] data = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 };
+		ZlibDecompressor.INSTANCE.decompress(data, 0, data.length, 10000, 10000);
+	}
+
+}
@@ -0,0 +1,100 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import org.apache.hadoop.squashfs.SquashFsException;
+
+public class ZstdCodecTest {
+
+	@Test
+	public void forLevelShouldReturnSharedInstance() {
+		assertSame(ZstdCompressor.forLevel(3), ZstdCompressor.forLevel(3));
+		assertEquals(3, ZstdCompressor.forLevel(3).getLevel());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forLevelShouldFailOnZero() {
+		ZstdCompressor.forLevel(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forLevelShouldFailOnInvalidLevel() {
+		ZstdCompressor.forLevel(ZstdCompressor.MAX_LEVEL + 1);
+	}
+
+	@Test
+	public void compressShouldReturnNullIfLargerThanMax() throws Exception {
+		byte[] data = new byte[8192];
+		new Random(0L).nextBytes(data);
+		assertNull(ZstdCompressor.forLevel(1).compress(data, 0, data.length, data.length));
+	}
+
+	@Test
+	public void roundTripShouldPreserveData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		for (int level = ZstdCompressor.MIN_LEVEL; level <= ZstdCompressor.MAX_LEVEL; level++) {
+			byte[] compressed = ZstdCompressor.forLevel(level).compress(data, 100, 9000, 10000);
+			assertNotNull(compressed);
+			byte[] out = ZstdDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9000, 10000);
+			assertArrayEquals(String.format("wrong data at level %d", level), Arrays.copyOfRange(data, 100, 9100), out);
+		}
+	}
+
+	@Test
+	public void higherLevelShouldNotBeLarger() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(131072);
+		byte[] fast = ZstdCompressor.forLevel(1).compress(data, 0, data.length, data.length);
+		byte[] high = ZstdCompressor.forLevel(19).compress(data, 0, data.length, data.length);
+		assertTrue(String.format("fast %d < high %d", fast.length, high.length), high.length <= fast.length);
+	}
+
+	@Test
+	public void decompressShouldAllowExactlyMaxLength() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = ZstdCompressor.forLevel(15).compress(data, 0, data.length, data.length);
+		assertArrayEquals(data, ZstdDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 10000, 10000));
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailIfLargerThanMax() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = ZstdCompressor.forLevel(15).compress(data, 0, data.length, data.length);
+		ZstdDecompressor.INSTANCE.decompress(compressed, 0, compressed.length, 9999, 9999);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void decompressShouldFailOnTruncatedData() throws Exception {
+		byte[] data = ZlibCodecTest.compressible(10000);
+		byte[] compressed = ZstdCompressor.forLevel(15).compress(data, 0, data.length, data.length);
+		ZstdDecompressor.INSTANCE.decompress(compressed, 0, compressed.length / 2, 10000, 10000);
+	}
+
+}
@@ -21,6 +21,18 @@ package org.apache.hadoop.squashfs.data;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
@@ -40,7 +52,8 @@ public class DataBlockCacheTest {
 		keys = new DataBlockCache.Key[size];
 		blocks = new DataBlock[size];
 
-		cache = new DataBlockCache(size);
+		// one stripe, so eviction follows a single LRU order
+		cache = new DataBlockCache(size * 32L, 1);
 		for (int i = 0; i < size; i++) {
 			keys[i] = new DataBlockCache.Key(1, false, i, 32, 32);
 			blocks[i] = new DataBlock(new byte[32], 32, 32);
@@ -114,4 +127,294 @@ public class DataBlockCacheTest {
 		assertEquals("wrong cache load", keys.length, cache.getCacheLoad());
 	}
 
+	@Test
+	public void largeBlockShouldEvictByBytes() throws Exception {
+		DataBlockCache.Key key = new DataBlockCache.Key(1, true, 1000L, 100, 32 * 10);
+		cache.put(key, new DataBlock(new byte[32 * 10], 32 * 10, 32 * 10));
+
+		// the ten least recently used blocks made room
+		for (int i = 0; i < 10; i++) {
+			assertNull("not evicted", cache.get(keys[i]));
+		}
+		assertSame("wrong block", blocks[10], cache.get(keys[10]));
+		assertEquals("wrong cache load", keys.length - 9, cache.getCacheLoad());
+		assertEquals("wrong cache bytes", keys.length * 32L, cache.getCacheBytes());
+	}
+
+	@Test
+	public void replacingBlockShouldNotCountTwice() throws Exception {
+		cache.put(keys[0], new DataBlock(new byte[32], 32, 32));
+		assertEquals("wrong cache bytes", keys.length * 32L, cache.getCacheBytes());
+		assertEquals("wrong cache load", keys.length, cache.getCacheLoad());
+	}
+
+	@Test
+	public void blockLargerThanStripeShouldNotBeCached() throws Exception {
+		cache.put(extraKey, new DataBlock(new byte[keys.length * 32 + 1], 1, keys.length * 32 + 1));
+		assertNull("oversized block cached", cache.get(extraKey));
+		assertSame("wrong block", blocks[0], cache.get(keys[0]));
+		assertEquals("wrong cache load", keys.length, cache.getCacheLoad());
+	}
+
+	@Test
+	public void stripesShouldBePowersOfTwo() throws Exception {
+		assertEquals(4, new DataBlockCache(1L << 30, 7).getStripeCount());
+		assertEquals(1, new DataBlockCache(100L).getStripeCount());
+		assertEquals(0, DataBlockCache.NO_CACHE.getStripeCount());
+		assertTrue(new DataBlockCache(1L << 30).getStripeCount() <= DataBlockCache.DEFAULT_MAX_STRIPES);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroStripesShouldFail() {
+		new DataBlockCache(1024L, 0);
+	}
+
+	@Test
+	public void concurrentAccessShouldStayWithinCapacity() throws Exception {
+		int threads = 32;
+		int operations = 20_000;
+		long maxBytes = 64L * 1024L;
+		DataBlockCache striped = new DataBlockCache(maxBytes, 16);
+		assertEquals(16, striped.getStripeCount());
+
+		CountDownLatch start = new CountDownLatch(1);
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<?>> results = new ArrayList<>();
+			for (int t = 0; t < threads; t++) {
+				long seed = t;
+				results.add(executor.submit(() -> {
+					start.await();
+					Random random = new Random(seed);
+					for (int i = 0; i < operations; i++) {
+						int n = random.nextInt(512);
+						DataBlockCache.Key key = new DataBlockCache.Key(1, false, n, n + 1, n + 1);
+						DataBlock block = striped.get(key);
+						if (block == null) {
+							byte[] data = new byte[n + 1];
+							data[0] = (byte) n;
+							striped.put(key, new DataBlock(data, n + 1, n + 1));
+						} else {
+							assertEquals("wrong block", n + 1, block.getPhysicalSize());
+							assertEquals("wrong block", (byte) n, block.getData()[0]);
+						}
+					}
+					return null;
+				}));
+			}
+			start.countDown();
+			for (Future<?> result : results) {
+				result.get(1, TimeUnit.MINUTES);
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals("lost lookups", (long) threads * operations, striped.getCacheHits() + striped.getCacheMisses());
+		assertTrue("no hits", striped.getCacheHits() > 0L);
+		assertTrue("over capacity", striped.getCacheBytes() <= maxBytes);
+	}
+
+	@Test
+	public void getOrLoadShouldNotLoadCachedBlock() throws Exception {
+		assertSame("wrong block", blocks[3], cache.getOrLoad(keys[3], () -> {
+			throw new AssertionError("loaded cached block");
+		}));
+		DataBlock loaded = new DataBlock(new byte[32], 32, 32);
+		assertSame("wrong block", loaded, cache.getOrLoad(extraKey, () -> loaded));
+		assertSame("not cached", loaded, cache.get(extraKey));
+		assertEquals("wrong load count", 1L, cache.getLoadCount());
+	}
+
+	@Test
+	public void concurrentMissesShouldLoadBlockOnce() throws Exception {
+		int threads = 32;
+		AtomicInteger loads = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		DataBlock loaded = new DataBlock(new byte[32], 32, 32);
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<DataBlock>> results = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				results.add(executor.submit(() -> cache.getOrLoad(extraKey, () -> {
+					loads.incrementAndGet();
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+					return loaded;
+				})));
+			}
+			long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+			while (cache.getCoalescedLoads() < threads - 1) {
+				assertTrue("waiters never arrived", System.nanoTime() < deadline);
+				Thread.sleep(1L);
+			}
+			release.countDown();
+			for (Future<DataBlock> result : results) {
+				assertSame("wrong block", loaded, result.get(1, TimeUnit.MINUTES));
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertEquals("wrong load count", 1, loads.get());
+		assertEquals("wrong miss count", (long) threads, cache.getCacheMisses());
+		assertEquals("wrong coalesced count", threads - 1L, cache.getCoalescedLoads());
+		assertSame("not cached", loaded, cache.get(extraKey));
+	}
+
+	@Test
+	public void disabledCacheShouldNotCoalesce() throws Exception {
+		DataBlockCache disabled = new DataBlockCache(0L);
+		DataBlock loaded = new DataBlock(new byte[32], 32, 32);
+		assertSame(loaded, disabled.getOrLoad(extraKey, () -> loaded));
+		assertEquals(0L, disabled.getLoadCount());
+		assertEquals(1L, disabled.getCacheMisses());
+	}
+
+	@Test
+	public void defaultPolicyShouldBeLru() {
+		assertEquals(DataBlockCache.Policy.LRU, cache.getPolicy());
+		assertEquals(DataBlockCache.Policy.LRU, new DataBlockCache(1024L).getPolicy());
+	}
+
+	@Test
+	public void lruShouldLoseHotBlocksToScan() throws Exception {
+		DataBlockCache lru = new DataBlockCache(32L * 32L, 1, DataBlockCache.Policy.LRU);
+		// only the first few, before the sweep has flushed the cache
+		assertTrue("hot blocks kept", hotHitsDuringScan(lru) < 10);
+		assertEquals("wrong rejected count", 0L, lru.getRejectedCount());
+	}
+
+	@Test
+	public void tinyLfuShouldKeepHotBlocksThroughScan() throws Exception {
+		DataBlockCache lfu = new DataBlockCache(32L * 32L, 1, DataBlockCache.Policy.TINY_LFU);
+		assertTrue("hot blocks evicted", hotHitsDuringScan(lfu) >= 240);
+		assertTrue("scan admitted", lfu.getRejectedCount() >= 900L);
+		assertTrue("over capacity", lfu.getCacheBytes() <= 32L * 32L);
+	}
+
+	@Test
+	public void tinyLfuShouldAdmitBlocksRequestedAgain() throws Exception {
+		DataBlockCache lfu = new DataBlockCache(4L * 32L, 1, DataBlockCache.Policy.TINY_LFU);
+		for (int i = 0; i < 4; i++) {
+			lfu.getOrLoad(keys[i], () -> new DataBlock(new byte[32], 32, 32));
+		}
+		DataBlock loaded = new DataBlock(new byte[32], 32, 32);
+		lfu.getOrLoad(extraKey, () -> loaded);
+		assertNull("admitted on first request", lfu.get(extraKey));
+
+		// the failed lookup above was the second request
+		lfu.getOrLoad(extraKey, () -> loaded);
+		assertSame("not admitted", loaded, lfu.get(extraKey));
+		assertEquals("wrong cache load", 4, lfu.getCacheLoad());
+	}
+
+	@Test
+	public void tinyLfuShouldReplaceCachedBlock() throws Exception {
+		DataBlockCache lfu = new DataBlockCache(4L * 32L, 1, DataBlockCache.Policy.TINY_LFU);
+		for (int i = 0; i < 4; i++) {
+			lfu.put(keys[i], blocks[i]);
+		}
+		DataBlock replacement = new DataBlock(new byte[32], 32, 32);
+		lfu.put(keys[0], replacement);
+		assertSame("not replaced", replacement, lfu.get(keys[0]));
+	}
+
+	@Test
+	public void singleTierCacheShouldHaveNoCompressedTier() {
+		assertNull(cache.getCompressedTier());
+	}
+
+	@Test
+	public void compressedTierShouldServeHotTierMisses() throws Exception {
+		DataBlockCache tiered = new DataBlockCache(2L * 32L, 1024L, 1, DataBlockCache.Policy.LRU);
+		AtomicInteger reads = new AtomicInteger();
+		AtomicInteger decodes = new AtomicInteger();
+		DataBlockCache.Key[] compressed = new DataBlockCache.Key[3];
+		for (int i = 0; i < compressed.length; i++) {
+			compressed[i] = new DataBlockCache.Key(1, true, i * 16L, 16, 32);
+		}
+
+		for (DataBlockCache.Key key : compressed) {
+			tiered.getOrLoad(key, () -> {
+				reads.incrementAndGet();
+				return new byte[16];
+			}, raw -> {
+				decodes.incrementAndGet();
+				assertEquals("wrong raw size", 16, raw.length);
+				return new DataBlock(new byte[32], 32, 32);
+			});
+		}
+		assertEquals("wrong read count", 3, reads.get());
+		assertEquals("wrong eviction count", 1L, tiered.getEvictionCount());
+		assertEquals("wrong demotion count", 1L, tiered.getDemotionCount());
+		assertEquals("wrong compressed load", 3, tiered.getCompressedTier().getCacheLoad());
+		assertEquals("wrong compressed bytes", 3L * 16L, tiered.getCompressedTier().getCacheBytes());
+
+		// the first block was demoted; reading it decompresses without I/O
+		DataBlock promoted = tiered.getOrLoad(compressed[0], () -> {
+			throw new AssertionError("read demoted block");
+		}, raw -> {
+			decodes.incrementAndGet();
+			return new DataBlock(new byte[32], 32, 32);
+		});
+		assertEquals("wrong size", 32, promoted.getPhysicalSize());
+		assertEquals("wrong decode count", 4, decodes.get());
+		assertEquals("wrong promotion count", 1L, tiered.getPromotionCount());
+		assertSame("not promoted", promoted, tiered.get(compressed[0]));
+	}
+
+	@Test
+	public void uncompressedBlocksShouldBypassCompressedTier() throws Exception {
+		DataBlockCache tiered = new DataBlockCache(2L * 32L, 1024L, 1, DataBlockCache.Policy.LRU);
+		for (int i = 0; i < 3; i++) {
+			DataBlockCache.Key key = new DataBlockCache.Key(1, false, i * 32L, 32, 32);
+			tiered.getOrLoad(key, () -> new byte[32], raw -> new DataBlock(raw, 32, raw.length));
+		}
+		assertEquals("wrong compressed load", 0, tiered.getCompressedTier().getCacheLoad());
+		assertEquals("wrong eviction count", 1L, tiered.getEvictionCount());
+		assertEquals("wrong demotion count", 0L, tiered.getDemotionCount());
+	}
+
+	@Test
+	public void clearCacheShouldClearBothTiers() throws Exception {
+		DataBlockCache tiered = new DataBlockCache(2L * 32L, 1024L, 1, DataBlockCache.Policy.LRU);
+		DataBlockCache.Key key = new DataBlockCache.Key(1, true, 0L, 16, 32);
+		tiered.getOrLoad(key, () -> new byte[16], raw -> new DataBlock(new byte[32], 32, 32));
+		tiered.clearCache();
+		assertEquals(0, tiered.getCacheLoad());
+		assertEquals(0, tiered.getCompressedTier().getCacheLoad());
+		assertEquals(0L, tiered.getCompressedTier().getCacheMisses());
+	}
+
+	// reads 16 hot blocks a few times, then sweeps 1000 blocks once each
+	// while still reading a hot block after every four, and counts the hot
+	// reads made during the sweep which hit
+	static int hotHitsDuringScan(DataBlockCache target) throws Exception {
+		DataBlockCache.Key[] hot = new DataBlockCache.Key[16];
+		for (int i = 0; i < hot.length; i++) {
+			hot[i] = new DataBlockCache.Key(2, false, i, 32, 32);
+		}
+		for (int round = 0; round < 4; round++) {
+			for (DataBlockCache.Key key : hot) {
+				target.getOrLoad(key, () -> new DataBlock(new byte[32], 32, 32));
+			}
+		}
+		int hits = 0;
+		for (int i = 0; i < 1000; i++) {
+			DataBlockCache.Key key = new DataBlockCache.Key(3, false, i, 32, 32);
+			target.getOrLoad(key, () -> new DataBlock(new byte[32], 32, 32));
+			if (i % 4 == 3) {
+				long before = target.getCacheHits();
+				target.getOrLoad(hot[(i / 4) % hot.length], () -> new DataBlock(new byte[32], 32, 32));
+				hits += (int) (target.getCacheHits() - before);
+			}
+		}
+		return hits;
+	}
+
 }
@@ -0,0 +1,96 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class DataBlockIndexTest {
+
+	DataBlockIndex index;
+
+	@Before
+	public void setUp() {
+		index = new DataBlockIndex();
+	}
+
+	private static byte[] digest(long seed) {
+		byte[] digest = new byte[DataBlockIndex.DIGEST_LENGTH];
+		new Random(seed).nextBytes(digest);
+		return digest;
+	}
+
+	@Test
+	public void emptyIndexShouldNotFindAnything() {
+		assertEquals(0, index.size());
+		assertEquals(-1, index.find(digest(0L)));
+	}
+
+	@Test
+	public void addedDigestsShouldBeFoundAfterGrowing() {
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, index.add(digest(i), i));
+		}
+		assertEquals(1000, index.size());
+		for (int i = 0; i < 1000; i++) {
+			assertEquals(i, index.find(digest(i)));
+			assertEquals(i, index.getSequence(i));
+		}
+		assertEquals(-1, index.find(digest(1000L)));
+	}
+
+	@Test
+	public void duplicateDigestShouldResolveToFirstRecord() {
+		index.add(digest(1L), 0L);
+		index.add(digest(2L), 1L);
+		assertEquals(2, index.add(digest(1L), 2L));
+		assertEquals(0, index.find(digest(1L)));
+		assertTrue(index.matches(2, digest(1L)));
+		assertFalse(index.matches(1, digest(1L)));
+		assertFalse(index.matches(3, digest(1L)));
+	}
+
+	@Test
+	public void locationShouldBeUnknownUntilSet() {
+		int record = index.add(digest(1L), 0L);
+		assertFalse(index.isWritten(record));
+		index.setLocation(record, 96L, new DataBlockRef(96L, 131072, 1234, true, false).getInodeSize());
+		assertTrue(index.isWritten(record));
+		assertEquals(96L, index.getLocation(record));
+		assertEquals(1234, index.getPhysicalSize(record));
+		assertTrue(index.isCompressed(record));
+
+		record = index.add(digest(2L), 1L);
+		index.setLocation(record, 1330L, new DataBlockRef(1330L, 131072, 131072, false, false).getInodeSize());
+		assertEquals(131072, index.getPhysicalSize(record));
+		assertFalse(index.isCompressed(record));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shortDigestShouldFail() {
+		index.add(new byte[16], 0L);
+	}
+
+}
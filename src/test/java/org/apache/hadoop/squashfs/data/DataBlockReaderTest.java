@@ -24,6 +24,9 @@ import static org.junit.Assert.assertEquals;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
 import java.util.Random;
 
 import org.junit.Before;
@@ -32,7 +35,10 @@ import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.compression.XzCodecTest;
+import org.apache.hadoop.squashfs.compression.ZlibCodecTest;
 import org.apache.hadoop.squashfs.inode.BasicFileINode;
+import org.apache.hadoop.squashfs.io.MappedFile;
 import org.apache.hadoop.squashfs.superblock.CompressionId;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
 import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
@@ -160,8 +166,8 @@ public class DataBlockReaderTest {
 		DataBlockReader.readBlock(tag, raf, sb, inode, 0);
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
-	public void readOfCompressedBlockShouldFailIfCompressionOptionsSet() throws Exception {
+	@Test
+	public void readOfCompressedBlockShouldSucceedIfCompressionOptionsSet() throws Exception {
 		sb.setFlags((short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
 		byte[] data = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
 		for (int i = 0; i < data.length; i++) {
@@ -175,9 +181,65 @@ public class DataBlockReaderTest {
 		inode.setBlocksStart(ref.getLocation());
 		inode.setBlockSizes(new int[] { ref.getInodeSize() });
 
+		DataBlock block = DataBlockReader.readBlock(tag, raf, sb, inode, 0);
+		assertArrayEquals("wrong data", data, block.getData());
+	}
+
+	@Test
+	public void readOfXzCompressedBlockShouldSucceed() throws Exception {
+		sb.setCompressionId(CompressionId.XZ);
+		byte[] data = ZlibCodecTest.compressible(SuperBlock.DEFAULT_BLOCK_SIZE);
+		DataBlockWriter writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				(d, o, l, m) -> XzCodecTest.xz(d, o, l, SuperBlock.DEFAULT_BLOCK_SIZE, true), null, 1);
+		DataBlockRef ref = writer.write(data, 0, data.length);
+
+		BasicFileINode inode = new BasicFileINode();
+		inode.setFileSize(data.length);
+		inode.setBlocksStart(ref.getLocation());
+		inode.setBlockSizes(new int[] { ref.getInodeSize() });
+
+		DataBlock block = DataBlockReader.readBlock(tag, raf, sb, inode, 0);
+		assertArrayEquals("wrong data", data, block.getData());
+
+		MappedFile mmap = MappedFile.mmap(raf.getChannel(), 1 << 20, 1 << 20);
+		block = MappedDataBlockReader.readBlock(tag, mmap, sb, inode, 0);
+		assertArrayEquals("wrong mapped data", data, block.getData());
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void readOfXzCompressedBlockShouldFailIfDictionaryExceedsOptions() throws Exception {
+		sb.setCompressionId(CompressionId.XZ);
+		sb.setCompressorOptions(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putInt(8192).putInt(0).array());
+		byte[] data = ZlibCodecTest.compressible(SuperBlock.DEFAULT_BLOCK_SIZE);
+		DataBlockWriter writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				(d, o, l, m) -> XzCodecTest.xz(d, o, l, 8 << 20, false), null, 1);
+		DataBlockRef ref = writer.write(data, 0, data.length);
+
+		BasicFileINode inode = new BasicFileINode();
+		inode.setFileSize(data.length);
+		inode.setBlocksStart(ref.getLocation());
+		inode.setBlockSizes(new int[] { ref.getInodeSize() });
+
 		DataBlockReader.readBlock(tag, raf, sb, inode, 0);
 	}
 
+	@Test
+	public void readOfLzmaCompressedBlockShouldSucceed() throws Exception {
+		sb.setCompressionId(CompressionId.LZMA);
+		byte[] data = ZlibCodecTest.compressible(SuperBlock.DEFAULT_BLOCK_SIZE);
+		DataBlockWriter writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				(d, o, l, m) -> XzCodecTest.lzma(Arrays.copyOfRange(d, o, o + l), SuperBlock.DEFAULT_BLOCK_SIZE), null, 1);
+		DataBlockRef ref = writer.write(data, 0, data.length);
+
+		BasicFileINode inode = new BasicFileINode();
+		inode.setFileSize(data.length);
+		inode.setBlocksStart(ref.getLocation());
+		inode.setBlockSizes(new int[] { ref.getInodeSize() });
+
+		DataBlock block = DataBlockReader.readBlock(tag, raf, sb, inode, 0);
+		assertArrayEquals("wrong data", data, block.getData());
+	}
+
 	@Test(expected = SquashFsException.class)
 	public void readOfCompressedBlockShouldFailIfDecompressedTooLarge() throws Exception {
 		byte[] data = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
@@ -198,7 +260,7 @@ public class DataBlockReaderTest {
 
 	@Test(expected = UnsupportedOperationException.class)
 	public void readOfCompressedBlockShouldFailIfCompressionIdIsSetToAnUnsupportedAlgorithm() throws Exception {
-		sb.setCompressionId(CompressionId.XZ);
+		sb.setCompressionId(CompressionId.LZO);
 		byte[] data = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
 		for (int i = 0; i < data.length; i++) {
 			data[i] = (byte) 0xff;
@@ -22,10 +22,20 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import java.io.File;
+import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
 
 import org.junit.After;
 import org.junit.Before;
@@ -33,6 +43,8 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
 import org.apache.hadoop.squashfs.test.DataTestUtils;
 
@@ -127,4 +139,162 @@ public class DataBlockWriterTest {
 		writer.write(new byte[SuperBlock.DEFAULT_BLOCK_SIZE], 0, 0);
 	}
 
+	@Test
+	public void parallelWriterMustProduceSameOutputAsSerialWriter() throws Exception {
+		Random random = new Random(0L);
+		byte[][] blocks = new byte[16][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+			switch (i % 4) {
+			case 0:
+				random.nextBytes(blocks[i]); // uncompressible
+				break;
+			case 1:
+				break; // sparse
+			default:
+				for (int j = 0; j < blocks[i].length; j++) {
+					blocks[i][j] = (byte) (j % (i + 2));
+				}
+			}
+		}
+
+		List<DataBlockRef> serialRefs = new ArrayList<>();
+		for (byte[] block : blocks) {
+			serialRefs.add(writer.write(block, 0, block.length));
+		}
+
+		File parallelFile = temp.newFile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (RandomAccessFile parallelRaf = new RandomAccessFile(parallelFile, "rw")) {
+			DataBlockWriter parallelWriter = new DataBlockWriter(parallelRaf, SuperBlock.DEFAULT_BLOCK_SIZE, executor, 3);
+			assertTrue("not parallel", parallelWriter.isParallel());
+
+			List<Future<DataBlockRef>> futures = new ArrayList<>();
+			for (byte[] block : blocks) {
+				futures.add(parallelWriter.submit(block, 0, block.length));
+				assertTrue("too many pending blocks", parallelWriter.getPendingCount() <= 3);
+			}
+			parallelWriter.flush();
+			assertEquals("pending blocks after flush", 0, parallelWriter.getPendingCount());
+
+			for (int i = 0; i < blocks.length; i++) {
+				assertTrue(String.format("block %d not done", i), futures.get(i).isDone());
+				DataBlockRef expected = serialRefs.get(i);
+				DataBlockRef actual = futures.get(i).get();
+				assertEquals(String.format("wrong location %d", i), expected.getLocation(), actual.getLocation());
+				assertEquals(String.format("wrong physical size %d", i), expected.getPhysicalSize(), actual.getPhysicalSize());
+				assertEquals(String.format("wrong compressed %d", i), expected.isCompressed(), actual.isCompressed());
+				assertEquals(String.format("wrong sparse %d", i), expected.isSparse(), actual.isSparse());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertArrayEquals("wrong output", Files.readAllBytes(tempFile.toPath()),
+				Files.readAllBytes(parallelFile.toPath()));
+	}
+
+	@Test
+	public void writerThreadMustProduceSameOutputAsSerialWriter() throws Exception {
+		Random random = new Random(0L);
+		byte[][] blocks = new byte[32][];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+			if (i % 3 == 0) {
+				random.nextBytes(blocks[i]);
+			} else if (i % 3 == 1) {
+				Arrays.fill(blocks[i], (byte) i);
+			}
+		}
+
+		List<DataBlockRef> serialRefs = new ArrayList<>();
+		for (byte[] block : blocks) {
+			serialRefs.add(writer.write(block, 0, block.length));
+		}
+
+		File threadedFile = temp.newFile();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try (RandomAccessFile threadedRaf = new RandomAccessFile(threadedFile, "rw");
+				DataBlockWriter threadedWriter = new DataBlockWriter(threadedRaf, SuperBlock.DEFAULT_BLOCK_SIZE,
+						ZlibCompressor.forLevel(Deflater.BEST_COMPRESSION), executor, 3, false, true)) {
+			assertTrue("no writer thread", threadedWriter.hasWriterThread());
+
+			List<Future<DataBlockRef>> futures = new ArrayList<>();
+			for (byte[] block : blocks) {
+				futures.add(threadedWriter.submit(block, 0, block.length));
+				assertTrue("too many pending blocks", threadedWriter.getPendingCount() <= 4);
+			}
+			threadedWriter.flush();
+			assertEquals("pending blocks after flush", 0, threadedWriter.getPendingCount());
+
+			for (int i = 0; i < blocks.length; i++) {
+				assertTrue(String.format("block %d not done", i), futures.get(i).isDone());
+				assertEquals(String.format("wrong ref %d", i), serialRefs.get(i).toString(), futures.get(i).get().toString());
+			}
+
+			long compressed = serialRefs.stream().filter(r -> !r.isSparse()).count();
+			assertEquals("wrong compressed count", compressed, threadedWriter.getCompressStats().getItemCount());
+			assertEquals("wrong written count", compressed, threadedWriter.getWriteStats().getItemCount());
+			assertTrue("no compression time", threadedWriter.getCompressStats().getBusyNanos() > 0L);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		assertArrayEquals("wrong output", Files.readAllBytes(tempFile.toPath()),
+				Files.readAllBytes(threadedFile.toPath()));
+	}
+
+	@Test
+	public void writerThreadMustReportCompressionFailure() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		Compressor failing = (data, offset, length, maxLength) -> {
+			throw new IOException("compression failed");
+		};
+		try (DataBlockWriter threadedWriter = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE, failing, executor,
+				2, false, true)) {
+			byte[] buf = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+			buf[0] = 1;
+			Future<DataBlockRef> future = threadedWriter.submit(buf, 0, buf.length);
+			try {
+				threadedWriter.flush();
+				fail("flush did not fail");
+			} catch (IOException e) {
+				assertEquals("compression failed", e.getMessage());
+			}
+			assertTrue("block not completed", future.isDone());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void writerThreadMustBeIgnoredWithoutPool() throws Exception {
+		try (DataBlockWriter serialWriter = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE,
+				ZlibCompressor.forLevel(Deflater.BEST_COMPRESSION), null, 2, false, true)) {
+			assertFalse("writer thread without pool", serialWriter.hasWriterThread());
+		}
+	}
+
+	@Test
+	public void synchronousWriteMustFlushPendingBlocksFirst() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			writer = new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE, executor, 8);
+			byte[] buf = new byte[SuperBlock.DEFAULT_BLOCK_SIZE];
+			new Random(0L).nextBytes(buf);
+
+			Future<DataBlockRef> first = writer.submit(buf, 0, buf.length);
+			DataBlockRef second = writer.write(buf, 0, buf.length);
+			assertTrue("first block not written", first.isDone());
+			assertEquals("wrong location", first.get().getPhysicalSize(), second.getLocation());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void parallelWriterWithNoPendingCapacityMustFail() throws Exception {
+		new DataBlockWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE, null, 0);
+	}
+
 }
@@ -0,0 +1,322 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.data;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.squashfs.compression.Compressor;
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
+import org.apache.hadoop.squashfs.superblock.SuperBlock;
+import org.apache.hadoop.squashfs.test.DataTestUtils;
+
+public class FileBlockWriterTest {
+
+	static final int BLOCK_SIZE = SuperBlock.DEFAULT_BLOCK_SIZE;
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	RandomAccessFile raf;
+	ExecutorService executor;
+
+	@Before
+	public void setUp() throws Exception {
+		File tempFile = temp.newFile();
+		raf = new RandomAccessFile(tempFile, "rw");
+		executor = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		executor.shutdownNow();
+		raf.close();
+		raf = null;
+	}
+
+	private DataBlockWriter createWriter(boolean parallel, boolean deduplicate) {
+		return new DataBlockWriter(raf, BLOCK_SIZE, ZlibCompressor.forLevel(9), parallel ? executor : null, 4,
+				deduplicate);
+	}
+
+	private static byte[] block(long seed, boolean random) {
+		byte[] buf = new byte[BLOCK_SIZE];
+		if (random) {
+			new Random(seed).nextBytes(buf);
+		} else {
+			for (int i = 0; i < buf.length; i++) {
+				buf[i] = (byte) ((i * seed) % 251);
+			}
+		}
+		return buf;
+	}
+
+	private static List<DataBlockRef> writeFile(DataBlockWriter writer, byte[]... blocks) throws Exception {
+		return writeFile(writer.newFile(), writer, blocks);
+	}
+
+	private static List<DataBlockRef> writeFile(FileBlockWriter file, DataBlockWriter writer, byte[]... blocks)
+			throws Exception {
+		for (byte[] block : blocks) {
+			file.write(block, 0, block.length);
+		}
+		List<Future<DataBlockRef>> futures = file.finish();
+		writer.flush();
+		List<DataBlockRef> refs = new ArrayList<>();
+		for (Future<DataBlockRef> future : futures) {
+			assertTrue("block not written", future.isDone());
+			refs.add(future.get());
+		}
+		return refs;
+	}
+
+	private void verifyFile(List<DataBlockRef> refs, byte[]... blocks) throws Exception {
+		assertEquals("wrong block count", blocks.length, refs.size());
+		long location = refs.get(0).getLocation();
+		for (int i = 0; i < blocks.length; i++) {
+			DataBlockRef ref = refs.get(i);
+			assertEquals(String.format("block %d not contiguous", i), location, ref.getLocation());
+			location += ref.getPhysicalSize();
+
+			byte[] actual;
+			if (ref.isSparse()) {
+				actual = new byte[BLOCK_SIZE];
+			} else {
+				byte[] stored = new byte[ref.getPhysicalSize()];
+				raf.seek(ref.getLocation());
+				raf.readFully(stored);
+				actual = ref.isCompressed() ? DataTestUtils.decompress(stored) : stored;
+			}
+			assertArrayEquals(String.format("wrong content for block %d", i), blocks[i], actual);
+		}
+	}
+
+	private void duplicateFileShouldReferenceExistingBlocks(boolean parallel) throws Exception {
+		DataBlockWriter writer = createWriter(parallel, true);
+		byte[] a = block(3L, false);
+		byte[] b = block(0L, true);
+		byte[] c = block(5L, false);
+
+		List<DataBlockRef> original = writeFile(writer, a, b, c);
+		long length = raf.length();
+
+		List<DataBlockRef> duplicate = writeFile(writer, a, b, c);
+		assertEquals("data written for duplicate", length, raf.length());
+		assertEquals("wrong deduplicated count", 3L, writer.getDeduplicatedBlockCount());
+		for (int i = 0; i < 3; i++) {
+			assertEquals("wrong location", original.get(i).getLocation(), duplicate.get(i).getLocation());
+			assertEquals("wrong size", original.get(i).getInodeSize(), duplicate.get(i).getInodeSize());
+		}
+		verifyFile(duplicate, a, b, c);
+
+		// a suffix of an earlier file is a contiguous run as well
+		List<DataBlockRef> suffix = writeFile(writer, b, c);
+		assertEquals("data written for suffix", length, raf.length());
+		verifyFile(suffix, b, c);
+	}
+
+	@Test
+	public void duplicateFileShouldReferenceExistingBlocks() throws Exception {
+		duplicateFileShouldReferenceExistingBlocks(false);
+	}
+
+	@Test
+	public void duplicateFileShouldReferenceExistingBlocksInParallel() throws Exception {
+		duplicateFileShouldReferenceExistingBlocks(true);
+	}
+
+	@Test
+	public void divergingFileShouldCopyMatchedPrefix() throws Exception {
+		DataBlockWriter writer = createWriter(true, true);
+		byte[] a = block(3L, false);
+		byte[] b = block(0L, true);
+		byte[] c = block(5L, false);
+		byte[] d = block(7L, false);
+
+		writeFile(writer, a, b, c);
+		long length = raf.length();
+
+		List<DataBlockRef> refs = writeFile(writer, a, b, d);
+		assertEquals("wrong copied count", 2L, writer.getCopiedBlockCount());
+		assertEquals("wrong deduplicated count", 0L, writer.getDeduplicatedBlockCount());
+		assertEquals("prefix not copied", length, refs.get(0).getLocation());
+		verifyFile(refs, a, b, d);
+	}
+
+	@Test
+	public void nonContiguousRunShouldBeCopied() throws Exception {
+		DataBlockWriter writer = createWriter(false, true);
+		byte[] x = block(3L, false);
+		byte[] y = block(5L, false);
+		byte[] q = block(7L, false);
+
+		writeFile(writer, x, y);
+		// x is copied behind y, so q no longer follows y on disk
+		writeFile(writer, x, q);
+		long length = raf.length();
+
+		List<DataBlockRef> refs = writeFile(writer, y, q);
+		assertEquals("wrong copied count", 3L, writer.getCopiedBlockCount());
+		assertEquals("wrong deduplicated count", 0L, writer.getDeduplicatedBlockCount());
+		assertEquals("wrong location", length, refs.get(0).getLocation());
+		verifyFile(refs, y, q);
+	}
+
+	@Test
+	public void nonContiguousPendingRunShouldBeCopied() throws Exception {
+		DataBlockWriter writer = createWriter(true, true);
+		byte[] x = block(3L, false);
+		byte[] y = block(5L, false);
+		byte[] q = block(7L, false);
+
+		FileBlockWriter first = writer.newFile();
+		first.write(x, 0, BLOCK_SIZE);
+		first.write(y, 0, BLOCK_SIZE);
+		first.finish();
+		FileBlockWriter second = writer.newFile();
+		second.write(x, 0, BLOCK_SIZE);
+		second.write(q, 0, BLOCK_SIZE);
+		second.finish();
+
+		List<DataBlockRef> refs = writeFile(writer, y, q);
+		assertEquals("wrong copied count", 3L, writer.getCopiedBlockCount());
+		assertEquals("wrong deduplicated count", 0L, writer.getDeduplicatedBlockCount());
+		verifyFile(refs, y, q);
+	}
+
+	@Test
+	public void duplicateOfPendingFileShouldNotWaitForWriter() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		Compressor compressor = (data, offset, length, maxLength) -> {
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			return ZlibCompressor.forLevel(1).compress(data, offset, length, maxLength);
+		};
+		DataBlockWriter writer = new DataBlockWriter(raf, BLOCK_SIZE, compressor, executor, 4, true, true);
+		try {
+			byte[] a = block(3L, false);
+			byte[] b = block(5L, false);
+
+			FileBlockWriter original = writer.newFile();
+			original.write(a, 0, BLOCK_SIZE);
+			original.write(b, 0, BLOCK_SIZE);
+			List<Future<DataBlockRef>> originalRefs = original.finish();
+
+			FileBlockWriter duplicate = writer.newFile();
+			duplicate.write(a, 0, BLOCK_SIZE);
+			duplicate.write(b, 0, BLOCK_SIZE);
+			List<Future<DataBlockRef>> duplicateRefs = duplicate.finish();
+			assertEquals("blocks written before release", 2, writer.getPendingCount());
+			assertEquals("wrong deduplicated count", 2L, writer.getDeduplicatedBlockCount());
+
+			release.countDown();
+			writer.flush();
+			List<DataBlockRef> refs = new ArrayList<>();
+			for (int i = 0; i < 2; i++) {
+				assertEquals("wrong location", originalRefs.get(i).get().getLocation(),
+						duplicateRefs.get(i).get().getLocation());
+				refs.add(duplicateRefs.get(i).get());
+			}
+			verifyFile(refs, a, b);
+		} finally {
+			release.countDown();
+			writer.close();
+		}
+	}
+
+	@Test
+	public void sparseBlocksShouldBeKeptInMatchedRun() throws Exception {
+		DataBlockWriter writer = createWriter(true, true);
+		byte[] zero = new byte[BLOCK_SIZE];
+		byte[] a = block(3L, false);
+		byte[] b = block(5L, false);
+
+		writeFile(writer, a, b);
+		long length = raf.length();
+
+		List<DataBlockRef> refs = writeFile(writer, zero, a, b, zero);
+		assertEquals("data written for duplicate", length, raf.length());
+		assertTrue("not sparse", refs.get(0).isSparse());
+		assertTrue("not sparse", refs.get(3).isSparse());
+		verifyFile(refs, zero, a, b, zero);
+
+		List<DataBlockRef> sparse = writeFile(writer, zero, zero);
+		assertEquals("data written for sparse file", length, raf.length());
+		verifyFile(sparse, zero, zero);
+	}
+
+	@Test
+	public void unsharedFileShouldCopyMatchedRunUnlessDiscarded() throws Exception {
+		DataBlockWriter writer = createWriter(true, true);
+		byte[] a = block(3L, false);
+		byte[] b = block(0L, true);
+
+		writeFile(writer, a, b);
+		long length = raf.length();
+
+		List<DataBlockRef> copy = writeFile(writer.newFile(false), writer, a, b);
+		assertEquals("wrong copied count", 2L, writer.getCopiedBlockCount());
+		assertEquals("wrong deduplicated count", 0L, writer.getDeduplicatedBlockCount());
+		assertEquals("run not copied", length, copy.get(0).getLocation());
+		verifyFile(copy, a, b);
+
+		// a whole-file duplicate is still dropped before anything is written
+		length = raf.length();
+		FileBlockWriter duplicate = writer.newFile(false);
+		duplicate.write(a, 0, a.length);
+		duplicate.write(b, 0, b.length);
+		assertTrue("duplicate not discarded", duplicate.discard());
+		writer.flush();
+		assertEquals("data written for duplicate", length, raf.length());
+	}
+
+	@Test
+	public void writerWithoutDeduplicationShouldWriteEveryBlock() throws Exception {
+		DataBlockWriter writer = createWriter(true, false);
+		byte[] a = block(3L, false);
+
+		List<DataBlockRef> first = writeFile(writer, a);
+		List<DataBlockRef> second = writeFile(writer, a);
+		assertEquals("wrong location", first.get(0).getPhysicalSize(), second.get(0).getLocation());
+		assertEquals("wrong deduplicated count", 0L, writer.getDeduplicatedBlockCount());
+		verifyFile(second, a);
+	}
+
+}
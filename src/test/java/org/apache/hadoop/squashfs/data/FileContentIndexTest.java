@@ -0,0 +1,90 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class FileContentIndexTest {
+
+	FileContentIndex index;
+
+	@Before
+	public void setUp() {
+		index = new FileContentIndex();
+	}
+
+	private byte[] hash(String content) {
+		return index.digest().digest(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void unknownContentShouldNotBeFound() {
+		assertNull(index.find(hash("test"), 4L));
+		assertEquals(0L, index.getDuplicateFileCount());
+	}
+
+	@Test
+	public void addedContentShouldBeFound() throws Exception {
+		List<Future<DataBlockRef>> blocks = new ArrayList<>();
+		blocks.add(CompletableFuture.completedFuture(new DataBlockRef(96L, 131072, 100, true, false)));
+		FragmentRef fragment = new FragmentRef(10);
+		index.add(hash("test"), 131076L, blocks, fragment);
+		blocks.clear();
+
+		FileContentIndex.Entry entry = index.find(hash("test"), 131076L);
+		assertSame(fragment, entry.getFragment());
+		assertEquals(1, entry.getDataBlocks().size());
+		assertEquals(96L, entry.getDataBlocks().get(0).get().getLocation());
+		assertEquals("found content counted as shared", 0L, index.getDuplicateFileCount());
+
+		index.countDuplicate(131076L);
+		assertEquals(1L, index.getDuplicateFileCount());
+		assertEquals(131076L, index.getDuplicateBytes());
+	}
+
+	@Test
+	public void sizeShouldBePartOfKey() {
+		index.add(hash("test"), 4L, null, new FragmentRef(0));
+		assertNull(index.find(hash("test"), 5L));
+		assertTrue(index.find(hash("test"), 4L).getDataBlocks().isEmpty());
+	}
+
+	@Test
+	public void firstEntryShouldWin() {
+		FragmentRef first = new FragmentRef(0);
+		index.add(hash("test"), 4L, Collections.emptyList(), first);
+		index.add(hash("test"), 4L, Collections.emptyList(), new FragmentRef(4));
+		assertEquals(1, index.size());
+		assertSame(first, index.find(hash("test"), 4L).getFragment());
+	}
+
+}
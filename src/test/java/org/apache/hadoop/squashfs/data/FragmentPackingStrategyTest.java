@@ -0,0 +1,79 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class FragmentPackingStrategyTest {
+
+	@Test
+	public void arrivalOrderShouldNotBuffer() {
+		assertFalse(FragmentPackingStrategy.ARRIVAL_ORDER.isBuffered());
+		assertTrue(FragmentPackingStrategy.BY_DIRECTORY.isBuffered());
+		assertTrue(FragmentPackingStrategy.BY_EXTENSION.isBuffered());
+	}
+
+	@Test
+	public void byDirectoryShouldUseParent() {
+		FragmentPackingStrategy s = FragmentPackingStrategy.BY_DIRECTORY;
+		assertEquals("/etc/ssl", s.packingKey("/etc/ssl/openssl.cnf"));
+		assertEquals("/", s.packingKey("/README"));
+		assertEquals("", s.packingKey(null));
+	}
+
+	@Test
+	public void byExtensionShouldUseExtensionThenParent() {
+		FragmentPackingStrategy s = FragmentPackingStrategy.BY_EXTENSION;
+		assertEquals("conf\0/etc", s.packingKey("/etc/nginx.conf"));
+		assertEquals("\0/etc", s.packingKey("/etc/hosts"));
+		assertEquals("\0/home", s.packingKey("/home/.profile"));
+		assertEquals("\0/a.b", s.packingKey("/a.b/c"));
+	}
+
+	@Test
+	public void accessOrderShouldRankHintedPathsFirst() {
+		FragmentPackingStrategy s = FragmentPackingStrategy.accessOrder(Arrays.asList("/b", "/a", "/b"));
+		String b = s.packingKey("/b");
+		String a = s.packingKey("/a");
+		String other = s.packingKey("/usr/c");
+		assertTrue("wrong order", b.compareTo(a) < 0);
+		assertTrue("unknown path first", a.compareTo(other) < 0);
+		assertEquals("wrong group", other, s.packingKey("/usr/d"));
+	}
+
+	@Test
+	public void forNameShouldResolveBuiltIns() {
+		assertSame(FragmentPackingStrategy.ARRIVAL_ORDER, FragmentPackingStrategy.forName("arrival"));
+		assertSame(FragmentPackingStrategy.BY_DIRECTORY, FragmentPackingStrategy.forName("directory"));
+		assertSame(FragmentPackingStrategy.BY_EXTENSION, FragmentPackingStrategy.forName("extension"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void forNameShouldRejectUnknown() {
+		FragmentPackingStrategy.forName("random");
+	}
+
+}
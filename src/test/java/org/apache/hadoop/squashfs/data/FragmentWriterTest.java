@@ -21,6 +21,8 @@ package org.apache.hadoop.squashfs.data;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.File;
@@ -35,6 +37,7 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
 import org.apache.hadoop.squashfs.table.FragmentTableEntry;
 import org.apache.hadoop.squashfs.test.DataTestUtils;
@@ -225,4 +228,87 @@ public class FragmentWriterTest {
 		assertEquals("wrong size 1", 0x1000001, bb.getInt());
 		assertEquals("wrong unused value 1", 0, bb.getInt());
 	}
+	@Test
+	public void duplicateTailsShouldShareFragment() throws Exception {
+		writer = new FragmentWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE, null, ZlibCompressor.forLevel(9), true);
+		byte[] license = new byte[1000];
+		new Random(0L).nextBytes(license);
+		byte[] other = new byte[SuperBlock.DEFAULT_BLOCK_SIZE - 500];
+
+		FragmentRef first = writer.write(license, 0, license.length);
+		FragmentRef second = writer.write(license, 0, license.length);
+		assertSame("not shared while pending", first, second);
+
+		// forces a new fragment block, the duplicate must keep the committed index
+		writer.write(other, 0, other.length);
+		FragmentRef third = writer.write(license, 0, license.length);
+		writer.flush();
+
+		assertSame("not shared after commit", first, third);
+		assertEquals("wrong fragment index", 0, third.getFragmentIndex());
+		assertEquals("wrong offset", 0, third.getOffset());
+		assertEquals("wrong fragment entry count", 2, writer.getFragmentEntryCount());
+		assertEquals("wrong deduplicated count", 2L, writer.getDeduplicatedFragmentCount());
+		assertEquals("wrong deduplicated bytes", 2000L, writer.getDeduplicatedBytes());
+
+		// same prefix, different length
+		FragmentRef shorter = writer.write(license, 0, 999);
+		assertNotSame("shared with longer tail", first, shorter);
+	}
+
+	@Test
+	public void duplicateTailsShouldNotBeSharedByDefault() throws Exception {
+		byte[] buf = new byte[100];
+		FragmentRef first = writer.write(buf, 0, buf.length);
+		FragmentRef second = writer.write(buf, 0, buf.length);
+		assertNotSame("shared", first, second);
+		assertEquals("wrong offset", 100, second.getOffset());
+		assertEquals("wrong deduplicated count", 0L, writer.getDeduplicatedFragmentCount());
+	}
+
+	@Test
+	public void bufferedTailsShouldBePackedByDirectory() throws Exception {
+		writer = new FragmentWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE, null, ZlibCompressor.forLevel(9), false,
+				FragmentPackingStrategy.BY_DIRECTORY, FragmentWriter.DEFAULT_MAX_BUFFERED_BYTES);
+		byte[] buf = new byte[100];
+		FragmentRef a1 = writer.write(buf, 0, 10, "/a/1");
+		FragmentRef b1 = writer.write(buf, 0, 20, "/b/1");
+		FragmentRef a2 = writer.write(buf, 0, 30, "/a/2");
+		assertFalse("placed before flush", a1.isValid());
+		assertEquals("wrong fragment entry count", 0, writer.getFragmentEntryCount());
+
+		writer.flush();
+		assertEquals("wrong fragment entry count", 1, writer.getFragmentEntryCount());
+		assertEquals("wrong offset", 0, a1.getOffset());
+		assertEquals("wrong offset", 10, a2.getOffset());
+		assertEquals("wrong offset", 40, b1.getOffset());
+		assertEquals("wrong fragment index", 0, b1.getFragmentIndex());
+	}
+
+	@Test
+	public void bufferedTailsShouldBePackedWhenLimitReached() throws Exception {
+		int blockSize = SuperBlock.DEFAULT_BLOCK_SIZE;
+		writer = new FragmentWriter(raf, blockSize, null, ZlibCompressor.forLevel(9), false,
+				FragmentPackingStrategy.BY_DIRECTORY, blockSize);
+		byte[] buf = new byte[blockSize / 2];
+		FragmentRef first = writer.write(buf, 0, buf.length, "/b/1");
+		FragmentRef second = writer.write(buf, 0, buf.length, "/a/1");
+
+		// both tails fill the limit, so they are packed into the current block
+		assertEquals("wrong offset", blockSize / 2, first.getOffset());
+		assertEquals("wrong offset", 0, second.getOffset());
+		assertFalse("committed too early", first.isValid());
+
+		writer.write(buf, 0, 1, "/c/1");
+		writer.flush();
+		assertEquals("wrong fragment index", 0, first.getFragmentIndex());
+		assertEquals("wrong fragment entry count", 2, writer.getFragmentEntryCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void bufferLimitBelowBlockSizeShouldFail() throws Exception {
+		new FragmentWriter(raf, SuperBlock.DEFAULT_BLOCK_SIZE, null, ZlibCompressor.forLevel(9), false,
+				FragmentPackingStrategy.BY_DIRECTORY, 1000L);
+	}
+
 }
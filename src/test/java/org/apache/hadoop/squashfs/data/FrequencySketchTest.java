@@ -0,0 +1,80 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.data;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class FrequencySketchTest {
+
+	@Test
+	public void unseenKeyShouldHaveZeroFrequency() {
+		FrequencySketch sketch = new FrequencySketch(1024L);
+		assertEquals(0, sketch.frequency(12345));
+	}
+
+	@Test
+	public void incrementShouldCountAccesses() {
+		FrequencySketch sketch = new FrequencySketch(1024L);
+		for (int i = 0; i < 5; i++) {
+			sketch.increment(42);
+		}
+		assertEquals(5, sketch.frequency(42));
+	}
+
+	@Test
+	public void countersShouldSaturate() {
+		FrequencySketch sketch = new FrequencySketch(1024L);
+		for (int i = 0; i < 100; i++) {
+			sketch.increment(42);
+		}
+		assertEquals(15, sketch.frequency(42));
+	}
+
+	@Test
+	public void countsShouldAgeOverTime() {
+		FrequencySketch sketch = new FrequencySketch(FrequencySketch.MIN_TABLE_SIZE);
+		for (int i = 0; i < 8; i++) {
+			sketch.increment(42);
+		}
+		// fill the sample with other keys so the counters are halved
+		for (int i = 0; i < 10_000; i++) {
+			sketch.increment(i * 31 + 1000);
+		}
+		assertTrue("frequency not aged", sketch.frequency(42) < 8);
+	}
+
+	@Test
+	public void keysSharingLowBitsShouldBeDistinguished() {
+		FrequencySketch sketch = new FrequencySketch(1024L);
+		for (int i = 0; i < 10; i++) {
+			sketch.increment(64 << 8);
+		}
+		int collisions = 0;
+		for (int i = 1; i < 100; i++) {
+			if (sketch.frequency((64 + i) << 8) > 0) {
+				collisions++;
+			}
+		}
+		assertTrue("too many collisions: " + collisions, collisions < 5);
+	}
+
+}
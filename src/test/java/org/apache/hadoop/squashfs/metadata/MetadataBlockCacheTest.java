@@ -25,9 +25,19 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -259,4 +269,62 @@ public class MetadataBlockCacheTest {
     cache.close();
     assertFalse("closed", mbr.isClosed());
   }
+
+  @Test
+  public void concurrentMissesShouldReadBlockOnce() throws Exception {
+    int threads = 16;
+    AtomicInteger reads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    MetadataBlock expected = blockMap.get(5000L);
+
+    TaggedMetadataBlockReader slow = new TaggedMetadataBlockReader(true);
+    slow.add(20202, new MetadataBlockReader() {
+      @Override
+      public MetadataBlock read(int tag, long fileOffset) throws IOException {
+        reads.incrementAndGet();
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new InterruptedIOException();
+        }
+        return expected;
+      }
+
+      @Override
+      public SuperBlock getSuperBlock(int tag) {
+        return sb;
+      }
+
+      @Override
+      public void close() {
+      }
+    });
+    cache = new MetadataBlockCache(slow);
+
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<Future<MetadataBlock>> results = new ArrayList<>();
+      for (int i = 0; i < threads; i++) {
+        results.add(executor.submit(() -> cache.read(20202, 5000L)));
+      }
+      long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+      while (cache.getCoalescedLoads() < threads - 1) {
+        assertTrue("waiters never arrived", System.nanoTime() < deadline);
+        Thread.sleep(1L);
+      }
+      release.countDown();
+      for (Future<MetadataBlock> result : results) {
+        assertSame("wrong block", expected, result.get(1, TimeUnit.MINUTES));
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+
+    assertEquals("wrong read count", 1, reads.get());
+    assertEquals("wrong load count", 1L, cache.getLoadCount());
+    assertEquals("wrong miss count", (long) threads, cache.getCacheMisses());
+    assertSame("not cached", expected, cache.read(20202, 5000L));
+    assertEquals("wrong hit count", 1L, cache.getCacheHits());
+  }
+
 }
@@ -34,6 +34,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.compression.XzCodecTest;
 import org.apache.hadoop.squashfs.superblock.CompressionId;
 import org.apache.hadoop.squashfs.superblock.SuperBlock;
 import org.apache.hadoop.squashfs.superblock.SuperBlockFlag;
@@ -95,15 +96,37 @@ public class MetadataBlockTest {
 		byte[] blockData = MetadataTestUtils.saveMetadataBlock(buf);
 
 		SuperBlock sb = new SuperBlock();
-		sb.setCompressionId(CompressionId.XZ);
+		sb.setCompressionId(CompressionId.LZO);
 		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(blockData))) {
 			MetadataBlock.read(dis, sb);
 		}
 
 	}
 
-	@Test(expected = UnsupportedOperationException.class)
-	public void readingCompressedBlockShouldFailIfSuperblockHasCompressionOptionFlag() throws Exception {
+	@Test
+	public void readingXzCompressedBlockShouldSucceed() throws Exception {
+
+		byte[] buf = new byte[8192];
+		new Random(0L).nextBytes(buf);
+		for (int i = 0; i < buf.length; i += 4) {
+			buf[i] = 0;
+		}
+		byte[] compressed = XzCodecTest.xz(buf);
+		byte[] blockData = ByteBuffer.allocate(compressed.length + 2).order(ByteOrder.LITTLE_ENDIAN)
+				.putShort((short) compressed.length).put(compressed).array();
+
+		SuperBlock sb = new SuperBlock();
+		sb.setCompressionId(CompressionId.XZ);
+		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(blockData))) {
+			MetadataBlock block = MetadataBlock.read(dis, sb);
+			assertTrue("not compressed", block.isCompressed());
+			assertArrayEquals(buf, block.getData());
+		}
+
+	}
+
+	@Test
+	public void readingCompressedBlockShouldSucceedIfSuperblockHasCompressionOptionFlag() throws Exception {
 
 		byte[] buf = new byte[8192];
 		for (int i = 0; i < buf.length; i++) {
@@ -114,7 +137,8 @@ public class MetadataBlockTest {
 		SuperBlock sb = new SuperBlock();
 		sb.setFlags((short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
 		try (DataInputStream dis = new DataInputStream(new ByteArrayInputStream(blockData))) {
-			MetadataBlock.read(dis, sb);
+			MetadataBlock block = MetadataBlock.read(dis, sb);
+			assertArrayEquals(buf, block.getData());
 		}
 
 	}
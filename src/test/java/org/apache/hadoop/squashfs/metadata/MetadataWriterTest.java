@@ -20,9 +20,11 @@ package org.apache.hadoop.squashfs.metadata;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
@@ -32,16 +34,32 @@ import java.nio.FloatBuffer;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
 import java.nio.ShortBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import org.apache.hadoop.squashfs.compression.ZlibCompressor;
 import org.apache.hadoop.squashfs.test.MetadataTestUtils;
 
 public class MetadataWriterTest {
 
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
 	MetadataWriter writer;
 
 	@Before
@@ -344,4 +362,261 @@ public class MetadataWriterTest {
 		writer.writeUTF("test");
 	}
 
+	static void writeRandom(Random r, MetadataWriter w, int length) throws IOException {
+		byte[] buf = new byte[length];
+		for (int i = 0; i < length; i++) {
+			buf[i] = (byte) r.nextInt(8);
+		}
+		w.write(buf);
+	}
+
+	static byte[] save(MetadataWriter w) throws IOException {
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			try (DataOutputStream dos = new DataOutputStream(bos)) {
+				w.save(dos);
+			}
+			return bos.toByteArray();
+		}
+	}
+
+	@Test
+	public void deferredWriterShouldProduceSameOutputAsSerialWriter() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MetadataWriter deferred = new MetadataWriter(executor);
+			Random r1 = new Random(0L);
+			Random r2 = new Random(0L);
+			List<MetadataBlockRef> serialRefs = new ArrayList<>();
+			List<MetadataBlockRef> deferredRefs = new ArrayList<>();
+			for (int i = 0; i < 20; i++) {
+				serialRefs.add(writer.getCurrentReference());
+				deferredRefs.add(deferred.getCurrentReference());
+				int length = r1.nextInt(5000);
+				r2.nextInt(5000);
+				writeRandom(r1, writer, length);
+				writeRandom(r2, deferred, length);
+			}
+
+			assertArrayEquals("wrong data", save(writer), save(deferred));
+			for (int i = 0; i < serialRefs.size(); i++) {
+				MetadataBlockRef ref = deferred.resolve(deferredRefs.get(i));
+				assertEquals("wrong location", serialRefs.get(i).getLocation(), ref.getLocation());
+				assertEquals("wrong offset", serialRefs.get(i).getOffset(), ref.getOffset());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void linkedDeferredWritersShouldPatchBlockLocations() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MetadataWriter serialA = writer;
+			MetadataWriter serialB = new MetadataWriter();
+			serialA.setReferenceTarget(serialB);
+			serialB.setReferenceTarget(serialA);
+
+			MetadataWriter deferredA = new MetadataWriter(executor);
+			MetadataWriter deferredB = new MetadataWriter(executor);
+			deferredA.setReferenceTarget(deferredB);
+			deferredB.setReferenceTarget(deferredA);
+
+			Random r1 = new Random(0L);
+			Random r2 = new Random(0L);
+			for (int i = 0; i < 200; i++) {
+				// odd lengths make locations straddle block boundaries
+				int length = r1.nextInt(700) * 2 + 1;
+				r2.nextInt(700);
+				writeRandom(r1, serialA, length);
+				writeRandom(r2, deferredA, length);
+				serialB.writeBlockLocation(serialA.getCurrentReference().getLocation());
+				deferredB.writeBlockLocation(deferredA.getCurrentReference().getLocation());
+
+				length = r1.nextInt(500) * 2 + 1;
+				r2.nextInt(500);
+				writeRandom(r1, serialB, length);
+				writeRandom(r2, deferredB, length);
+				serialA.writeBlockLocation(serialB.getCurrentReference().getLocation());
+				deferredA.writeBlockLocation(deferredB.getCurrentReference().getLocation());
+			}
+
+			assertArrayEquals("wrong data for first writer", save(serialA), save(deferredA));
+			assertArrayEquals("wrong data for second writer", save(serialB), save(deferredB));
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void resolveOnDeferredWriterBeforeSaveShouldFail() throws Exception {
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		try {
+			MetadataWriter deferred = new MetadataWriter(executor);
+			deferred.writeInt(1);
+			deferred.resolve(deferred.getCurrentReference());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	MetadataWriter spillingWriter(ExecutorService executor, long maxMemory, File dir) {
+		return new MetadataWriter(ZlibCompressor.forLevel(9), executor, maxMemory, dir);
+	}
+
+	@Test
+	public void spillingWriterShouldProduceSameOutputAsInMemoryWriter() throws Exception {
+		File dir = temp.newFolder();
+		MetadataWriter spilling = spillingWriter(null, 10000L, dir);
+		Random r1 = new Random(0L);
+		Random r2 = new Random(0L);
+		for (int i = 0; i < 50; i++) {
+			MetadataBlockRef expected = writer.getCurrentReference();
+			MetadataBlockRef actual = spilling.getCurrentReference();
+			assertEquals("wrong location", expected.getLocation(), actual.getLocation());
+			assertEquals("wrong offset", expected.getOffset(), actual.getOffset());
+			int length = r1.nextInt(5000);
+			r2.nextInt(5000);
+			writeRandom(r1, writer, length);
+			writeRandom(r2, spilling, length);
+			assertTrue("too much buffered", spilling.getBufferedBytes() <= 10000L);
+		}
+		assertTrue("nothing spilled", spilling.getSpilledBytes() > 0L);
+		assertEquals("no spill file", 1, dir.list().length);
+
+		assertArrayEquals("wrong data", save(writer), save(spilling));
+		assertEquals("spill file not removed", 0, dir.list().length);
+		assertEquals("spilled bytes not reset", 0L, spilling.getSpilledBytes());
+	}
+
+	@Test
+	public void spillingDeferredWritersShouldPatchBlockLocations() throws Exception {
+		File dir = temp.newFolder();
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			MetadataWriter serialA = writer;
+			MetadataWriter serialB = new MetadataWriter();
+			serialA.setReferenceTarget(serialB);
+			serialB.setReferenceTarget(serialA);
+
+			MetadataWriter deferredA = spillingWriter(executor, 20000L, dir);
+			MetadataWriter deferredB = spillingWriter(executor, 20000L, dir);
+			deferredA.setReferenceTarget(deferredB);
+			deferredB.setReferenceTarget(deferredA);
+
+			Random r1 = new Random(0L);
+			Random r2 = new Random(0L);
+			for (int i = 0; i < 200; i++) {
+				// odd lengths make locations straddle block boundaries
+				int length = r1.nextInt(700) * 2 + 1;
+				r2.nextInt(700);
+				writeRandom(r1, serialA, length);
+				writeRandom(r2, deferredA, length);
+				serialB.writeBlockLocation(serialA.getCurrentReference().getLocation());
+				deferredB.writeBlockLocation(deferredA.getCurrentReference().getLocation());
+
+				length = r1.nextInt(500) * 2 + 1;
+				r2.nextInt(500);
+				writeRandom(r1, serialB, length);
+				writeRandom(r2, deferredB, length);
+				serialA.writeBlockLocation(serialB.getCurrentReference().getLocation());
+				deferredA.writeBlockLocation(deferredB.getCurrentReference().getLocation());
+			}
+			assertTrue("nothing spilled", deferredA.getSpilledBytes() > 0L);
+			assertTrue("nothing spilled", deferredB.getSpilledBytes() > 0L);
+
+			assertArrayEquals("wrong data for first writer", save(serialA), save(deferredA));
+			assertArrayEquals("wrong data for second writer", save(serialB), save(deferredB));
+			assertEquals("spill files not removed", 0, dir.list().length);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void deferredWriterShouldBoundBlocksInFlight() throws Exception {
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+		ExecutorService executor = new AbstractExecutorService() {
+			@Override
+			public void execute(Runnable command) {
+				maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+				pool.execute(command);
+			}
+
+			// leave the count before the result is visible, since the writer
+			// submits the next block as soon as it sees one finished
+			@Override
+			protected <T> RunnableFuture<T> newTaskFor(Callable<T> callable) {
+				return new FutureTask<T>(callable) {
+					@Override
+					protected void set(T v) {
+						inFlight.decrementAndGet();
+						super.set(v);
+					}
+
+					@Override
+					protected void setException(Throwable t) {
+						inFlight.decrementAndGet();
+						super.setException(t);
+					}
+				};
+			}
+
+			@Override
+			public void shutdown() {
+				pool.shutdown();
+			}
+
+			@Override
+			public List<Runnable> shutdownNow() {
+				return pool.shutdownNow();
+			}
+
+			@Override
+			public boolean isShutdown() {
+				return pool.isShutdown();
+			}
+
+			@Override
+			public boolean isTerminated() {
+				return pool.isTerminated();
+			}
+
+			@Override
+			public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+				return pool.awaitTermination(timeout, unit);
+			}
+		};
+		try {
+			MetadataWriter deferred = new MetadataWriter(executor);
+			Random r1 = new Random(0L);
+			Random r2 = new Random(0L);
+			writeRandom(r1, writer, 8192 * 500);
+			writeRandom(r2, deferred, 8192 * 500);
+
+			assertArrayEquals("wrong data", save(writer), save(deferred));
+			assertTrue("too many blocks in flight: " + maxInFlight.get(),
+					maxInFlight.get() <= MetadataWriter.MAX_PENDING);
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void closeShouldRemoveSpillFile() throws Exception {
+		File dir = temp.newFolder();
+		MetadataWriter spilling = spillingWriter(null, 1L, dir);
+		writeRandom(new Random(0L), spilling, 20000);
+		assertEquals("no spill file", 1, dir.list().length);
+		spilling.close();
+		assertEquals("spill file not removed", 0, dir.list().length);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroMaxMemoryShouldFail() {
+		spillingWriter(null, 0L, null);
+	}
+
 }
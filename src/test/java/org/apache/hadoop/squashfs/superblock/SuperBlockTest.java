@@ -18,19 +18,26 @@
 
 package org.apache.hadoop.squashfs.superblock;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
+import java.util.Arrays;
 
 import org.junit.Before;
 import org.junit.Test;
 
 import org.apache.hadoop.squashfs.SquashFsException;
+import org.apache.hadoop.squashfs.compression.Decompressor;
+import org.apache.hadoop.squashfs.compression.XzCompressorOptions;
+import org.apache.hadoop.squashfs.compression.ZlibDecompressor;
 import org.apache.hadoop.squashfs.test.SuperBlockTestUtils;
 
 public class SuperBlockTest {
@@ -186,6 +193,63 @@ public class SuperBlockTest {
 		}
 	}
 
+	@Test
+	public void readShouldLoadCompressorOptionsIfFlagged() throws Exception {
+		sb.setFlags((short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
+		byte[] header = SuperBlockTestUtils.serializeSuperBlock(sb);
+		byte[] data = Arrays.copyOf(header, header.length + 10);
+		data[header.length] = 8;
+		data[header.length + 1] = (byte) 0x80; // uncompressed
+		data[header.length + 2] = 42;
+		data[header.length + 9] = 7;
+
+		SuperBlock read = SuperBlockTestUtils.deserializeSuperBlock(data);
+		assertArrayEquals(new byte[] { 42, 0, 0, 0, 0, 0, 0, 7 }, read.getCompressorOptions());
+		System.out.println(read);
+	}
+
+	@Test
+	public void decompressorShouldBeDecodedOnceUntilChanged() throws Exception {
+		sb.setCompressionId(CompressionId.XZ);
+		Decompressor xz = sb.getDecompressor();
+		assertSame(xz, sb.getDecompressor());
+
+		sb.setCompressorOptions(new XzCompressorOptions(1 << 20, 0).encode());
+		assertNotSame(xz, sb.getDecompressor());
+
+		sb.setCompressionId(CompressionId.ZLIB);
+		sb.setCompressorOptions(null);
+		assertSame(ZlibDecompressor.INSTANCE, sb.getDecompressor());
+	}
+
+	@Test
+	public void readShouldIgnoreCompressorOptionsIfNotFlagged() throws Exception {
+		byte[] header = SuperBlockTestUtils.serializeSuperBlock(sb);
+		byte[] data = Arrays.copyOf(header, header.length + 10);
+		data[header.length] = 8;
+		data[header.length + 1] = (byte) 0x80;
+		assertNull(SuperBlockTestUtils.deserializeSuperBlock(data).getCompressorOptions());
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void readShouldFailOnCompressedCompressorOptions() throws Exception {
+		sb.setFlags((short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
+		byte[] header = SuperBlockTestUtils.serializeSuperBlock(sb);
+		byte[] data = Arrays.copyOf(header, header.length + 10);
+		data[header.length] = 8;
+		SuperBlockTestUtils.deserializeSuperBlock(data);
+	}
+
+	@Test(expected = SquashFsException.class)
+	public void readShouldFailOnOversizedCompressorOptions() throws Exception {
+		sb.setFlags((short) (sb.getFlags() | SuperBlockFlag.COMPRESSOR_OPTIONS.mask()));
+		byte[] header = SuperBlockTestUtils.serializeSuperBlock(sb);
+		byte[] data = Arrays.copyOf(header, header.length + 8192);
+		data[header.length] = 0;
+		data[header.length + 1] = (byte) 0x90; // 4096 bytes, uncompressed
+		SuperBlockTestUtils.deserializeSuperBlock(data);
+	}
+
 	@Test(expected = SquashFsException.class)
 	public void readDataShouldFailOnInvalidMagic() throws Exception {
 		byte[] data = SuperBlockTestUtils.serializeSuperBlock(sb);
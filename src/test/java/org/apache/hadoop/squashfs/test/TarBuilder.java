@@ -0,0 +1,87 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.test;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPOutputStream;
+
+public class TarBuilder implements AutoCloseable {
+
+  private final TarArchiveOutputStream tos;
+
+  public TarBuilder(File file, boolean gzip) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    if (gzip) {
+      out = new GZIPOutputStream(out);
+    }
+    tos = new TarArchiveOutputStream(out);
+    tos.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
+  }
+
+  public TarBuilder dir(String name) throws IOException {
+    return dir(name, 0755);
+  }
+
+  public TarBuilder dir(String name, int permissions) throws IOException {
+    TarArchiveEntry entry = new TarArchiveEntry(name + "/");
+    entry.setMode(040000 | permissions);
+    return add(entry);
+  }
+
+  public TarBuilder file(String name, String content) throws IOException {
+    return file(name, content.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public TarBuilder file(String name, byte[] content) throws IOException {
+    TarArchiveEntry entry = new TarArchiveEntry(name);
+    entry.setMode(0100644);
+    entry.setSize(content.length);
+    tos.putArchiveEntry(entry);
+    tos.write(content);
+    tos.closeArchiveEntry();
+    return this;
+  }
+
+  // type is TarConstants.LF_LINK or TarConstants.LF_SYMLINK
+  public TarBuilder link(String name, String target, byte type)
+      throws IOException {
+    TarArchiveEntry entry = new TarArchiveEntry(name, type);
+    entry.setLinkName(target);
+    return add(entry);
+  }
+
+  public TarBuilder add(TarArchiveEntry entry) throws IOException {
+    tos.putArchiveEntry(entry);
+    tos.closeArchiveEntry();
+    return this;
+  }
+
+  @Override
+  public void close() throws IOException {
+    tos.close();
+  }
+
+}
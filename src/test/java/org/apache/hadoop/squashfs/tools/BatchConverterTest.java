@@ -0,0 +1,195 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.squashfs.SquashFsReader;
+import org.apache.hadoop.squashfs.SquashFsWriterOptions;
+import org.apache.hadoop.squashfs.test.TarBuilder;
+
+public class BatchConverterTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	File layer(int files, int fileSize, boolean gzip) throws Exception {
+		File file = temp.newFile();
+		Random random = new Random(files * 31L + fileSize);
+		try (TarBuilder tar = new TarBuilder(file, gzip)) {
+			tar.dir("data");
+			for (int i = 0; i < files; i++) {
+				byte[] content = new byte[fileSize];
+				random.nextBytes(content);
+				tar.file(String.format("data/file-%d", i), content);
+			}
+		}
+		return file;
+	}
+
+	@Test
+	public void allJobsShouldBeConverted() throws Exception {
+		List<File> inputs = new ArrayList<>();
+		inputs.add(layer(3, 1_000_000, true));
+		inputs.add(layer(10, 100, false));
+		inputs.add(layer(1, 10, true));
+		inputs.add(layer(50, 20_000, true));
+
+		List<BatchConverter.Job> jobs = new ArrayList<>();
+		try (BatchConverter converter = new BatchConverter(SquashFsWriterOptions::new, 2, 2,
+				BatchConverter.MIN_JOB_MEMORY * 3)) {
+			for (File input : inputs) {
+				jobs.add(converter.submit(input, temp.newFile()));
+			}
+			converter.awaitAll();
+			assertTrue("budget exceeded", converter.getPeakMemoryInUse() <= converter.getMemoryBudget());
+			assertEquals("memory not released", 0L, converter.getMemoryInUse());
+		}
+
+		for (BatchConverter.Job job : jobs) {
+			job.await();
+			assertSame(BatchConverter.State.SUCCEEDED, job.getState());
+			assertEquals(1.0, job.getProgress(), 0.0);
+			assertEquals(job.getInputSize(), job.getBytesRead());
+			assertTrue("no elapsed time", job.getElapsedNanos() > 0L);
+			assertTrue("no throughput", job.getThroughput() > 0.0);
+		}
+		assertEquals(4L, jobs.get(0).getEntryCount());
+		assertEquals(51L, jobs.get(3).getEntryCount());
+
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, jobs.get(0).getOutput())) {
+			try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+				reader.writeFileStream(reader.findInodeByPath("/data/file-2"), bos);
+				byte[] expected = new byte[1_000_000];
+				Random random = new Random(3 * 31L + 1_000_000);
+				for (int i = 0; i < 3; i++) {
+					random.nextBytes(expected);
+				}
+				assertArrayEquals(expected, bos.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	public void smallerJobsShouldStartFirst() throws Exception {
+		CountDownLatch submitted = new CountDownLatch(1);
+		AtomicBoolean first = new AtomicBoolean(true);
+
+		List<BatchConverter.Job> jobs = new ArrayList<>();
+		try (BatchConverter converter = new BatchConverter(() -> {
+			// hold the only job slot until everything is queued
+			if (first.getAndSet(false)) {
+				try {
+					submitted.await(10, TimeUnit.SECONDS);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+			return new SquashFsWriterOptions();
+		}, 1, 1, BatchConverter.MIN_JOB_MEMORY)) {
+			List<File> inputs = new ArrayList<>();
+			inputs.add(layer(2, 500_000, true));
+			inputs.add(layer(4, 500_000, true));
+			inputs.add(layer(1, 100, true));
+			inputs.add(layer(5, 10_000, true));
+			inputs.add(layer(1, 10, true));
+
+			jobs.add(converter.submit(inputs.get(0), temp.newFile()));
+			while (jobs.get(0).getState() == BatchConverter.State.QUEUED) {
+				Thread.sleep(1L);
+			}
+			for (File input : inputs.subList(1, inputs.size())) {
+				jobs.add(converter.submit(input, temp.newFile()));
+			}
+			submitted.countDown();
+			converter.awaitAll();
+		}
+
+		List<BatchConverter.Job> started = new ArrayList<>(jobs);
+		started.sort(Comparator.comparingLong(BatchConverter.Job::getStartNanos));
+		// the first job was already running; the rest go smallest first
+		assertSame(jobs.get(0), started.get(0));
+		assertSame(jobs.get(4), started.get(1));
+		assertSame(jobs.get(2), started.get(2));
+		assertSame(jobs.get(3), started.get(3));
+		assertSame(jobs.get(1), started.get(4));
+	}
+
+	@Test
+	public void failedJobShouldNotStopOthers() throws Exception {
+		BatchConverter.Job missing;
+		BatchConverter.Job present;
+		try (BatchConverter converter = new BatchConverter(SquashFsWriterOptions::new, 1, 2,
+				BatchConverter.MIN_JOB_MEMORY * 2)) {
+			missing = converter.submit(new File(temp.getRoot(), "missing.tar"), temp.newFile());
+			present = converter.submit(layer(1, 10, false), temp.newFile());
+			converter.awaitAll();
+		}
+
+		assertSame(BatchConverter.State.FAILED, missing.getState());
+		assertTrue(missing.getError() instanceof FileNotFoundException);
+		assertSame(BatchConverter.State.SUCCEEDED, present.getState());
+		try {
+			missing.await();
+		} catch (FileNotFoundException e) {
+			assertNotNull(e.getMessage());
+			return;
+		}
+		throw new AssertionError("failure not rethrown");
+	}
+
+	@Test
+	public void reservationShouldBeSplitBetweenBuffers() {
+		SquashFsWriterOptions options = new SquashFsWriterOptions();
+		BatchConverter.limitMemory(options, BatchConverter.MIN_JOB_MEMORY);
+		assertEquals(8, options.getMaxPendingBlocks());
+		assertEquals(1024L * 1024L, options.getMaxBufferedFragmentBytes());
+		assertEquals(512L * 1024L, options.getMaxMetadataMemory());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void tinyMemoryBudgetShouldFail() {
+		new BatchConverter(SquashFsWriterOptions::new, 1, 1, BatchConverter.MIN_JOB_MEMORY - 1).close();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void zeroJobsShouldFail() {
+		new BatchConverter(SquashFsWriterOptions::new, 1, 0, BatchConverter.MIN_JOB_MEMORY).close();
+	}
+
+}
@@ -0,0 +1,156 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.tools;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.squashfs.SquashFsReader;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.inode.INode;
+import org.apache.hadoop.squashfs.inode.SymlinkINode;
+
+public class DirectoryImporterTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	File source;
+	byte[] large;
+
+	@Before
+	public void setUp() throws Exception {
+		source = temp.newFolder("source");
+		Path root = source.toPath();
+		large = new byte[700_000];
+		new Random(0L).nextBytes(large);
+
+		Files.createDirectories(root.resolve("etc/conf.d"));
+		Files.createDirectories(root.resolve("var"));
+		Files.write(root.resolve("etc/hosts"), "localhost\n".getBytes(StandardCharsets.UTF_8));
+		Files.write(root.resolve("etc/conf.d/empty"), new byte[0]);
+		Files.write(root.resolve("var/large"), large);
+		Files.createLink(root.resolve("etc/large-link"), root.resolve("var/large"));
+		Files.createSymbolicLink(root.resolve("etc/hosts-link"), root.resolve("etc/hosts").getFileName());
+		Files.setPosixFilePermissions(root.resolve("etc/hosts"), PosixFilePermissions.fromString("rw-r-----"));
+		Files.setPosixFilePermissions(root.resolve("var"), PosixFilePermissions.fromString("rwx--x---"));
+		Files.setLastModifiedTime(root.resolve("var/large"), FileTime.fromMillis(1_500_000_000_000L));
+	}
+
+	byte[] convert(int threads, long readAheadBytes, long mapThreshold) throws Exception {
+		File output = temp.newFile();
+		ExecutorService readPool = Executors.newFixedThreadPool(threads);
+		try (SquashFsWriter writer = new SquashFsWriter(output)) {
+			AtomicReference<Date> modDate = new AtomicReference<>(new Date(0));
+			DirectoryImporter importer = new DirectoryImporter(writer, readPool, modDate, readAheadBytes,
+					mapThreshold);
+			importer.importDirectory(source);
+			assertEquals(8L, importer.getAddedCount());
+			assertEquals(1L, importer.getHardlinkCount());
+			assertEquals(large.length + 10L, importer.getBytesRead());
+			writer.setModificationTime((int) (modDate.get().getTime() / 1000L));
+			writer.finish();
+		} finally {
+			readPool.shutdownNow();
+		}
+		return Files.readAllBytes(output.toPath());
+	}
+
+	byte[] content(SquashFsReader reader, String path) throws IOException {
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			reader.writeFileStream(reader.findInodeByPath(path), bos);
+			return bos.toByteArray();
+		}
+	}
+
+	@Test
+	public void directoryShouldBeStoredWithItsMetadata() throws Exception {
+		File image = temp.newFile();
+		Files.write(image.toPath(), convert(4, DirectoryImporter.DEFAULT_READ_AHEAD_BYTES, 64L * 1024L));
+
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, image)) {
+			assertArrayEquals("localhost\n".getBytes(StandardCharsets.UTF_8), content(reader, "/etc/hosts"));
+			assertArrayEquals(large, content(reader, "/var/large"));
+			assertArrayEquals(large, content(reader, "/etc/large-link"));
+			assertEquals(0, content(reader, "/etc/conf.d/empty").length);
+
+			INode hosts = reader.findInodeByPath("/etc/hosts");
+			assertEquals(0640, hosts.getPermissions());
+			int uid = (Integer) Files.getAttribute(source.toPath().resolve("etc/hosts"), "unix:uid");
+			assertEquals(uid, reader.getIdTable().idFromIndex(hosts.getUidIdx()));
+			assertEquals(0710, reader.findInodeByPath("/var").getPermissions());
+
+			INode link = reader.findInodeByPath("/etc/hosts-link");
+			assertTrue(link instanceof SymlinkINode);
+			assertEquals("hosts", new String(((SymlinkINode) link).getTargetPath(), StandardCharsets.UTF_8));
+
+			INode file = reader.findInodeByPath("/var/large");
+			assertEquals(file.getInodeNumber(), reader.findInodeByPath("/etc/large-link").getInodeNumber());
+			assertEquals(2, file.getNlink());
+			assertEquals(1_500_000_000, file.getModifiedTime());
+
+			int rootMode = (Integer) Files.getAttribute(source.toPath(), "unix:mode");
+			assertEquals(rootMode & 07777, reader.getRootInode().getPermissions());
+		}
+	}
+
+	@Test
+	public void imageShouldNotDependOnReadScheduling() throws Exception {
+		byte[] serial = convert(1, 0L, Long.MAX_VALUE);
+		byte[] parallel = convert(8, DirectoryImporter.DEFAULT_READ_AHEAD_BYTES, 1L);
+		assertArrayEquals(serial, parallel);
+	}
+
+	@Test(expected = IOException.class)
+	public void regularFileShouldNotBeImported() throws Exception {
+		source = new File(source, "etc/hosts");
+		convert(1, 0L, Long.MAX_VALUE);
+	}
+
+	@Test
+	public void deviceNumbersShouldBeDecoded() {
+		// makedev(4097, 300)
+		long rdev = (300L & 0xffL) | ((4097L & 0xfffL) << 8) | ((300L & ~0xffL) << 12) | ((4097L & ~0xfffL) << 32);
+		assertEquals(4097, DirectoryImporter.major(rdev));
+		assertEquals(300, DirectoryImporter.minor(rdev));
+		assertEquals(8, DirectoryImporter.major(0x801L));
+		assertEquals(1, DirectoryImporter.minor(0x801L));
+	}
+
+}
@@ -0,0 +1,216 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.tools;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.commons.compress.archivers.tar.TarConstants;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import org.apache.hadoop.squashfs.SquashFsReader;
+import org.apache.hadoop.squashfs.SquashFsWriter;
+import org.apache.hadoop.squashfs.inode.INode;
+import org.apache.hadoop.squashfs.inode.SymlinkINode;
+import org.apache.hadoop.squashfs.test.TarBuilder;
+
+public class LayerMergerTest {
+
+	@Rule
+	public TemporaryFolder temp = new TemporaryFolder();
+
+	File merge(File... layers) throws Exception {
+		File archive = temp.newFile();
+		try (SquashFsWriter writer = new SquashFsWriter(archive)) {
+			merger = new LayerMerger(writer, new AtomicReference<>(new Date(0)));
+			for (int i = layers.length - 1; i >= 0; i--) {
+				merger.addLayer(layers[i]);
+			}
+			writer.finish();
+		}
+		return archive;
+	}
+
+	LayerMerger merger;
+
+	static String read(SquashFsReader reader, String path) throws Exception {
+		try (ByteArrayOutputStream bos = new ByteArrayOutputStream()) {
+			reader.writeFileStream(reader.findInodeByPath(path), bos);
+			return new String(bos.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+
+	static boolean exists(SquashFsReader reader, String path) throws Exception {
+		try {
+			reader.findInodeByPath(path);
+			return true;
+		} catch (FileNotFoundException e) {
+			return false;
+		}
+	}
+
+	@Test
+	public void upperLayersShouldReplaceAndRemoveLowerEntries() throws Exception {
+		File bottom = temp.newFile();
+		try (TarBuilder l = new TarBuilder(bottom, true)) {
+			l.dir("./").dir("./etc").dir("./usr").dir("./usr/bin").dir("./opt").dir("./opt/data").dir("./keep");
+			l.file("./etc/passwd", "root");
+			l.file("./etc/old.conf", "obsolete");
+			l.file("./opt/data/file1", "lower data");
+			l.file("./keep/a", "kept?");
+			l.file("./usr/bin/perl", "perl 5.30");
+			l.link("./usr/bin/perl5", "./usr/bin/perl", TarConstants.LF_LINK);
+			l.link("./usr/bin/perl5.30", "./usr/bin/perl", TarConstants.LF_LINK);
+		}
+		File middle = temp.newFile();
+		try (TarBuilder l = new TarBuilder(middle, false)) {
+			l.file("etc/passwd", "root,user");
+			l.file("etc/.wh.old.conf", "");
+			l.file("opt/data/.wh..wh..opq", "");
+			l.file("opt/data/file2", "upper data");
+			l.file("usr/bin/perl", "perl 5.36");
+			l.file("keep/b", "also kept?");
+			l.file("var/log/messages", "hidden by the top layer");
+		}
+		File top = temp.newFile();
+		try (TarBuilder l = new TarBuilder(top, true)) {
+			l.link("keep", "/opt", TarConstants.LF_SYMLINK);
+			l.file(".wh.var", "");
+		}
+
+		File archive = merge(bottom, middle, top);
+
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, archive)) {
+			assertEquals("root,user", read(reader, "/etc/passwd"));
+			assertFalse("whited out file present", exists(reader, "/etc/old.conf"));
+			assertEquals("upper data", read(reader, "/opt/data/file2"));
+			assertFalse("file under opaque directory present", exists(reader, "/opt/data/file1"));
+			assertEquals("perl 5.36", read(reader, "/usr/bin/perl"));
+			assertFalse("whited out directory present", exists(reader, "/var"));
+
+			INode keep = reader.findInodeByPath("/keep");
+			assertTrue("not a symlink", keep instanceof SymlinkINode);
+			assertEquals("/opt", new String(((SymlinkINode) keep).getTargetPath(), StandardCharsets.ISO_8859_1));
+			assertEquals("replaced directory has children", 0, reader.getChildren(reader.findInodeByPath("/usr"))
+					.stream().filter(e -> e.getNameAsString().equals("keep")).count());
+
+			// links to a replaced file keep the content they were created with
+			assertEquals("perl 5.30", read(reader, "/usr/bin/perl5"));
+			assertEquals("perl 5.30", read(reader, "/usr/bin/perl5.30"));
+			assertEquals(2, reader.findInodeByPath("/usr/bin/perl5").getNlink());
+			assertEquals(1, reader.findInodeByPath("/usr/bin/perl").getNlink());
+		}
+
+		assertEquals(2L, merger.getRestoredLinkCount());
+		// old passwd, old.conf, file1, keep/a, perl, keep/b and var/log/messages
+		assertEquals("root".length() + "obsolete".length() + "lower data".length() + "kept?".length()
+				+ "perl 5.30".length() + "also kept?".length() + "hidden by the top layer".length(),
+				merger.getHiddenBytes());
+	}
+
+	@Test
+	public void missingParentsShouldBeReplacedByLowerDirectories() throws Exception {
+		File bottom = temp.newFile();
+		try (TarBuilder l = new TarBuilder(bottom, false)) {
+			l.dir("srv", 0700);
+		}
+		File top = temp.newFile();
+		try (TarBuilder l = new TarBuilder(top, false)) {
+			l.file("srv/www/index.html", "hello");
+		}
+
+		File archive = merge(bottom, top);
+
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, archive)) {
+			assertEquals("hello", read(reader, "/srv/www/index.html"));
+			INode srv = reader.findInodeByPath("/srv");
+			assertEquals("lower directory not used", (short) 0700, srv.getPermissions());
+			assertEquals((short) 0755, reader.findInodeByPath("/srv/www").getPermissions());
+		}
+	}
+
+	@Test
+	public void upperDirectoryAttributesShouldWin() throws Exception {
+		File bottom = temp.newFile();
+		try (TarBuilder l = new TarBuilder(bottom, false)) {
+			l.dir("data", 0700);
+			l.file("data/lower", "lower");
+		}
+		File top = temp.newFile();
+		try (TarBuilder l = new TarBuilder(top, false)) {
+			l.dir("data");
+			l.file("data/upper", "upper");
+		}
+
+		File archive = merge(bottom, top);
+
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, archive)) {
+			assertEquals((short) 0755, reader.findInodeByPath("/data").getPermissions());
+			assertEquals("lower", read(reader, "/data/lower"));
+			assertEquals("upper", read(reader, "/data/upper"));
+		}
+		assertEquals(1L, merger.getHiddenCount());
+	}
+
+	@Test
+	public void linkToReplacedFileShouldKeepOriginalContent() throws Exception {
+		File bottom = temp.newFile();
+		try (TarBuilder l = new TarBuilder(bottom, false)) {
+			l.file("file", "content");
+			l.link("link", "file", TarConstants.LF_LINK);
+		}
+		File top = temp.newFile();
+		try (TarBuilder l = new TarBuilder(top, false)) {
+			l.file("file", "replaced");
+		}
+
+		File archive = merge(bottom, top);
+		assertEquals("content", readAfterMerge(archive, "/link"));
+		assertEquals("replaced", readAfterMerge(archive, "/file"));
+		assertEquals(1L, merger.getRestoredLinkCount());
+	}
+
+	String readAfterMerge(File archive, String path) throws Exception {
+		try (SquashFsReader reader = SquashFsReader.fromFile(0, archive)) {
+			return read(reader, path);
+		}
+	}
+
+	@Test
+	public void namesShouldBeNormalized() {
+		assertEquals("/", SquashConvert.normalize("./"));
+		assertEquals("/", SquashConvert.normalize("/"));
+		assertEquals("/", SquashConvert.normalize("."));
+		assertEquals("/usr/bin", SquashConvert.normalize("./usr/bin/"));
+		assertEquals("/usr/bin", SquashConvert.normalize("/usr//bin"));
+		assertEquals("/usr/bin", SquashConvert.normalize("usr/bin/."));
+		assertEquals("/.wh.file", SquashConvert.normalize("./.wh.file"));
+	}
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.util;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ReadAheadInputStreamTest {
+
+	static byte[] randomBytes(int length) {
+		byte[] data = new byte[length];
+		new Random(0L).nextBytes(data);
+		return data;
+	}
+
+	static byte[] readAll(InputStream in, int bufferSize) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		byte[] buf = new byte[bufferSize];
+		int c;
+		while ((c = in.read(buf)) >= 0) {
+			bos.write(buf, 0, c);
+		}
+		return bos.toByteArray();
+	}
+
+	@Test
+	public void readMustReturnSourceContent() throws Exception {
+		byte[] data = randomBytes(100_003);
+		try (ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 1000, 3,
+				new StageStats("test"))) {
+			assertArrayEquals(data, readAll(in, 777));
+			assertEquals(-1, in.read());
+			assertEquals(101L, in.getReadStats().getItemCount());
+		}
+	}
+
+	@Test
+	public void singleByteReadsMustReturnSourceContent() throws Exception {
+		byte[] data = randomBytes(5000);
+		try (ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 64, 2,
+				new StageStats("test"))) {
+			for (int i = 0; i < data.length; i++) {
+				assertEquals(String.format("wrong byte %d", i), data[i] & 0xff, in.read());
+			}
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void emptySourceMustReturnEndOfStream() throws Exception {
+		try (ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]))) {
+			assertEquals(-1, in.read(new byte[10]));
+		}
+	}
+
+	@Test
+	public void skipMustAdvanceAcrossChunks() throws Exception {
+		byte[] data = randomBytes(10_000);
+		try (ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 100, 4,
+				new StageStats("test"))) {
+			assertEquals(2550L, in.skip(2550L));
+			assertEquals(data[2550] & 0xff, in.read());
+			assertEquals(7449L, in.skip(100_000L));
+			assertEquals(-1, in.read());
+		}
+	}
+
+	@Test
+	public void sourceFailureMustBeReportedToReader() throws Exception {
+		InputStream failing = new InputStream() {
+			int count = 0;
+
+			@Override
+			public int read() throws IOException {
+				throw new UnsupportedOperationException();
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (count >= 150) {
+					throw new IOException("broken source");
+				}
+				int c = Math.min(len, 150 - count);
+				count += c;
+				return c;
+			}
+		};
+		try (ReadAheadInputStream in = new ReadAheadInputStream(failing, 100, 2, new StageStats("test"))) {
+			byte[] buf = new byte[100];
+			assertEquals(100, in.read(buf));
+			try {
+				in.read(buf);
+			} catch (IOException e) {
+				assertEquals("broken source", e.getMessage());
+				return;
+			}
+		}
+		throw new AssertionError("failure not reported");
+	}
+
+	@Test
+	public void closeBeforeEndMustStopReadAhead() throws Exception {
+		byte[] data = randomBytes(1_000_000);
+		ReadAheadInputStream in = new ReadAheadInputStream(new ByteArrayInputStream(data), 1000, 2,
+				new StageStats("test"));
+		assertEquals(10, in.read(new byte[10]));
+		in.close();
+		assertTrue("read too far", in.getReadStats().getItemCount() < 1000L);
+		try {
+			in.read();
+		} catch (IOException e) {
+			return;
+		}
+		throw new AssertionError("read after close did not fail");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void singleChunkMustFail() {
+		new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), 100, 1, new StageStats("test"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void emptyChunkMustFail() {
+		new ReadAheadInputStream(new ByteArrayInputStream(new byte[0]), 0, 2, new StageStats("test"));
+	}
+
+}
@@ -0,0 +1,202 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SingleFlightTest {
+
+	static final int THREADS = 8;
+
+	ExecutorService executor;
+	SingleFlight<String, Object> flight;
+
+	@Before
+	public void setUp() {
+		executor = Executors.newFixedThreadPool(THREADS);
+		flight = new SingleFlight<>();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+
+	@Test
+	public void concurrentLoadsOfSameKeyShouldRunOnce() throws Exception {
+		Object value = new Object();
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+
+		List<Future<Object>> results = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			results.add(executor.submit(() -> flight.load("a", () -> {
+				calls.incrementAndGet();
+				await(release);
+				return value;
+			})));
+		}
+		awaitCoalesced(THREADS - 1);
+		release.countDown();
+
+		for (Future<Object> result : results) {
+			assertSame(value, result.get(1, TimeUnit.MINUTES));
+		}
+		assertEquals(1, calls.get());
+		assertEquals(1L, flight.getLoadCount());
+		assertEquals(THREADS - 1L, flight.getCoalescedCount());
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	@Test
+	public void failureShouldReachWaitersAndNotBeRemembered() throws Exception {
+		IOException failure = new IOException("boom");
+		CountDownLatch release = new CountDownLatch(1);
+
+		List<Future<Object>> results = new ArrayList<>();
+		for (int i = 0; i < THREADS; i++) {
+			results.add(executor.submit(() -> flight.load("a", () -> {
+				await(release);
+				throw failure;
+			})));
+		}
+		awaitCoalesced(THREADS - 1);
+		release.countDown();
+
+		for (Future<Object> result : results) {
+			try {
+				result.get(1, TimeUnit.MINUTES);
+				fail("load did not fail");
+			} catch (ExecutionException e) {
+				assertSame(failure, e.getCause());
+			}
+		}
+
+		// the next caller loads again
+		Object value = new Object();
+		assertSame(value, flight.load("a", () -> value));
+		assertEquals(2L, flight.getLoadCount());
+	}
+
+	@Test
+	public void interruptedLoaderShouldNotFailWaiters() throws Exception {
+		Object value = new Object();
+		AtomicInteger calls = new AtomicInteger();
+		CountDownLatch release = new CountDownLatch(1);
+		SingleFlight.Loader<Object> loader = () -> {
+			if (calls.incrementAndGet() == 1) {
+				await(release);
+				throw new ClosedByInterruptException();
+			}
+			return value;
+		};
+
+		Future<Object> first = executor.submit(() -> flight.load("a", loader));
+		while (calls.get() == 0) {
+			Thread.sleep(1L);
+		}
+		List<Future<Object>> results = new ArrayList<>();
+		for (int i = 1; i < THREADS; i++) {
+			results.add(executor.submit(() -> flight.load("a", loader)));
+		}
+		awaitCoalesced(THREADS - 1);
+		release.countDown();
+
+		try {
+			first.get(1, TimeUnit.MINUTES);
+			fail("load did not fail");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof ClosedByInterruptException);
+		}
+		// the waiters were not interrupted, so they load again
+		for (Future<Object> result : results) {
+			assertSame(value, result.get(1, TimeUnit.MINUTES));
+		}
+		assertEquals(0, flight.getInFlightCount());
+	}
+
+	@Test
+	public void differentKeysShouldNotCoalesce() throws Exception {
+		CountDownLatch loading = new CountDownLatch(2);
+		Future<Object> a = executor.submit(() -> flight.load("a", () -> {
+			loading.countDown();
+			await(loading);
+			return "a";
+		}));
+		Future<Object> b = executor.submit(() -> flight.load("b", () -> {
+			loading.countDown();
+			await(loading);
+			return "b";
+		}));
+		assertEquals("a", a.get(1, TimeUnit.MINUTES));
+		assertEquals("b", b.get(1, TimeUnit.MINUTES));
+		assertEquals(2L, flight.getLoadCount());
+		assertEquals(0L, flight.getCoalescedCount());
+	}
+
+	@Test
+	public void completedLoadsShouldNotBeReused() throws Exception {
+		assertEquals("1", flight.load("a", () -> "1"));
+		assertEquals("2", flight.load("a", () -> "2"));
+		assertEquals(2L, flight.getLoadCount());
+		assertEquals(0L, flight.getCoalescedCount());
+
+		flight.resetStatistics();
+		assertEquals(0L, flight.getLoadCount());
+	}
+
+	static void await(CountDownLatch latch) throws IOException {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException();
+		}
+	}
+
+	void awaitCoalesced(long count) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+		while (flight.getCoalescedCount() < count) {
+			if (System.nanoTime() > deadline) {
+				fail("waiters never arrived");
+			}
+			Thread.sleep(1L);
+		}
+	}
+
+}
@@ -0,0 +1,72 @@
+/**
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.hadoop.squashfs.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class StageStatsTest {
+
+	@Test
+	public void busyTimeMustCountItems() {
+		StageStats stats = new StageStats("compress");
+		stats.busy(100L);
+		stats.busy(300L);
+		stats.waited(50L);
+		assertEquals("compress", stats.getName());
+		assertEquals(400L, stats.getBusyNanos());
+		assertEquals(50L, stats.getWaitNanos());
+		assertEquals(2L, stats.getItemCount());
+	}
+
+	@Test
+	public void utilizationMustBeSharedAcrossWorkers() {
+		StageStats stats = new StageStats("compress");
+		stats.busy(600L);
+		assertEquals(0.6, stats.getUtilization(1000L, 1), 0.0001);
+		assertEquals(0.15, stats.getUtilization(1000L, 4), 0.0001);
+	}
+
+	@Test
+	public void utilizationMustBeCapped() {
+		StageStats stats = new StageStats("write");
+		stats.busy(2000L);
+		assertEquals(1.0, stats.getUtilization(1000L, 1), 0.0001);
+	}
+
+	@Test
+	public void utilizationWithoutElapsedTimeMustBeZero() {
+		StageStats stats = new StageStats("write");
+		stats.busy(2000L);
+		assertEquals(0.0, stats.getUtilization(0L, 1), 0.0001);
+		assertEquals(0.0, stats.getUtilization(1000L, 0), 0.0001);
+	}
+
+	@Test
+	public void formatMustIncludeNameAndUtilization() {
+		StageStats stats = new StageStats("inflate");
+		stats.busy(500_000_000L);
+		String text = stats.format(1_000_000_000L, 1);
+		assertTrue(text, text.startsWith("inflate"));
+		assertTrue(text, text.contains("50.0% busy"));
+	}
+
+}